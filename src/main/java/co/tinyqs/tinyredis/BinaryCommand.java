@@ -0,0 +1,106 @@
+package co.tinyqs.tinyredis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable builder for binary commands that are encoded straight into a connection's output buffer
+ *
+ * Obtained via RedisConnection.command(), eg:
+ *   conn.command(3).arg("INCRBY").arg(key).arg(10).send();
+ *   long count = conn.command(2).arg("INCR").arg(key).sendForLong();
+ *
+ * A connection only ever has a single instance, so a command must be sent or appended before starting the next one.
+ */
+public final class BinaryCommand
+{
+    private final RedisConnection connection;
+    private final CommandEncoder encoder;
+
+    BinaryCommand(RedisConnection connection, CommandEncoder encoder)
+    {
+        this.connection = connection;
+        this.encoder = encoder;
+    }
+
+    BinaryCommand begin(int argc)
+    {
+        encoder.abort();
+        encoder.begin(argc);
+        return this;
+    }
+
+    public BinaryCommand arg(byte[] arg)
+    {
+        encoder.arg(arg);
+        return this;
+    }
+
+    public BinaryCommand arg(ByteBuffer arg)
+    {
+        encoder.arg(arg);
+        return this;
+    }
+
+    public BinaryCommand arg(CharSequence arg)
+    {
+        encoder.arg(arg);
+        return this;
+    }
+
+    public BinaryCommand arg(long arg)
+    {
+        encoder.arg(arg);
+        return this;
+    }
+
+    /**
+     * Send this command along with any pending commands and wait for its reply
+     */
+    public RedisReply send() throws IOException
+    {
+        connection.stageCommand();
+        return connection.sendStaged();
+    }
+
+    /**
+     * Send this command and return its integer reply without building a RedisReply
+     *
+     * @see RedisConnection#sendForLong(String, Object...)
+     */
+    public long sendForLong() throws IOException
+    {
+        connection.stageCommand();
+        return connection.getLongReply();
+    }
+
+    /**
+     * Send this command and return whether it replied with an OK status, without building a RedisReply
+     *
+     * @see RedisConnection#sendForOk(String, Object...)
+     */
+    public boolean sendForOk() throws IOException
+    {
+        connection.stageCommand();
+        return connection.getOkReply();
+    }
+
+    /**
+     * Send this command and return its bulk string reply, or null if it was nil, without building a RedisReply
+     *
+     * @see RedisConnection#sendForBulk(String, Object...)
+     */
+    public byte[] sendForBulk() throws IOException
+    {
+        connection.stageCommand();
+        return connection.getBulkReply();
+    }
+
+    /**
+     * Queue this command to be sent at the next call to getReply()
+     */
+    public void append() throws IOException
+    {
+        connection.stageCommand();
+    }
+}
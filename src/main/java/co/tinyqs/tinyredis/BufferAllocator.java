@@ -0,0 +1,71 @@
+package co.tinyqs.tinyredis;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of the buffers that connections read replies into and encode commands in
+ *
+ * Buffers are handed back with release() once nothing references them, so an allocator may reuse them. Capacities
+ * are rounded up to a power of two, so that a buffer that is grown to fit more data at least doubles.
+ */
+public interface BufferAllocator
+{
+    /**
+     * Return a cleared buffer with at least minCapacity bytes of capacity
+     */
+    ByteBuffer allocate(int minCapacity);
+
+    /**
+     * Give back a buffer returned by allocate(). The caller must no longer reference it.
+     */
+    void release(ByteBuffer buffer);
+
+    /**
+     * true if this allocator returns direct buffers
+     */
+    boolean isDirect();
+
+    /**
+     * Unpooled heap buffers, left to the garbage collector once released
+     */
+    static BufferAllocator heap()
+    {
+        return new BufferAllocator()
+        {
+            @Override
+            public ByteBuffer allocate(int minCapacity)
+            {
+                return ByteBuffer.allocate(PooledBufferAllocator.roundCapacity(minCapacity));
+            }
+
+            @Override
+            public void release(ByteBuffer buffer)
+            {
+                // Nothing to reuse
+            }
+
+            @Override
+            public boolean isDirect()
+            {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Heap buffers from a pool shared by every connection. The default for connections.
+     */
+    static BufferAllocator pooledHeap()
+    {
+        return PooledBufferAllocator.HEAP;
+    }
+
+    /**
+     * Direct buffers from a pool shared by every connection. Sockets read into and write from direct buffers without
+     * copying through a temporary buffer, and pooling avoids the high cost of allocating them.
+     */
+    static BufferAllocator pooledDirect()
+    {
+        return PooledBufferAllocator.DIRECT;
+    }
+}
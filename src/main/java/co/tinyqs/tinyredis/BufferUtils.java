@@ -1,6 +1,9 @@
 package co.tinyqs.tinyredis;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.Charset;
 
 /**
@@ -15,8 +18,17 @@ public class BufferUtils
     private static final Charset CHARSET = ProtocolReader.CHARSET;
     private static final byte C_CR = "\r".getBytes(CHARSET)[0];
     private static final byte C_LF = "\n".getBytes(CHARSET)[0];
+    private static final byte C_MINUS = "-".getBytes(CHARSET)[0];
+    private static final byte C_0 = "0".getBytes(CHARSET)[0];
+    private static final byte[] MIN_LONG_DIGITS = Long.toString(Long.MIN_VALUE).getBytes(CHARSET);
     public static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
     public static final int MAX_PREALLOC = (1024*1024);
+    // Absolute little endian long reads from any ByteBuffer, regardless of its byte order
+    private static final VarHandle LONG_LE = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle ARRAY_LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long CR_WORD = LOW_BITS * C_CR;
     
     /**
      * Ensure that a given buffer contains at least the specified additional capacity in bytes
@@ -38,17 +50,7 @@ public class BufferUtils
         
         Preconditions.checkState(buffer.limit() == buffer.capacity(), "Buffers passed to makeRoom should be in writable state");
         
-        int newlen = buffer.capacity() + additionalCapacity - buffer.remaining();
-
-        // Double the length up to the maximum prealloc size
-        if (newlen < MAX_PREALLOC)
-        {
-            newlen *= 2;
-        }
-        else
-        {
-            newlen += MAX_PREALLOC;
-        }
+        int newlen = growCapacity(buffer.capacity() + additionalCapacity - buffer.remaining());
         
         ByteBuffer newBuff = ByteBuffer.allocate(newlen);
         buffer.flip();
@@ -57,6 +59,159 @@ public class BufferUtils
         return newBuff;
     }
     
+    /**
+     * Return the capacity to allocate when a buffer needs to hold at least the given number of bytes, leaving room
+     * to grow: the length is doubled up to the maximum prealloc size
+     */
+    public static int growCapacity(int needed)
+    {
+        if (needed < MAX_PREALLOC)
+        {
+            return needed * 2;
+        }
+        return needed + MAX_PREALLOC;
+    }
+    
+    /**
+     * Return the number of bytes needed to write the given value as ASCII decimal digits (including any sign)
+     */
+    public static int decimalLength(long value)
+    {
+        if (value == Long.MIN_VALUE)
+        {
+            return 20;
+        }
+        int len = 1;
+        if (value < 0)
+        {
+            len++;
+            value = -value;
+        }
+        while (value >= 10)
+        {
+            value /= 10;
+            len++;
+        }
+        return len;
+    }
+    
+    /**
+     * Write the given value as ASCII decimal digits at the buffer's position without allocating an intermediate String.
+     * The buffer must have at least decimalLength(value) bytes remaining.
+     */
+    public static ByteBuffer putDecimal(ByteBuffer buffer, long value)
+    {
+        if (value == Long.MIN_VALUE)
+        {
+            return buffer.put(MIN_LONG_DIGITS);
+        }
+        int len = decimalLength(value);
+        int start = buffer.position();
+        int idx = start + len;
+        if (value < 0)
+        {
+            buffer.put(start, C_MINUS);
+            value = -value;
+        }
+        do
+        {
+            buffer.put(--idx, (byte) (C_0 + (value % 10)));
+            value /= 10;
+        }
+        while (value > 0);
+        buffer.position(start + len);
+        return buffer;
+    }
+    
+    /**
+     * Return the number of bytes the given characters occupy when encoded as UTF-8. Unpaired surrogates count as
+     * a single replacement byte, matching String.getBytes()
+     */
+    public static int utf8Length(CharSequence chars)
+    {
+        int len = 0;
+        int count = chars.length();
+        for (int i = 0; i < count; i++)
+        {
+            char c = chars.charAt(i);
+            if (c < 0x80)
+            {
+                len++;
+            }
+            else if (c < 0x800)
+            {
+                len += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i+1 < count && Character.isLowSurrogate(chars.charAt(i+1)))
+            {
+                len += 4;
+                i++;
+            }
+            else if (Character.isSurrogate(c))
+            {
+                len++;
+            }
+            else
+            {
+                len += 3;
+            }
+        }
+        return len;
+    }
+    
+    /**
+     * Encode the given characters as UTF-8 at the buffer's position without allocating. The buffer must have at
+     * least utf8Length(chars) bytes remaining.
+     */
+    public static ByteBuffer putUtf8(ByteBuffer buffer, CharSequence chars)
+    {
+        int count = chars.length();
+        for (int i = 0; i < count; i++)
+        {
+            char c = chars.charAt(i);
+            if (c < 0x80)
+            {
+                buffer.put((byte) c);
+            }
+            else if (c < 0x800)
+            {
+                buffer.put((byte) (0xc0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+            else if (Character.isHighSurrogate(c) && i+1 < count && Character.isLowSurrogate(chars.charAt(i+1)))
+            {
+                int cp = Character.toCodePoint(c, chars.charAt(++i));
+                buffer.put((byte) (0xf0 | (cp >> 18)));
+                buffer.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                buffer.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (cp & 0x3f)));
+            }
+            else if (Character.isSurrogate(c))
+            {
+                buffer.put((byte) '?');
+            }
+            else
+            {
+                buffer.put((byte) (0xe0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+        return buffer;
+    }
+    
+    /**
+     * Encode a protocol header line, such as "*3\r\n" or "$5\r\n"
+     */
+    public static byte[] encodeHeader(char type, long len)
+    {
+        ByteBuffer header = ByteBuffer.allocate(decimalLength(len) + 3);
+        header.put((byte) type);
+        putDecimal(header, len);
+        header.put(C_CR).put(C_LF);
+        return header.array();
+    }
+    
     /**
      * Given a string, encode the string into a buffer suitable for network communication
      */
@@ -88,36 +243,88 @@ public class BufferUtils
     }
     
     /**
-     * Return the position after a full CRLF in this buffer, or -1 if CRLF is not present
+     * Return the position after the first CRLF at or after the buffer's position, or -1 if there is no CRLF before its
+     * limit. The buffer's position is left unchanged.
+     *
+     * Scans 8 bytes at a time for CR: XOR-ing a word with CR in every byte zeroes the bytes that held CR, and
+     * (x - 0x01..) & ~x & 0x80.. sets the high bit of the lowest zero byte, so its trailing zero count locates the first
+     * CR in the word. Higher bytes can be flagged spuriously, but only the lowest flag is used.
      */
     public static int seekNewLine(ByteBuffer buffer)
     {
-        int pos = buffer.position();
+        // A CR needs a byte after it, so the last byte is never a candidate
+        int end = buffer.limit() - 1;
+        int i = buffer.position();
+        while (i < end)
+        {
+            int cr = seekCarriageReturn(buffer, i, end);
+            if (cr < 0)
+            {
+                return -1;
+            }
+            if (buffer.get(cr + 1) == C_LF)
+            {
+                return cr + 2;
+            }
+            i = cr + 1;
+        }
+        return -1;
+    }
 
-        while (buffer.remaining() > 1)
+    /*
+     * Return the index of the first CR in [from, end), or -1
+     */
+    private static int seekCarriageReturn(ByteBuffer buffer, int from, int end)
+    {
+        if (buffer.hasArray())
+        {
+            int offset = buffer.arrayOffset();
+            int cr = seekCarriageReturn(buffer.array(), from + offset, end + offset);
+            return cr < 0 ? -1 : cr - offset;
+        }
+        int i = from;
+        while (end - i >= 8)
+        {
+            long x = (long) LONG_LE.get(buffer, i) ^ CR_WORD;
+            long found = (x - LOW_BITS) & ~x & HIGH_BITS;
+            if (found != 0)
+            {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+            i += 8;
+        }
+        while (i < end)
         {
-            byte c = buffer.get();
-            while (c != C_CR && buffer.remaining() > 1)
+            if (buffer.get(i) == C_CR)
             {
-                c = buffer.get();
+                return i;
             }
-            if (c != C_CR)
+            i++;
+        }
+        return -1;
+    }
+
+    private static int seekCarriageReturn(byte[] array, int from, int end)
+    {
+        int i = from;
+        while (end - i >= 8)
+        {
+            long x = (long) ARRAY_LONG_LE.get(array, i) ^ CR_WORD;
+            long found = (x - LOW_BITS) & ~x & HIGH_BITS;
+            if (found != 0)
             {
-                buffer.position(pos);
-                return -1;
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
             }
-            else
+            i += 8;
+        }
+        while (i < end)
+        {
+            if (array[i] == C_CR)
             {
-                c = buffer.get();
-                if (c == C_LF)
-                {
-                    int result = buffer.position();
-                    buffer.position(pos);
-                    return result;
-                }
+                return i;
             }
+            i++;
         }
-        
         return -1;
     }
 }
@@ -0,0 +1,198 @@
+package co.tinyqs.tinyredis;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A batch of commands for a RedisClusterClient
+ *
+ * execute() groups the commands by the node that owns their key and pipelines each group on its own connection, with
+ * all nodes running in parallel. Replies are returned in the order the commands were added. Commands that were
+ * redirected, or whose node failed, are then retried one at a time with the client's usual redirect handling. As
+ * with RedisClusterClient, a command whose node failed after it was written is only retried if it is read-only;
+ * otherwise execute() throws an IOException once the other replies have been read.
+ *
+ * Error replies are returned as they are, regardless of exceptionOnError. A pipeline is not thread-safe and may be
+ * executed more than once.
+ */
+public class ClusterPipeline
+{
+    private final RedisClusterClient client;
+    private final List<ByteBuffer> commands = new ArrayList<>();
+
+    ClusterPipeline(RedisClusterClient client)
+    {
+        this.client = client;
+    }
+
+    /**
+     * Add a command to the pipeline
+     *
+     * @see RedisConnection#sendCommand(String, Object...)
+     */
+    public ClusterPipeline add(String format, Object... args) throws IOException
+    {
+        return add(client.compile(format), args);
+    }
+
+    public ClusterPipeline add(CommandTemplate template, Object... args) throws IOException
+    {
+        commands.add(client.format(template, args));
+        return this;
+    }
+
+    public int size()
+    {
+        return commands.size();
+    }
+
+    /**
+     * Send every command and return the replies in the order the commands were added
+     *
+     * @throws IOException - If a command still failed after the client's retries
+     */
+    public List<RedisReply> execute() throws IOException
+    {
+        final RedisReply[] replies = new RedisReply[commands.size()];
+        final boolean[] sent = new boolean[commands.size()];
+        Map<SocketAddress, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < commands.size(); i++)
+        {
+            SocketAddress node = client.nodeFor(RedisClusterClient.slotOf(commands.get(i)));
+            List<Integer> group = groups.get(node);
+            if (group == null)
+            {
+                group = new ArrayList<>();
+                groups.put(node, group);
+            }
+            group.add(i);
+        }
+
+        if (groups.size() == 1)
+        {
+            Map.Entry<SocketAddress, List<Integer>> group = groups.entrySet().iterator().next();
+            sendGroup(group.getKey(), group.getValue(), replies, sent);
+        }
+        else if (groups.size() > 1)
+        {
+            List<Future<?>> futures = new ArrayList<>();
+            for (final Map.Entry<SocketAddress, List<Integer>> group : groups.entrySet())
+            {
+                futures.add(client.executor().submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        sendGroup(group.getKey(), group.getValue(), replies, sent);
+                        return null;
+                    }
+                }));
+            }
+            await(futures);
+        }
+
+        // Retry redirected and failed commands individually
+        IOException lost = null;
+        for (int i = 0; i < replies.length; i++)
+        {
+            if (replies[i] == null && sent[i] && !RedisClusterClient.isRetryable(commands.get(i)))
+            {
+                lost = lost != null ? lost : new IOException("Lost the reply to command " + i + ", which may have run");
+                continue;
+            }
+            RedisClusterClient.Redirect redirect = replies[i] == null ? null : RedisClusterClient.Redirect.parse(replies[i], null);
+            if (replies[i] == null || redirect != null)
+            {
+                if (redirect != null)
+                {
+                    replies[i].release();
+                    client.redirected(redirect);
+                }
+                replies[i] = client.execute(commands.get(i));
+            }
+        }
+        if (lost != null)
+        {
+            for (RedisReply reply : replies)
+            {
+                if (reply != null)
+                {
+                    reply.release();
+                }
+            }
+            throw lost;
+        }
+        return Arrays.asList(replies);
+    }
+
+    /*
+     * Pipeline one node's commands on a single connection. Replies are left null if the node fails.
+     */
+    private void sendGroup(SocketAddress node, List<Integer> indexes, RedisReply[] replies, boolean[] sent)
+    {
+        RedisConnection conn;
+        try
+        {
+            conn = client.borrow(node);
+        }
+        catch (IOException e)
+        {
+            return;
+        }
+        try
+        {
+            for (int index : indexes)
+            {
+                conn.appendFormattedCommand(commands.get(index).duplicate());
+                sent[index] = true;
+            }
+            for (int index : indexes)
+            {
+                replies[index] = conn.getReply();
+            }
+        }
+        catch (IOException e)
+        {
+            // The remaining commands are retried individually
+        }
+        finally
+        {
+            RedisClusterClient.release(conn);
+        }
+    }
+
+    private static void await(List<Future<?>> futures) throws IOException
+    {
+        for (Future<?> future : futures)
+        {
+            try
+            {
+                future.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for pipeline replies");
+            }
+            catch (ExecutionException e)
+            {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+}
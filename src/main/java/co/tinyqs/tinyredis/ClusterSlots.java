@@ -0,0 +1,82 @@
+package co.tinyqs.tinyredis;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Redis Cluster hash slot computation
+ *
+ * A key's slot is the CRC16 (XMODEM) of the key modulo 16384. If the key contains a non-empty {hashtag}, only the
+ * hashtag is hashed, so that related keys can be kept in the same slot.
+ */
+public final class ClusterSlots
+{
+    public static final int SLOTS = 16384;
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static
+    {
+        for (int i = 0; i < 256; i++)
+        {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++)
+            {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC16_TABLE[i] = crc & 0xFFFF;
+        }
+    }
+
+    private ClusterSlots(){};
+
+    public static int slot(String key)
+    {
+        return slot(key.getBytes(ProtocolReader.CHARSET));
+    }
+
+    public static int slot(byte[] key)
+    {
+        return slot(ByteBuffer.wrap(key));
+    }
+
+    /**
+     * Return the slot of the remaining bytes of the given buffer, without changing its position
+     */
+    public static int slot(ByteBuffer key)
+    {
+        int start = key.position();
+        int end = key.limit();
+        int open = indexOf(key, (byte) '{', start, end);
+        if (open >= 0)
+        {
+            int close = indexOf(key, (byte) '}', open + 1, end);
+            if (close > open + 1)
+            {
+                start = open + 1;
+                end = close;
+            }
+        }
+        return crc16(key, start, end) & (SLOTS - 1);
+    }
+
+    static int crc16(ByteBuffer buf, int start, int end)
+    {
+        int crc = 0;
+        for (int i = start; i < end; i++)
+        {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ buf.get(i)) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    private static int indexOf(ByteBuffer buf, byte b, int start, int end)
+    {
+        for (int i = start; i < end; i++)
+        {
+            if (buf.get(i) == b)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,252 @@
+package co.tinyqs.tinyredis;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes binary commands directly into a single reusable output buffer
+ *
+ * Unlike ProtocolWriter.formatCommand(), nothing is allocated per command once the buffer has grown to fit the
+ * working set: lengths and numeric arguments are written as digits and strings are encoded in place.
+ *
+ * Example:
+ *   encoder.begin(3).arg("SET").arg(key).arg(42L).end();
+ */
+public class CommandEncoder
+{
+    private static final Charset CHARSET = ProtocolReader.CHARSET;
+    private static final byte C_STAR = "*".getBytes(CHARSET)[0];
+    private static final byte C_DOLLAR = "$".getBytes(CHARSET)[0];
+    private static final byte C_CR = "\r".getBytes(CHARSET)[0];
+    private static final byte C_LF = "\n".getBytes(CHARSET)[0];
+    private static final int HEADER_PADDING = 1 + 20 + 2;
+    private static final int DEFAULT_BUFF = 1024*16;
+    private static final int MAX_OUTPUT_BUFF = 1024*64;
+
+    private BufferAllocator allocator = BufferAllocator.pooledHeap();
+    private ByteBuffer buffer = BufferUtils.EMPTY;
+    private int commandStart = -1;
+    private int lastStart = -1;
+    private int expected = 0;
+    private int written = 0;
+
+    public CommandEncoder()
+    {
+    }
+
+    /**
+     * Use the given allocator for the output buffer, BufferAllocator.pooledHeap() by default. Must be called when
+     * nothing is waiting to be sent.
+     */
+    public void setAllocator(BufferAllocator allocator)
+    {
+        Preconditions.checkNotNull(allocator, "Allocator may not be null");
+        Preconditions.checkState(commandStart < 0 && isEmpty(), "Can't change allocators with commands buffered");
+        release();
+        this.allocator = allocator;
+    }
+
+    /**
+     * Give the output buffer back to the allocator, discarding anything not yet sent. The encoder remains usable.
+     */
+    public void release()
+    {
+        commandStart = -1;
+        allocator.release(buffer);
+        buffer = BufferUtils.EMPTY;
+    }
+
+    /**
+     * true if commands are encoded into direct memory
+     */
+    public boolean isDirect()
+    {
+        return allocator.isDirect();
+    }
+
+    /**
+     * Start a new command with the given number of arguments (including the command name)
+     */
+    public CommandEncoder begin(int argc)
+    {
+        Preconditions.checkState(commandStart < 0, "Previous command was not finished");
+        Preconditions.checkState(argc > 0, "Commands must have at least one argument");
+        commandStart = buffer.position();
+        expected = argc;
+        written = 0;
+        makeRoom(HEADER_PADDING);
+        buffer.put(C_STAR);
+        BufferUtils.putDecimal(buffer, argc).put(C_CR).put(C_LF);
+        return this;
+    }
+
+    public CommandEncoder arg(byte[] arg)
+    {
+        Preconditions.checkNotNull(arg);
+        startArg(arg.length);
+        buffer.put(arg);
+        return endArg();
+    }
+
+    /**
+     * Append the remaining bytes of the given buffer. The position of arg is left unchanged.
+     */
+    public CommandEncoder arg(ByteBuffer arg)
+    {
+        Preconditions.checkNotNull(arg);
+        int pos = arg.position();
+        startArg(arg.remaining());
+        buffer.put(arg);
+        arg.position(pos);
+        return endArg();
+    }
+
+    /**
+     * Append a string argument, encoded as UTF-8
+     */
+    public CommandEncoder arg(CharSequence arg)
+    {
+        Preconditions.checkNotNull(arg);
+        startArg(BufferUtils.utf8Length(arg));
+        BufferUtils.putUtf8(buffer, arg);
+        return endArg();
+    }
+
+    /**
+     * Append a numeric argument as its decimal representation
+     */
+    public CommandEncoder arg(long arg)
+    {
+        startArg(BufferUtils.decimalLength(arg));
+        BufferUtils.putDecimal(buffer, arg);
+        return endArg();
+    }
+
+    /**
+     * Finish the current command, verifying that the declared number of arguments were written
+     */
+    public void end()
+    {
+        Preconditions.checkState(commandStart >= 0, "No command in progress");
+        if (written != expected)
+        {
+            abort();
+            throw new IllegalStateException("Expected " + expected + " arguments but got " + written);
+        }
+        lastStart = commandStart;
+        commandStart = -1;
+    }
+
+    /**
+     * Read-only view of the command most recently finished by end(). Only valid until more is written or flushed.
+     */
+    ByteBuffer lastCommand()
+    {
+        Preconditions.checkState(lastStart >= 0 && commandStart < 0, "No finished command");
+        ByteBuffer last = buffer.asReadOnlyBuffer();
+        last.flip();
+        last.position(lastStart);
+        return last;
+    }
+
+    /**
+     * Discard any partially written command
+     */
+    public void abort()
+    {
+        if (commandStart >= 0)
+        {
+            buffer.position(commandStart);
+            commandStart = -1;
+        }
+    }
+
+    /**
+     * Copy an already formatted command onto the end of the output buffer
+     */
+    public void append(ByteBuffer formatted)
+    {
+        Preconditions.checkState(commandStart < 0, "Can't append while a command is in progress");
+        makeRoom(formatted.remaining());
+        buffer.put(formatted);
+    }
+
+    /**
+     * Number of encoded bytes waiting to be sent
+     */
+    public int size()
+    {
+        return buffer.position();
+    }
+
+    public boolean isEmpty()
+    {
+        return buffer.position() == 0;
+    }
+
+    /**
+     * Flip the output buffer for reading. Must be followed by a call to endFlush() once the buffer has been written.
+     */
+    ByteBuffer beginFlush()
+    {
+        Preconditions.checkState(commandStart < 0, "Can't flush while a command is in progress");
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Discard any bytes that were written since beginFlush(), returning the buffer to a writable state
+     */
+    void endFlush()
+    {
+        if (buffer.hasRemaining())
+        {
+            buffer.compact();
+        }
+        else if (buffer.capacity() > MAX_OUTPUT_BUFF)
+        {
+            allocator.release(buffer);
+            buffer = allocator.allocate(DEFAULT_BUFF);
+        }
+        else
+        {
+            buffer.clear();
+        }
+    }
+
+    /*
+     * Ensure the buffer has room for the given number of bytes, moving to a larger one from the allocator if needed
+     */
+    private void makeRoom(int additional)
+    {
+        if (buffer.remaining() >= additional)
+        {
+            return;
+        }
+        ByteBuffer fresh = allocator.allocate(Math.max(buffer.position() + additional, DEFAULT_BUFF));
+        buffer.flip();
+        fresh.put(buffer);
+        allocator.release(buffer);
+        buffer = fresh;
+    }
+
+    private void startArg(int len)
+    {
+        Preconditions.checkState(commandStart >= 0, "begin() must be called before adding arguments");
+        if (written == expected)
+        {
+            abort();
+            throw new IllegalStateException("Too many arguments given, expected " + expected);
+        }
+        makeRoom(HEADER_PADDING + len + 2);
+        buffer.put(C_DOLLAR);
+        BufferUtils.putDecimal(buffer, len).put(C_CR).put(C_LF);
+    }
+
+    private CommandEncoder endArg()
+    {
+        buffer.put(C_CR).put(C_LF);
+        written++;
+        return this;
+    }
+}
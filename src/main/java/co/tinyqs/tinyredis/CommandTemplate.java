@@ -0,0 +1,215 @@
+package co.tinyqs.tinyredis;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A format string that has been parsed once into pre-encoded command chunks
+ *
+ * Templates are immutable and may be shared across threads and connections. Words without placeholders are
+ * stored fully encoded (including their $len header), so formatting a template only has to encode its arguments.
+ *
+ * Example:
+ *   CommandTemplate SET = CommandTemplate.compile("SET %s %s");
+ *   conn.sendCommand(SET, "foo", "bar");
+ */
+public final class CommandTemplate
+{
+    private static final Charset CHARSET = ProtocolReader.CHARSET;
+    private static final byte C_PERCENT = "%".getBytes(CHARSET)[0];
+    private static final byte C_s = "s".getBytes(CHARSET)[0];
+    private static final byte C_b = "b".getBytes(CHARSET)[0];
+    private static final byte[] NO_PLACEHOLDERS = new byte[0];
+
+    /**
+     * A single word of a command. Literal words are pre-encoded in full, words containing placeholders
+     * keep the literal bytes between each placeholder (literals.length == placeholders.length + 1)
+     */
+    static final class Word
+    {
+        final byte[] encoded;
+        final byte[][] literals;
+        final byte[] placeholders;
+        final int literalLength;
+
+        private Word(byte[] encoded, byte[][] literals, byte[] placeholders, int literalLength)
+        {
+            this.encoded = encoded;
+            this.literals = literals;
+            this.placeholders = placeholders;
+            this.literalLength = literalLength;
+        }
+
+        boolean isLiteral()
+        {
+            return encoded != null;
+        }
+    }
+
+    private final String format;
+    private final byte[] preamble;
+    private final Word[] words;
+    private final int argCount;
+    private final int literalSize;
+
+    private CommandTemplate(String format, byte[] preamble, Word[] words, int argCount, int literalSize)
+    {
+        this.format = format;
+        this.preamble = preamble;
+        this.words = words;
+        this.argCount = argCount;
+        this.literalSize = literalSize;
+    }
+
+    /**
+     * Parse a format string using the same rules as ProtocolWriter.formatCommand(): the string is split on spaces and
+     * %s / %b placeholders are substituted inline within each word
+     */
+    public static CommandTemplate compile(String format)
+    {
+        Preconditions.checkNotNull(format, "Format may not be null");
+
+        String[] chunks = format.split("[ ]+");
+        Word[] words = new Word[chunks.length];
+        byte[] preamble = BufferUtils.encodeHeader('*', chunks.length);
+        int argCount = 0;
+        int literalSize = preamble.length;
+
+        for (int w = 0; w < chunks.length; w++)
+        {
+            byte[] chunkBuff = chunks[w].getBytes(CHARSET);
+            List<byte[]> literals = new ArrayList<>();
+            ByteArrayBuilder current = new ByteArrayBuilder(chunkBuff.length);
+            ByteArrayBuilder placeholders = new ByteArrayBuilder(2);
+            for (int i = 0; i < chunkBuff.length; i++)
+            {
+                byte c = chunkBuff[i];
+                if (c == C_PERCENT && i+1 < chunkBuff.length)
+                {
+                    byte c2 = chunkBuff[i+1];
+                    if (c2 == C_s || c2 == C_b)
+                    {
+                        literals.add(current.toByteArray());
+                        current = new ByteArrayBuilder(chunkBuff.length - i);
+                        placeholders.add(c2);
+                        argCount++;
+                    }
+                    else
+                    {
+                        current.add(c);
+                        current.add(c2);
+                    }
+                    i++;
+                }
+                else
+                {
+                    current.add(c);
+                }
+            }
+            literals.add(current.toByteArray());
+
+            if (placeholders.length() == 0)
+            {
+                byte[] literal = literals.get(0);
+                byte[] header = BufferUtils.encodeHeader('$', literal.length);
+                byte[] encoded = new byte[header.length + literal.length + 2];
+                System.arraycopy(header, 0, encoded, 0, header.length);
+                System.arraycopy(literal, 0, encoded, header.length, literal.length);
+                encoded[encoded.length - 2] = '\r';
+                encoded[encoded.length - 1] = '\n';
+                words[w] = new Word(encoded, null, NO_PLACEHOLDERS, literal.length);
+                literalSize += encoded.length;
+            }
+            else
+            {
+                int literalLength = 0;
+                for (byte[] literal : literals)
+                {
+                    literalLength += literal.length;
+                }
+                words[w] = new Word(null, literals.toArray(new byte[literals.size()][]), placeholders.toByteArray(), literalLength);
+                literalSize += literalLength;
+            }
+        }
+
+        return new CommandTemplate(format, preamble, words, argCount, literalSize);
+    }
+
+    /**
+     * The original format string this template was compiled from
+     */
+    public String getFormat()
+    {
+        return format;
+    }
+
+    /**
+     * The number of %s / %b arguments this template expects
+     */
+    public int getArgCount()
+    {
+        return argCount;
+    }
+
+    byte[] getPreamble()
+    {
+        return preamble;
+    }
+
+    Word[] getWords()
+    {
+        return words;
+    }
+
+    /**
+     * Number of bytes taken up by the literal portions of this command (excluding headers of interpolated words)
+     */
+    int getLiteralSize()
+    {
+        return literalSize;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CommandTemplate[" + format + "]";
+    }
+
+    /*
+     * Minimal growable byte array, only used while compiling
+     */
+    private static class ByteArrayBuilder
+    {
+        private byte[] buff;
+        private int len = 0;
+
+        ByteArrayBuilder(int initial)
+        {
+            buff = new byte[Math.max(initial, 1)];
+        }
+
+        void add(byte b)
+        {
+            if (len == buff.length)
+            {
+                byte[] newBuff = new byte[buff.length * 2];
+                System.arraycopy(buff, 0, newBuff, 0, len);
+                buff = newBuff;
+            }
+            buff[len++] = b;
+        }
+
+        int length()
+        {
+            return len;
+        }
+
+        byte[] toByteArray()
+        {
+            byte[] result = new byte[len];
+            System.arraycopy(buff, 0, result, 0, len);
+            return result;
+        }
+    }
+}
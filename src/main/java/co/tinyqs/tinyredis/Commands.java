@@ -0,0 +1,205 @@
+package co.tinyqs.tinyredis;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Helpers for inspecting commands that have already been formatted as RESP arrays of bulk strings, such as the
+ * buffers returned by ProtocolWriter.formatCommand(). None of the methods change the position of the given buffer.
+ */
+final class Commands
+{
+    // Commands whose arguments are never keys, even when they have some
+    private static final Set<String> KEYLESS = new HashSet<>(Arrays.asList(
+        "PING", "ECHO", "INFO", "TIME", "DBSIZE", "CLUSTER", "COMMAND", "SCRIPT", "FUNCTION", "CONFIG", "CLIENT",
+        "HELLO", "AUTH", "SELECT", "FLUSHALL", "FLUSHDB", "RANDOMKEY", "KEYS", "SCAN", "ASKING", "READONLY",
+        "READWRITE", "PUBLISH", "SUBSCRIBE", "PSUBSCRIBE", "MULTI", "EXEC", "DISCARD", "UNWATCH"));
+
+    /**
+     * Commands that never modify data, and so can be served by a replica
+     */
+    static final Set<String> READ_ONLY = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+        "GET", "MGET", "STRLEN", "GETRANGE", "SUBSTR", "LCS", "EXISTS", "TYPE", "TTL", "PTTL", "EXPIRETIME",
+        "PEXPIRETIME", "TOUCH", "DUMP", "OBJECT", "HGET", "HMGET", "HGETALL", "HKEYS", "HVALS", "HLEN", "HEXISTS",
+        "HSTRLEN", "HRANDFIELD", "HSCAN", "LRANGE", "LINDEX", "LLEN", "LPOS", "SCARD", "SISMEMBER", "SMISMEMBER",
+        "SMEMBERS", "SRANDMEMBER", "SSCAN", "SINTER", "SINTERCARD", "SUNION", "SDIFF", "ZRANGE", "ZRANGEBYSCORE",
+        "ZRANGEBYLEX", "ZREVRANGE", "ZREVRANGEBYSCORE", "ZREVRANGEBYLEX", "ZSCORE", "ZMSCORE", "ZCARD", "ZCOUNT",
+        "ZLEXCOUNT", "ZRANK", "ZREVRANK", "ZRANDMEMBER", "ZSCAN", "ZINTER", "ZUNION", "ZDIFF", "ZINTERCARD",
+        "XRANGE", "XREVRANGE", "XLEN", "XREAD", "XPENDING", "XINFO", "GETBIT", "BITCOUNT", "BITPOS", "BITFIELD_RO",
+        "PFCOUNT", "GEODIST", "GEOHASH", "GEOPOS", "GEOSEARCH", "GEORADIUS_RO", "GEORADIUSBYMEMBER_RO", "DBSIZE",
+        "KEYS", "SCAN", "RANDOMKEY", "EVAL_RO", "EVALSHA_RO", "FCALL_RO", "SORT_RO")));
+
+    private Commands(){};
+
+    /**
+     * Number of arguments (including the command name), or -1 if the buffer doesn't hold a formatted command
+     */
+    static int argCount(ByteBuffer command)
+    {
+        return (int) readHeader(command.duplicate(), '*');
+    }
+
+    /**
+     * Return a read-only view of the argument at the given index (0 being the command name), or null if there is no
+     * such argument
+     */
+    static ByteBuffer arg(ByteBuffer command, int index)
+    {
+        ByteBuffer buf = command.duplicate();
+        if (index < 0 || readHeader(buf, '*') <= index)
+        {
+            return null;
+        }
+        for (int i = 0; i < index; i++)
+        {
+            long len = readHeader(buf, '$');
+            if (len < 0 || len + 2 > buf.remaining())
+            {
+                return null;
+            }
+            buf.position(buf.position() + (int) len + 2);
+        }
+        long len = readHeader(buf, '$');
+        if (len < 0 || len > buf.remaining())
+        {
+            return null;
+        }
+        ByteBuffer value = buf.slice();
+        value.limit((int) len);
+        return value.asReadOnlyBuffer();
+    }
+
+    /**
+     * Return read-only views of every argument, or null if the buffer doesn't hold a well formed command. Cheaper
+     * than calling arg() for each index of a long command.
+     */
+    static ByteBuffer[] args(ByteBuffer command)
+    {
+        ByteBuffer buf = command.duplicate();
+        long argc = readHeader(buf, '*');
+        if (argc < 0)
+        {
+            return null;
+        }
+        ByteBuffer[] args = new ByteBuffer[(int) argc];
+        for (int i = 0; i < args.length; i++)
+        {
+            long len = readHeader(buf, '$');
+            if (len < 0 || len + 2 > buf.remaining())
+            {
+                return null;
+            }
+            ByteBuffer value = buf.slice();
+            value.limit((int) len);
+            args[i] = value.asReadOnlyBuffer();
+            buf.position(buf.position() + (int) len + 2);
+        }
+        return args;
+    }
+
+    /**
+     * Format a command from the given arguments, the first being the command name
+     */
+    static ByteBuffer build(ByteBuffer... args)
+    {
+        int size = BufferUtils.decimalLength(args.length) + 3;
+        for (ByteBuffer arg : args)
+        {
+            size += BufferUtils.decimalLength(arg.remaining()) + arg.remaining() + 5;
+        }
+        ByteBuffer command = ByteBuffer.allocate(size);
+        command.put(BufferUtils.encodeHeader('*', args.length));
+        for (ByteBuffer arg : args)
+        {
+            command.put(BufferUtils.encodeHeader('$', arg.remaining()));
+            command.put(arg.duplicate());
+            command.put((byte) '\r').put((byte) '\n');
+        }
+        command.flip();
+        return command;
+    }
+
+    /**
+     * Return the argument at the given index decoded as a string, or null if there is no such argument
+     */
+    static String argString(ByteBuffer command, int index)
+    {
+        ByteBuffer arg = arg(command, index);
+        return arg == null ? null : BufferUtils.decode(arg);
+    }
+
+    /**
+     * Return the upper case name of the command, or null if the buffer doesn't hold a formatted command
+     */
+    static String name(ByteBuffer command)
+    {
+        String name = argString(command, 0);
+        return name == null ? null : name.toUpperCase();
+    }
+
+    /**
+     * Return the index of the first key argument of the command, or -1 if the command doesn't take a key. Scripts
+     * (EVAL, FCALL etc) are routed by their first key, and XREAD/XREADGROUP by the first stream after STREAMS.
+     */
+    static int keyIndex(ByteBuffer command)
+    {
+        String name = name(command);
+        int argc = argCount(command);
+        if (name == null || argc < 2 || KEYLESS.contains(name))
+        {
+            return -1;
+        }
+        switch (name)
+        {
+            case "EVAL":
+            case "EVALSHA":
+            case "EVAL_RO":
+            case "EVALSHA_RO":
+            case "FCALL":
+            case "FCALL_RO":
+                String numkeys = argString(command, 2);
+                return numkeys != null && !numkeys.equals("0") && argc > 3 ? 3 : -1;
+            case "XREAD":
+            case "XREADGROUP":
+                for (int i = 1; i < argc - 1; i++)
+                {
+                    if ("STREAMS".equalsIgnoreCase(argString(command, i)))
+                    {
+                        return i + 1;
+                    }
+                }
+                return -1;
+            default:
+                return 1;
+        }
+    }
+
+    /*
+     * Read a "*<n>\r\n" or "$<n>\r\n" header from a command formatted by this client, returning -1 if it doesn't match
+     */
+    private static long readHeader(ByteBuffer buf, char type)
+    {
+        if (!buf.hasRemaining() || buf.get() != type)
+        {
+            return -1;
+        }
+        long value = 0;
+        while (buf.hasRemaining())
+        {
+            byte b = buf.get();
+            if (b == '\r')
+            {
+                if (buf.hasRemaining())
+                {
+                    buf.get();
+                }
+                return value;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return -1;
+    }
+}
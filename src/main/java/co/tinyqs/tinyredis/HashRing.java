@@ -0,0 +1,125 @@
+package co.tinyqs.tinyredis;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Immutable Ketama consistent hash ring
+ *
+ * Each node is placed at virtualNodes points on a 32 bit ring, derived from MD5 hashes of "<name>-<n>" exactly as
+ * libketama does, so keys map to the same nodes as in other Ketama clients. A key belongs to the first point at or
+ * after the MD5 of the key. Adding a node to a ring of N only moves the keys that land on its points, about 1/(N+1)
+ * of them.
+ */
+final class HashRing<T>
+{
+    private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>()
+    {
+        @Override
+        protected MessageDigest initialValue()
+        {
+            try
+            {
+                return MessageDigest.getInstance("MD5");
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new IllegalStateException("MD5 is not available", e);
+            }
+        }
+    };
+
+    private final long[] points;
+    private final Object[] nodes;
+
+    /**
+     * Build a ring from nodes keyed by their name. virtualNodes is rounded up to a multiple of 4.
+     */
+    HashRing(Map<String, T> named, int virtualNodes)
+    {
+        Preconditions.checkState(!named.isEmpty(), "A hash ring needs at least one node");
+        int hashes = (virtualNodes + 3) / 4;
+        int count = named.size() * hashes * 4;
+        long[] packed = new long[count];
+        Object[] byIndex = named.values().toArray();
+        int idx = 0;
+        int node = 0;
+        for (String name : named.keySet())
+        {
+            for (int i = 0; i < hashes; i++)
+            {
+                byte[] digest = md5((name + "-" + i).getBytes(ProtocolReader.CHARSET));
+                for (int h = 0; h < 4; h++)
+                {
+                    // The point in the upper 32 bits and the node below it, so sorting orders points and breaks ties.
+                    // Flipping the sign bit makes the signed sort order the same as the unsigned one.
+                    packed[idx++] = ((point(digest, h) << 32) | node) ^ Long.MIN_VALUE;
+                }
+            }
+            node++;
+        }
+        Arrays.sort(packed);
+        points = new long[count];
+        nodes = new Object[count];
+        for (int i = 0; i < count; i++)
+        {
+            long entry = packed[i] ^ Long.MIN_VALUE;
+            points[i] = entry >>> 32;
+            nodes[i] = byIndex[(int) (entry & 0xFFFFFFFFL)];
+        }
+    }
+
+    /**
+     * Return the node that owns the given key, without changing its position
+     */
+    @SuppressWarnings("unchecked")
+    T get(ByteBuffer key)
+    {
+        long hash = hash(key);
+        int idx = Arrays.binarySearch(points, hash);
+        if (idx < 0)
+        {
+            idx = -idx - 1;
+            if (idx == points.length)
+            {
+                idx = 0;
+            }
+        }
+        else
+        {
+            // Several points may share a value, take the first as libketama does
+            while (idx > 0 && points[idx - 1] == hash)
+            {
+                idx--;
+            }
+        }
+        return (T) nodes[idx];
+    }
+
+    /**
+     * Ketama hash of a key: the first 4 bytes of its MD5, little endian
+     */
+    static long hash(ByteBuffer key)
+    {
+        MessageDigest md5 = MD5.get();
+        md5.update(key.duplicate());
+        return point(md5.digest(), 0);
+    }
+
+    private static byte[] md5(byte[] data)
+    {
+        MessageDigest md5 = MD5.get();
+        return md5.digest(data);
+    }
+
+    private static long point(byte[] digest, int h)
+    {
+        return ((long) (digest[3 + h*4] & 0xFF) << 24)
+             | ((long) (digest[2 + h*4] & 0xFF) << 16)
+             | ((long) (digest[1 + h*4] & 0xFF) << 8)
+             | (digest[h*4] & 0xFF);
+    }
+}
@@ -0,0 +1,81 @@
+package co.tinyqs.tinyredis;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks zero-copy replies that have not been released.
+ * 
+ * Disabled by default since it records a stack trace for every view reply. Enable it in tests with
+ * LeakDetector.enable() or -Dtinyredis.leakDetection=true, then call checkNoLeaks() once all replies should have
+ * been released.
+ */
+public final class LeakDetector
+{
+    private static final Map<Object, Throwable> live = new ConcurrentHashMap<>();
+    private static volatile boolean enabled = Boolean.getBoolean("tinyredis.leakDetection");
+    
+    private LeakDetector(){};
+    
+    public static void enable()
+    {
+        enabled = true;
+    }
+    
+    public static void disable()
+    {
+        enabled = false;
+        live.clear();
+    }
+    
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+    
+    /**
+     * Number of tracked replies that have not yet been released
+     */
+    public static int getLeakCount()
+    {
+        return live.size();
+    }
+    
+    /**
+     * Forget about any replies tracked so far
+     */
+    public static void reset()
+    {
+        live.clear();
+    }
+    
+    /**
+     * @throws IllegalStateException - If any tracked replies have not been released. The exception's cause shows
+     * where one of the leaked replies was allocated.
+     */
+    public static void checkNoLeaks()
+    {
+        int leaks = live.size();
+        if (leaks > 0)
+        {
+            Throwable allocated = live.values().iterator().next();
+            throw new IllegalStateException(leaks + " replies were not released", allocated);
+        }
+    }
+    
+    static void track(Object reply)
+    {
+        if (enabled)
+        {
+            live.put(reply, new Throwable("Reply allocated here"));
+        }
+    }
+    
+    static void untrack(Object reply)
+    {
+        if (enabled)
+        {
+            live.remove(reply);
+        }
+    }
+}
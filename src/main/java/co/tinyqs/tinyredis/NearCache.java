@@ -0,0 +1,421 @@
+package co.tinyqs.tinyredis;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Client side cache of read-only command replies, kept consistent by redis' CLIENT TRACKING invalidations
+ *
+ * Attach a cache to a connection with RedisConnection.nearCache(). Replies to cacheable commands (GET, HGET, HGETALL
+ * etc) sent through sendCommand() are then stored here, keyed by the exact bytes of the command, and served locally
+ * until the server reports that the command's key has changed. Entries are evicted in LRU order once either the entry
+ * or byte limit is reached.
+ *
+ * All entries are dropped and the cache stops serving replies as soon as the connection (or the connection receiving
+ * invalidations) is lost, since invalidations may have been missed. A cache should only be attached to one connection.
+ */
+public class NearCache
+{
+    private static final String INVALIDATE = "invalidate";
+    static final String INVALIDATE_CHANNEL = "__redis__:invalidate";
+    // Rough per-entry cost of the map entries, command key and reply objects
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final int REPLY_OVERHEAD = 32;
+    // Only commands with a single key, as invalidations are matched against the first argument. EXISTS and MGET take
+    // any number of keys, so their replies could outlive a change to a later key.
+    private static final Set<String> DEFAULT_COMMANDS = new HashSet<>(Arrays.asList(
+        "GET", "GETRANGE", "STRLEN", "TYPE",
+        "HGET", "HGETALL", "HMGET", "HEXISTS", "HLEN", "HKEYS", "HVALS", "HSTRLEN",
+        "LINDEX", "LLEN", "LRANGE",
+        "SCARD", "SISMEMBER", "SMEMBERS", "SMISMEMBER",
+        "ZCARD", "ZCOUNT", "ZRANGE", "ZRANGEBYSCORE", "ZRANK", "ZREVRANGE", "ZREVRANK", "ZSCORE"));
+
+    private final Map<ByteBuffer, Entry> entries;
+    private final Map<String, Set<Entry>> byKey;
+    private final Set<String> commands;
+    private long maxEntries = 10000;
+    private long maxBytes = 1024*1024*64;
+    private long bytes = 0;
+    private boolean active = false;
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+    private long evictions = 0;
+
+    public NearCache()
+    {
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+        byKey = new HashMap<>();
+        commands = new HashSet<>(DEFAULT_COMMANDS);
+    }
+
+    /**
+     * Maximum number of cached replies, 10000 by default
+     */
+    public synchronized NearCache maxEntries(long maxEntries)
+    {
+        Preconditions.checkState(maxEntries > 0, "maxEntries must be positive");
+        this.maxEntries = maxEntries;
+        evict();
+        return this;
+    }
+
+    /**
+     * Approximate upper bound on the memory used by cached replies, 64MB by default
+     */
+    public synchronized NearCache maxBytes(long maxBytes)
+    {
+        Preconditions.checkState(maxBytes > 0, "maxBytes must be positive");
+        this.maxBytes = maxBytes;
+        evict();
+        return this;
+    }
+
+    /**
+     * Allow replies to additional commands to be cached. The command must be read-only and take a single key as its
+     * first argument.
+     */
+    public synchronized NearCache cacheable(String... names)
+    {
+        for (String name : names)
+        {
+            commands.add(name.toUpperCase());
+        }
+        return this;
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Number of cached replies dropped because their key was invalidated by the server
+     */
+    public synchronized long getInvalidations()
+    {
+        return invalidations;
+    }
+
+    /**
+     * Number of cached replies dropped to stay within maxEntries and maxBytes
+     */
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Approximate memory used by cached replies
+     */
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * true while the cache is attached to a live connection with tracking enabled
+     */
+    public synchronized boolean isActive()
+    {
+        return active;
+    }
+
+    /**
+     * Drop every cached reply
+     */
+    public synchronized void clear()
+    {
+        for (Set<Entry> keyed : byKey.values())
+        {
+            for (Entry entry : keyed)
+            {
+                entry.invalidated = true;
+            }
+        }
+        byKey.clear();
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Drop any cached replies for the given key
+     */
+    public synchronized void invalidate(String key)
+    {
+        Set<Entry> keyed = byKey.remove(key);
+        if (keyed == null)
+        {
+            return;
+        }
+        for (Entry entry : keyed)
+        {
+            entry.invalidated = true;
+            if (entry.reply != null && entries.remove(entry.command) != null)
+            {
+                bytes -= entry.size;
+                invalidations++;
+            }
+        }
+    }
+
+    synchronized void connect()
+    {
+        clear();
+        active = true;
+    }
+
+    /**
+     * Called when the connection or its invalidation channel is lost. Nothing is served until the cache is reattached.
+     */
+    synchronized void disconnect()
+    {
+        active = false;
+        clear();
+    }
+
+    /**
+     * Look up a cached reply to the given formatted command, without changing its position. Callers get a copy, since
+     * the arrays behind getBytes() and getElements() would otherwise be shared with every later hit.
+     */
+    synchronized RedisReply get(ByteBuffer command)
+    {
+        if (!active || entries.isEmpty() || keyOf(command) == null)
+        {
+            return null;
+        }
+        Entry entry = entries.get(command);
+        if (entry == null)
+        {
+            return null;
+        }
+        hits++;
+        return entry.reply.copy();
+    }
+
+    /**
+     * Register interest in caching the reply to a formatted command before it is sent, so that an invalidation that
+     * arrives while the reply is in flight prevents it from being cached. Returns null if the command isn't cacheable.
+     */
+    synchronized Entry reserve(ByteBuffer command)
+    {
+        if (!active)
+        {
+            return null;
+        }
+        String key = keyOf(command);
+        if (key == null)
+        {
+            return null;
+        }
+        misses++;
+        Entry entry = new Entry(command.asReadOnlyBuffer(), key);
+        Set<Entry> keyed = byKey.get(key);
+        if (keyed == null)
+        {
+            keyed = new HashSet<>();
+            byKey.put(key, keyed);
+        }
+        keyed.add(entry);
+        return entry;
+    }
+
+    /**
+     * true if a reply can stand in for the server's answer to a read. Errors and statuses, such as the QUEUED of a
+     * command inside MULTI, say nothing about the key.
+     */
+    static boolean isCacheable(RedisReply reply)
+    {
+        switch (reply.getType())
+        {
+            case ERROR:
+            case STATUS:
+            case PUSH:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Store the reply for a reserved command, unless it was invalidated in the meantime. The reply must not be a view.
+     */
+    synchronized void put(Entry entry, RedisReply reply)
+    {
+        if (entry.invalidated)
+        {
+            return;
+        }
+        entry.reply = reply;
+        entry.size = ENTRY_OVERHEAD + entry.command.remaining() + sizeOf(reply);
+        Entry previous = entries.put(entry.command, entry);
+        if (previous != null)
+        {
+            bytes -= previous.size;
+            unindex(previous);
+        }
+        bytes += entry.size;
+        evict();
+    }
+
+    /**
+     * Give up a reservation whose reply won't be cached
+     */
+    synchronized void cancel(Entry entry)
+    {
+        if (entry.reply == null)
+        {
+            unindex(entry);
+        }
+    }
+
+    /**
+     * Apply an invalidation message, which is either a RESP3 push or a RESP2 pub/sub message from the
+     * __redis__:invalidate channel.
+     *
+     * @return false if the message was not an invalidation
+     */
+    boolean onInvalidate(RedisReply message)
+    {
+        RedisReply keys;
+        RedisReply[] elements = message.getElements();
+        if (message.getType() == RedisReply.Type.PUSH && elements.length == 2 && isString(elements[0], INVALIDATE))
+        {
+            keys = elements[1];
+        }
+        else if (elements.length == 3 && isString(elements[0], "message") && isString(elements[1], INVALIDATE_CHANNEL))
+        {
+            keys = elements[2];
+        }
+        else
+        {
+            return false;
+        }
+
+        if (keys.getType() == RedisReply.Type.NIL)
+        {
+            // Sent after FLUSHALL/FLUSHDB
+            synchronized (this)
+            {
+                invalidations += entries.size();
+                clear();
+            }
+        }
+        else if (keys.getType() == RedisReply.Type.ARRAY)
+        {
+            for (RedisReply key : keys.getElements())
+            {
+                invalidate(key.getString());
+            }
+        }
+        else
+        {
+            invalidate(keys.getString());
+        }
+        return true;
+    }
+
+    private static boolean isString(RedisReply reply, String value)
+    {
+        RedisReply.Type type = reply.getType();
+        return (type == RedisReply.Type.STRING || type == RedisReply.Type.STATUS) && value.equals(reply.getString());
+    }
+
+    private void evict()
+    {
+        Iterator<Entry> it = entries.values().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext())
+        {
+            Entry eldest = it.next();
+            it.remove();
+            bytes -= eldest.size;
+            unindex(eldest);
+            evictions++;
+        }
+    }
+
+    private void unindex(Entry entry)
+    {
+        Set<Entry> keyed = byKey.get(entry.key);
+        if (keyed != null && keyed.remove(entry) && keyed.isEmpty())
+        {
+            byKey.remove(entry.key);
+        }
+    }
+
+    /*
+     * Return the key of a cacheable formatted command, or null if the command isn't cacheable. Keys are decoded as
+     * strings, which can only ever cause extra invalidations for keys that aren't valid UTF-8.
+     */
+    private String keyOf(ByteBuffer command)
+    {
+        String name = Commands.name(command);
+        if (name == null || !commands.contains(name))
+        {
+            return null;
+        }
+        return Commands.argString(command, 1);
+    }
+
+    private static long sizeOf(RedisReply reply)
+    {
+        long size = REPLY_OVERHEAD;
+        switch (reply.getType())
+        {
+            case ARRAY:
+            case MAP:
+            case SET:
+            case PUSH:
+                for (RedisReply element : reply.getElements())
+                {
+                    size += 8 + sizeOf(element);
+                }
+                break;
+            case STRING:
+            case STATUS:
+            case ERROR:
+            case VERBATIM:
+            case BIG_NUMBER:
+                size += reply.getBuffer().remaining();
+                break;
+            default:
+                break;
+        }
+        if (reply.getAttributes() != null)
+        {
+            size += sizeOf(reply.getAttributes());
+        }
+        return size;
+    }
+
+    static final class Entry
+    {
+        final ByteBuffer command;
+        final String key;
+        RedisReply reply;
+        long size;
+        boolean invalidated;
+
+        Entry(ByteBuffer command, String key)
+        {
+            this.command = command;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package co.tinyqs.tinyredis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A batch of commands sent on one connection with a bounded number of commands in flight
+ *
+ * Commands are written in chunks of half the window as they are added. Before each chunk is written, replies to
+ * earlier chunks are read until no more than window commands are awaiting replies, so the next chunk goes out while
+ * the server is still answering the previous one. At most half a window of formatted commands is held by the client,
+ * and the server never has more than a window of replies queued for it, so neither side's socket buffers can fill
+ * up while the other is blocked writing.
+ *
+ * Replies are either collected and returned by execute(), or handed to a ReplyListener in the order the commands were
+ * added. Use a listener for batches of unbounded size. Error replies are returned as they are, regardless of
+ * exceptionOnError.
+ *
+ * Scripts that the connection hasn't loaded yet are loaded with SCRIPT LOAD ahead of their first call. If a script
+ * call still fails with NOSCRIPT, because the server lost its scripts, the script is loaded again and the call is
+ * retried at the end of the commands already sent. Its reply, and its effects, then come after those of later
+ * commands, so a listener may see its index out of order.
+ *
+ * The connection must not be used for anything else until execute() returns. After an exception the connection is
+ * left with replies outstanding and should be closed. A pipeline is not thread-safe and may be reused once executed.
+ */
+public class Pipeline
+{
+    /**
+     * Receives the replies of a pipeline. Zero-copy replies must be released by the listener.
+     */
+    public interface ReplyListener
+    {
+        /**
+         * Called with each reply in turn, index being the position of its command in the batch
+         */
+        public void onReply(int index, RedisReply reply) throws IOException;
+    }
+
+    private static final Object COMMAND = new Object();
+
+    private final RedisConnection connection;
+    private final int window;
+    private final int chunk;
+    private final ReplyListener listener;
+    private final Deque<Object> calls = new ArrayDeque<>();
+    private List<RedisReply> replies = new ArrayList<>();
+    private int added = 0;
+    private int received = 0;
+    private int queued = 0;
+    private long sequence = 0;
+    private final Map<RedisScript, Long> reloads = new HashMap<>();
+
+    Pipeline(RedisConnection connection, int window, ReplyListener listener)
+    {
+        Preconditions.checkState(window > 0, "The window must be positive");
+        this.connection = connection;
+        this.window = window;
+        this.chunk = Math.max(1, window / 2);
+        this.listener = listener;
+    }
+
+    /**
+     * Add a command to the pipeline, which may send earlier commands and read their replies
+     *
+     * @see RedisConnection#sendCommand(String, Object...)
+     */
+    public Pipeline add(String format, Object... args) throws IOException
+    {
+        connection.appendCommand(format, args);
+        return added(COMMAND);
+    }
+
+    public Pipeline add(CommandTemplate template, Object... args) throws IOException
+    {
+        connection.appendCommand(template, args);
+        return added(COMMAND);
+    }
+
+    public Pipeline add(byte[]... args) throws IOException
+    {
+        connection.appendCommand(args);
+        return added(COMMAND);
+    }
+
+    /**
+     * Add a call to a script with EVALSHA
+     *
+     * @see RedisConnection#eval(RedisScript, String[], Object...)
+     */
+    public Pipeline eval(RedisScript script, String[] keys, Object... args) throws IOException
+    {
+        Preconditions.checkNotNull(script);
+        ensureLoaded(script);
+        ScriptCall call = new ScriptCall(script, script.encodeEvalSha(keys, args), added, sequence);
+        connection.appendFormattedCommand(call.command.duplicate());
+        return added(call);
+    }
+
+    /**
+     * Number of commands added since the pipeline was last executed
+     */
+    public int size()
+    {
+        return added;
+    }
+
+    /**
+     * Number of commands sent whose replies haven't been read yet
+     */
+    public int getInFlight()
+    {
+        return calls.size() - queued;
+    }
+
+    /**
+     * Send the remaining commands and wait for all replies
+     *
+     * @return the replies in the order the commands were added, or an empty list if they went to a listener
+     */
+    public List<RedisReply> execute() throws IOException
+    {
+        while (!calls.isEmpty())
+        {
+            receive();
+        }
+        List<RedisReply> result = replies;
+        replies = new ArrayList<>();
+        reloads.clear();
+        added = 0;
+        received = 0;
+        return result;
+    }
+
+    private Pipeline added(Object call) throws IOException
+    {
+        added++;
+        queue(call);
+        if (queued >= chunk)
+        {
+            send();
+        }
+        return this;
+    }
+
+    private void queue(Object call)
+    {
+        calls.add(call);
+        queued++;
+        sequence++;
+    }
+
+    /*
+     * Queue SCRIPT LOAD ahead of a script's first call on this connection
+     */
+    private void ensureLoaded(RedisScript script)
+    {
+        if (!connection.isScriptLoaded(script.getSha1()))
+        {
+            load(script);
+        }
+    }
+
+    private void load(RedisScript script)
+    {
+        connection.appendFormattedCommand(script.encodeLoad());
+        connection.setScriptLoaded(script.getSha1(), true);
+        reloads.put(script, sequence);
+        queue(script);
+    }
+
+    /*
+     * Write the queued commands once there is room for them in the window
+     */
+    private void send() throws IOException
+    {
+        while (calls.size() > window && calls.size() > queued)
+        {
+            receive();
+        }
+        connection.flushBlocking();
+        queued = 0;
+    }
+
+    private void receive() throws IOException
+    {
+        if (calls.size() == queued)
+        {
+            connection.flushBlocking();
+            queued = 0;
+        }
+        Object call = calls.poll();
+        RedisReply reply = connection.readReply();
+        if (call instanceof RedisScript)
+        {
+            RedisScript script = (RedisScript) call;
+            try
+            {
+                script.checkLoaded(reply);
+            }
+            catch (RedisErrorException e)
+            {
+                // Its calls fail with NOSCRIPT, and are returned as they are once their retry fails too
+                connection.setScriptLoaded(script.getSha1(), false);
+            }
+            return;
+        }
+
+        int index;
+        if (call == COMMAND)
+        {
+            index = received++;
+        }
+        else
+        {
+            ScriptCall scriptCall = (ScriptCall) call;
+            index = scriptCall.index;
+            if (!scriptCall.retried)
+            {
+                received++;
+                if (RedisScript.isNoScript(reply))
+                {
+                    reply.release();
+                    retry(scriptCall);
+                    return;
+                }
+            }
+        }
+        if (listener != null)
+        {
+            listener.onReply(index, reply);
+        }
+        else if (index == replies.size())
+        {
+            replies.add(reply);
+        }
+        else
+        {
+            replies.set(index, reply);
+        }
+    }
+
+    /*
+     * Load the script again and resend the call behind everything in flight, holding its place in the replies
+     */
+    private void retry(ScriptCall call) throws IOException
+    {
+        if (listener == null && call.index == replies.size())
+        {
+            replies.add(null);
+        }
+        // Other calls sent before the script was lost fail too, but one SCRIPT LOAD ahead of all their retries will do
+        Long loadedAt = reloads.get(call.script);
+        if (loadedAt == null || loadedAt < call.sequence)
+        {
+            load(call.script);
+        }
+        call.retried = true;
+        connection.appendFormattedCommand(call.command.duplicate());
+        queue(call);
+    }
+
+    private static final class ScriptCall
+    {
+        final RedisScript script;
+        final ByteBuffer command;
+        final int index;
+        final long sequence;
+        boolean retried = false;
+
+        ScriptCall(RedisScript script, ByteBuffer command, int index, long sequence)
+        {
+            this.script = script;
+            this.command = command;
+            this.index = index;
+            this.sequence = sequence;
+        }
+    }
+}
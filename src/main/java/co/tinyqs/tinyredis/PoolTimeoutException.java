@@ -0,0 +1,17 @@
+package co.tinyqs.tinyredis;
+
+import java.io.IOException;
+
+/**
+ * Thrown when every connection of a RedisConnectionPool stayed in use for the whole borrow timeout. The server may be
+ * perfectly healthy, just busy.
+ */
+public class PoolTimeoutException extends IOException
+{
+    private static final long serialVersionUID = -3185447512609243012L;
+
+    public PoolTimeoutException(String msg)
+    {
+        super(msg);
+    }
+}
@@ -0,0 +1,132 @@
+package co.tinyqs.tinyredis;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe pool of heap or direct buffers in power of two size classes
+ *
+ * Requests between minSize and maxSize are rounded up to their size class, and released buffers are kept on a free
+ * list per class, up to maxPooledBytes in total. Larger requests are allocated on demand and never pooled.
+ *
+ * There are no per-thread caches, which would pin memory to every virtual thread. Instead each connection keeps the
+ * buffers it draws for as long as they fit its traffic, and only returns to the pool to grow or shrink them, so the
+ * shared free lists see little contention.
+ */
+public final class PooledBufferAllocator implements BufferAllocator
+{
+    static final PooledBufferAllocator HEAP = new PooledBufferAllocator(false, 1024*4, 1024*1024*4, 1024*1024*16);
+    static final PooledBufferAllocator DIRECT = new PooledBufferAllocator(true, 1024*4, 1024*1024*4, 1024*1024*64);
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private final boolean direct;
+    private final int minSize;
+    private final int maxSize;
+    private final long maxPooledBytes;
+    private final Queue<ByteBuffer>[] free;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+
+    /**
+     * @param direct - whether to pool direct rather than heap buffers
+     * @param minSize - smallest size class, a power of two
+     * @param maxSize - largest size class, a power of two
+     * @param maxPooledBytes - total capacity of idle buffers to keep
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PooledBufferAllocator(boolean direct, int minSize, int maxSize, long maxPooledBytes)
+    {
+        Preconditions.checkState(minSize > 0 && Integer.bitCount(minSize) == 1, "minSize must be a power of two");
+        Preconditions.checkState(maxSize >= minSize && Integer.bitCount(maxSize) == 1 && maxSize <= MAX_CAPACITY,
+                                 "maxSize must be a power of two no smaller than minSize");
+        this.direct = direct;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.maxPooledBytes = maxPooledBytes;
+        free = new Queue[Integer.numberOfTrailingZeros(maxSize) - Integer.numberOfTrailingZeros(minSize) + 1];
+        for (int i = 0; i < free.length; i++)
+        {
+            free[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    @Override
+    public ByteBuffer allocate(int minCapacity)
+    {
+        int capacity = Math.max(roundCapacity(minCapacity), minSize);
+        if (capacity <= maxSize)
+        {
+            ByteBuffer result = free[sizeClass(capacity)].poll();
+            if (result != null)
+            {
+                pooledBytes.addAndGet(-capacity);
+                return result;
+            }
+        }
+        created.incrementAndGet();
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Keep a buffer for reuse if it belongs to one of the size classes and the pool isn't full. Anything else,
+     * such as a buffer from another allocator, is dropped.
+     */
+    @Override
+    public void release(ByteBuffer buffer)
+    {
+        int capacity = buffer.capacity();
+        if (buffer.isDirect() != direct || buffer.isReadOnly() || capacity < minSize || capacity > maxSize
+            || Integer.bitCount(capacity) != 1)
+        {
+            return;
+        }
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes)
+        {
+            pooledBytes.addAndGet(-capacity);
+            return;
+        }
+        buffer.clear();
+        free[sizeClass(capacity)].offer(buffer);
+    }
+
+    @Override
+    public boolean isDirect()
+    {
+        return direct;
+    }
+
+    /**
+     * Total capacity of the idle buffers held by the pool
+     */
+    public long getPooledBytes()
+    {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Number of buffers allocated because none could be reused
+     */
+    public long getCreatedCount()
+    {
+        return created.get();
+    }
+
+    private int sizeClass(int capacity)
+    {
+        return Integer.numberOfTrailingZeros(capacity) - Integer.numberOfTrailingZeros(minSize);
+    }
+
+    /**
+     * Round a capacity up to the next power of two
+     */
+    static int roundCapacity(int minCapacity)
+    {
+        if (minCapacity < 0 || minCapacity > MAX_CAPACITY)
+        {
+            throw new IllegalStateException("Buffer capacity out of range: " + minCapacity);
+        }
+        return minCapacity <= 1 ? minCapacity : Integer.highestOneBit(minCapacity - 1) << 1;
+    }
+}
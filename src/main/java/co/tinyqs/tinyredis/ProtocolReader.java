@@ -2,15 +2,25 @@ package co.tinyqs.tinyredis;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayDeque;
-import java.util.Deque;
 
 /**
  * Stateful redis protocol reader.
  * 
- * Buffers any received input via calls to feed() and returns replies via calls to getReply()
+ * Buffers any received input via calls to feed() and returns replies via calls to getReply(), or passes them
+ * element by element to a ReplyHandler via calls to read()
+ * 
+ * Both RESP2 and RESP3 (negotiated with HELLO 3) replies are understood.
+ * 
+ * The internal buffer is kept in read mode, with its position and limit acting as read and write indexes. Input can be
+ * read into it directly with writableBuffer()/commitWrite(), and it is only compacted when more room is needed.
+ * 
+ * Input buffers come from a BufferAllocator, and are given back when the reader moves on to a larger or smaller one.
+ * 
+ * In zero-copy mode, string replies are views into the input buffers rather than copies. A buffer is never compacted
+ * or reused while replies still point into it, so callers must release() these replies.
  * @author bwarminski
  *
  */
@@ -25,32 +35,104 @@ public class ProtocolReader
     private static final byte C_CR = "\r".getBytes(CHARSET)[0];
     private static final byte C_LF = "\n".getBytes(CHARSET)[0];
     private static final byte C_0 = "0".getBytes(CHARSET)[0];
+    private static final byte C_UNDERSCORE = "_".getBytes(CHARSET)[0];
+    private static final byte C_HASH = "#".getBytes(CHARSET)[0];
+    private static final byte C_COMMA = ",".getBytes(CHARSET)[0];
+    private static final byte C_LPAREN = "(".getBytes(CHARSET)[0];
+    private static final byte C_BANG = "!".getBytes(CHARSET)[0];
+    private static final byte C_EQUALS = "=".getBytes(CHARSET)[0];
+    private static final byte C_PERCENT = "%".getBytes(CHARSET)[0];
+    private static final byte C_TILDE = "~".getBytes(CHARSET)[0];
+    private static final byte C_GT = ">".getBytes(CHARSET)[0];
+    private static final byte C_PIPE = "|".getBytes(CHARSET)[0];
+    private static final byte C_t = "t".getBytes(CHARSET)[0];
+    private static final byte C_f = "f".getBytes(CHARSET)[0];
+    private static final byte C_O = "O".getBytes(CHARSET)[0];
+    private static final byte C_K = "K".getBytes(CHARSET)[0];
     private static final int MAX_INPUT_BUFF = 1024*16;
+    static final long INCOMPLETE = -2;
+    static final long NOT_BULK = -3;
     
     private boolean errorState = false;
     private ByteBuffer buffer = BufferUtils.EMPTY;
-    private Deque<ReadTask> stack = new ArrayDeque<>();
-    private RedisReply reply = null;
+    private int readIndex = -1;
+    private BufferAllocator allocator = BufferAllocator.pooledHeap();
+    private ReplyBuffer owner = null;
+    private final ReplyTreeBuilder builder = new ReplyTreeBuilder(this);
+    private ReplyHandler handler = null;
+    private State state = State.READ_TYPE;
+    private byte marker = 0;
+    private int len = -2;
+    private boolean started = false;
+    private boolean complete = false;
+    // Number of elements still expected by each enclosing aggregate, and the aggregate's type byte
+    private int[] pending = new int[8];
+    private byte[] aggregates = new byte[8];
+    private int depth = 0;
     
     private enum State
     {
         READ_TYPE,
         READ_LEN,
-        READ_NIL_ARRAY,
-        READ_NIL_STRING,
         READ_INLINE,
         READ_INTEGER,
-        READ_BULK,
-        READ_ARRAY
+        READ_BULK
     }
     
-    private class ReadTask
+    /**
+     * Enable or disable zero-copy replies for any replies read from now on
+     */
+    public void setZeroCopy(boolean zeroCopy)
     {
-        State state = State.READ_TYPE;
-        RedisReply.Type type = null;
-        RedisReply[] elements = null;
-        int len = -2;
-        int idx = 0;
+        Preconditions.checkState(readIndex < 0, "Can't change modes while the buffer is being written");
+        if (zeroCopy == (owner != null))
+        {
+            return;
+        }
+        if (owner != null)
+        {
+            // Replies may still point into the current buffer, so move the unread bytes elsewhere
+            ByteBuffer fresh = allocator.allocate(buffer.remaining());
+            fresh.put(buffer).flip();
+            owner.release();
+            owner = null;
+            buffer = fresh;
+        }
+        else
+        {
+            owner = new ReplyBuffer(buffer, allocator);
+        }
+    }
+    
+    /**
+     * Use the given allocator for the input buffer, BufferAllocator.pooledHeap() by default. Must be called between
+     * replies, when no input is buffered.
+     */
+    public void setAllocator(BufferAllocator allocator)
+    {
+        Preconditions.checkNotNull(allocator, "Allocator may not be null");
+        Preconditions.checkState(readIndex < 0 && !buffer.hasRemaining(), "Can't change allocators with input buffered");
+        replaceBuffer(BufferUtils.EMPTY);
+        this.allocator = allocator;
+        if (owner != null)
+        {
+            owner = new ReplyBuffer(buffer, allocator);
+        }
+    }
+    
+    /**
+     * Give the input buffer back to the allocator, discarding any unread input, including a write that was never
+     * committed after a failed read. The reader remains usable.
+     */
+    public void releaseBuffer()
+    {
+        readIndex = -1;
+        replaceBuffer(BufferUtils.EMPTY);
+    }
+    
+    public boolean isZeroCopy()
+    {
+        return owner != null;
     }
     
     /**
@@ -59,14 +141,249 @@ public class ProtocolReader
     public void feed(ByteBuffer input)
     {
         Preconditions.checkNotNull(input);
+        writableBuffer(input.remaining()).put(input);
+        commitWrite();
+    }
+    
+    /**
+     * Return the reader's internal buffer, positioned at its write index with at least minRoom bytes remaining, so that
+     * input can be read into it directly. commitWrite() must be called once the data has been written.
+     */
+    public ByteBuffer writableBuffer(int minRoom)
+    {
         Preconditions.checkState(!errorState, "Unable to feed data in error state");
-
-        if (buffer.position() == 0 && buffer.capacity() > MAX_INPUT_BUFF)
+        Preconditions.checkState(readIndex < 0, "writableBuffer() called twice without commitWrite()");
+        ensureRoom(minRoom);
+        readIndex = buffer.position();
+        buffer.position(buffer.limit()).limit(buffer.capacity());
+        return buffer;
+    }
+    
+    /**
+     * Make any bytes written into the buffer returned by writableBuffer() available for reading
+     */
+    public void commitWrite()
+    {
+        Preconditions.checkState(readIndex >= 0, "commitWrite() called without writableBuffer()");
+        buffer.limit(buffer.position()).position(readIndex);
+        readIndex = -1;
+    }
+    
+    /**
+     * Number of buffered bytes that have not yet been consumed by getReply()
+     */
+    public int available()
+    {
+        return buffer.remaining();
+    }
+    
+    /**
+     * true if no reply is partially read and the next buffered reply is a RESP3 push message
+     */
+    boolean isPushNext()
+    {
+        return !started && buffer.hasRemaining() && buffer.get(buffer.position()) == C_GT;
+    }
+    
+    /**
+     * Consume the header of a bulk string reply so that its payload can be streamed with transferTo().
+     * Must only be called between replies.
+     * 
+     * @return the length of the payload, -1 for a nil string, INCOMPLETE if more input is needed or NOT_BULK
+     * if the next reply is not a bulk string (in which case nothing is consumed)
+     */
+    long readBulkHeader() throws IOException
+    {
+        Preconditions.checkState(!errorState, "Can't return replies in error state");
+        Preconditions.checkState(!started, "Can't stream a reply that has already been partially read");
+        if (!buffer.hasRemaining())
+        {
+            return INCOMPLETE;
+        }
+        if (buffer.get(buffer.position()) != C_DOLLAR)
+        {
+            return NOT_BULK;
+        }
+        int newline = BufferUtils.seekNewLine(buffer);
+        if (newline < 0)
+        {
+            return INCOMPLETE;
+        }
+        buffer.get();
+        long len = readLong(buffer);
+        buffer.position(newline);
+        if (len < -1)
+        {
+            errorState = true;
+            throw new IOException("Protocol error, got " + len + " as a string length");
+        }
+        return len;
+    }
+    
+    /**
+     * true if no reply is partially read and the first line of the next reply is fully buffered
+     */
+    boolean isLineNext()
+    {
+        return !started && BufferUtils.seekNewLine(buffer) >= 0;
+    }
+    
+    /**
+     * Return the type marker of the next reply without consuming it, or 0 if nothing is buffered
+     */
+    byte peekType()
+    {
+        return buffer.hasRemaining() ? buffer.get(buffer.position()) : 0;
+    }
+    
+    /**
+     * Consume an integer reply and return its value, without building a RedisReply. Must only be called once
+     * isLineNext() and peekType() have shown that the next reply is a complete integer.
+     */
+    long readIntegerReply() throws IOException
+    {
+        int start = buffer.position();
+        buffer.get();
+        long value = 0;
+        boolean negative = false;
+        byte c = buffer.get();
+        if (c == C_MINUS)
+        {
+            negative = true;
+            c = buffer.get();
+        }
+        int digits = 0;
+        while (c != C_CR)
+        {
+            int dec = c - C_0;
+            if (dec < 0 || dec > 9 || ++digits > 19)
+            {
+                errorState = true;
+                buffer.position(start);
+                throw new IOException("Protocol error, invalid integer reply " + BufferUtils.decode(buffer));
+            }
+            value = value * 10 + dec;
+            c = buffer.get();
+        }
+        buffer.get(); // Consume LF
+        if (value < 0 && !(negative && value == Long.MIN_VALUE))
+        {
+            errorState = true;
+            throw new IOException("Protocol error, integer reply out of range");
+        }
+        return negative ? -value : value;
+    }
+    
+    /**
+     * Consume a status reply, returning true if it was OK. Must only be called once isLineNext() and peekType() have
+     * shown that the next reply is a complete status.
+     */
+    boolean readOkReply()
+    {
+        int pos = buffer.position();
+        boolean ok = buffer.get(pos + 1) == C_O && buffer.get(pos + 2) == C_K && buffer.get(pos + 3) == C_CR;
+        buffer.position(BufferUtils.seekNewLine(buffer));
+        return ok;
+    }
+    
+    /**
+     * Copy up to dest.length - offset buffered bytes into dest, returning the number of bytes copied
+     */
+    int transferTo(byte[] dest, int offset)
+    {
+        int count = Math.min(buffer.remaining(), dest.length - offset);
+        buffer.get(dest, offset, count);
+        return count;
+    }
+    
+    /**
+     * Write up to max buffered bytes to the given channel, returning the number of bytes written
+     */
+    int transferTo(WritableByteChannel dest, long max) throws IOException
+    {
+        int count = (int) Math.min(buffer.remaining(), max);
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + count);
+        try
+        {
+            while (buffer.hasRemaining())
+            {
+                dest.write(buffer);
+            }
+        }
+        finally
+        {
+            buffer.limit(limit);
+        }
+        return count;
+    }
+    
+    /**
+     * Consume the CRLF that terminates a streamed bulk string. Returns false if more input is needed.
+     */
+    boolean readBulkEnd() throws IOException
+    {
+        if (buffer.remaining() < 2)
+        {
+            return false;
+        }
+        if (buffer.get() != C_CR || buffer.get() != C_LF)
+        {
+            errorState = true;
+            throw new IOException("Expected CRLF at end of bulk string reply");
+        }
+        return true;
+    }
+    
+    /*
+     * Ensure there are at least minRoom bytes between the write index and the end of the buffer, compacting unread
+     * data to the front of the buffer or growing it only when needed
+     */
+    private void ensureRoom(int minRoom)
+    {
+        boolean shared = owner != null && owner.isShared();
+        if (!buffer.hasRemaining() && !shared)
+        {
+            if (buffer.capacity() > MAX_INPUT_BUFF)
+            {
+                replaceBuffer(BufferUtils.EMPTY);
+            }
+            buffer.position(0).limit(0);
+        }
+        
+        if (buffer.capacity() - buffer.limit() >= minRoom)
+        {
+            return;
+        }
+        
+        if (!shared && buffer.capacity() - buffer.remaining() >= minRoom)
+        {
+            buffer.compact().flip();
+        }
+        else
+        {
+            // Never move bytes that replies may point to, move on to a new buffer instead
+            ByteBuffer fresh = allocator.allocate(buffer.remaining() + minRoom);
+            fresh.put(buffer).flip();
+            replaceBuffer(fresh);
+        }
+    }
+    
+    /*
+     * Switch to a new input buffer, giving the current one back to the allocator once no replies point into it
+     */
+    private void replaceBuffer(ByteBuffer fresh)
+    {
+        if (owner != null)
+        {
+            owner.release();
+            owner = new ReplyBuffer(fresh, allocator);
+        }
+        else
         {
-            buffer = BufferUtils.EMPTY;
+            allocator.release(buffer);
         }
-        buffer = BufferUtils.makeRoom(buffer, input.remaining());
-        buffer.put(input);
+        buffer = fresh;
     }
     
     /**
@@ -78,22 +395,41 @@ public class ProtocolReader
      */
     public RedisReply getReply() throws IOException
     {
-        Preconditions.checkState(!errorState, "Can't return replies in error state");
-        buffer.flip();
-        if (stack.isEmpty())
+        if (read(builder))
         {
-            stack.push(new ReadTask());
+            return builder.getReply();
         }
+        return null;
+    }
+    
+    /**
+     * Parse as much of the next reply as is buffered, passing each element to the given handler as it is read, without
+     * building a RedisReply tree.
+     * 
+     * A reply may span several calls. The same handler must be passed until the reply is complete.
+     * 
+     * @return true once the handler has received a complete reply, false if more input is needed
+     * @throws IOException - In the case of errors parsing/decoding replies. An IOException will render the
+     * reader unusable for future calls.
+     */
+    public boolean read(ReplyHandler handler) throws IOException
+    {
+        Preconditions.checkNotNull(handler);
+        Preconditions.checkState(!errorState, "Can't return replies in error state");
+        Preconditions.checkState(readIndex < 0, "Can't return replies while the buffer is being written");
+        Preconditions.checkState(this.handler == null || this.handler == handler, "A reply is already being read by another handler");
+        this.handler = handler;
         
         try
         {
             while (_readBuffer())
             {
-                if (reply != null)
+                if (complete)
                 {
-                    RedisReply result = reply;
-                    reply = null;
-                    return result;
+                    complete = false;
+                    started = false;
+                    this.handler = null;
+                    return true;
                 }
             }
         }
@@ -102,12 +438,12 @@ public class ProtocolReader
             errorState = true;
             throw e;
         }
-        finally
+        
+        if (!started)
         {
-            buffer.compact();
+            this.handler = null;
         }
-        
-        return null;
+        return false;
     }
     
     /*
@@ -116,8 +452,7 @@ public class ProtocolReader
      */
     private boolean _readBuffer() throws IOException
     {
-        ReadTask task = stack.peek();
-        switch (task.state)
+        switch (state)
         {
             case READ_TYPE:
             {
@@ -126,35 +461,24 @@ public class ProtocolReader
                     return false;
                 }
                 byte p = buffer.get();
-                if (p == C_MINUS)
+                started = true;
+                if (p == C_MINUS || p == C_PLUS || p == C_UNDERSCORE || p == C_HASH || p == C_COMMA || p == C_LPAREN)
                 {
-                    task.type = RedisReply.Type.ERROR;
-                    task.state = State.READ_INLINE;
-                }                
-                else if (p == C_PLUS)
-                {
-                    task.type = RedisReply.Type.STATUS;
-                    task.state = State.READ_INLINE;
+                    state = State.READ_INLINE;
                 }
                 else if (p == C_COLON)
                 {
-                    task.type = RedisReply.Type.INTEGER;
-                    task.state = State.READ_INTEGER;
-                }
-                else if (p == C_DOLLAR)
-                {
-                    task.type = RedisReply.Type.STRING;
-                    task.state = State.READ_LEN;
+                    state = State.READ_INTEGER;
                 }
-                else if (p == C_STAR)
+                else if (p == C_DOLLAR || p == C_BANG || p == C_EQUALS || p == C_STAR || p == C_PERCENT || p == C_TILDE || p == C_GT || p == C_PIPE)
                 {
-                    task.type = RedisReply.Type.ARRAY;
-                    task.state = State.READ_LEN;
+                    state = State.READ_LEN;
                 }
                 else
                 {
                     throw new IOException("Protocol error, got " + p + " as reply type byte");
                 }
+                marker = p;
                 return true;
             }
             case READ_LEN:
@@ -162,93 +486,75 @@ public class ProtocolReader
                 int newline = BufferUtils.seekNewLine(buffer);
                 if (newline >= 0)
                 {
-                    task.len = readInt(buffer);
+                    len = readInt(buffer);
                     buffer.position(newline);
-                    if (task.type == RedisReply.Type.STRING)
+                    if (marker == C_DOLLAR || marker == C_BANG || marker == C_EQUALS)
                     {
-                        if (task.len == -1)
+                        if (len == -1)
                         {
-                            task.state = State.READ_NIL_STRING;
+                            handler.onNil();
+                            endElement();
                             return true;
                         }
-                        if (task.len >= 0)
+                        if (len >= 0)
                         {
-                            task.state = State.READ_BULK;                            
+                            state = State.READ_BULK;                            
                             return true;
                         }
-                        throw new IOException("Protocol error, got " + task.len + " as a string length");
+                        throw new IOException("Protocol error, got " + len + " as a string length");
                     }
-                    if (task.type == RedisReply.Type.ARRAY)
+                    
+                    if (len == -1)
                     {
-                        if (task.len == -1)
-                        {
-                            task.state = State.READ_NIL_ARRAY;
-                            return true;
-                        }
-                        if (task.len >= 0)
-                        {
-                            task.state = State.READ_ARRAY;
-                            task.elements = new RedisReply[task.len];
-                            task.idx = 0;
-                            return true;
-                        }
-                        throw new IOException("Protocol error, got " + task.len + " as an array length");
+                        handler.onNil();
+                        endElement();
+                        return true;
                     }
-                    throw new IOException("State of reader was READ_LEN but was not a string or array: " + Preconditions.firstNonNull(task.state, "null"));
+                    if (len >= 0)
+                    {
+                        startAggregate(marker, len);
+                        return true;
+                    }
+                    throw new IOException("Protocol error, got " + len + " as an aggregate length");
                 }
                 else
                 {
                     return false;
                 }
             }
-            case READ_NIL_ARRAY:
-            case READ_NIL_STRING:
-            {
-                if (stack.isEmpty())
-                {
-                    throw new IOException("Empty stack when in NIL state");
-                }
-                
-                stack.pop();
-                if (stack.isEmpty())
-                {
-                    reply = RedisReply.createNil();
-                }
-                else
-                {
-                    ReadTask arrayTask = stack.peek();
-                    assert arrayTask.type == RedisReply.Type.ARRAY;
-                    arrayTask.elements[arrayTask.idx] = RedisReply.createNil();
-                    arrayTask.idx++;    
-                }
-                return true;
-            }                       
             case READ_INLINE:
             {
-                if (stack.isEmpty())
-                {
-                    throw new IOException("Empty stack when in INLINE state");
-                }
-                
                 int newline = BufferUtils.seekNewLine(buffer);
                 if (newline >= 0)
                 {
-                    int len = newline - buffer.position() - 2;
-                    byte[] msg = new byte[len];
-                    buffer.get(msg);
-                    buffer.position(newline);
-                    stack.pop();
-                    if (stack.isEmpty())
+                    int limit = buffer.limit();
+                    buffer.limit(newline - 2);
+                    if (marker == C_MINUS)
+                    {
+                        handler.onError(buffer);
+                    }
+                    else if (marker == C_PLUS)
+                    {
+                        handler.onStatus(buffer);
+                    }
+                    else if (marker == C_UNDERSCORE)
+                    {
+                        handler.onNil();
+                    }
+                    else if (marker == C_HASH)
                     {
-                        reply = RedisReply.createString(task.type, msg);
+                        handler.onBoolean(readBoolean(buffer));
+                    }
+                    else if (marker == C_COMMA)
+                    {
+                        handler.onDouble(readDouble(buffer));
                     }
                     else
                     {
-                        ReadTask arrayTask = stack.peek();
-                        assert arrayTask.type == RedisReply.Type.ARRAY;
-                        arrayTask.elements[arrayTask.idx] = RedisReply.createString(task.type, msg);
-                        arrayTask.idx++;                        
+                        handler.onBigNumber(buffer);
                     }
+                    buffer.limit(limit).position(newline);
+                    endElement();
                     return true;
                 }
                 else
@@ -258,28 +564,13 @@ public class ProtocolReader
             }
             case READ_INTEGER:
             {
-                if (stack.isEmpty())
-                {
-                    throw new IOException("Empty stack when in INTEGER state");
-                }
-                
                 int newline = BufferUtils.seekNewLine(buffer);
                 if (newline >= 0)
                 {
                     long result = readLong(buffer);
                     buffer.position(newline);
-                    stack.pop();
-                    if (stack.isEmpty())
-                    {
-                        reply = RedisReply.createInteger(result);
-                    }
-                    else
-                    {
-                        ReadTask arrayTask = stack.peek();
-                        assert arrayTask.type == RedisReply.Type.ARRAY;
-                        arrayTask.elements[arrayTask.idx] = RedisReply.createInteger(result);
-                        arrayTask.idx++;                        
-                    }
+                    handler.onInteger(result);
+                    endElement();
                     return true;
                 }
                 else
@@ -289,68 +580,36 @@ public class ProtocolReader
             }
             case READ_BULK:
             {
-                if (stack.isEmpty())
-                {
-                    throw new IOException("Empty stack when in BULK state");
-                }
-                
-                if (task.len + 2 > buffer.remaining())
+                if (len + 2 > buffer.remaining())
                 {
                     return false;
                 }
                 
-                byte[] msg = new byte[task.len];
-                buffer.get(msg);
-                int newline = BufferUtils.seekNewLine(buffer);
-                if (newline != buffer.position() + 2)
+                int end = buffer.position() + len;
+                if (buffer.get(end) != C_CR || buffer.get(end + 1) != C_LF)
                 {
                     throw new IOException("Expected CRLF at end of bulk string reply");
                 }
-                buffer.position(newline);
-                stack.pop();
-                if (stack.isEmpty())
+                int limit = buffer.limit();
+                buffer.limit(end);
+                if (marker == C_DOLLAR)
                 {
-                    reply = RedisReply.createBulkString(msg);
+                    handler.onBulk(buffer);
                 }
-                else
-                {
-                    ReadTask arrayTask = stack.peek();
-                    assert arrayTask.type == RedisReply.Type.ARRAY;
-                    arrayTask.elements[arrayTask.idx] = RedisReply.createBulkString(msg);
-                    arrayTask.idx++;
-                }
-                
-                return true;
-            }
-            case READ_ARRAY:
-            {
-                if (stack.isEmpty())
+                else if (marker == C_BANG)
                 {
-                    throw new IOException("Empty stack when in ARRAY state");
+                    handler.onError(buffer);
                 }
-                
-                assert task.len >= 0 && task.idx >= 0;
-                
-                if (task.len == task.idx)
+                else
                 {
-                    stack.pop();
-                    if (stack.isEmpty())
-                    {
-                        reply = RedisReply.createArray(task.elements);
-                    }
-                    else
+                    if (len < 4)
                     {
-                        ReadTask arrayTask = stack.peek();
-                        assert arrayTask.type == RedisReply.Type.ARRAY;
-                        arrayTask.elements[arrayTask.idx] = RedisReply.createArray(task.elements);
-                        arrayTask.idx++;
+                        throw new IOException("Protocol error, verbatim string is missing its format");
                     }
+                    handler.onVerbatim(buffer);
                 }
-                else
-                {
-                    stack.push(new ReadTask());
-                }
-                
+                buffer.limit(limit).position(end + 2);
+                endElement();
                 return true;
             }
             default:
@@ -358,6 +617,148 @@ public class ProtocolReader
         }
     }
     
+    private void startAggregate(byte type, int len)
+    {
+        if (type == C_STAR)
+        {
+            handler.onArrayStart(len);
+        }
+        else if (type == C_PERCENT)
+        {
+            handler.onMapStart(len);
+        }
+        else if (type == C_TILDE)
+        {
+            handler.onSetStart(len);
+        }
+        else if (type == C_GT)
+        {
+            handler.onPushStart(len);
+        }
+        else
+        {
+            handler.onAttributeStart(len);
+        }
+        
+        int elements = type == C_PERCENT || type == C_PIPE ? len * 2 : len;
+        if (elements == 0)
+        {
+            endAggregate(type);
+            return;
+        }
+        
+        if (depth == pending.length)
+        {
+            int[] grown = new int[depth * 2];
+            System.arraycopy(pending, 0, grown, 0, depth);
+            pending = grown;
+            byte[] grownAggregates = new byte[depth * 2];
+            System.arraycopy(aggregates, 0, grownAggregates, 0, depth);
+            aggregates = grownAggregates;
+        }
+        pending[depth] = elements;
+        aggregates[depth] = type;
+        depth++;
+        state = State.READ_TYPE;
+    }
+    
+    /*
+     * Report the end of an aggregate and account for it as an element of its parent. Attributes describe the next
+     * element rather than being one themselves, so they are not counted.
+     */
+    private void endAggregate(byte type)
+    {
+        if (type == C_STAR)
+        {
+            handler.onArrayEnd();
+        }
+        else if (type == C_PERCENT)
+        {
+            handler.onMapEnd();
+        }
+        else if (type == C_TILDE)
+        {
+            handler.onSetEnd();
+        }
+        else if (type == C_GT)
+        {
+            handler.onPushEnd();
+        }
+        else
+        {
+            handler.onAttributeEnd();
+            state = State.READ_TYPE;
+            return;
+        }
+        endElement();
+    }
+    
+    /*
+     * Called after a complete element has been passed to the handler, closing any aggregates that are now complete
+     */
+    private void endElement()
+    {
+        state = State.READ_TYPE;
+        if (depth == 0)
+        {
+            complete = true;
+            return;
+        }
+        if (--pending[depth - 1] == 0)
+        {
+            depth--;
+            endAggregate(aggregates[depth]);
+        }
+    }
+    
+    private static boolean readBoolean(ByteBuffer buff) throws IOException
+    {
+        if (buff.remaining() == 1)
+        {
+            byte c = buff.get(buff.position());
+            if (c == C_t)
+            {
+                return true;
+            }
+            if (c == C_f)
+            {
+                return false;
+            }
+        }
+        throw new IOException("Protocol error, invalid boolean " + BufferUtils.decode(buff));
+    }
+    
+    private static double readDouble(ByteBuffer buff) throws IOException
+    {
+        String value = BufferUtils.decode(buff);
+        switch (value)
+        {
+            case "inf":
+                return Double.POSITIVE_INFINITY;
+            case "-inf":
+                return Double.NEGATIVE_INFINITY;
+            case "nan":
+                return Double.NaN;
+            default:
+                try
+                {
+                    return Double.parseDouble(value);
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new IOException("Protocol error, invalid double " + value);
+                }
+        }
+    }
+    
+    /*
+     * The shared buffer backing the reader's current input buffer in zero-copy mode, or null
+     */
+    ReplyBuffer currentBuffer()
+    {
+        return owner;
+    }
+    
     private static int readInt(ByteBuffer buff)
     {
         int v = 0;
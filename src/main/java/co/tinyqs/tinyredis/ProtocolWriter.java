@@ -1,10 +1,13 @@
 package co.tinyqs.tinyredis;
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * redis protocol writer that supports a subset of printf-style string formats
@@ -17,26 +20,37 @@ import java.util.List;
 public class ProtocolWriter
 {
     private static final Charset CHARSET = ProtocolReader.CHARSET;
-    private static final byte C_PERCENT = "%".getBytes(CHARSET)[0];
     private static final byte C_s = "s".getBytes(CHARSET)[0];
-    private static final byte C_b = "b".getBytes(CHARSET)[0];
-    private static final int PADDING = String.format("+%d\r\n", Integer.MAX_VALUE).getBytes(CHARSET).length;
+    private static final byte C_DOLLAR = "$".getBytes(CHARSET)[0];
+    private static final int MAX_CACHED_TEMPLATES = 256;
     private static final byte[] CRLF = "\r\n".getBytes(CHARSET);
     
     private List<RedisSerializer> serializers;
+    private final ConcurrentMap<Class<?>, RedisSerializer> dispatch = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CommandTemplate> templates = new ConcurrentHashMap<>();
     
     public ProtocolWriter()
     {
-        serializers = new ArrayList<>();
+        serializers = new CopyOnWriteArrayList<>();
     }
     
-    private byte[] serialize(Object obj) throws IOException
+    /*
+     * Find the serializer for an object, trying the first one that handled its class before scanning them all. The
+     * scan is in registration order, so objects that serializer declines still get the first serializer that accepts.
+     */
+    private RedisSerializer serializerFor(Object obj) throws IOException
     {
+        RedisSerializer cached = dispatch.get(obj.getClass());
+        if (cached != null && cached.canSerialize(obj))
+        {
+            return cached;
+        }
         for (RedisSerializer serializer : serializers)
         {
             if (serializer.canSerialize(obj))
             {
-                return serializer.serialize(obj);
+                dispatch.putIfAbsent(obj.getClass(), serializer);
+                return serializer;
             }
         }
         
@@ -51,6 +65,29 @@ public class ProtocolWriter
         Preconditions.checkNotNull(serializer, "Serializer may not be null");
         
         serializers.add(serializer);
+        dispatch.clear();
+    }
+    
+    /**
+     * Compile a format string into a reusable template, consulting this writer's cache of formats. Safe to call from
+     * any number of threads. The cache is simply emptied once it grows past its limit, since a program that keeps
+     * hitting the limit is building its format strings on the fly and gains little from caching them.
+     */
+    public CommandTemplate compile(String format)
+    {
+        Preconditions.checkNotNull(format);
+        CommandTemplate template = templates.get(format);
+        if (template == null)
+        {
+            if (templates.size() >= MAX_CACHED_TEMPLATES)
+            {
+                templates.clear();
+            }
+            template = CommandTemplate.compile(format);
+            CommandTemplate existing = templates.putIfAbsent(format, template);
+            template = existing != null ? existing : template;
+        }
+        return template;
     }
     
     /**
@@ -61,76 +98,157 @@ public class ProtocolWriter
      *   formatCommand("SET mykey %s", "hello world") - returns a _3_ element command "SET", "mykey", "hello world"
      *   formatCommand("SET mykey %b", myObject) - uses a registered serializer to convert myObject to a binary byte array
      *   
+     * Format strings are compiled into CommandTemplates and cached, so repeated formats are only parsed once.
+     *   
      * @throws IOException - If a given format can't be converted or a serializer is not available for a given object
      */
     public ByteBuffer formatCommand(String format, Object... args) throws IOException
     {
         Preconditions.checkNotNull(format);
+        return formatCommand(compile(format), args);
+    }
+    
+    /**
+     * Convert a precompiled command template into a binary safe buffer for communication with a redis socket.
+     * Only the arguments are encoded, literal words are copied from the template as-is. Values whose serializer
+     * gives a size hint are encoded directly into the buffer.
+     * 
+     * @throws IOException - If a serializer is not available for a given object
+     */
+    public ByteBuffer formatCommand(CommandTemplate template, Object... args) throws IOException
+    {
+        Preconditions.checkNotNull(template);
         for (Object arg : args)
         {
             Preconditions.checkNotNull(arg);
         }
+        Preconditions.checkState(args.length >= template.getArgCount(), "Not enough parameters given");
         
+        CommandTemplate.Word[] words = template.getWords();
+        byte[][] encodedArgs = new byte[template.getArgCount()][];
+        RedisSerializer[] streamed = null;
+        int[] hints = null;
+        int size = template.getLiteralSize();
         int argidx = 0;
-        ByteBuffer result = BufferUtils.EMPTY;
-        
-        String[] chunks = format.split("[ ]+");
-        byte[] preamble = String.format("*%d\r\n", chunks.length).getBytes(CHARSET);
-        result = BufferUtils.makeRoom(result, preamble.length).put(preamble);
-        
-        ByteBuffer temp = ByteBuffer.allocate(PADDING);
-        temp.position(PADDING);
-        for (String chunk : chunks)
+        for (CommandTemplate.Word word : words)
         {
-            
-            byte[] chunkBuff = chunk.getBytes(CHARSET);
-            temp = BufferUtils.makeRoom(temp, PADDING + 2 + chunkBuff.length);
-            for (int i = 0; i < chunkBuff.length; i++)
+            if (word.isLiteral())
             {
-                byte c = chunkBuff[i];
-                if (c == C_PERCENT && i+1 < chunkBuff.length)
+                continue;
+            }
+            int len = word.literalLength;
+            for (byte placeholder : word.placeholders)
+            {
+                Object arg = args[argidx];
+                if (placeholder == C_s)
                 {
-                    byte c2 = chunkBuff[i+1];
-                    if (c2 == C_s)
-                    {
-                        Preconditions.checkState(argidx < args.length, "Not enough parameters given");
-                        byte[] arg = args[argidx].toString().getBytes(CHARSET);
-                        temp = BufferUtils.makeRoom(temp, arg.length);
-                        temp.put(arg);
-                        argidx++;
-                    }                
-                    else if (c2 == C_b)
+                    encodedArgs[argidx] = arg.toString().getBytes(CHARSET);
+                    len += encodedArgs[argidx].length;
+                }
+                else
+                {
+                    RedisSerializer serializer = serializerFor(arg);
+                    int hint = serializer.sizeHint(arg);
+                    if (hint < 0)
                     {
-                        Preconditions.checkState(argidx < args.length, "Not enough parameters given");
-                        Object arg = args[argidx];
-                        byte[] argBuff = serialize(arg);
-                        temp = BufferUtils.makeRoom(temp, argBuff.length);
-                        temp.put(argBuff);
-                        argidx++;
+                        encodedArgs[argidx] = serializer.serialize(arg);
+                        len += encodedArgs[argidx].length;
                     }
                     else
                     {
-                        temp = BufferUtils.makeRoom(temp, 2);
-                        temp.put(c);
-                        temp.put(c2);
+                        if (streamed == null)
+                        {
+                            streamed = new RedisSerializer[encodedArgs.length];
+                            hints = new int[encodedArgs.length];
+                        }
+                        streamed[argidx] = serializer;
+                        hints[argidx] = hint;
+                        len += hint;
                     }
-                    i++;
+                }
+                argidx++;
+            }
+            size += BufferUtils.decimalLength(len) + len + 5;
+        }
+        
+        ByteBuffer result = ByteBuffer.allocate(size);
+        result.put(template.getPreamble());
+        argidx = 0;
+        for (CommandTemplate.Word word : words)
+        {
+            if (word.isLiteral())
+            {
+                result.put(word.encoded);
+                continue;
+            }
+            
+            int len = word.literalLength;
+            boolean exact = true;
+            for (int i = 0; i < word.placeholders.length; i++)
+            {
+                if (streamed != null && streamed[argidx + i] != null)
+                {
+                    len += hints[argidx + i];
+                    exact = false;
                 }
                 else
                 {
-                    temp = BufferUtils.makeRoom(temp, 1);
-                    temp.put(c);
+                    len += encodedArgs[argidx + i].length;
                 }
             }
-            temp = BufferUtils.makeRoom(temp, 2);
-            byte[] tempPreamble = String.format("$%d\r\n", temp.position() - PADDING).getBytes(CHARSET);
-            temp.put(CRLF).flip().position(PADDING - tempPreamble.length).mark();
-            temp.put(tempPreamble).reset();
-            result = BufferUtils.makeRoom(result, temp.remaining()).put(temp);
-            temp.clear().position(PADDING);
+            
+            // With size hints the length is only an upper bound, so leave room for its header and fill it in after
+            int header = result.position();
+            int reserved = BufferUtils.decimalLength(len) + 3;
+            result.position(header + reserved);
+            result.put(word.literals[0]);
+            for (int i = 0; i < word.placeholders.length; i++)
+            {
+                if (streamed != null && streamed[argidx] != null)
+                {
+                    writeStreamed(result, streamed[argidx], args[argidx], hints[argidx]);
+                }
+                else
+                {
+                    result.put(encodedArgs[argidx]);
+                }
+                argidx++;
+                result.put(word.literals[i+1]);
+            }
+            
+            int actual = result.position() - header - reserved;
+            int used = BufferUtils.decimalLength(actual) + 3;
+            if (!exact && used < reserved)
+            {
+                // The length has fewer digits than its bound, so move the value back to close the gap
+                System.arraycopy(result.array(), header + reserved, result.array(), header + used, actual);
+            }
+            result.position(header);
+            result.put(C_DOLLAR);
+            BufferUtils.putDecimal(result, actual).put(CRLF);
+            result.position(header + used + actual);
+            result.put(CRLF);
         }
 
         result.flip();
         return result;
     }
+    
+    private static void writeStreamed(ByteBuffer result, RedisSerializer serializer, Object arg, int hint) throws IOException
+    {
+        int limit = result.limit();
+        result.limit(result.position() + hint);
+        try
+        {
+            serializer.writeTo(arg, result);
+        }
+        catch (BufferOverflowException e)
+        {
+            throw new IOException("Serializer wrote more than its size hint of " + hint + " bytes for " + arg.getClass().getName());
+        }
+        finally
+        {
+            result.limit(limit);
+        }
+    }
 }
@@ -0,0 +1,13 @@
+package co.tinyqs.tinyredis;
+
+/**
+ * Receives out-of-band RESP3 push messages (such as pub/sub messages or client tracking invalidations) that arrive on
+ * a connection while it is waiting for replies.
+ */
+public interface PushListener
+{
+    /**
+     * Called with each push message. Zero-copy pushes must be released by the listener.
+     */
+    public void onPush(RedisReply push);
+}
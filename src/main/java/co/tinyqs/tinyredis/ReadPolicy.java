@@ -0,0 +1,89 @@
+package co.tinyqs.tinyredis;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the replica that a RedisReplicaClient sends a read-only command to
+ */
+public interface ReadPolicy
+{
+    /**
+     * Choose one of the given replicas, which are all currently available. Called concurrently from any thread.
+     */
+    RedisNode select(List<RedisNode> replicas);
+
+    /**
+     * Cycle through the replicas in order
+     */
+    static ReadPolicy roundRobin()
+    {
+        return new ReadPolicy()
+        {
+            private final AtomicInteger next = new AtomicInteger();
+
+            @Override
+            public RedisNode select(List<RedisNode> replicas)
+            {
+                return replicas.get(Math.floorMod(next.getAndIncrement(), replicas.size()));
+            }
+        };
+    }
+
+    /**
+     * Choose the replica with the fewest commands waiting for a reply, breaking ties at random
+     */
+    static ReadPolicy leastOutstanding()
+    {
+        return new ReadPolicy()
+        {
+            @Override
+            public RedisNode select(List<RedisNode> replicas)
+            {
+                int offset = ThreadLocalRandom.current().nextInt(replicas.size());
+                RedisNode best = null;
+                for (int i = 0; i < replicas.size(); i++)
+                {
+                    RedisNode node = replicas.get((i + offset) % replicas.size());
+                    if (best == null || node.getOutstanding() < best.getOutstanding())
+                    {
+                        best = node;
+                    }
+                }
+                return best;
+            }
+        };
+    }
+
+    /**
+     * Choose the replica with the lowest moving average latency, weighted by the number of commands already waiting
+     * on it. Of two random replicas the cheaper one is chosen, which keeps a single fast replica from being swamped.
+     */
+    static ReadPolicy lowestLatency()
+    {
+        return new ReadPolicy()
+        {
+            @Override
+            public RedisNode select(List<RedisNode> replicas)
+            {
+                int size = replicas.size();
+                if (size == 1)
+                {
+                    return replicas.get(0);
+                }
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int first = random.nextInt(size);
+                int second = (first + 1 + random.nextInt(size - 1)) % size;
+                RedisNode a = replicas.get(first);
+                RedisNode b = replicas.get(second);
+                return cost(a) <= cost(b) ? a : b;
+            }
+
+            private double cost(RedisNode node)
+            {
+                return node.getLatencyNanos() * (node.getOutstanding() + 1);
+            }
+        };
+    }
+}
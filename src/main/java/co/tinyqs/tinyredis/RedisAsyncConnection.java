@@ -0,0 +1,498 @@
+package co.tinyqs.tinyredis;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking connection driven by a RedisEventLoopGroup
+ *
+ * send() may be called from any thread and returns a future that is completed on the connection's event loop thread
+ * once the reply arrives. Commands are queued per connection and written with gathering writes whenever the socket
+ * is writable, and replies are parsed incrementally as they arrive.
+ *
+ * If more than highWaterMark bytes are waiting to be written, the connection stops accepting commands: isWritable()
+ * returns false and send() returns futures that fail with a RejectedExecutionException until the backlog drains
+ * below lowWaterMark. whenWritable() can be used to wait for that without blocking a thread.
+ */
+public class RedisAsyncConnection implements AutoCloseable, RedisEventLoopGroup.Handler
+{
+    // Upper bound on buffers passed to a single gathering write (IOV_MAX on most platforms)
+    private static final int MAX_GATHER = 1024;
+    // Minimum free space in the reader's buffer before reading from the socket
+    private static final int MIN_READ = 1024*16;
+    // Most bytes read per wakeup, so one busy connection can't hold up the others on its event loop
+    private static final int MAX_READ = 1024*256;
+    private static final long DEFAULT_HIGH_WATER_MARK = 1024*1024*16;
+
+    private final SocketChannel channel;
+    private final RedisEventLoopGroup.EventLoop loop;
+    private final ProtocolReader reader;
+    private final ProtocolWriter writer;
+    private final Queue<Request> submitted = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final Runnable flushTask;
+    private volatile long highWaterMark = DEFAULT_HIGH_WATER_MARK;
+    private volatile long lowWaterMark = DEFAULT_HIGH_WATER_MARK / 2;
+    private volatile boolean writable = true;
+    private volatile boolean exceptionOnError = false;
+    private volatile IOException failure = null;
+
+    // Only accessed on the event loop thread
+    private final Deque<Request> inflight = new ArrayDeque<>();
+    private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+    private final List<CompletableFuture<Void>> writabilityWaiters = new ArrayList<>();
+    private ByteBuffer[] gather = new ByteBuffer[16];
+    private SelectionKey key;
+
+    /**
+     * Connect to the given address and register the connection with one of the group's threads. The TCP connection
+     * itself is established before this method returns.
+     */
+    public static RedisAsyncConnection connect(SocketAddress addr, RedisEventLoopGroup group) throws IOException
+    {
+        return connect(addr, 0, group);
+    }
+
+    /**
+     * Connect to the given address, waiting a maximum of <strong>timeout</strong> ms
+     */
+    public static RedisAsyncConnection connect(SocketAddress addr, int timeout, RedisEventLoopGroup group) throws IOException
+    {
+        Preconditions.checkNotNull(group, "Event loop group may not be null");
+        SocketChannel channel = RedisConnection.openChannel(addr, timeout);
+        channel.configureBlocking(false);
+        return new RedisAsyncConnection(channel, group.next(), new ProtocolReader(), new ProtocolWriter());
+    }
+
+    RedisAsyncConnection(SocketChannel channel, RedisEventLoopGroup.EventLoop loop, ProtocolReader reader, ProtocolWriter writer)
+    {
+        this.channel = channel;
+        this.loop = loop;
+        this.reader = reader;
+        this.writer = writer;
+        this.flushTask = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                flushScheduled.set(false);
+                flush();
+            }
+        };
+        loop.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                register();
+            }
+        });
+    }
+
+    public RedisAsyncConnection registerSerializer(RedisSerializer serializer)
+    {
+        writer.registerSerializer(serializer);
+        return this;
+    }
+
+    /**
+     * Fail futures with a RedisErrorException when the server replies with an error
+     */
+    public RedisAsyncConnection exceptionOnError(boolean exceptionOnError)
+    {
+        this.exceptionOnError = exceptionOnError;
+        return this;
+    }
+
+    /**
+     * Number of unwritten bytes above which send() rejects commands, 16MB by default. Also sets the low water mark to
+     * half of the given value.
+     */
+    public RedisAsyncConnection highWaterMark(long highWaterMark)
+    {
+        Preconditions.checkState(highWaterMark > 0, "High water mark must be positive");
+        this.highWaterMark = highWaterMark;
+        this.lowWaterMark = highWaterMark / 2;
+        return this;
+    }
+
+    /**
+     * Number of unwritten bytes below which a connection that hit its high water mark accepts commands again
+     */
+    public RedisAsyncConnection lowWaterMark(long lowWaterMark)
+    {
+        Preconditions.checkState(lowWaterMark >= 0 && lowWaterMark <= highWaterMark, "Low water mark must be between 0 and the high water mark");
+        this.lowWaterMark = lowWaterMark;
+        return this;
+    }
+
+    /**
+     * Compile a format string into a template that can be reused with send(CommandTemplate, ...)
+     */
+    public CommandTemplate compile(String format)
+    {
+        return writer.compile(format);
+    }
+
+    /**
+     * Queue a command and return a future for its reply. Safe to call from any thread.
+     *
+     * @see RedisConnection#sendCommand(String, Object...)
+     */
+    public CompletableFuture<RedisReply> send(String format, Object... args)
+    {
+        return send(compile(format), args);
+    }
+
+    /**
+     * Queue a precompiled command and return a future for its reply
+     */
+    public CompletableFuture<RedisReply> send(CommandTemplate template, Object... args)
+    {
+        CompletableFuture<RedisReply> future = new CompletableFuture<>();
+        IOException failed = failure;
+        if (failed != null)
+        {
+            future.completeExceptionally(new IOException("Connection has failed", failed));
+            return future;
+        }
+        if (!writable)
+        {
+            future.completeExceptionally(new RejectedExecutionException("More than " + highWaterMark + " bytes are waiting to be written"));
+            return future;
+        }
+
+        ByteBuffer command;
+        try
+        {
+            command = writer.formatCommand(template, args);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        if (pendingBytes.addAndGet(command.remaining()) > highWaterMark)
+        {
+            writable = false;
+        }
+        submitted.add(new Request(command, future));
+        if (flushScheduled.compareAndSet(false, true))
+        {
+            loop.execute(flushTask);
+        }
+        if (failure != null)
+        {
+            // The connection failed while this command was being queued, so it may have missed being failed
+            future.completeExceptionally(new IOException("Connection has failed", failure));
+        }
+        return future;
+    }
+
+    /**
+     * false while the amount of unwritten data is above the high water mark
+     */
+    public boolean isWritable()
+    {
+        return writable;
+    }
+
+    /**
+     * Number of bytes queued but not yet written to the socket
+     */
+    public long getPendingBytes()
+    {
+        return pendingBytes.get();
+    }
+
+    /**
+     * Return a future that completes once the connection accepts commands again
+     */
+    public CompletableFuture<Void> whenWritable()
+    {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        if (writable)
+        {
+            future.complete(null);
+            return future;
+        }
+        loop.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (writable || failure != null)
+                {
+                    future.complete(null);
+                }
+                else
+                {
+                    writabilityWaiters.add(future);
+                }
+            }
+        });
+        return future;
+    }
+
+    public boolean isErrorState()
+    {
+        return failure != null;
+    }
+
+    private void register()
+    {
+        try
+        {
+            key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void onReady(SelectionKey key)
+    {
+        try
+        {
+            if (key.isReadable())
+            {
+                read();
+            }
+            if (key.isValid() && key.isWritable())
+            {
+                flush();
+            }
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+        catch (RuntimeException e)
+        {
+            // Fail only this connection, rather than let the exception stop the loop shared with others
+            fail(new IOException(e));
+        }
+    }
+
+    @Override
+    public void onClose()
+    {
+        fail(new IOException("Event loop was shut down"));
+    }
+
+    /*
+     * Read what has arrived, completing replies as they are parsed so the input buffer only ever holds a partial one.
+     * Anything beyond MAX_READ is left for the next wakeup.
+     */
+    private void read() throws IOException
+    {
+        int total = 0;
+        int nread;
+        do
+        {
+            nread = channel.read(reader.writableBuffer(MIN_READ));
+            reader.commitWrite();
+            completeReplies();
+            total += nread;
+        }
+        while (nread > 0 && total < MAX_READ);
+
+        if (nread == -1)
+        {
+            throw new IOException("Input channel unexpectedly closed");
+        }
+    }
+
+    private void completeReplies() throws IOException
+    {
+        RedisReply reply;
+        while ((reply = reader.getReply()) != null)
+        {
+            if (reply.getType() == RedisReply.Type.PUSH)
+            {
+                reply.release();
+                continue;
+            }
+            Request request = inflight.poll();
+            if (request == null)
+            {
+                reply.release();
+                throw new IOException("Received a reply without a pending command");
+            }
+            if (exceptionOnError && reply.getType() == RedisReply.Type.ERROR)
+            {
+                String message = reply.getString();
+                reply.release();
+                request.future.completeExceptionally(new RedisErrorException(message));
+            }
+            else
+            {
+                request.future.complete(reply);
+            }
+        }
+    }
+
+    /*
+     * Move submitted commands onto the outbound queue and write as much as the socket will take
+     */
+    private void flush()
+    {
+        if (failure != null || key == null)
+        {
+            return;
+        }
+        Request request;
+        while ((request = submitted.poll()) != null)
+        {
+            inflight.add(request);
+            outbound.add(request.command);
+        }
+
+        try
+        {
+            long written = 0;
+            while (!outbound.isEmpty())
+            {
+                int count = Math.min(outbound.size(), MAX_GATHER);
+                if (gather.length < count)
+                {
+                    gather = new ByteBuffer[Math.min(Math.max(count, gather.length * 2), MAX_GATHER)];
+                }
+                int idx = 0;
+                for (ByteBuffer out : outbound)
+                {
+                    if (idx == count)
+                    {
+                        break;
+                    }
+                    gather[idx++] = out;
+                }
+
+                long nwritten = channel.write(gather, 0, count);
+                written += nwritten;
+                for (int i = 0; i < count; i++)
+                {
+                    if (!gather[i].hasRemaining())
+                    {
+                        outbound.pop();
+                    }
+                    gather[i] = null;
+                }
+                if (nwritten == 0)
+                {
+                    break;
+                }
+            }
+
+            int ops = outbound.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+            if (key.interestOps() != ops)
+            {
+                key.interestOps(ops);
+            }
+            if (pendingBytes.addAndGet(-written) <= lowWaterMark && !writable)
+            {
+                writable = true;
+                for (CompletableFuture<Void> waiter : writabilityWaiters)
+                {
+                    waiter.complete(null);
+                }
+                writabilityWaiters.clear();
+            }
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    /*
+     * Close the channel and fail every outstanding command. Only called on the event loop thread.
+     */
+    private void fail(IOException e)
+    {
+        if (failure == null)
+        {
+            failure = e;
+        }
+        if (key != null)
+        {
+            key.cancel();
+        }
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ignored)
+        {
+            // Already failing
+        }
+        IOException cause = new IOException("Connection failed before a reply was received", failure);
+        Request request;
+        while ((request = inflight.poll()) != null)
+        {
+            request.future.completeExceptionally(cause);
+        }
+        while ((request = submitted.poll()) != null)
+        {
+            request.future.completeExceptionally(cause);
+        }
+        for (CompletableFuture<Void> waiter : writabilityWaiters)
+        {
+            waiter.complete(null);
+        }
+        writabilityWaiters.clear();
+        outbound.clear();
+    }
+
+    /**
+     * Close the connection. Commands still waiting for replies fail with an IOException.
+     */
+    @Override
+    public void close()
+    {
+        final IOException closed = new ClosedChannelException();
+        if (loop.isClosed())
+        {
+            failure = closed;
+            return;
+        }
+        loop.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                fail(closed);
+            }
+        });
+    }
+
+    private static final class Request
+    {
+        final ByteBuffer command;
+        final CompletableFuture<RedisReply> future;
+
+        Request(ByteBuffer command, CompletableFuture<RedisReply> future)
+        {
+            this.command = command;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,743 @@
+package co.tinyqs.tinyredis;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe client for a Redis Cluster
+ *
+ * The client keeps a map of hash slots to master nodes, loaded with CLUSTER SHARDS (or CLUSTER SLOTS on servers
+ * older than 7.0), and a RedisConnectionPool per node. Each command is sent to the node that owns the slot of its
+ * first key; commands without a key go to any node.
+ *
+ * MOVED replies update the slot map, schedule a background refresh of the whole topology and retry the command on
+ * the new owner. ASK replies retry the command once on the importing node, preceded by ASKING. TRYAGAIN and
+ * CLUSTERDOWN are retried after a short pause, and IO errors refresh the topology before retrying. A command is
+ * attempted at most maxRedirects + 1 times, after which the last error reply is returned.
+ *
+ * A command that fails once it may have been written, eg because its reply was lost or timed out, is only retried if
+ * it is read-only, since writes such as INCR or LPUSH could otherwise run twice. Failures to borrow a connection or
+ * connect to the node are always retried. Other commands fail with the IOException.
+ *
+ * Multi-key commands must keep all of their keys in one slot, eg with {hashtags}. Blocking commands, MULTI and
+ * SUBSCRIBE need a dedicated connection from getPool(node).
+ */
+public class RedisClusterClient implements AutoCloseable
+{
+    // Minimum time in ms between topology refreshes triggered by MOVED replies
+    private static final long MIN_REFRESH_INTERVAL = 100;
+    // Pause in ms before retrying after TRYAGAIN or CLUSTERDOWN, multiplied by the attempt number
+    private static final long RETRY_PAUSE = 10;
+
+    private final List<SocketAddress> seeds;
+    private final ProtocolWriter writer = new ProtocolWriter();
+    private final ConcurrentMap<SocketAddress, RedisConnectionPool> pools = new ConcurrentHashMap<>();
+    private final ReentrantLock refreshLock = new ReentrantLock();
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final ByteBuffer clusterShards;
+    private final ByteBuffer clusterSlots;
+    private final ByteBuffer asking;
+    private volatile AtomicReferenceArray<SocketAddress> slots = new AtomicReferenceArray<>(ClusterSlots.SLOTS);
+    private volatile long lastRefresh = 0;
+    private ExecutorService executor;
+    private int poolSize = 8;
+    private int connectTimeout = 0;
+    private int maxRedirects = 5;
+    private volatile boolean exceptionOnError = false;
+
+    private final AtomicLong redirects = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    /**
+     * Create a client that discovers the cluster through the given nodes. Configure it with the builder methods, then
+     * call start().
+     */
+    public RedisClusterClient(SocketAddress... seeds)
+    {
+        Preconditions.checkState(seeds.length > 0, "At least one seed node is required");
+        for (SocketAddress seed : seeds)
+        {
+            Preconditions.checkNotNull(seed, "Seed addresses may not be null");
+        }
+        this.seeds = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(seeds)));
+        try
+        {
+            clusterShards = writer.formatCommand("CLUSTER SHARDS");
+            clusterSlots = writer.formatCommand("CLUSTER SLOTS");
+            asking = writer.formatCommand("ASKING");
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Maximum number of connections to each node, 8 by default
+     */
+    public RedisClusterClient poolSize(int poolSize)
+    {
+        checkNotStarted();
+        Preconditions.checkState(poolSize > 0, "poolSize must be positive");
+        this.poolSize = poolSize;
+        return this;
+    }
+
+    /**
+     * Connect timeout in ms for new connections, 0 (no timeout) by default
+     */
+    public RedisClusterClient connectTimeout(int connectTimeout)
+    {
+        checkNotStarted();
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    /**
+     * Number of times a command is retried after a redirect or failure, 5 by default
+     */
+    public RedisClusterClient maxRedirects(int maxRedirects)
+    {
+        Preconditions.checkState(maxRedirects >= 0, "maxRedirects may not be negative");
+        this.maxRedirects = maxRedirects;
+        return this;
+    }
+
+    public RedisClusterClient registerSerializer(RedisSerializer serializer)
+    {
+        checkNotStarted();
+        writer.registerSerializer(serializer);
+        return this;
+    }
+
+    /**
+     * Throw a RedisErrorException when a command's final reply is an error
+     */
+    public RedisClusterClient exceptionOnError(boolean exceptionOnError)
+    {
+        this.exceptionOnError = exceptionOnError;
+        return this;
+    }
+
+    /**
+     * Load the cluster topology from the seed nodes
+     *
+     * @throws IOException - If none of the seed nodes returned a topology
+     */
+    public RedisClusterClient start() throws IOException
+    {
+        checkNotStarted();
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        refresh();
+        return this;
+    }
+
+    /**
+     * Compile a format string into a template that can be reused with sendCommand(CommandTemplate, ...)
+     */
+    public CommandTemplate compile(String format)
+    {
+        return writer.compile(format);
+    }
+
+    /**
+     * Send a command to the node that owns its key and wait for the reply, following redirects
+     *
+     * @see RedisConnection#sendCommand(String, Object...)
+     * @throws IOException - If the command still failed after maxRedirects retries
+     */
+    public RedisReply sendCommand(String format, Object... args) throws IOException
+    {
+        return sendCommand(compile(format), args);
+    }
+
+    /**
+     * Send a precompiled command to the node that owns its key and wait for the reply
+     */
+    public RedisReply sendCommand(CommandTemplate template, Object... args) throws IOException
+    {
+        RedisReply reply = execute(format(template, args));
+        if (exceptionOnError && reply.getType() == RedisReply.Type.ERROR)
+        {
+            String message = reply.getString();
+            reply.release();
+            throw new RedisErrorException(message);
+        }
+        return reply;
+    }
+
+    /**
+     * Start a pipeline whose commands are split by node and sent to all nodes in parallel
+     */
+    public ClusterPipeline pipeline()
+    {
+        checkStarted();
+        return new ClusterPipeline(this);
+    }
+
+    ByteBuffer format(CommandTemplate template, Object... args) throws IOException
+    {
+        return writer.formatCommand(template, args);
+    }
+
+    /**
+     * Return the slot of the command's key, or -1 if it doesn't have one
+     */
+    static int slotOf(ByteBuffer command)
+    {
+        int index = Commands.keyIndex(command);
+        return index < 0 ? -1 : ClusterSlots.slot(Commands.arg(command, index));
+    }
+
+    /*
+     * Send a formatted command, retrying on redirects and failures. The command buffer is never consumed.
+     */
+    RedisReply execute(ByteBuffer command) throws IOException
+    {
+        checkStarted();
+        int slot = slotOf(command);
+        SocketAddress addr = nodeFor(slot);
+        boolean ask = false;
+        for (int attempt = 0; ; attempt++)
+        {
+            long seenRefreshes = refreshes.get();
+            RedisReply reply;
+            boolean sent = false;
+            try
+            {
+                RedisConnection conn = borrow(addr);
+                sent = true;
+                reply = send(conn, command, ask);
+            }
+            catch (IOException e)
+            {
+                if (attempt >= maxRedirects || closed.get() || (sent && !isRetryable(command)))
+                {
+                    throw e;
+                }
+                refreshAfterFailure(seenRefreshes);
+                addr = nodeFor(slot);
+                ask = false;
+                continue;
+            }
+            ask = false;
+
+            Redirect redirect = Redirect.parse(reply, addr);
+            if (redirect == null || attempt >= maxRedirects)
+            {
+                return reply;
+            }
+            reply.release();
+            redirected(redirect);
+            switch (redirect.kind)
+            {
+                case MOVED:
+                    addr = redirect.target;
+                    break;
+                case ASK:
+                    addr = redirect.target;
+                    ask = true;
+                    break;
+                default:
+                    pause(attempt);
+                    addr = nodeFor(slot);
+                    break;
+            }
+        }
+    }
+
+    /*
+     * Count a redirect and apply it to the slot table if the slot has moved
+     */
+    void redirected(Redirect redirect)
+    {
+        redirects.incrementAndGet();
+        if (redirect.kind == Redirect.Kind.MOVED)
+        {
+            slots.set(redirect.slot, redirect.target);
+            scheduleRefresh();
+        }
+    }
+
+    /*
+     * true if a command can safely be sent again after it may already have run
+     */
+    static boolean isRetryable(ByteBuffer command)
+    {
+        return Commands.READ_ONLY.contains(Commands.name(command));
+    }
+
+    /*
+     * Send a command on a borrowed connection, preceded by ASKING if requested, and release the connection
+     */
+    private RedisReply send(RedisConnection conn, ByteBuffer command, boolean ask) throws IOException
+    {
+        try
+        {
+            if (!ask)
+            {
+                return conn.sendFormattedCommand(command.duplicate());
+            }
+            conn.appendFormattedCommand(asking.duplicate());
+            conn.appendFormattedCommand(command.duplicate());
+            conn.getReply().release();
+            return conn.getReply();
+        }
+        finally
+        {
+            release(conn);
+        }
+    }
+
+    RedisConnection borrow(SocketAddress addr) throws IOException
+    {
+        try
+        {
+            return getPool(addr).borrow();
+        }
+        catch (IllegalStateException e)
+        {
+            // The node left the cluster and its pool was closed by a refresh
+            throw new IOException("Connection pool for " + addr + " is closed", e);
+        }
+    }
+
+    static void release(RedisConnection conn)
+    {
+        try
+        {
+            conn.close();
+        }
+        catch (Exception e)
+        {
+            // Returning a pooled connection doesn't throw
+        }
+    }
+
+    private static void pause(int attempt) throws IOException
+    {
+        try
+        {
+            Thread.sleep(RETRY_PAUSE * (attempt + 1));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to retry a command");
+        }
+    }
+
+    /**
+     * Return the node that owns the given slot, or any node for a slot of -1
+     */
+    SocketAddress nodeFor(int slot)
+    {
+        AtomicReferenceArray<SocketAddress> table = slots;
+        SocketAddress addr = table.get(slot < 0 ? ThreadLocalRandom.current().nextInt(ClusterSlots.SLOTS) : slot);
+        // The slot isn't covered, so let any node answer with a MOVED or CLUSTERDOWN
+        return addr != null ? addr : seeds.get(ThreadLocalRandom.current().nextInt(seeds.size()));
+    }
+
+    /**
+     * Return the master node that currently owns the given slot, or null if no node covers it
+     */
+    public SocketAddress getNode(int slot)
+    {
+        Preconditions.checkState(slot >= 0 && slot < ClusterSlots.SLOTS, "Invalid slot: " + slot);
+        return slots.get(slot);
+    }
+
+    /**
+     * Return the master nodes in the current topology
+     */
+    public Set<SocketAddress> getNodes()
+    {
+        Set<SocketAddress> nodes = new LinkedHashSet<>();
+        AtomicReferenceArray<SocketAddress> table = slots;
+        for (int i = 0; i < table.length(); i++)
+        {
+            SocketAddress addr = table.get(i);
+            if (addr != null)
+            {
+                nodes.add(addr);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Return the connection pool for the given node, creating it if needed. Connections borrowed from it are not
+     * subject to redirection.
+     */
+    public RedisConnectionPool getPool(SocketAddress addr) throws IOException
+    {
+        Preconditions.checkState(!closed.get(), "Client is closed");
+        RedisConnectionPool pool = pools.get(addr);
+        if (pool == null)
+        {
+            RedisConnectionPool created = createPool(addr).start();
+            pool = pools.putIfAbsent(addr, created);
+            if (pool == null)
+            {
+                pool = created;
+            }
+            else
+            {
+                created.close();
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Create the pool for a node. Override to tune pools, eg their idle or borrow timeouts.
+     */
+    protected RedisConnectionPool createPool(SocketAddress addr)
+    {
+        return new RedisConnectionPool(addr).maxSize(poolSize).connectTimeout(connectTimeout);
+    }
+
+    /**
+     * Reload the topology from the first node that answers, trying the known masters before the seeds. Pools for
+     * nodes that are no longer masters are closed.
+     *
+     * @throws IOException - If no node returned a topology
+     */
+    public void refresh() throws IOException
+    {
+        refreshLock.lock();
+        try
+        {
+            Set<SocketAddress> candidates = getNodes();
+            candidates.addAll(seeds);
+            IOException lastError = null;
+            for (SocketAddress node : candidates)
+            {
+                try
+                {
+                    install(loadTopology(node));
+                    return;
+                }
+                catch (IOException e)
+                {
+                    lastError = e;
+                }
+            }
+            throw new IOException("Unable to load the cluster topology from any node", lastError);
+        }
+        finally
+        {
+            lastRefresh = System.currentTimeMillis();
+            refreshLock.unlock();
+        }
+    }
+
+    /*
+     * Refresh after a failed command, unless another thread already refreshed since the command was sent
+     */
+    private void refreshAfterFailure(long seenRefreshes)
+    {
+        refreshLock.lock();
+        try
+        {
+            if (refreshes.get() == seenRefreshes)
+            {
+                refresh();
+            }
+        }
+        catch (IOException e)
+        {
+            // Keep the current topology, the command will be retried against it
+        }
+        finally
+        {
+            refreshLock.unlock();
+        }
+    }
+
+    private void scheduleRefresh()
+    {
+        if (System.currentTimeMillis() - lastRefresh < MIN_REFRESH_INTERVAL || !refreshScheduled.compareAndSet(false, true))
+        {
+            return;
+        }
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    refresh();
+                }
+                catch (IOException e)
+                {
+                    // Tried again at the next MOVED
+                }
+                finally
+                {
+                    refreshScheduled.set(false);
+                }
+            }
+        });
+    }
+
+    private SocketAddress[] loadTopology(SocketAddress node) throws IOException
+    {
+        String host = node instanceof InetSocketAddress ? ((InetSocketAddress) node).getHostString() : null;
+        RedisConnection conn = borrow(node);
+        try
+        {
+            RedisReply reply = conn.sendFormattedCommand(clusterShards.duplicate());
+            if (reply.getType() != RedisReply.Type.ERROR)
+            {
+                return parseShards(reply, host);
+            }
+            reply = conn.sendFormattedCommand(clusterSlots.duplicate());
+            if (reply.getType() == RedisReply.Type.ERROR)
+            {
+                throw new IOException("CLUSTER SLOTS failed on " + node + ": " + reply.getString());
+            }
+            return parseSlots(reply, host);
+        }
+        catch (RuntimeException e)
+        {
+            throw new IOException("Unable to parse the cluster topology from " + node, e);
+        }
+        finally
+        {
+            release(conn);
+        }
+    }
+
+    private void install(SocketAddress[] table)
+    {
+        slots = new AtomicReferenceArray<>(table);
+        refreshes.incrementAndGet();
+        Set<SocketAddress> nodes = new LinkedHashSet<>(Arrays.asList(table));
+        for (Map.Entry<SocketAddress, RedisConnectionPool> entry : pools.entrySet())
+        {
+            if (!nodes.contains(entry.getKey()) && pools.remove(entry.getKey(), entry.getValue()))
+            {
+                entry.getValue().close();
+            }
+        }
+    }
+
+    /**
+     * Build a slot table from a CLUSTER SLOTS reply. Nodes without an address are assumed to be on defaultHost.
+     */
+    static SocketAddress[] parseSlots(RedisReply reply, String defaultHost)
+    {
+        SocketAddress[] table = new SocketAddress[ClusterSlots.SLOTS];
+        for (RedisReply range : reply.getElements())
+        {
+            RedisReply[] fields = range.getElements();
+            RedisReply[] master = fields[2].getElements();
+            SocketAddress addr = address(master[0].getType() == RedisReply.Type.NIL ? null : master[0].getString(), (int) master[1].getInteger(), defaultHost);
+            Arrays.fill(table, (int) fields[0].getInteger(), (int) fields[1].getInteger() + 1, addr);
+        }
+        return table;
+    }
+
+    /**
+     * Build a slot table from a CLUSTER SHARDS reply in either RESP2 or RESP3 form
+     */
+    static SocketAddress[] parseShards(RedisReply reply, String defaultHost)
+    {
+        SocketAddress[] table = new SocketAddress[ClusterSlots.SLOTS];
+        for (RedisReply shard : reply.getElements())
+        {
+            Map<String, RedisReply> fields = fields(shard);
+            SocketAddress master = null;
+            for (RedisReply node : fields.get("nodes").getElements())
+            {
+                Map<String, RedisReply> info = fields(node);
+                if (!"master".equals(info.get("role").getString()))
+                {
+                    continue;
+                }
+                String host = info.containsKey("endpoint") ? info.get("endpoint").getString() : null;
+                if (host == null || host.isEmpty() || host.equals("?"))
+                {
+                    host = info.containsKey("ip") ? info.get("ip").getString() : null;
+                }
+                RedisReply port = info.containsKey("port") ? info.get("port") : info.get("tls-port");
+                master = address(host, (int) port.getInteger(), defaultHost);
+            }
+            if (master == null)
+            {
+                continue;
+            }
+            RedisReply[] ranges = fields.get("slots").getElements();
+            for (int i = 0; i + 1 < ranges.length; i += 2)
+            {
+                Arrays.fill(table, (int) ranges[i].getInteger(), (int) ranges[i+1].getInteger() + 1, master);
+            }
+        }
+        return table;
+    }
+
+    /*
+     * Return the fields of a RESP3 map or a RESP2 array of alternating names and values
+     */
+    private static Map<String, RedisReply> fields(RedisReply reply)
+    {
+        if (reply.getType() == RedisReply.Type.MAP)
+        {
+            return reply.getMap();
+        }
+        RedisReply[] elements = reply.getElements();
+        Map<String, RedisReply> result = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < elements.length; i += 2)
+        {
+            result.put(elements[i].getString(), elements[i+1]);
+        }
+        return result;
+    }
+
+    private static SocketAddress address(String host, int port, String defaultHost)
+    {
+        // An empty host means the node we asked, and "?" means the node doesn't know its own address yet
+        if (host == null || host.isEmpty() || host.equals("?"))
+        {
+            host = defaultHost != null ? defaultHost : "127.0.0.1";
+        }
+        return new InetSocketAddress(host, port);
+    }
+
+    /**
+     * Number of MOVED, ASK, TRYAGAIN and CLUSTERDOWN replies that were retried
+     */
+    public long getRedirectCount()
+    {
+        return redirects.get();
+    }
+
+    /**
+     * Number of times the topology has been loaded
+     */
+    public long getRefreshCount()
+    {
+        return refreshes.get();
+    }
+
+    ExecutorService executor()
+    {
+        return executor;
+    }
+
+    private void checkNotStarted()
+    {
+        Preconditions.checkState(executor == null, "Client has already been started");
+    }
+
+    private void checkStarted()
+    {
+        Preconditions.checkState(executor != null, "Client has not been started");
+        Preconditions.checkState(!closed.get(), "Client is closed");
+    }
+
+    /**
+     * Close every node's pool. Borrowed connections are closed when they are returned.
+     */
+    @Override
+    public void close()
+    {
+        if (!closed.compareAndSet(false, true))
+        {
+            return;
+        }
+        if (executor != null)
+        {
+            executor.shutdownNow();
+        }
+        for (RedisConnectionPool pool : pools.values())
+        {
+            pool.close();
+        }
+        pools.clear();
+    }
+
+    /*
+     * A cluster error reply that should be retried
+     */
+    static final class Redirect
+    {
+        enum Kind { MOVED, ASK, TRYAGAIN }
+
+        final Kind kind;
+        final int slot;
+        final SocketAddress target;
+
+        private Redirect(Kind kind, int slot, SocketAddress target)
+        {
+            this.kind = kind;
+            this.slot = slot;
+            this.target = target;
+        }
+
+        /**
+         * Parse "MOVED <slot> <host>:<port>", "ASK <slot> <host>:<port>", "TRYAGAIN ..." or "CLUSTERDOWN ..." replies,
+         * returning null for any other reply. An empty host means the node that sent the reply.
+         */
+        static Redirect parse(RedisReply reply, SocketAddress from)
+        {
+            if (reply.getType() != RedisReply.Type.ERROR)
+            {
+                return null;
+            }
+            String message = reply.getString();
+            if (message.startsWith("TRYAGAIN") || message.startsWith("CLUSTERDOWN"))
+            {
+                return new Redirect(Kind.TRYAGAIN, -1, null);
+            }
+            Kind kind = message.startsWith("MOVED ") ? Kind.MOVED : message.startsWith("ASK ") ? Kind.ASK : null;
+            if (kind == null)
+            {
+                return null;
+            }
+            String[] parts = message.split(" ");
+            int colon = parts.length == 3 ? parts[2].lastIndexOf(':') : -1;
+            if (colon < 0)
+            {
+                return null;
+            }
+            String host = parts[2].substring(0, colon);
+            if (host.startsWith("[") && host.endsWith("]"))
+            {
+                host = host.substring(1, host.length() - 1);
+            }
+            String defaultHost = from instanceof InetSocketAddress ? ((InetSocketAddress) from).getHostString() : null;
+            try
+            {
+                return new Redirect(kind, Integer.parseInt(parts[1]), address(host, Integer.parseInt(parts[2].substring(colon + 1)), defaultHost));
+            }
+            catch (NumberFormatException e)
+            {
+                return null;
+            }
+        }
+    }
+}
@@ -1,33 +1,74 @@
 package co.tinyqs.tinyredis;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Represents a blocking connection to a redis server
  * 
  * Commands may be sent using sendCommand() or pipelined using appendCommand()/getReply()
  * 
+ * Connections may be used from virtual threads. No monitors are held while reading from or writing to the socket,
+ * so a virtual thread waiting for a reply unmounts from its carrier instead of pinning it.
+ * 
  * @author bwarminski
  *
  */
 public class RedisConnection implements AutoCloseable
 {
+    // Marks the position of the encoder's buffer within outputBuffs
+    private static final ByteBuffer STAGED = ByteBuffer.allocate(0);
+    // Upper bound on buffers passed to a single gathering write (IOV_MAX on most platforms)
+    private static final int MAX_GATHER = 1024;
+    private static final byte C_COLON = ":".getBytes(ProtocolReader.CHARSET)[0];
+    private static final byte C_PLUS = "+".getBytes(ProtocolReader.CHARSET)[0];
+    private static final byte C_DOLLAR = "$".getBytes(ProtocolReader.CHARSET)[0];
+    private static final byte[] FCALL = "FCALL".getBytes(ProtocolReader.CHARSET);
+    private static final byte[] FCALL_RO = "FCALL_RO".getBytes(ProtocolReader.CHARSET);
+    // Minimum free space in the reader's buffer before reading from the socket
+    private static final int MIN_READ = 1024*4;
+    // Largest amount transferred directly from the socket into a file per call
+    private static final long STREAM_CHUNK = 1024*64;
+    
     private final SocketChannel channel;
     private final ProtocolReader reader;
     private final ProtocolWriter writer;
+    private final CommandEncoder encoder;
+    private final BinaryCommand command;
     private Deque<ByteBuffer> outputBuffs;
-    private ByteBuffer input;
+    private ByteBuffer[] gather;
     private boolean errorState;
     private boolean exceptionOnError = false;
+    private PushListener pushListener = null;
+    private int protocol = 2;
+    private NearCache nearCache = null;
+    private boolean redirected = false;
+    // Commands queued or sent whose replies haven't been read yet
+    private int outstanding = 0;
+    // Whether a MULTI sent on this connection is still open, only followed while a near cache is attached
+    private boolean inTransaction = false;
+    private RedisConnectionPool pool = null;
+    private RedisConnectionPool.Entry poolEntry = null;
+    private final Set<String> loadedScripts = new HashSet<>();
+    // Whether a subclass still overrides the single buffer _write(ByteBuffer) hook
+    private final boolean singleWrites;
     
     /**
-     * Open a connection to specified remote address.
+     * Open a connection to specified remote address, which may be a UnixDomainSocketAddress.
      */
     public static RedisConnection connect(SocketAddress addr) throws IOException
     {
@@ -38,8 +79,20 @@ public class RedisConnection implements AutoCloseable
      * Open a connection to a specified remote address, waiting a maximum of <strong>timeout</strong> ms
      */
     public static RedisConnection connect(SocketAddress addr, int timeout) throws IOException
+    {
+        return new RedisConnection(openChannel(addr, timeout), new ProtocolReader(), new ProtocolWriter());
+    }
+    
+    static SocketChannel openChannel(SocketAddress addr, int timeout) throws IOException
     {
         Preconditions.checkNotNull(addr, "Address may not be null");
+        if (addr instanceof UnixDomainSocketAddress)
+        {
+            // Local connections complete immediately, so there's no timeout to apply
+            SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.connect(addr);
+            return channel;
+        }
         SocketChannel channel = SocketChannel.open();
         Socket socket = channel.socket();
         socket.setReuseAddress(true);
@@ -47,21 +100,40 @@ public class RedisConnection implements AutoCloseable
         socket.setTcpNoDelay(true);
         socket.setSoLinger(true, 0);
         socket.connect(addr, timeout);
-        
-        return new RedisConnection(channel, new ProtocolReader(), new ProtocolWriter());
+        return channel;
     }
     
-    private RedisConnection(SocketChannel channel, ProtocolReader reader, ProtocolWriter writer)
+    RedisConnection(SocketChannel channel, ProtocolReader reader, ProtocolWriter writer)
     {
         this.channel = channel;
         this.reader = reader;
         this.writer = writer;
         this.errorState = false;
+        this.encoder = new CommandEncoder();
+        this.command = new BinaryCommand(this, encoder);
         
         outputBuffs = new ArrayDeque<>();        
-        input = ByteBuffer.allocate(1024*16);
+        gather = new ByteBuffer[16];
+        singleWrites = overridesSingleWrite(getClass());
     }   
     
+    private static boolean overridesSingleWrite(Class<?> cls)
+    {
+        for (Class<?> c = cls; c != RedisConnection.class; c = c.getSuperclass())
+        {
+            try
+            {
+                c.getDeclaredMethod("_write", ByteBuffer.class);
+                return true;
+            }
+            catch (NoSuchMethodException e)
+            {
+                // Not declared at this level
+            }
+        }
+        return false;
+    }
+    
     public RedisConnection registerSerializer(RedisSerializer serializer)
     {
         writer.registerSerializer(serializer);
@@ -73,6 +145,157 @@ public class RedisConnection implements AutoCloseable
         this.exceptionOnError = exceptionOnError;
         return this;
     }
+    
+    /**
+     * Register a listener for RESP3 push messages. Push messages are never returned as replies to commands, and are
+     * discarded if no listener is registered.
+     */
+    public RedisConnection onPush(PushListener listener)
+    {
+        this.pushListener = listener;
+        return this;
+    }
+    
+    /**
+     * Switch the connection to the given protocol version (2 or 3) using the HELLO command, returning the server's
+     * reply. Once switched to RESP3, the server may send maps, sets, doubles, booleans and push messages.
+     */
+    public RedisReply hello(int protocol) throws IOException
+    {
+        Preconditions.checkState(protocol == 2 || protocol == 3, "Protocol version must be 2 or 3");
+        RedisReply reply = command(2).arg("HELLO").arg(protocol).send();
+        if (reply.getType() != RedisReply.Type.ERROR)
+        {
+            this.protocol = protocol;
+        }
+        return reply;
+    }
+    
+    /**
+     * The protocol version negotiated with hello(), 2 by default
+     */
+    public int getProtocol()
+    {
+        return protocol;
+    }
+    
+    /**
+     * Serve replies to read-only commands sent with sendCommand() from the given cache, using RESP3 client tracking
+     * push messages to invalidate entries. hello(3) must have been called first. Binary commands always go to the
+     * server, as do commands sent while replies to appended commands are still unread or inside MULTI.
+     * 
+     * The cache is flushed and stops serving replies if the connection is lost. Before each cached reply is returned,
+     * the socket is polled without blocking so that invalidations that have already arrived are applied.
+     */
+    public RedisConnection nearCache(NearCache cache) throws IOException
+    {
+        Preconditions.checkNotNull(cache, "Cache may not be null");
+        Preconditions.checkState(protocol == 3, "RESP3 is required for tracking on the same connection, call hello(3) first");
+        enableTracking(cache, "CLIENT TRACKING on");
+        return this;
+    }
+    
+    /**
+     * Serve replies to read-only commands from the given cache on a RESP2 connection. The server sends invalidations
+     * to the given connection, which is subscribed to the __redis__:invalidate channel and then read by a daemon thread
+     * until it is closed. The cache is flushed and stops serving replies if either connection is lost.
+     * 
+     * @see #nearCache(NearCache)
+     */
+    public RedisConnection nearCache(NearCache cache, final RedisConnection invalidations) throws IOException
+    {
+        Preconditions.checkNotNull(cache, "Cache may not be null");
+        Preconditions.checkNotNull(invalidations, "Invalidation connection may not be null");
+        RedisReply id = invalidations.sendCommand("CLIENT ID");
+        if (id.getType() != RedisReply.Type.INTEGER)
+        {
+            throw new RedisErrorException("Unable to get the client id of the invalidation connection: " + describe(id));
+        }
+        RedisReply subscribed = invalidations.sendCommand("SUBSCRIBE %s", NearCache.INVALIDATE_CHANNEL);
+        if (subscribed.getType() == RedisReply.Type.ERROR)
+        {
+            throw new RedisErrorException(subscribed.getString());
+        }
+        
+        final NearCache target = cache;
+        Thread listener = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while (target.isActive())
+                    {
+                        RedisReply message = invalidations.getReply();
+                        target.onInvalidate(message);
+                        message.release();
+                    }
+                }
+                catch (Exception e)
+                {
+                    // The connection was closed or lost, so later invalidations would be missed
+                }
+                finally
+                {
+                    target.disconnect();
+                }
+            }
+        }, "tinyredis-invalidations");
+        listener.setDaemon(true);
+        
+        enableTracking(cache, "CLIENT TRACKING on REDIRECT " + id.getInteger());
+        redirected = true;
+        listener.start();
+        return this;
+    }
+    
+    private void enableTracking(NearCache cache, String command) throws IOException
+    {
+        if (nearCache != null)
+        {
+            nearCache.disconnect();
+            nearCache = null;
+        }
+        RedisReply reply = sendCommand(command);
+        if (reply.getType() == RedisReply.Type.ERROR)
+        {
+            throw new RedisErrorException(reply.getString());
+        }
+        redirected = false;
+        cache.connect();
+        nearCache = cache;
+    }
+    
+    private static String describe(RedisReply reply)
+    {
+        return reply.getType() == RedisReply.Type.ERROR ? reply.getString() : reply.getType().toString();
+    }
+    
+    /**
+     * Draw this connection's input and output buffers from the given allocator, BufferAllocator.pooledHeap() by
+     * default. With direct buffers (eg BufferAllocator.pooledDirect()) the socket reads and writes without the JDK's
+     * hidden copy through a temporary direct buffer, and formatted commands are copied into the direct output buffer
+     * rather than written from the heap. Must be called before any commands are sent.
+     */
+    public RedisConnection bufferAllocator(BufferAllocator allocator)
+    {
+        Preconditions.checkState(outputBuffs.isEmpty() && reader.available() == 0,
+                                 "Allocators can only be changed before any commands are sent");
+        reader.setAllocator(allocator);
+        encoder.setAllocator(allocator);
+        return this;
+    }
+    
+    /**
+     * When enabled, string replies are views into pooled input buffers instead of copies. Such replies must be released
+     * with RedisReply.release() or try-with-resources once they are no longer needed.
+     */
+    public RedisConnection zeroCopyReplies(boolean zeroCopy)
+    {
+        reader.setZeroCopy(zeroCopy);
+        return this;
+    }
       
     /**
      * Send a command to the remote server and wait for a reply. %s and %b in the format string will
@@ -87,8 +310,7 @@ public class RedisConnection implements AutoCloseable
         try
         {
             ByteBuffer formatted = writer.formatCommand(format, args);
-            appendCommand(formatted);        
-            return blockForReply();
+            return sendFormatted(formatted);
         }
         catch (RedisErrorException e)
         {
@@ -96,7 +318,7 @@ public class RedisConnection implements AutoCloseable
         }
         catch (Exception e)
         {
-            errorState = true;
+            fail();
             throw e;
         }
     }
@@ -114,85 +336,242 @@ public class RedisConnection implements AutoCloseable
         }
         catch (Exception e)
         {
-            errorState = true;
+            fail();
             throw e;
         }
     }
     
-    private void appendCommand(ByteBuffer command)
+    /**
+     * Compile a format string into a template that can be reused with sendCommand(CommandTemplate, ...) and
+     * appendCommand(CommandTemplate, ...) without re-parsing the format on every call
+     */
+    public CommandTemplate compile(String format)
     {
-        outputBuffs.add(command);
+        return writer.compile(format);
     }
     
-    private RedisReply blockForReply() throws IOException
+    /**
+     * Send a precompiled command to the remote server and wait for a reply.
+     * 
+     * @see #sendCommand(String, Object...)
+     */
+    public RedisReply sendCommand(CommandTemplate template, Object... args) throws IOException
     {
-        if (!channel.isBlocking())
+        Preconditions.checkState(!errorState, "Unable to send commands in an error state");
+        try
         {
-            channel.configureBlocking(true);
+            ByteBuffer formatted = writer.formatCommand(template, args);
+            return sendFormatted(formatted);
+        }
+        catch (RedisErrorException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            fail();
+            throw e;
         }
-        return getReply();
     }
     
-    protected boolean _isBlocking()
+    /**
+     * Queues a precompiled command to be sent at the next call to getReply().
+     */
+    public void appendCommand(CommandTemplate template, Object... args) throws IOException
     {
-        return channel.isBlocking();
+        Preconditions.checkState(!errorState, "Unable to send commands in an error state");
+        try
+        {           
+            ByteBuffer formatted = writer.formatCommand(template, args);
+            appendCommand(formatted);
+        }
+        catch (Exception e)
+        {
+            fail();
+            throw e;
+        }
     }
     
-    protected int _write(ByteBuffer src) throws IOException
+    /**
+     * Start a binary command with the given number of arguments (including the command name). Arguments are
+     * encoded directly into this connection's output buffer, so no garbage is created per command.
+     * 
+     * The returned builder is reused by every call to this method.
+     */
+    public BinaryCommand command(int argc)
     {
-        return channel.write(src);
+        Preconditions.checkState(!errorState, "Unable to send commands in an error state");
+        return command.begin(argc);
     }
     
-    protected int _read(ByteBuffer dest) throws IOException
+    /**
+     * Start a pipeline that collects replies into a list, with at most window commands awaiting replies at any time
+     * 
+     * @see Pipeline
+     */
+    public Pipeline pipeline(int window)
     {
-        return channel.read(dest);
+        return new Pipeline(this, window, null);
     }
     
     /**
-     * Sends all pending commands and blocks for a full reply to be returned 
+     * Start a pipeline that hands each reply to a listener as soon as it is read, so that neither commands nor replies
+     * build up in memory however many commands are added
+     * 
+     * @see Pipeline
      */
-    public RedisReply getReply() throws IOException
+    public Pipeline pipeline(int window, Pipeline.ReplyListener listener)
     {
-        RedisReply reply = null;
-        Preconditions.checkState(!errorState, "Unable to retrieve commands in an error state");
+        Preconditions.checkNotNull(listener);
+        return new Pipeline(this, window, listener);
+    }
+    
+    /**
+     * Start a MULTI/EXEC transaction, sent in a single round trip by Transaction.execute()
+     */
+    public Transaction multi()
+    {
+        return new Transaction(this);
+    }
+    
+    /**
+     * Run a transaction with optimistic locking. The watched keys are WATCHed, then the body reads whatever it needs
+     * and adds commands to the transaction, which is executed. While a watched key changes before EXEC, the whole
+     * sequence is retried, up to maxAttempts times.
+     * 
+     * @return the replies of the transaction's commands, or null if every attempt was aborted
+     */
+    public List<RedisReply> transaction(int maxAttempts, Transaction.Body body, String... watchKeys) throws IOException
+    {
+        return Transaction.run(this, maxAttempts, body, watchKeys);
+    }
+    
+    /**
+     * Call a Lua script by its SHA1 with EVALSHA. If the server doesn't have the script, it is loaded with SCRIPT LOAD
+     * and the call is retried.
+     * 
+     * @see RedisScript
+     */
+    public RedisReply eval(RedisScript script, String[] keys, Object... args) throws IOException
+    {
+        Preconditions.checkNotNull(script);
+        return script.eval(this, keys, args);
+    }
+    
+    /**
+     * Load scripts with SCRIPT LOAD in a single round trip, so that later calls don't need to
+     */
+    public void loadScripts(RedisScript... scripts) throws IOException
+    {
+        if (scripts.length > 0)
+        {
+            RedisScript.loadAll(this, scripts);
+        }
+    }
+    
+    /**
+     * Call a Redis Function with FCALL
+     */
+    public RedisReply fcall(String function, String[] keys, Object... args) throws IOException
+    {
+        Preconditions.checkNotNull(function);
+        return sendFormattedCommand(RedisScript.encodeCall(FCALL, function, keys, args));
+    }
+    
+    /**
+     * Call a read-only Redis Function with FCALL_RO, which replicas will also run
+     */
+    public RedisReply fcallReadOnly(String function, String[] keys, Object... args) throws IOException
+    {
+        Preconditions.checkNotNull(function);
+        return sendFormattedCommand(RedisScript.encodeCall(FCALL_RO, function, keys, args));
+    }
+    
+    /**
+     * Load a library of Redis Functions with FUNCTION LOAD REPLACE, replacing any earlier version of the library
+     * 
+     * @return the library's name
+     */
+    public String loadFunctions(String library) throws IOException
+    {
+        Preconditions.checkNotNull(library);
+        RedisReply reply = command(4).arg("FUNCTION").arg("LOAD").arg("REPLACE").arg(library).send();
         try
         {
-            reply = reader.getReply();
-            
-            if (reply == null && _isBlocking())
+            if (reply.getType() == RedisReply.Type.ERROR)
             {
-                boolean done = outputBuffs.isEmpty();
-                while (!done)
-                {
-                    ByteBuffer out = outputBuffs.pop();
-                    _write(out);
-                    if (out.remaining() > 0)
-                    {
-                        outputBuffs.push(out);
-                        done = true;
-                    }
-                    else
-                    {
-                        done = outputBuffs.isEmpty();
-                    }
-                }
-                           
-                while (reply == null)
-                {
-                    int nread = _read(input);
-                    if (nread == -1)
-                    {
-                        throw new IOException("Input channel unexpectedly closed");
-                    }
-                    
-                    Preconditions.checkState(nread > 0, "Blocking channel should read at least one byte before returning");
-                    
-                    input.flip();
-                    reader.feed(input);
-                    input.clear();
-                    reply = reader.getReply();
-                }
+                throw new RedisErrorException(reply.getString());
             }
+            return reply.getString();
+        }
+        finally
+        {
+            reply.release();
+        }
+    }
+    
+    boolean isScriptLoaded(String sha1)
+    {
+        return loadedScripts.contains(sha1);
+    }
+    
+    void setScriptLoaded(String sha1, boolean loaded)
+    {
+        if (loaded)
+        {
+            loadedScripts.add(sha1);
+        }
+        else
+        {
+            loadedScripts.remove(sha1);
+        }
+    }
+    
+    /**
+     * Send a command made up of binary arguments and wait for a reply.
+     * 
+     * @see #command(int)
+     */
+    public RedisReply sendCommand(byte[]... args) throws IOException
+    {
+        appendCommand(args);
+        return sendStaged();
+    }
+    
+    /**
+     * Queues a command made up of binary arguments to be sent at the next call to getReply().
+     */
+    public void appendCommand(byte[]... args) throws IOException
+    {
+        Preconditions.checkNotNull(args);
+        BinaryCommand cmd = command(args.length);
+        for (byte[] arg : args)
+        {
+            cmd.arg(arg);
+        }
+        stageCommand();
+    }
+    
+    void stageCommand()
+    {
+        Preconditions.checkState(!errorState, "Unable to send commands in an error state");
+        encoder.end();
+        outstanding++;
+        if (nearCache != null)
+        {
+            trackTransaction(encoder.lastCommand());
+        }
+        if (outputBuffs.peekLast() != STAGED)
+        {
+            outputBuffs.add(STAGED);
+        }
+    }
+    
+    RedisReply sendStaged() throws IOException
+    {
+        try
+        {
+            return blockForReply();
         }
         catch (RedisErrorException e)
         {
@@ -200,19 +579,979 @@ public class RedisConnection implements AutoCloseable
         }
         catch (Exception e)
         {
-            errorState = true;
+            fail();
             throw e;
         }
-        
-        if (reply != null && this.exceptionOnError && reply.getType() == RedisReply.Type.ERROR)
+    }
+    
+    ByteBuffer format(String format, Object... args) throws IOException
+    {
+        return writer.formatCommand(format, args);
+    }
+    
+    ByteBuffer format(CommandTemplate template, Object... args) throws IOException
+    {
+        return writer.formatCommand(template, args);
+    }
+    
+    /**
+     * Send a command that was already formatted by a ProtocolWriter and wait for a reply. The buffer is consumed.
+     */
+    RedisReply sendFormattedCommand(ByteBuffer formatted) throws IOException
+    {
+        Preconditions.checkState(!errorState, "Unable to send commands in an error state");
+        try
         {
-            throw new RedisErrorException(reply.getString());
+            return sendFormatted(formatted);
+        }
+        catch (RedisErrorException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            fail();
+            throw e;
         }
-        return reply;
     }
 
-    public void close() throws Exception
+    /**
+     * Queue a command that was already formatted by a ProtocolWriter to be sent at the next call to getReply()
+     */
+    void appendFormattedCommand(ByteBuffer formatted)
     {
-        channel.close();
+        Preconditions.checkState(!errorState, "Unable to send commands in an error state");
+        appendCommand(formatted);
+    }
+
+    private RedisReply sendFormatted(ByteBuffer formatted) throws IOException
+    {
+        if (nearCache == null)
+        {
+            appendCommand(formatted);
+            return blockForReply();
+        }
+        
+        if (outstanding > 0 || inTransaction)
+        {
+            // Replies to earlier commands are still to come, or this command will only be queued by the server
+            appendCommand(formatted);
+            return blockForReply();
+        }
+        if (!redirected && nearCache.size() > 0)
+        {
+            pollPushes();
+        }
+        RedisReply cached = nearCache.get(formatted);
+        if (cached != null)
+        {
+            return cached;
+        }
+        NearCache.Entry entry = nearCache.reserve(formatted);
+        appendCommand(formatted);
+        if (entry == null)
+        {
+            return blockForReply();
+        }
+        
+        boolean cachedReply = false;
+        try
+        {
+            RedisReply reply = blockForReply();
+            if (NearCache.isCacheable(reply))
+            {
+                nearCache.put(entry, reply.detach());
+                cachedReply = true;
+            }
+            return reply;
+        }
+        finally
+        {
+            if (!cachedReply)
+            {
+                nearCache.cancel(entry);
+            }
+        }
+    }
+    
+    /*
+     * Read whatever has already arrived on the socket without blocking and apply any push messages, so that a cached
+     * reply is never served after its invalidation has been received
+     */
+    private void pollPushes() throws IOException
+    {
+        boolean blocking = channel.isBlocking();
+        if (blocking)
+        {
+            channel.configureBlocking(false);
+        }
+        try
+        {
+            int nread;
+            do
+            {
+                nread = _read(reader.writableBuffer(MIN_READ));
+                reader.commitWrite();
+            }
+            while (nread > 0);
+            if (nread == -1)
+            {
+                throw new IOException("Input channel unexpectedly closed");
+            }
+        }
+        finally
+        {
+            if (blocking)
+            {
+                channel.configureBlocking(true);
+            }
+        }
+        RedisReply push;
+        while (reader.isPushNext() && (push = reader.getReply()) != null)
+        {
+            dispatchPush(push);
+        }
+    }
+    
+    private void appendCommand(ByteBuffer command)
+    {
+        outstanding++;
+        if (nearCache != null)
+        {
+            trackTransaction(command);
+        }
+        if (outputBuffs.peekLast() == STAGED)
+        {
+            // Keep commands in order by copying behind the binary commands that are already staged
+            encoder.append(command);
+        }
+        else if (encoder.isDirect())
+        {
+            // Only ever write from direct memory, so the channel doesn't copy into a temporary buffer of its own
+            encoder.append(command);
+            outputBuffs.add(STAGED);
+        }
+        else
+        {
+            outputBuffs.add(command);
+        }
+    }
+    
+    /*
+     * Follow MULTI and EXEC, since the server only queues commands in between and answers each with QUEUED
+     */
+    private void trackTransaction(ByteBuffer command)
+    {
+        if (Commands.argCount(command) != 1)
+        {
+            return;
+        }
+        String name = Commands.name(command);
+        if ("MULTI".equals(name))
+        {
+            inTransaction = true;
+        }
+        else if ("EXEC".equals(name) || "DISCARD".equals(name) || "RESET".equals(name))
+        {
+            inTransaction = false;
+        }
+    }
+    
+    /*
+     * Count a reply as read. Pub/sub messages aren't answers to commands, so the count never drops below zero.
+     */
+    private void replied()
+    {
+        if (outstanding > 0)
+        {
+            outstanding--;
+        }
+    }
+    
+    private RedisReply blockForReply() throws IOException
+    {
+        if (!channel.isBlocking())
+        {
+            channel.configureBlocking(true);
+        }
+        return getReply();
+    }
+    
+    protected boolean _isBlocking()
+    {
+        return channel.isBlocking();
+    }
+    
+    /**
+     * Write pending commands to the channel. If a subclass overrides the older _write(ByteBuffer) hook instead, the
+     * buffers are passed to it one at a time.
+     */
+    protected long _write(ByteBuffer[] srcs, int offset, int length) throws IOException
+    {
+        if (!singleWrites)
+        {
+            return channel.write(srcs, offset, length);
+        }
+        long total = 0;
+        for (int i = offset; i < offset + length; i++)
+        {
+            total += _write(srcs[i]);
+            if (srcs[i].hasRemaining())
+            {
+                break;
+            }
+        }
+        return total;
+    }
+    
+    /**
+     * Write a single buffer to the channel
+     * 
+     * @deprecated Override _write(ByteBuffer[], int, int), which flushes every pending command in one gathering write.
+     * Overriding this method still works but gives up gathering writes.
+     */
+    @Deprecated
+    protected int _write(ByteBuffer src) throws IOException
+    {
+        return channel.write(src);
+    }
+    
+    protected int _read(ByteBuffer dest) throws IOException
+    {
+        return channel.read(dest);
+    }
+    
+    /**
+     * Writes as many pending commands as possible using gathering writes, without waiting for any replies.
+     * 
+     * Keeps writing until everything queued is on the wire or the channel would block.
+     * 
+     * @return true if all pending commands were written
+     */
+    public boolean flush() throws IOException
+    {
+        Preconditions.checkState(!errorState, "Unable to send commands in an error state");
+        try
+        {
+            return _flush();
+        }
+        catch (Exception e)
+        {
+            fail();
+            throw e;
+        }
+    }
+    
+    private boolean _flush() throws IOException
+    {
+        encoder.abort();
+        while (!outputBuffs.isEmpty())
+        {
+            int count = Math.min(outputBuffs.size(), MAX_GATHER);
+            if (gather.length < count)
+            {
+                gather = new ByteBuffer[Math.min(Math.max(count, gather.length * 2), MAX_GATHER)];
+            }
+            
+            int idx = 0;
+            boolean staged = false;
+            if (count == 1)
+            {
+                // A lone command, or commands staged in the encoder: avoid allocating an iterator
+                ByteBuffer out = outputBuffs.peek();
+                staged = out == STAGED;
+                gather[idx++] = staged ? encoder.beginFlush() : out;
+            }
+            else
+            {
+                for (ByteBuffer out : outputBuffs)
+                {
+                    if (idx == count)
+                    {
+                        break;
+                    }
+                    if (out == STAGED)
+                    {
+                        out = encoder.beginFlush();
+                        staged = true;
+                    }
+                    gather[idx++] = out;
+                }
+            }
+            
+            long nwritten = _write(gather, 0, count);
+            
+            boolean partial = false;
+            for (int i = 0; i < count; i++)
+            {
+                partial = partial || gather[i].hasRemaining();
+                if (!partial)
+                {
+                    outputBuffs.pop();
+                }
+                gather[i] = null;
+            }
+            if (staged)
+            {
+                // The encoder's buffer is always last, so it is only still queued if it wasn't fully written
+                encoder.endFlush();
+            }
+            
+            if (nwritten == 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Send a command and pass its reply element by element to the given handler instead of building a RedisReply.
+     * Errors and any RESP3 push messages that arrive first are passed to the handler as well, regardless of
+     * exceptionOnError() and onPush().
+     * 
+     * @see ProtocolReader#read(ReplyHandler)
+     */
+    public void sendCommand(ReplyHandler handler, String format, Object... args) throws IOException
+    {
+        appendCommand(format, args);
+        getReply(handler);
+    }
+    
+    /**
+     * Sends all pending commands and blocks until the next reply has been passed to the given handler
+     */
+    public void getReply(ReplyHandler handler) throws IOException
+    {
+        Preconditions.checkNotNull(handler, "Handler may not be null");
+        Preconditions.checkState(!errorState, "Unable to retrieve commands in an error state");
+        Preconditions.checkState(_isBlocking(), "Replies can only be handled on blocking connections");
+        try
+        {
+            _flush();
+            while (!reader.isLineNext())
+            {
+                readMore();
+            }
+            boolean push = reader.isPushNext();
+            while (!reader.read(handler))
+            {
+                readMore();
+            }
+            if (!push)
+            {
+                replied();
+            }
+        }
+        catch (Exception e)
+        {
+            fail();
+            throw e;
+        }
+    }
+    
+    /**
+     * Send a command and stream its bulk string reply into the given channel in fixed size chunks, so that memory use
+     * stays constant regardless of the size of the value. FileChannels are filled using transferFrom().
+     * 
+     * @return the number of bytes written, or -1 if the reply was nil
+     * @throws RedisErrorException - If the server returned an error or a reply that is not a bulk string. The reply is
+     * consumed and the connection remains usable.
+     * @throws IOException - If an error occurs reading the reply or writing to dest
+     */
+    public long streamCommand(WritableByteChannel dest, String format, Object... args) throws IOException
+    {
+        appendCommand(format, args);
+        return streamReply(dest);
+    }
+    
+    /**
+     * Send a command and stream its bulk string reply into the given output stream.
+     * 
+     * @see #streamCommand(WritableByteChannel, String, Object...)
+     */
+    public long streamCommand(OutputStream dest, String format, Object... args) throws IOException
+    {
+        return streamCommand(Channels.newChannel(dest), format, args);
+    }
+    
+    /**
+     * Sends all pending commands and streams the next bulk string reply into the given channel
+     * 
+     * @see #streamCommand(WritableByteChannel, String, Object...)
+     */
+    public long streamReply(WritableByteChannel dest) throws IOException
+    {
+        Preconditions.checkNotNull(dest, "Destination may not be null");
+        Preconditions.checkState(!errorState, "Unable to retrieve commands in an error state");
+        Preconditions.checkState(_isBlocking(), "Replies can only be streamed from blocking connections");
+        try
+        {
+            _flush();
+            
+            long len = ProtocolReader.INCOMPLETE;
+            RedisReply reply = null;
+            while (reply == null)
+            {
+                len = reader.readBulkHeader();
+                if (len == ProtocolReader.INCOMPLETE)
+                {
+                    readMore();
+                    continue;
+                }
+                if (len != ProtocolReader.NOT_BULK)
+                {
+                    break;
+                }
+                while ((reply = reader.getReply()) == null)
+                {
+                    readMore();
+                }
+                if (reply.getType() == RedisReply.Type.PUSH)
+                {
+                    dispatchPush(reply);
+                    reply = null;
+                }
+            }
+            replied();
+            
+            if (reply != null)
+            {
+                RedisReply.Type type = reply.getType();
+                if (type == RedisReply.Type.NIL)
+                {
+                    // RESP3 sends nil as its own type rather than as a $-1 bulk string
+                    reply.release();
+                    return -1;
+                }
+                String message = type == RedisReply.Type.ERROR ? reply.getString() : null;
+                reply.release();
+                if (message != null)
+                {
+                    throw new RedisErrorException(message);
+                }
+                throw new RedisErrorException("Expected a bulk string reply but got " + type);
+            }
+            
+            if (len == -1)
+            {
+                return -1;
+            }
+            
+            long remaining = len - reader.transferTo(dest, len);
+            while (remaining > 0)
+            {
+                if (dest instanceof FileChannel && reader.available() == 0)
+                {
+                    FileChannel file = (FileChannel) dest;
+                    long transferred = file.transferFrom(channel, file.position(), Math.min(remaining, STREAM_CHUNK));
+                    if (transferred > 0)
+                    {
+                        file.position(file.position() + transferred);
+                        remaining -= transferred;
+                        continue;
+                    }
+                }
+                readMore();
+                remaining -= reader.transferTo(dest, remaining);
+            }
+            
+            while (!reader.readBulkEnd())
+            {
+                readMore();
+            }
+            return len;
+        }
+        catch (RedisErrorException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            fail();
+            throw e;
+        }
+    }
+    
+    /**
+     * Send a command that replies with an integer, such as INCR, EXISTS or SCARD, and return its value. The reply is
+     * parsed straight from the input buffer into a long, so no RedisReply is built.
+     * 
+     * @throws RedisErrorException - If the server returned an error or a reply that is not an integer, regardless of
+     * exceptionOnError(). The reply is consumed and the connection remains usable.
+     * @see BinaryCommand#sendForLong()
+     */
+    public long sendForLong(String format, Object... args) throws IOException
+    {
+        if (nearCache != null)
+        {
+            return toLong(sendCommand(format, args));
+        }
+        appendCommand(format, args);
+        return getLongReply();
+    }
+    
+    public long sendForLong(CommandTemplate template, Object... args) throws IOException
+    {
+        if (nearCache != null)
+        {
+            return toLong(sendCommand(template, args));
+        }
+        appendCommand(template, args);
+        return getLongReply();
+    }
+    
+    /**
+     * Send a command that replies with a status, such as SET or HMSET, and return true if the status was OK or false
+     * if the reply was nil (eg SET NX on a key that exists) or another status. No RedisReply is built.
+     * 
+     * @throws RedisErrorException - If the server returned an error or a reply that is not a status or nil, regardless
+     * of exceptionOnError(). The reply is consumed and the connection remains usable.
+     * @see BinaryCommand#sendForOk()
+     */
+    public boolean sendForOk(String format, Object... args) throws IOException
+    {
+        if (nearCache != null)
+        {
+            return toOk(sendCommand(format, args));
+        }
+        appendCommand(format, args);
+        return getOkReply();
+    }
+    
+    public boolean sendForOk(CommandTemplate template, Object... args) throws IOException
+    {
+        if (nearCache != null)
+        {
+            return toOk(sendCommand(template, args));
+        }
+        appendCommand(template, args);
+        return getOkReply();
+    }
+    
+    /**
+     * Send a command that replies with a bulk string, such as GET or HGET, and return its payload, or null if the
+     * reply was nil. The payload is copied straight from the input buffer, so the array is the only allocation.
+     * 
+     * @throws RedisErrorException - If the server returned an error or a reply that is not a string or nil, regardless
+     * of exceptionOnError(). The reply is consumed and the connection remains usable.
+     * @see BinaryCommand#sendForBulk()
+     */
+    public byte[] sendForBulk(String format, Object... args) throws IOException
+    {
+        if (nearCache != null)
+        {
+            return toBulk(sendCommand(format, args));
+        }
+        appendCommand(format, args);
+        return getBulkReply();
+    }
+    
+    public byte[] sendForBulk(CommandTemplate template, Object... args) throws IOException
+    {
+        if (nearCache != null)
+        {
+            return toBulk(sendCommand(template, args));
+        }
+        appendCommand(template, args);
+        return getBulkReply();
+    }
+    
+    long getLongReply() throws IOException
+    {
+        try
+        {
+            if (awaitLine() == C_COLON)
+            {
+                replied();
+                return reader.readIntegerReply();
+            }
+            return toLong(awaitReply());
+        }
+        catch (RedisErrorException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            fail();
+            throw e;
+        }
+    }
+    
+    boolean getOkReply() throws IOException
+    {
+        try
+        {
+            if (awaitLine() == C_PLUS)
+            {
+                replied();
+                return reader.readOkReply();
+            }
+            return toOk(awaitReply());
+        }
+        catch (RedisErrorException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            fail();
+            throw e;
+        }
+    }
+    
+    byte[] getBulkReply() throws IOException
+    {
+        try
+        {
+            if (awaitLine() != C_DOLLAR)
+            {
+                return toBulk(awaitReply());
+            }
+            replied();
+            long len = reader.readBulkHeader();
+            if (len == -1)
+            {
+                return null;
+            }
+            byte[] value = new byte[(int) len];
+            int copied = reader.transferTo(value, 0);
+            while (copied < value.length)
+            {
+                readMore();
+                copied += reader.transferTo(value, copied);
+            }
+            while (!reader.readBulkEnd())
+            {
+                readMore();
+            }
+            return value;
+        }
+        catch (RedisErrorException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            fail();
+            throw e;
+        }
+    }
+    
+    /*
+     * Send all pending commands and block until the first line of the next reply, other than push messages, has been
+     * read. Returns the reply's type marker.
+     */
+    private byte awaitLine() throws IOException
+    {
+        Preconditions.checkState(!errorState, "Unable to retrieve commands in an error state");
+        if (!channel.isBlocking())
+        {
+            channel.configureBlocking(true);
+        }
+        _flush();
+        while (true)
+        {
+            if (!reader.isLineNext())
+            {
+                readMore();
+            }
+            else if (reader.isPushNext())
+            {
+                RedisReply push;
+                while ((push = reader.getReply()) == null)
+                {
+                    readMore();
+                }
+                dispatchPush(push);
+            }
+            else
+            {
+                return reader.peekType();
+            }
+        }
+    }
+    
+    /*
+     * Block until the next reply has been fully read. Pending commands must already have been sent.
+     */
+    private RedisReply awaitReply() throws IOException
+    {
+        RedisReply reply;
+        while ((reply = nextReply()) == null)
+        {
+            readMore();
+        }
+        return reply;
+    }
+    
+    private static long toLong(RedisReply reply) throws RedisErrorException
+    {
+        try
+        {
+            checkNotError(reply);
+            if (reply.getType() != RedisReply.Type.INTEGER)
+            {
+                throw new RedisErrorException("Expected an integer reply but got " + reply.getType());
+            }
+            return reply.getInteger();
+        }
+        finally
+        {
+            reply.release();
+        }
+    }
+    
+    private static boolean toOk(RedisReply reply) throws RedisErrorException
+    {
+        try
+        {
+            checkNotError(reply);
+            if (reply.getType() != RedisReply.Type.STATUS && reply.getType() != RedisReply.Type.NIL)
+            {
+                throw new RedisErrorException("Expected a status reply but got " + reply.getType());
+            }
+            return reply.getType() == RedisReply.Type.STATUS && "OK".equals(reply.getString());
+        }
+        finally
+        {
+            reply.release();
+        }
+    }
+    
+    private static byte[] toBulk(RedisReply reply) throws RedisErrorException
+    {
+        try
+        {
+            checkNotError(reply);
+            switch (reply.getType())
+            {
+                case NIL:
+                    return null;
+                case STRING:
+                case VERBATIM:
+                    return reply.getBytes();
+                default:
+                    throw new RedisErrorException("Expected a bulk string reply but got " + reply.getType());
+            }
+        }
+        finally
+        {
+            reply.release();
+        }
+    }
+    
+    private static void checkNotError(RedisReply reply) throws RedisErrorException
+    {
+        if (reply.getType() == RedisReply.Type.ERROR)
+        {
+            throw new RedisErrorException(reply.getString());
+        }
+    }
+    
+    /*
+     * Return the next buffered reply, passing any push messages to the push listener
+     */
+    private RedisReply nextReply() throws IOException
+    {
+        RedisReply reply = reader.getReply();
+        while (reply != null && reply.getType() == RedisReply.Type.PUSH)
+        {
+            dispatchPush(reply);
+            reply = reader.getReply();
+        }
+        if (reply != null)
+        {
+            replied();
+        }
+        return reply;
+    }
+    
+    private void dispatchPush(RedisReply push)
+    {
+        if (nearCache != null && nearCache.onInvalidate(push))
+        {
+            push.release();
+        }
+        else if (pushListener != null)
+        {
+            pushListener.onPush(push);
+        }
+        else
+        {
+            push.release();
+        }
+    }
+    
+    /*
+     * Block until at least one more byte has been read into the reader
+     */
+    private void readMore() throws IOException
+    {
+        int nread = _read(reader.writableBuffer(MIN_READ));
+        reader.commitWrite();
+        if (nread == -1)
+        {
+            throw new IOException("Input channel unexpectedly closed");
+        }
+        
+        Preconditions.checkState(nread > 0, "Blocking channel should read at least one byte before returning");
+    }
+    
+    /**
+     * Sends all pending commands and blocks for a full reply to be returned 
+     */
+    public RedisReply getReply() throws IOException
+    {
+        RedisReply reply = null;
+        Preconditions.checkState(!errorState, "Unable to retrieve commands in an error state");
+        try
+        {
+            reply = nextReply();
+            
+            if (reply == null && _isBlocking())
+            {
+                _flush();
+                           
+                while (reply == null)
+                {
+                    readMore();
+                    reply = nextReply();
+                }
+            }
+        }
+        catch (RedisErrorException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            fail();
+            throw e;
+        }
+        return checkReply(reply);
+    }
+    
+    /*
+     * Throw error replies as exceptions if exceptionOnError is set
+     */
+    RedisReply checkReply(RedisReply reply) throws RedisErrorException
+    {
+        if (reply != null && this.exceptionOnError && reply.getType() == RedisReply.Type.ERROR)
+        {
+            String message = reply.getString();
+            reply.release();
+            throw new RedisErrorException(message);
+        }
+        return reply;
+    }
+
+    /*
+     * Block until every pending command has been written, without reading any replies
+     */
+    void flushBlocking() throws IOException
+    {
+        Preconditions.checkState(!errorState, "Unable to send commands in an error state");
+        try
+        {
+            if (!channel.isBlocking())
+            {
+                channel.configureBlocking(true);
+            }
+            _flush();
+        }
+        catch (Exception e)
+        {
+            fail();
+            throw e;
+        }
+    }
+
+    /*
+     * Block for the next reply without sending pending commands. Error replies are returned rather than thrown.
+     */
+    RedisReply readReply() throws IOException
+    {
+        Preconditions.checkState(!errorState, "Unable to retrieve commands in an error state");
+        try
+        {
+            if (!channel.isBlocking())
+            {
+                channel.configureBlocking(true);
+            }
+            return awaitReply();
+        }
+        catch (Exception e)
+        {
+            fail();
+            throw e;
+        }
+    }
+
+    /*
+     * Mark the connection as unusable after an IO or protocol error
+     */
+    private void fail()
+    {
+        errorState = true;
+        if (nearCache != null)
+        {
+            nearCache.disconnect();
+        }
+    }
+
+    /**
+     * true once an IO or protocol error has made this connection unusable
+     */
+    public boolean isErrorState()
+    {
+        return errorState;
+    }
+    
+    void setPoolEntry(RedisConnectionPool pool, RedisConnectionPool.Entry entry)
+    {
+        this.pool = pool;
+        this.poolEntry = entry;
+    }
+    
+    RedisConnectionPool.Entry getPoolEntry()
+    {
+        return poolEntry;
+    }
+
+    /**
+     * Close the connection, or return it to its pool if it was borrowed from a RedisConnectionPool
+     */
+    public void close() throws Exception
+    {
+        if (pool != null)
+        {
+            pool.release(this);
+        }
+        else
+        {
+            closeChannel();
+        }
+    }
+    
+    void closeChannel() throws IOException
+    {
+        if (nearCache != null)
+        {
+            nearCache.disconnect();
+        }
+        channel.close();
+    }
+    
+    /*
+     * Give the connection's buffers back to its allocator. Only safe once it is closed and no other thread can be
+     * using it, so a connection closed directly leaves them to the garbage collector instead: close() may be called
+     * to wake up a thread blocked reading from it.
+     */
+    void releaseBuffers()
+    {
+        reader.releaseBuffer();
+        encoder.release();
     }
 }
@@ -0,0 +1,614 @@
+package co.tinyqs.tinyredis;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe pool of connections to a single server
+ *
+ * Connections are borrowed with borrow() and given back by closing them, so they work with try-with-resources:
+ *   try (RedisConnection conn = pool.borrow())
+ *   {
+ *       conn.sendCommand("INCR counter");
+ *   }
+ *
+ * Borrowing never takes a lock: idle connections sit in a lock-free deque and are claimed with a CAS, and the number
+ * of borrowed connections is bounded by a semaphore. With thread affinity enabled, each thread first tries to reclaim
+ * the connection it used last, which avoids touching the shared deque at all in the common case.
+ *
+ * Connections that are in an error state when returned are closed and replaced. All replies to pipelined commands
+ * must be read before a connection is returned.
+ */
+public class RedisConnectionPool implements AutoCloseable
+{
+    private static final int IDLE = 0;
+    private static final int IN_USE = 1;
+    private static final int REMOVED = 2;
+
+    private final SocketAddress addr;
+    private final Deque<Entry> idle = new ConcurrentLinkedDeque<>();
+    private final ThreadLocal<Entry> lastUsed = new ThreadLocal<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private Semaphore permits;
+    private ScheduledExecutorService evictor;
+    private int minSize = 0;
+    private int maxSize = 8;
+    private int connectTimeout = 0;
+    private long borrowTimeout = 30000;
+    private long idleTimeout = 60000;
+    private long validationInterval = 30000;
+    private boolean threadAffinity = true;
+    private boolean virtualThreads = false;
+    private BufferAllocator allocator = null;
+    private RedisScript[] scripts = new RedisScript[0];
+
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong affinityHits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+
+    /**
+     * Create a pool for the given address. Configure it with the builder methods, then call start().
+     */
+    public RedisConnectionPool(SocketAddress addr)
+    {
+        this.addr = Preconditions.checkNotNull(addr, "Address may not be null");
+    }
+
+    /**
+     * Number of connections opened by start() and kept open by idle eviction, 0 by default
+     */
+    public RedisConnectionPool minSize(int minSize)
+    {
+        checkNotStarted();
+        Preconditions.checkState(minSize >= 0, "minSize may not be negative");
+        this.minSize = minSize;
+        return this;
+    }
+
+    /**
+     * Maximum number of open connections, 8 by default
+     */
+    public RedisConnectionPool maxSize(int maxSize)
+    {
+        checkNotStarted();
+        Preconditions.checkState(maxSize > 0, "maxSize must be positive");
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Connect timeout in ms for new connections, 0 (no timeout) by default
+     */
+    public RedisConnectionPool connectTimeout(int connectTimeout)
+    {
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    /**
+     * Maximum time in ms that borrow() waits for a connection when maxSize connections are in use, 30s by default
+     */
+    public RedisConnectionPool borrowTimeout(long borrowTimeout)
+    {
+        this.borrowTimeout = borrowTimeout;
+        return this;
+    }
+
+    /**
+     * Connections idle for longer than this many ms are closed, down to minSize. 60s by default, 0 disables eviction.
+     */
+    public RedisConnectionPool idleTimeout(long idleTimeout)
+    {
+        checkNotStarted();
+        this.idleTimeout = idleTimeout;
+        return this;
+    }
+
+    /**
+     * Connections that have been idle for longer than this many ms are checked with a PING before being borrowed.
+     * 30s by default, 0 validates every borrow.
+     */
+    public RedisConnectionPool validationInterval(long validationInterval)
+    {
+        this.validationInterval = validationInterval;
+        return this;
+    }
+
+    /**
+     * When enabled (the default), a thread is handed the connection it returned last if it is still idle. Virtual
+     * threads never use affinity.
+     */
+    public RedisConnectionPool threadAffinity(boolean threadAffinity)
+    {
+        this.threadAffinity = threadAffinity;
+        return this;
+    }
+
+    /**
+     * Tune the pool for large numbers of short-lived virtual threads. Thread affinity is disabled, since virtual
+     * threads rarely borrow twice, and waiting threads are handed connections in the order they arrived so that none
+     * of them time out while newer threads keep getting lucky.
+     */
+    public RedisConnectionPool virtualThreads(boolean virtualThreads)
+    {
+        checkNotStarted();
+        this.virtualThreads = virtualThreads;
+        this.threadAffinity = !virtualThreads;
+        return this;
+    }
+
+    /**
+     * Allocator for the buffers of every connection in the pool, see RedisConnection.bufferAllocator()
+     */
+    public RedisConnectionPool bufferAllocator(BufferAllocator allocator)
+    {
+        checkNotStarted();
+        this.allocator = Preconditions.checkNotNull(allocator, "Allocator may not be null");
+        return this;
+    }
+
+    /**
+     * Scripts to SCRIPT LOAD on every new connection, including the minSize connections opened by start(), so that
+     * calls never have to fall back to loading them
+     */
+    public RedisConnectionPool preloadScripts(RedisScript... scripts)
+    {
+        checkNotStarted();
+        for (RedisScript script : scripts)
+        {
+            Preconditions.checkNotNull(script, "Scripts may not be null");
+        }
+        this.scripts = scripts.clone();
+        return this;
+    }
+
+    /**
+     * Open minSize connections and start evicting idle connections
+     *
+     * @throws IOException - If any of the initial connections could not be opened
+     */
+    public RedisConnectionPool start() throws IOException
+    {
+        checkNotStarted();
+        Preconditions.checkState(minSize <= maxSize, "minSize may not be larger than maxSize");
+        permits = new Semaphore(maxSize, virtualThreads);
+        fill();
+        if (idleTimeout > 0)
+        {
+            evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "tinyredis-pool-evictor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            long interval = Math.max(idleTimeout / 2, 1);
+            evictor.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    evictIdle();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * Borrow a connection, opening a new one if none are idle and fewer than maxSize are open. Close the connection to
+     * return it to the pool.
+     *
+     * @throws PoolTimeoutException - If no connection became available within the borrow timeout
+     * @throws IOException - If a new connection could not be opened
+     */
+    public RedisConnection borrow() throws IOException
+    {
+        Preconditions.checkState(permits != null, "Pool has not been started");
+        Preconditions.checkState(!closed.get(), "Pool is closed");
+        long start = System.nanoTime();
+        try
+        {
+            if (!permits.tryAcquire() && !permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS))
+            {
+                recordWait(System.nanoTime() - start);
+                timeouts.incrementAndGet();
+                throw new PoolTimeoutException("Timed out after " + borrowTimeout + "ms waiting for a connection");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a connection");
+        }
+        recordWait(System.nanoTime() - start);
+
+        try
+        {
+            Entry entry;
+            while ((entry = claim()) != null)
+            {
+                if (validate(entry))
+                {
+                    break;
+                }
+            }
+            if (entry == null)
+            {
+                entry = open();
+                entry.state.set(IN_USE);
+            }
+            borrows.incrementAndGet();
+            return entry.connection;
+        }
+        catch (Throwable t)
+        {
+            permits.release();
+            throw t;
+        }
+    }
+
+    /*
+     * Claim an idle connection, trying this thread's last connection first. Returns null if a new connection should
+     * be opened.
+     */
+    private Entry claim() throws IOException
+    {
+        if (threadAffinity && !Thread.currentThread().isVirtual())
+        {
+            Entry last = lastUsed.get();
+            if (last != null && last.state.compareAndSet(IDLE, IN_USE))
+            {
+                affinityHits.incrementAndGet();
+                return last;
+            }
+        }
+        while (true)
+        {
+            Entry entry = idle.pollFirst();
+            if (entry != null)
+            {
+                entry.queued.set(false);
+                if (entry.state.compareAndSet(IDLE, IN_USE))
+                {
+                    return entry;
+                }
+                // Already claimed through thread affinity or removed by the evictor
+                continue;
+            }
+            int current = size.get();
+            if (current < maxSize)
+            {
+                return null;
+            }
+            // Holding a permit guarantees a connection is idle, it just hasn't been queued yet
+            Thread.yield();
+        }
+    }
+
+    private boolean validate(Entry entry)
+    {
+        if (!entry.connection.isErrorState() && System.currentTimeMillis() - entry.lastUsed < validationInterval)
+        {
+            return true;
+        }
+        try
+        {
+            if (!entry.connection.isErrorState())
+            {
+                RedisReply reply = entry.connection.sendCommand("PING");
+                if (reply.getType() != RedisReply.Type.ERROR)
+                {
+                    return true;
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            // Fall through and replace the connection
+        }
+        entry.state.set(REMOVED);
+        destroy(entry);
+        return false;
+    }
+
+    /**
+     * Return a borrowed connection to the pool. Called by RedisConnection.close() for pooled connections.
+     */
+    void release(RedisConnection connection)
+    {
+        Entry entry = connection.getPoolEntry();
+        if (entry.state.get() != IN_USE)
+        {
+            // Closed more than once
+            return;
+        }
+        entry.lastUsed = System.currentTimeMillis();
+        if (connection.isErrorState() || closed.get())
+        {
+            entry.state.set(REMOVED);
+            destroy(entry);
+        }
+        else
+        {
+            entry.state.set(IDLE);
+            if (threadAffinity && !Thread.currentThread().isVirtual())
+            {
+                lastUsed.set(entry);
+            }
+            if (entry.queued.compareAndSet(false, true))
+            {
+                idle.offerFirst(entry);
+            }
+        }
+        permits.release();
+    }
+
+    /**
+     * Close connections that have been idle for longer than idleTimeout, then top the pool back up to minSize
+     */
+    void evictIdle()
+    {
+        evictIdle(System.currentTimeMillis() - idleTimeout);
+    }
+    
+    /**
+     * Close idle connections last used before the given time
+     */
+    void evictIdle(long cutoff)
+    {
+        Iterator<Entry> it = idle.descendingIterator();
+        while (it.hasNext() && size.get() > minSize)
+        {
+            Entry entry = it.next();
+            if (entry.lastUsed < cutoff && entry.state.compareAndSet(IDLE, REMOVED))
+            {
+                idle.remove(entry);
+                destroy(entry);
+            }
+        }
+        try
+        {
+            fill();
+        }
+        catch (IOException e)
+        {
+            // Try again at the next eviction run
+        }
+    }
+
+    private void fill() throws IOException
+    {
+        while (size.get() < minSize && !closed.get())
+        {
+            Entry entry = open();
+            entry.queued.set(true);
+            idle.offerLast(entry);
+        }
+    }
+
+    /*
+     * Open a new connection, counting it against maxSize. The entry's state is IDLE.
+     */
+    private Entry open() throws IOException
+    {
+        size.incrementAndGet();
+        try
+        {
+            RedisConnection connection = createConnection(addr, connectTimeout);
+            if (allocator != null)
+            {
+                connection.bufferAllocator(allocator);
+            }
+            try
+            {
+                connection.loadScripts(scripts);
+            }
+            catch (IOException e)
+            {
+                try
+                {
+                    connection.closeChannel();
+                }
+                catch (IOException closeError)
+                {
+                    e.addSuppressed(closeError);
+                }
+                connection.releaseBuffers();
+                throw e;
+            }
+            Entry entry = new Entry(connection);
+            connection.setPoolEntry(this, entry);
+            created.incrementAndGet();
+            return entry;
+        }
+        catch (Throwable t)
+        {
+            size.decrementAndGet();
+            throw t;
+        }
+    }
+
+    private void destroy(Entry entry)
+    {
+        size.decrementAndGet();
+        destroyed.incrementAndGet();
+        try
+        {
+            entry.connection.closeChannel();
+        }
+        catch (IOException e)
+        {
+            // Nothing useful to do
+        }
+        finally
+        {
+            entry.connection.releaseBuffers();
+        }
+    }
+
+    /**
+     * Open a new connection for the pool. Override to configure connections, eg with serializers or exceptionOnError.
+     */
+    protected RedisConnection createConnection(SocketAddress addr, int timeout) throws IOException
+    {
+        return RedisConnection.connect(addr, timeout);
+    }
+
+    private void recordWait(long nanos)
+    {
+        waitNanos.addAndGet(nanos);
+        long max = maxWaitNanos.get();
+        while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos))
+        {
+            max = maxWaitNanos.get();
+        }
+    }
+
+    private void checkNotStarted()
+    {
+        Preconditions.checkState(permits == null, "Pool has already been started");
+    }
+
+    /**
+     * Number of open connections, both idle and borrowed
+     */
+    public int getSize()
+    {
+        return size.get();
+    }
+
+    /**
+     * Number of connections currently borrowed
+     */
+    public int getActive()
+    {
+        return permits == null ? 0 : maxSize - permits.availablePermits();
+    }
+
+    /**
+     * Number of open connections that are not borrowed
+     */
+    public int getIdle()
+    {
+        return Math.max(getSize() - getActive(), 0);
+    }
+
+    /**
+     * Fraction of maxSize that is currently borrowed, between 0 and 1
+     */
+    public double getUtilization()
+    {
+        return (double) getActive() / maxSize;
+    }
+
+    /**
+     * Number of threads blocked in borrow() waiting for a connection
+     */
+    public int getWaiting()
+    {
+        return permits == null ? 0 : permits.getQueueLength();
+    }
+
+    public long getBorrowCount()
+    {
+        return borrows.get();
+    }
+
+    /**
+     * Number of borrows satisfied by the calling thread's previous connection
+     */
+    public long getAffinityHits()
+    {
+        return affinityHits.get();
+    }
+
+    /**
+     * Total time spent waiting for a connection to become available, in ns
+     */
+    public long getTotalWaitNanos()
+    {
+        return waitNanos.get();
+    }
+
+    public long getMaxWaitNanos()
+    {
+        return maxWaitNanos.get();
+    }
+
+    /**
+     * Number of calls to borrow() that timed out
+     */
+    public long getTimeoutCount()
+    {
+        return timeouts.get();
+    }
+
+    public long getCreatedCount()
+    {
+        return created.get();
+    }
+
+    public long getDestroyedCount()
+    {
+        return destroyed.get();
+    }
+
+    /**
+     * Close all idle connections. Borrowed connections are closed when they are returned.
+     */
+    @Override
+    public void close()
+    {
+        if (!closed.compareAndSet(false, true))
+        {
+            return;
+        }
+        if (evictor != null)
+        {
+            evictor.shutdownNow();
+        }
+        Entry entry;
+        while ((entry = idle.pollFirst()) != null)
+        {
+            if (entry.state.compareAndSet(IDLE, REMOVED))
+            {
+                destroy(entry);
+            }
+        }
+    }
+
+    static final class Entry
+    {
+        final RedisConnection connection;
+        final AtomicInteger state = new AtomicInteger(IDLE);
+        // Whether the entry is in the idle deque. It may still be there after being claimed through thread affinity.
+        final AtomicBoolean queued = new AtomicBoolean();
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Entry(RedisConnection connection)
+        {
+            this.connection = connection;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package co.tinyqs.tinyredis;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small group of selector threads that drive any number of RedisAsyncConnections
+ *
+ * Connections are assigned to threads round robin when they are opened. All IO for a connection happens on its
+ * thread, and futures returned by the connection are completed there, so callbacks must not block.
+ */
+public class RedisEventLoopGroup implements AutoCloseable
+{
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Create a group with one thread per available processor
+     */
+    public RedisEventLoopGroup() throws IOException
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public RedisEventLoopGroup(int threads) throws IOException
+    {
+        Preconditions.checkState(threads > 0, "At least one thread is required");
+        loops = new EventLoop[threads];
+        try
+        {
+            for (int i = 0; i < threads; i++)
+            {
+                loops[i] = new EventLoop("tinyredis-event-loop-" + i);
+            }
+        }
+        catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    EventLoop next()
+    {
+        return loops[Math.abs(next.getAndIncrement() % loops.length)];
+    }
+
+    /**
+     * Stop every thread, closing all connections that are still registered
+     */
+    @Override
+    public void close()
+    {
+        for (EventLoop loop : loops)
+        {
+            if (loop != null)
+            {
+                loop.close();
+            }
+        }
+    }
+
+    /**
+     * Receives readiness events for a registered channel on its loop's thread
+     */
+    interface Handler
+    {
+        void onReady(SelectionKey key);
+
+        /**
+         * Called on the loop's thread when the loop shuts down
+         */
+        void onClose();
+    }
+
+    static final class EventLoop implements Runnable
+    {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+        private volatile boolean closed = false;
+
+        EventLoop(String name) throws IOException
+        {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        Selector selector()
+        {
+            return selector;
+        }
+
+        boolean inLoop()
+        {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         * Run a task on this loop's thread
+         */
+        void execute(Runnable task)
+        {
+            tasks.add(task);
+            if (!inLoop() && wakeupPending.compareAndSet(false, true))
+            {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (!closed)
+                {
+                    if (tasks.isEmpty())
+                    {
+                        selector.select();
+                    }
+                    else
+                    {
+                        // Tasks queued from this thread don't wake the selector
+                        selector.selectNow();
+                    }
+                    wakeupPending.set(false);
+                    runTasks();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext())
+                    {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.isValid())
+                        {
+                            ((Handler) key.attachment()).onReady(key);
+                        }
+                    }
+                }
+            }
+            catch (IOException | ClosedSelectorException e)
+            {
+                // Fall through and close every connection
+            }
+            finally
+            {
+                shutdown();
+            }
+        }
+
+        private void runTasks()
+        {
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+            {
+                task.run();
+            }
+        }
+
+        private void shutdown()
+        {
+            closed = true;
+            try
+            {
+                runTasks();
+                for (SelectionKey key : selector.keys())
+                {
+                    ((Handler) key.attachment()).onClose();
+                }
+                selector.close();
+            }
+            catch (IOException | ClosedSelectorException e)
+            {
+                // Nothing left to clean up
+            }
+        }
+
+        void close()
+        {
+            closed = true;
+            selector.wakeup();
+        }
+
+        boolean isClosed()
+        {
+            return closed;
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package co.tinyqs.tinyredis;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A single connection that may be shared by any number of threads
+ *
+ * Callers format their command and block until its reply arrives. A writer thread sends every command submitted since
+ * its last write in a single gathering write, and a reader thread hands replies back to callers in the order their
+ * commands were written. Under concurrent load this pipelines commands automatically without any changes to the
+ * calling code.
+ *
+ * Serializers must be registered before the connection is shared. Blocking commands (BLPOP etc), MULTI and
+ * SUBSCRIBE hold up or break the shared pipeline and should go through a dedicated RedisConnection instead.
+ */
+public class RedisMultiplexedConnection implements AutoCloseable
+{
+    // Upper bound on buffers passed to a single gathering write (IOV_MAX on most platforms)
+    private static final int MAX_GATHER = 1024;
+    // Minimum free space in the reader's buffer before reading from the socket
+    private static final int MIN_READ = 1024*16;
+
+    private final SocketChannel channel;
+    private final ProtocolReader reader;
+    private final ProtocolWriter writer;
+    private final Queue<Request> submitted = new ConcurrentLinkedQueue<>();
+    private final Queue<Request> inflight = new ConcurrentLinkedQueue<>();
+    private final Thread writerThread;
+    private final Thread readerThread;
+    private volatile boolean writerWaiting = false;
+    private volatile IOException failure = null;
+    private volatile boolean exceptionOnError = false;
+    private volatile long timeout = 0;
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    // A lock rather than a monitor so that virtual threads closing the connection aren't pinned
+    private final ReentrantLock failLock = new ReentrantLock();
+
+    /**
+     * Open a connection to the specified remote address
+     */
+    public static RedisMultiplexedConnection connect(SocketAddress addr) throws IOException
+    {
+        return connect(addr, 0);
+    }
+
+    /**
+     * Open a connection to a specified remote address, waiting a maximum of <strong>timeout</strong> ms
+     */
+    public static RedisMultiplexedConnection connect(SocketAddress addr, int timeout) throws IOException
+    {
+        return new RedisMultiplexedConnection(RedisConnection.openChannel(addr, timeout), new ProtocolReader(), new ProtocolWriter());
+    }
+
+    RedisMultiplexedConnection(SocketChannel channel, ProtocolReader reader, ProtocolWriter writer)
+    {
+        this.channel = channel;
+        this.reader = reader;
+        this.writer = writer;
+        writerThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                writeLoop();
+            }
+        }, "tinyredis-mux-writer");
+        readerThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                readLoop();
+            }
+        }, "tinyredis-mux-reader");
+        writerThread.setDaemon(true);
+        readerThread.setDaemon(true);
+        writerThread.start();
+        readerThread.start();
+    }
+
+    public RedisMultiplexedConnection registerSerializer(RedisSerializer serializer)
+    {
+        writer.registerSerializer(serializer);
+        return this;
+    }
+
+    public RedisMultiplexedConnection exceptionOnError(boolean exceptionOnError)
+    {
+        this.exceptionOnError = exceptionOnError;
+        return this;
+    }
+
+    /**
+     * Maximum time in ms to wait for each reply, 0 (wait forever) by default. A timeout doesn't affect other callers.
+     */
+    public RedisMultiplexedConnection timeout(long timeout)
+    {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * Compile a format string into a template that can be reused with sendCommand(CommandTemplate, ...)
+     */
+    public CommandTemplate compile(String format)
+    {
+        return writer.compile(format);
+    }
+
+    /**
+     * Send a command and wait for its reply. Safe to call from any number of threads at once.
+     *
+     * @see RedisConnection#sendCommand(String, Object...)
+     * @throws IOException - If the connection has failed, in which case every outstanding and later command fails
+     */
+    public RedisReply sendCommand(String format, Object... args) throws IOException
+    {
+        return sendCommand(compile(format), args);
+    }
+
+    /**
+     * Send a precompiled command and wait for its reply
+     */
+    public RedisReply sendCommand(CommandTemplate template, Object... args) throws IOException
+    {
+        Request request = submit(writer.formatCommand(template, args));
+        RedisReply reply = request.await(timeout);
+        if (exceptionOnError && reply.getType() == RedisReply.Type.ERROR)
+        {
+            String message = reply.getString();
+            reply.release();
+            throw new RedisErrorException(message);
+        }
+        return reply;
+    }
+
+    private Request submit(ByteBuffer command) throws IOException
+    {
+        checkNotFailed();
+        Request request = new Request(command);
+        submitted.add(request);
+        if (writerWaiting)
+        {
+            LockSupport.unpark(writerThread);
+        }
+        if (failure != null)
+        {
+            // The connection failed while this request was being queued, so it may have missed being failed
+            request.fail(failure);
+        }
+        return request;
+    }
+
+    /**
+     * Number of commands written so far
+     */
+    public long getCommandCount()
+    {
+        return commands.get();
+    }
+
+    /**
+     * Number of socket writes so far. Each write carries every command submitted since the previous one.
+     */
+    public long getWriteCount()
+    {
+        return writes.get();
+    }
+
+    /**
+     * true once the connection has failed or been closed
+     */
+    public boolean isErrorState()
+    {
+        return failure != null;
+    }
+
+    private void writeLoop()
+    {
+        ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        try
+        {
+            while (failure == null)
+            {
+                Request request = submitted.poll();
+                if (request == null)
+                {
+                    // Submitters unpark us if they see this flag, so re-check the queue after setting it
+                    writerWaiting = true;
+                    if (submitted.isEmpty() && failure == null)
+                    {
+                        LockSupport.park(this);
+                    }
+                    writerWaiting = false;
+                    continue;
+                }
+
+                int count = 0;
+                do
+                {
+                    // Queue for the reader before the command can possibly be answered
+                    inflight.add(request);
+                    gather[count++] = request.command;
+                }
+                while (count < MAX_GATHER && (request = submitted.poll()) != null);
+
+                writes.incrementAndGet();
+                commands.addAndGet(count);
+                int offset = 0;
+                while (offset < count)
+                {
+                    channel.write(gather, offset, count - offset);
+                    while (offset < count && !gather[offset].hasRemaining())
+                    {
+                        gather[offset++] = null;
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+        catch (RuntimeException e)
+        {
+            // Still fail outstanding commands, rather than leave their callers waiting on a dead thread
+            fail(new IOException(e));
+        }
+    }
+
+    private void readLoop()
+    {
+        try
+        {
+            while (failure == null)
+            {
+                RedisReply reply;
+                while ((reply = reader.getReply()) != null)
+                {
+                    if (reply.getType() == RedisReply.Type.PUSH)
+                    {
+                        reply.release();
+                        continue;
+                    }
+                    Request request = inflight.poll();
+                    if (request == null)
+                    {
+                        reply.release();
+                        throw new IOException("Received a reply without a pending command");
+                    }
+                    request.complete(reply);
+                }
+
+                int nread = channel.read(reader.writableBuffer(MIN_READ));
+                reader.commitWrite();
+                if (nread == -1)
+                {
+                    throw new IOException("Input channel unexpectedly closed");
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+        catch (RuntimeException e)
+        {
+            // Still fail outstanding commands, rather than leave their callers waiting on a dead thread
+            fail(new IOException(e));
+        }
+    }
+
+    /*
+     * Fail the connection and every outstanding command
+     */
+    private void fail(IOException e)
+    {
+        failLock.lock();
+        try
+        {
+            failConnection(e);
+        }
+        finally
+        {
+            failLock.unlock();
+        }
+    }
+
+    private void failConnection(IOException e)
+    {
+        if (failure == null)
+        {
+            failure = e;
+        }
+        LockSupport.unpark(writerThread);
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ignored)
+        {
+            // Already failing
+        }
+        Request request;
+        while ((request = inflight.poll()) != null)
+        {
+            request.fail(failure);
+        }
+        while ((request = submitted.poll()) != null)
+        {
+            request.fail(failure);
+        }
+    }
+
+    private void checkNotFailed() throws IOException
+    {
+        IOException e = failure;
+        if (e != null)
+        {
+            throw new IOException("Connection has failed", e);
+        }
+    }
+
+    /**
+     * Close the connection. Commands that are still waiting for replies fail with an IOException.
+     */
+    @Override
+    public void close()
+    {
+        fail(new IOException("Connection closed"));
+    }
+
+    private static final class Request
+    {
+        final ByteBuffer command;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile RedisReply reply;
+        private volatile IOException error;
+
+        Request(ByteBuffer command)
+        {
+            this.command = command;
+        }
+
+        void complete(RedisReply reply)
+        {
+            this.reply = reply;
+            done.countDown();
+        }
+
+        void fail(IOException error)
+        {
+            if (done.getCount() > 0)
+            {
+                this.error = error;
+                done.countDown();
+            }
+        }
+
+        RedisReply await(long timeout) throws IOException
+        {
+            try
+            {
+                if (timeout <= 0)
+                {
+                    done.await();
+                }
+                else if (!done.await(timeout, TimeUnit.MILLISECONDS))
+                {
+                    throw new SocketTimeoutException("Timed out after " + timeout + "ms waiting for a reply");
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a reply");
+            }
+            if (reply == null)
+            {
+                throw new IOException("Connection failed before a reply was received", error);
+            }
+            return reply;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package co.tinyqs.tinyredis;
+
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A server that a RedisReplicaClient routes commands to, along with the load and latency statistics that read
+ * policies use to choose between replicas
+ */
+public final class RedisNode
+{
+    // Weight of each new latency sample in the moving average
+    private static final double ALPHA = 0.2;
+
+    private final SocketAddress addr;
+    private final RedisConnectionPool pool;
+    private final long decayNanos;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    // Double bits of the moving average, so that it can be updated with a CAS
+    private final AtomicLong latency = new AtomicLong(Double.doubleToLongBits(0));
+    private volatile long lastSample = System.nanoTime();
+    private volatile long downUntil = 0;
+
+    RedisNode(SocketAddress addr, RedisConnectionPool pool, long decayNanos)
+    {
+        this.addr = addr;
+        this.pool = pool;
+        this.decayNanos = decayNanos;
+    }
+
+    public SocketAddress getAddress()
+    {
+        return addr;
+    }
+
+    RedisConnectionPool getPool()
+    {
+        return pool;
+    }
+
+    /**
+     * Number of commands sent to this node that are still waiting for a reply
+     */
+    public int getOutstanding()
+    {
+        return outstanding.get();
+    }
+
+    public long getRequestCount()
+    {
+        return requests.get();
+    }
+
+    public long getFailureCount()
+    {
+        return failures.get();
+    }
+
+    /**
+     * Exponentially weighted moving average of reply latency in ns. The average decays towards 0 while the node isn't
+     * used, so that a node that was slow once is eventually tried again.
+     */
+    public double getLatencyNanos()
+    {
+        return decay(Double.longBitsToDouble(latency.get()));
+    }
+
+    private double decay(double avg)
+    {
+        long idle = System.nanoTime() - lastSample;
+        return decayNanos > 0 && idle > 0 ? avg * Math.exp(-(double) idle / decayNanos) : avg;
+    }
+
+    /**
+     * false for a while after a command to this node failed
+     */
+    public boolean isAvailable()
+    {
+        long until = downUntil;
+        return until == 0 || System.nanoTime() - until >= 0;
+    }
+
+    void started()
+    {
+        outstanding.incrementAndGet();
+        requests.incrementAndGet();
+    }
+
+    void completed(long nanos)
+    {
+        outstanding.decrementAndGet();
+        while (true)
+        {
+            long bits = latency.get();
+            double avg = decay(Double.longBitsToDouble(bits));
+            double updated = avg == 0 ? nanos : avg + ALPHA * (nanos - avg);
+            if (latency.compareAndSet(bits, Double.doubleToLongBits(updated)))
+            {
+                break;
+            }
+        }
+        lastSample = System.nanoTime();
+    }
+
+    /**
+     * Called for a command that failed for reasons other than the node, eg a borrow timeout from a busy pool
+     */
+    void abandoned()
+    {
+        outstanding.decrementAndGet();
+    }
+
+    void failed(long downNanos)
+    {
+        outstanding.decrementAndGet();
+        failures.incrementAndGet();
+        downUntil = System.nanoTime() + downNanos;
+    }
+
+    @Override
+    public String toString()
+    {
+        return addr.toString();
+    }
+}
@@ -0,0 +1,365 @@
+package co.tinyqs.tinyredis;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe client for a primary and its replicas
+ *
+ * Read-only commands (see Commands.READ_ONLY, extended with readOnly()) are sent to a replica chosen by the read
+ * policy, and everything else goes to the primary. Replication is asynchronous, so a read from a replica may not see
+ * a write that was just made through the primary.
+ *
+ * A replica that fails is skipped for downTime ms, and the read is retried on another replica, or on the primary once
+ * none are left. Only failures to connect or of the connection itself count: a replica whose pool is exhausted is
+ * passed over for that read but stays up. Each node has its own RedisConnectionPool.
+ */
+public class RedisReplicaClient implements AutoCloseable
+{
+    private final SocketAddress primaryAddr;
+    private final List<SocketAddress> replicaAddrs;
+    private final ProtocolWriter writer = new ProtocolWriter();
+    private final Set<String> readOnly = new HashSet<>(Commands.READ_ONLY);
+    private ReadPolicy policy = ReadPolicy.roundRobin();
+    private RedisNode primary;
+    private List<RedisNode> replicas;
+    private int poolSize = 8;
+    private int connectTimeout = 0;
+    private long downTime = 5000;
+    private long latencyDecay = 10000;
+    private boolean readFromPrimary = true;
+    private volatile boolean exceptionOnError = false;
+
+    private final AtomicLong replicaReads = new AtomicLong();
+    private final AtomicLong primaryCommands = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    /**
+     * Create a client for the given primary and replicas. Configure it with the builder methods, then call start().
+     */
+    public RedisReplicaClient(SocketAddress primary, SocketAddress... replicas)
+    {
+        this.primaryAddr = Preconditions.checkNotNull(primary, "Primary address may not be null");
+        for (SocketAddress replica : replicas)
+        {
+            Preconditions.checkNotNull(replica, "Replica addresses may not be null");
+        }
+        this.replicaAddrs = new ArrayList<>(Arrays.asList(replicas));
+    }
+
+    /**
+     * Policy used to choose a replica for each read, round robin by default
+     */
+    public RedisReplicaClient readPolicy(ReadPolicy policy)
+    {
+        checkNotStarted();
+        this.policy = Preconditions.checkNotNull(policy, "Read policy may not be null");
+        return this;
+    }
+
+    /**
+     * Treat the given commands as read-only, in addition to the built-in table
+     */
+    public RedisReplicaClient readOnly(String... commands)
+    {
+        checkNotStarted();
+        for (String command : commands)
+        {
+            readOnly.add(command.toUpperCase());
+        }
+        return this;
+    }
+
+    /**
+     * Maximum number of connections to each node, 8 by default
+     */
+    public RedisReplicaClient poolSize(int poolSize)
+    {
+        checkNotStarted();
+        Preconditions.checkState(poolSize > 0, "poolSize must be positive");
+        this.poolSize = poolSize;
+        return this;
+    }
+
+    /**
+     * Connect timeout in ms for new connections, 0 (no timeout) by default
+     */
+    public RedisReplicaClient connectTimeout(int connectTimeout)
+    {
+        checkNotStarted();
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    /**
+     * Time in ms that a replica is skipped after a command to it fails, 5s by default
+     */
+    public RedisReplicaClient downTime(long downTime)
+    {
+        checkNotStarted();
+        this.downTime = downTime;
+        return this;
+    }
+
+    /**
+     * Time constant in ms with which an idle replica's latency average decays towards 0, 10s by default. 0 disables
+     * decay.
+     */
+    public RedisReplicaClient latencyDecay(long latencyDecay)
+    {
+        checkNotStarted();
+        this.latencyDecay = latencyDecay;
+        return this;
+    }
+
+    /**
+     * Whether reads fall back to the primary when no replica is available, true by default
+     */
+    public RedisReplicaClient readFromPrimary(boolean readFromPrimary)
+    {
+        checkNotStarted();
+        this.readFromPrimary = readFromPrimary;
+        return this;
+    }
+
+    public RedisReplicaClient registerSerializer(RedisSerializer serializer)
+    {
+        checkNotStarted();
+        writer.registerSerializer(serializer);
+        return this;
+    }
+
+    public RedisReplicaClient exceptionOnError(boolean exceptionOnError)
+    {
+        this.exceptionOnError = exceptionOnError;
+        return this;
+    }
+
+    /**
+     * Create a pool for every node. Connections are opened on first use.
+     */
+    public RedisReplicaClient start() throws IOException
+    {
+        checkNotStarted();
+        long decayNanos = TimeUnit.MILLISECONDS.toNanos(latencyDecay);
+        primary = new RedisNode(primaryAddr, createPool(primaryAddr).start(), decayNanos);
+        List<RedisNode> nodes = new ArrayList<>();
+        for (SocketAddress addr : replicaAddrs)
+        {
+            nodes.add(new RedisNode(addr, createPool(addr).start(), decayNanos));
+        }
+        replicas = Collections.unmodifiableList(nodes);
+        return this;
+    }
+
+    /**
+     * Create the pool for a node. Override to tune pools, eg their idle or borrow timeouts.
+     */
+    protected RedisConnectionPool createPool(SocketAddress addr)
+    {
+        return new RedisConnectionPool(addr).maxSize(poolSize).connectTimeout(connectTimeout);
+    }
+
+    /**
+     * Compile a format string into a template that can be reused with sendCommand(CommandTemplate, ...)
+     */
+    public CommandTemplate compile(String format)
+    {
+        return writer.compile(format);
+    }
+
+    /**
+     * Send a command to a replica if it is read-only, or to the primary otherwise, and wait for the reply
+     *
+     * @see RedisConnection#sendCommand(String, Object...)
+     */
+    public RedisReply sendCommand(String format, Object... args) throws IOException
+    {
+        return sendCommand(compile(format), args);
+    }
+
+    public RedisReply sendCommand(CommandTemplate template, Object... args) throws IOException
+    {
+        Preconditions.checkState(primary != null, "Client has not been started");
+        ByteBuffer command = writer.formatCommand(template, args);
+        RedisReply reply;
+        if (!replicas.isEmpty() && readOnly.contains(Commands.name(command)))
+        {
+            reply = read(command);
+        }
+        else
+        {
+            primaryCommands.incrementAndGet();
+            reply = send(primary, command);
+        }
+        if (exceptionOnError && reply.getType() == RedisReply.Type.ERROR)
+        {
+            String message = reply.getString();
+            reply.release();
+            throw new RedisErrorException(message);
+        }
+        return reply;
+    }
+
+    private RedisReply read(ByteBuffer command) throws IOException
+    {
+        List<RedisNode> candidates = available();
+        IOException lastError = null;
+        while (!candidates.isEmpty())
+        {
+            RedisNode node = policy.select(candidates);
+            try
+            {
+                RedisReply reply = send(node, command);
+                replicaReads.incrementAndGet();
+                return reply;
+            }
+            catch (IOException e)
+            {
+                lastError = e;
+                candidates = new ArrayList<>(candidates);
+                candidates.remove(node);
+            }
+        }
+        if (!readFromPrimary)
+        {
+            throw new IOException("No replica is available", lastError);
+        }
+        fallbacks.incrementAndGet();
+        return send(primary, command);
+    }
+
+    /*
+     * Return the replicas that aren't down, without copying in the common case that all of them are up
+     */
+    private List<RedisNode> available()
+    {
+        for (int i = 0; i < replicas.size(); i++)
+        {
+            if (!replicas.get(i).isAvailable())
+            {
+                List<RedisNode> up = new ArrayList<>(replicas.size());
+                for (RedisNode node : replicas)
+                {
+                    if (node.isAvailable())
+                    {
+                        up.add(node);
+                    }
+                }
+                return up;
+            }
+        }
+        return replicas;
+    }
+
+    private RedisReply send(RedisNode node, ByteBuffer command) throws IOException
+    {
+        long start = System.nanoTime();
+        node.started();
+        RedisConnection conn = null;
+        boolean succeeded = false;
+        boolean nodeFailed = false;
+        try
+        {
+            conn = node.getPool().borrow();
+            RedisReply reply = conn.sendFormattedCommand(command.duplicate());
+            succeeded = true;
+            return reply;
+        }
+        catch (PoolTimeoutException | RedisErrorException e)
+        {
+            // A busy pool or an error reply says nothing about the node's health
+            throw e;
+        }
+        catch (IOException e)
+        {
+            // Unless this thread was interrupted waiting for a connection
+            nodeFailed = conn != null || !Thread.currentThread().isInterrupted();
+            throw e;
+        }
+        finally
+        {
+            if (succeeded)
+            {
+                node.completed(System.nanoTime() - start);
+            }
+            else if (nodeFailed)
+            {
+                node.failed(TimeUnit.MILLISECONDS.toNanos(downTime));
+            }
+            else
+            {
+                node.abandoned();
+            }
+            if (conn != null)
+            {
+                node.getPool().release(conn);
+            }
+        }
+    }
+
+    public RedisNode getPrimary()
+    {
+        return primary;
+    }
+
+    public List<RedisNode> getReplicas()
+    {
+        return replicas;
+    }
+
+    /**
+     * Number of commands answered by a replica
+     */
+    public long getReplicaReadCount()
+    {
+        return replicaReads.get();
+    }
+
+    /**
+     * Number of commands sent to the primary because they weren't read-only
+     */
+    public long getPrimaryCount()
+    {
+        return primaryCommands.get();
+    }
+
+    /**
+     * Number of reads sent to the primary because no replica was available
+     */
+    public long getFallbackCount()
+    {
+        return fallbacks.get();
+    }
+
+    private void checkNotStarted()
+    {
+        Preconditions.checkState(primary == null, "Client has already been started");
+    }
+
+    /**
+     * Close every node's pool. Borrowed connections are closed when they are returned.
+     */
+    @Override
+    public void close()
+    {
+        if (primary == null)
+        {
+            return;
+        }
+        primary.getPool().close();
+        for (RedisNode node : replicas)
+        {
+            node.getPool().close();
+        }
+    }
+}
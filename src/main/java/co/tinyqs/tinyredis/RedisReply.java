@@ -1,7 +1,21 @@
 package co.tinyqs.tinyredis;
 
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
-public class RedisReply
+/**
+ * A reply from the server.
+ * 
+ * Replies read by a connection in zero-copy mode are views into the connection's input buffer. They must be released
+ * with release() (or try-with-resources) once they are no longer used, after which their contents may no longer be
+ * accessed. Releasing any other reply is a no-op.
+ * 
+ * MAP, SET, PUSH, DOUBLE, BOOLEAN, BIG_NUMBER and VERBATIM replies are only sent by servers speaking RESP3. Maps are
+ * stored as alternating keys and values.
+ */
+public class RedisReply implements AutoCloseable
 {
     public enum Type
     {
@@ -10,13 +24,27 @@ public class RedisReply
         INTEGER,
         NIL,
         STATUS,
-        ERROR
+        ERROR,
+        MAP,
+        SET,
+        PUSH,
+        DOUBLE,
+        BOOLEAN,
+        BIG_NUMBER,
+        VERBATIM
     }
     private Type type = null;
     private long integer = 0;
+    private double dbl = 0;
+    private String format = null;
+    private RedisReply attributes = null;
     private byte[] buff = null;
     private RedisReply[] elements = null;
     private String asString = null;
+    private ReplyBuffer source = null;
+    private int offset = 0;
+    private int length = 0;
+    private boolean released = false;
     
     private RedisReply(){};
     
@@ -36,6 +64,55 @@ public class RedisReply
         return result;
     }
     
+    /**
+     * Create a RESP3 map, set or push reply. Map elements alternate between keys and values.
+     */
+    public static RedisReply createAggregate(Type type, RedisReply[] elements)
+    {
+        Preconditions.checkState(type == Type.ARRAY || type == Type.MAP || type == Type.SET || type == Type.PUSH, "Type must be an aggregate");
+        Preconditions.checkState(type != Type.MAP || elements.length % 2 == 0, "Maps must have an even number of elements");
+        RedisReply result = new RedisReply();
+        result.type = type;
+        result.elements = Preconditions.checkNotNull(elements);
+        return result;
+    }
+    
+    public static RedisReply createDouble(double dbl)
+    {
+        RedisReply result = new RedisReply();
+        result.type = Type.DOUBLE;
+        result.dbl = dbl;
+        return result;
+    }
+    
+    public static RedisReply createBoolean(boolean bool)
+    {
+        RedisReply result = new RedisReply();
+        result.type = Type.BOOLEAN;
+        result.integer = bool ? 1 : 0;
+        return result;
+    }
+    
+    public static RedisReply createBigNumber(byte[] digits)
+    {
+        RedisReply result = new RedisReply();
+        result.type = Type.BIG_NUMBER;
+        result.buff = Preconditions.checkNotNull(digits);
+        return result;
+    }
+    
+    /**
+     * Create a verbatim string, where format is the three character type of the text (eg "txt" or "mkd")
+     */
+    public static RedisReply createVerbatim(String format, byte[] buff)
+    {
+        RedisReply result = new RedisReply();
+        result.type = Type.VERBATIM;
+        result.format = Preconditions.checkNotNull(format);
+        result.buff = Preconditions.checkNotNull(buff);
+        return result;
+    }
+    
     public static RedisReply createString(Type type, byte[] buff)
     {
         Preconditions.checkState(type == Type.ERROR || type == Type.STATUS, "Type must be error or status");
@@ -60,36 +137,284 @@ public class RedisReply
         return result;
     }
     
+    /**
+     * Create a string, status or error reply that points into a shared buffer instead of owning a copy of its bytes.
+     * The reply takes over one reference to the buffer, which is given up on release().
+     */
+    static RedisReply createView(Type type, ReplyBuffer source, int offset, int length)
+    {
+        Preconditions.checkState(type == Type.ERROR || type == Type.STATUS || type == Type.STRING, "Type must be string, error or status");
+        RedisReply result = new RedisReply();
+        result.type = type;
+        result.source = Preconditions.checkNotNull(source);
+        result.offset = offset;
+        result.length = length;
+        LeakDetector.track(result);
+        return result;
+    }
+    
     public Type getType()
     {
         return type;
     }
 
+    /**
+     * Return the contents of a string-type reply. Zero-copy replies are copied into a new array on every call.
+     */
     public byte[] getBytes()
     {
-        Preconditions.checkState(type == Type.ERROR || type == Type.STATUS || type == Type.STRING, "getBuff() is only valid for string-type replies");
+        Preconditions.checkState(isStringType(), "getBuff() is only valid for string-type replies");
+        if (source != null)
+        {
+            checkNotReleased();
+            return source.copy(offset, length);
+        }
         return buff;
     }
     
+    /**
+     * Return a read-only buffer over the contents of a string-type reply without copying them. For zero-copy replies
+     * the buffer is only valid until the reply is released.
+     */
+    public ByteBuffer getBuffer()
+    {
+        Preconditions.checkState(isStringType(), "getBuffer() is only valid for string-type replies");
+        if (source != null)
+        {
+            checkNotReleased();
+            return source.view(offset, length);
+        }
+        return ByteBuffer.wrap(buff).asReadOnlyBuffer();
+    }
+    
     public String getString()
     {
-        Preconditions.checkState(type == Type.ERROR || type == Type.STATUS || type == Type.STRING, "getString() is only valid for string-type replies");
+        Preconditions.checkState(isStringType(), "getString() is only valid for string-type replies");
         if (asString == null)
         {
-            asString = BufferUtils.decode(buff);
+            if (source != null)
+            {
+                checkNotReleased();
+                asString = BufferUtils.decode(source.view(offset, length));
+            }
+            else
+            {
+                asString = BufferUtils.decode(buff);
+            }
         }
         return asString;
     }
 
+    /**
+     * Return the elements of an array, map, set or push reply. Map elements alternate between keys and values.
+     */
     public RedisReply[] getElements()
     {
-        Preconditions.checkState(type == Type.ARRAY, "getElements() is only valid for array replies");
+        Preconditions.checkState(type == Type.ARRAY || type == Type.MAP || type == Type.SET || type == Type.PUSH, "getElements() is only valid for aggregate replies");
         return elements;
     }
+    
+    /**
+     * Return the entries of a map reply keyed by their string value, in the order they were received
+     */
+    public Map<String, RedisReply> getMap()
+    {
+        Preconditions.checkState(type == Type.MAP, "getMap() is only valid for map replies");
+        Map<String, RedisReply> result = new LinkedHashMap<>();
+        for (int i = 0; i < elements.length; i += 2)
+        {
+            RedisReply key = elements[i];
+            result.put(key.getType() == Type.INTEGER ? Long.toString(key.getInteger()) : key.getString(), elements[i+1]);
+        }
+        return result;
+    }
 
     public long getInteger()
     {
         Preconditions.checkState(type == Type.INTEGER, "getInteger() is only valid for integer replies");
         return integer;
     }
+    
+    public double getDouble()
+    {
+        Preconditions.checkState(type == Type.DOUBLE || type == Type.INTEGER, "getDouble() is only valid for double or integer replies");
+        return type == Type.INTEGER ? integer : dbl;
+    }
+    
+    public boolean getBoolean()
+    {
+        Preconditions.checkState(type == Type.BOOLEAN, "getBoolean() is only valid for boolean replies");
+        return integer != 0;
+    }
+    
+    public BigInteger getBigNumber()
+    {
+        Preconditions.checkState(type == Type.BIG_NUMBER, "getBigNumber() is only valid for big number replies");
+        return new BigInteger(getString());
+    }
+    
+    /**
+     * Return the three character format of a verbatim string reply, eg "txt" or "mkd"
+     */
+    public String getFormat()
+    {
+        Preconditions.checkState(type == Type.VERBATIM, "getFormat() is only valid for verbatim string replies");
+        return format;
+    }
+    
+    /**
+     * Return the RESP3 attributes (as a map reply) that were sent along with this reply, or null if there were none
+     */
+    public RedisReply getAttributes()
+    {
+        return attributes;
+    }
+    
+    void setAttributes(RedisReply attributes)
+    {
+        this.attributes = attributes;
+    }
+    
+    private boolean isStringType()
+    {
+        return type == Type.ERROR || type == Type.STATUS || type == Type.STRING || type == Type.VERBATIM || type == Type.BIG_NUMBER;
+    }
+    
+    /**
+     * true if this reply (or any of its elements) is a view into a shared buffer that must be released
+     */
+    public boolean isView()
+    {
+        if (source != null)
+        {
+            return true;
+        }
+        if (elements != null)
+        {
+            for (RedisReply element : elements)
+            {
+                if (element.isView())
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Return a copy of this reply that owns all of its bytes, or this reply itself if it holds no views. The original
+     * reply must still be released by the caller.
+     */
+    RedisReply detach()
+    {
+        RedisReply result = this;
+        if (source != null)
+        {
+            checkNotReleased();
+            byte[] copy = source.copy(offset, length);
+            result = type == Type.STRING ? createBulkString(copy) : createString(type, copy);
+        }
+        else if (elements != null && isView())
+        {
+            RedisReply[] copies = new RedisReply[elements.length];
+            for (int i = 0; i < elements.length; i++)
+            {
+                copies[i] = elements[i].detach();
+            }
+            result = createAggregate(type, copies);
+        }
+        if (attributes != null)
+        {
+            RedisReply attrs = attributes.detach();
+            if (result == this && attrs == attributes)
+            {
+                return this;
+            }
+            if (result == this)
+            {
+                result = shallowCopy();
+            }
+            result.attributes = attrs;
+        }
+        return result;
+    }
+    
+    /**
+     * Return a deep copy of a reply that holds no views, sharing nothing that a caller could modify
+     */
+    RedisReply copy()
+    {
+        Preconditions.checkState(source == null, "Views must be detached before they are copied");
+        RedisReply result = shallowCopy();
+        if (buff != null)
+        {
+            result.buff = buff.clone();
+        }
+        if (elements != null)
+        {
+            result.elements = new RedisReply[elements.length];
+            for (int i = 0; i < elements.length; i++)
+            {
+                result.elements[i] = elements[i].copy();
+            }
+        }
+        if (attributes != null)
+        {
+            result.attributes = attributes.copy();
+        }
+        return result;
+    }
+    
+    private RedisReply shallowCopy()
+    {
+        RedisReply result = new RedisReply();
+        result.type = type;
+        result.integer = integer;
+        result.dbl = dbl;
+        result.format = format;
+        result.buff = buff;
+        result.elements = elements;
+        result.asString = asString;
+        return result;
+    }
+    
+    /**
+     * Give up this reply's reference to any shared buffer, including those of nested elements. Safe to call more than once.
+     */
+    public void release()
+    {
+        if (released)
+        {
+            return;
+        }
+        released = true;
+        if (source != null)
+        {
+            source.release();
+            LeakDetector.untrack(this);
+        }
+        if (elements != null)
+        {
+            for (RedisReply element : elements)
+            {
+                element.release();
+            }
+        }
+        if (attributes != null)
+        {
+            attributes.release();
+        }
+    }
+    
+    @Override
+    public void close()
+    {
+        release();
+    }
+    
+    private void checkNotReleased()
+    {
+        Preconditions.checkState(!released, "Reply has already been released");
+    }
 }
@@ -0,0 +1,230 @@
+package co.tinyqs.tinyredis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A Lua script that is called by its SHA1 digest
+ *
+ * The digest is computed once, when the script is created, and every call goes out as EVALSHA so the script body
+ * crosses the network only when the server doesn't have it yet. A NOSCRIPT error, after a restart or SCRIPT FLUSH, is
+ * answered with SCRIPT LOAD and the call is retried once. Each connection remembers which scripts it has loaded.
+ *
+ * Keys and arguments that are byte arrays are sent as they are, anything else as its toString() in UTF-8.
+ * Scripts are immutable and may be shared by any number of connections.
+ */
+public final class RedisScript
+{
+    private static final Charset CHARSET = ProtocolReader.CHARSET;
+    private static final byte[] EVALSHA = "EVALSHA".getBytes(CHARSET);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String source;
+    private final byte[] body;
+    private final String sha1;
+
+    public RedisScript(String source)
+    {
+        this.source = Preconditions.checkNotNull(source, "Script source may not be null");
+        this.body = source.getBytes(CHARSET);
+        this.sha1 = sha1(body);
+    }
+
+    public String getSource()
+    {
+        return source;
+    }
+
+    /**
+     * The lowercase hex SHA1 digest that redis knows the script by
+     */
+    public String getSha1()
+    {
+        return sha1;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        return obj instanceof RedisScript && ((RedisScript) obj).sha1.equals(sha1);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return sha1.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RedisScript[" + sha1 + "]";
+    }
+
+    /*
+     * EVALSHA the script, loading it and trying again if the server doesn't have it
+     */
+    RedisReply eval(RedisConnection conn, String[] keys, Object[] args) throws IOException
+    {
+        ByteBuffer command = encodeEvalSha(keys, args);
+        RedisReply reply = call(conn, command.duplicate());
+        if (isNoScript(reply))
+        {
+            reply.release();
+            conn.setScriptLoaded(sha1, false);
+            load(conn);
+            reply = call(conn, command);
+        }
+        else
+        {
+            conn.setScriptLoaded(sha1, true);
+        }
+        return conn.checkReply(reply);
+    }
+
+    private static RedisReply call(RedisConnection conn, ByteBuffer command) throws IOException
+    {
+        conn.appendFormattedCommand(command);
+        conn.flushBlocking();
+        return conn.readReply();
+    }
+
+    /*
+     * SCRIPT LOAD this script, and check that the server agrees on its digest
+     */
+    void load(RedisConnection conn) throws IOException
+    {
+        loadAll(conn, this);
+    }
+
+    /*
+     * SCRIPT LOAD every script with a single flush
+     */
+    static void loadAll(RedisConnection conn, RedisScript... scripts) throws IOException
+    {
+        for (RedisScript script : scripts)
+        {
+            conn.appendFormattedCommand(script.encodeLoad());
+        }
+        conn.flushBlocking();
+
+        // Read every reply before reporting errors, so the connection is left in sync
+        RedisErrorException error = null;
+        for (RedisScript script : scripts)
+        {
+            RedisReply reply = conn.readReply();
+            try
+            {
+                script.checkLoaded(reply);
+                conn.setScriptLoaded(script.sha1, true);
+            }
+            catch (RedisErrorException e)
+            {
+                error = error != null ? error : e;
+            }
+        }
+        if (error != null)
+        {
+            throw error;
+        }
+    }
+
+    void checkLoaded(RedisReply reply) throws RedisErrorException
+    {
+        try
+        {
+            if (reply.getType() == RedisReply.Type.ERROR)
+            {
+                throw new RedisErrorException("SCRIPT LOAD failed: " + reply.getString());
+            }
+            if (!sha1.equals(reply.getString()))
+            {
+                throw new RedisErrorException("SCRIPT LOAD returned " + reply.getString() + " rather than " + sha1);
+            }
+        }
+        finally
+        {
+            reply.release();
+        }
+    }
+
+    ByteBuffer encodeLoad()
+    {
+        return encode(new byte[][] { "SCRIPT".getBytes(CHARSET), "LOAD".getBytes(CHARSET), body });
+    }
+
+    ByteBuffer encodeEvalSha(String[] keys, Object[] args)
+    {
+        return encodeCall(EVALSHA, sha1, keys, args);
+    }
+
+    static boolean isNoScript(RedisReply reply)
+    {
+        return reply.getType() == RedisReply.Type.ERROR && reply.getString().startsWith("NOSCRIPT");
+    }
+
+    /*
+     * Format "<command> <target> <numkeys> <keys...> <args...>", as used by EVALSHA and FCALL
+     */
+    static ByteBuffer encodeCall(byte[] command, String target, String[] keys, Object[] args)
+    {
+        Preconditions.checkNotNull(keys);
+        Preconditions.checkNotNull(args);
+        byte[][] words = new byte[3 + keys.length + args.length][];
+        words[0] = command;
+        words[1] = target.getBytes(CHARSET);
+        words[2] = Integer.toString(keys.length).getBytes(CHARSET);
+        int idx = 3;
+        for (String key : keys)
+        {
+            words[idx++] = Preconditions.checkNotNull(key).getBytes(CHARSET);
+        }
+        for (Object arg : args)
+        {
+            Preconditions.checkNotNull(arg);
+            words[idx++] = arg instanceof byte[] ? (byte[]) arg : arg.toString().getBytes(CHARSET);
+        }
+        return encode(words);
+    }
+
+    private static ByteBuffer encode(byte[][] words)
+    {
+        byte[] count = BufferUtils.encodeHeader('*', words.length);
+        int size = count.length;
+        for (byte[] word : words)
+        {
+            size += BufferUtils.decimalLength(word.length) + word.length + 5;
+        }
+        ByteBuffer result = ByteBuffer.allocate(size);
+        result.put(count);
+        for (byte[] word : words)
+        {
+            result.put(BufferUtils.encodeHeader('$', word.length)).put(word).put((byte) '\r').put((byte) '\n');
+        }
+        result.flip();
+        return result;
+    }
+
+    static String sha1(byte[] bytes)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+            char[] hex = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++)
+            {
+                hex[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+                hex[i * 2 + 1] = HEX[digest[i] & 0xF];
+            }
+            return new String(hex);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Every Java platform is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -3,8 +3,34 @@ package co.tinyqs.tinyredis;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
+/**
+ * Converts java objects into the binary values of %b placeholders
+ *
+ * Serializers that can tell how large a value will be before encoding it should implement sizeHint() and writeTo(),
+ * which encode the value straight into the command buffer rather than into an intermediate byte array.
+ *
+ * Writers remember the first serializer that handled each class, and only ask canSerialize() of the others when that
+ * one declines an object, so serializers should decide by class where they can.
+ */
 public interface RedisSerializer
 {
     public boolean canSerialize(Object obj);
     public byte[] serialize(Object obj) throws IOException;
+
+    /**
+     * Upper bound on the number of bytes writeTo() will write for obj, or -1 to use serialize() instead. An exact size
+     * is best: the closer the bound, the less of the command buffer is left unused.
+     */
+    public default int sizeHint(Object obj) throws IOException
+    {
+        return -1;
+    }
+
+    /**
+     * Encode obj into dest, which has sizeHint(obj) bytes remaining
+     */
+    public default void writeTo(Object obj, ByteBuffer dest) throws IOException
+    {
+        dest.put(serialize(obj));
+    }
 }
@@ -0,0 +1,78 @@
+package co.tinyqs.tinyredis;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted input buffer shared between a ProtocolReader and the zero-copy replies that point into it.
+ * 
+ * The reader holds one reference for as long as it reads into the buffer, and each view reply holds another. Once
+ * every reference has been released the buffer is given back to its allocator.
+ */
+final class ReplyBuffer
+{
+    private final ByteBuffer buffer;
+    private final BufferAllocator allocator;
+    private final AtomicInteger refs = new AtomicInteger(1);
+    
+    ReplyBuffer(ByteBuffer buffer, BufferAllocator allocator)
+    {
+        this.buffer = buffer;
+        this.allocator = allocator;
+    }
+    
+    ByteBuffer buffer()
+    {
+        return buffer;
+    }
+    
+    void retain()
+    {
+        refs.incrementAndGet();
+    }
+    
+    /**
+     * true if any replies still reference this buffer
+     */
+    boolean isShared()
+    {
+        return refs.get() > 1;
+    }
+    
+    void release()
+    {
+        int remaining = refs.decrementAndGet();
+        Preconditions.checkState(remaining >= 0, "Reply buffer released too many times");
+        if (remaining == 0)
+        {
+            allocator.release(buffer);
+        }
+    }
+    
+    /**
+     * Return a read-only view of the given region, independent of the position and limit of the underlying buffer
+     */
+    ByteBuffer view(int offset, int length)
+    {
+        ByteBuffer result = buffer.duplicate();
+        result.limit(offset + length).position(offset);
+        return result.slice().asReadOnlyBuffer();
+    }
+    
+    /**
+     * Copy the given region into a new byte array
+     */
+    byte[] copy(int offset, int length)
+    {
+        byte[] result = new byte[length];
+        if (buffer.hasArray())
+        {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + offset, result, 0, length);
+        }
+        else
+        {
+            view(offset, length).get(result);
+        }
+        return result;
+    }
+}
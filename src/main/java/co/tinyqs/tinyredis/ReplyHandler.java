@@ -0,0 +1,42 @@
+package co.tinyqs.tinyredis;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the elements of a reply as they are parsed by ProtocolReader.read(), without a RedisReply tree being built.
+ * 
+ * Aggregates are reported with a start callback followed by each of their elements and a matching end callback. Maps
+ * and attributes report their keys and values as alternating elements. RESP3 attributes describe the element that
+ * follows them and are not counted as elements of any enclosing aggregate.
+ * 
+ * Buffers passed to callbacks are positioned over the element's bytes in the reader's internal buffer. They are only
+ * valid for the duration of the callback and must not be modified or retained.
+ * 
+ * ReplyTreeBuilder is the implementation used by ProtocolReader.getReply(). Extend ReplyHandlerAdapter to only
+ * implement the callbacks you need.
+ */
+public interface ReplyHandler
+{
+    public void onArrayStart(int len);
+    public void onArrayEnd();
+    public void onMapStart(int pairs);
+    public void onMapEnd();
+    public void onSetStart(int len);
+    public void onSetEnd();
+    public void onPushStart(int len);
+    public void onPushEnd();
+    public void onAttributeStart(int pairs);
+    public void onAttributeEnd();
+    public void onBulk(ByteBuffer value);
+    public void onStatus(ByteBuffer value);
+    public void onError(ByteBuffer value);
+    public void onInteger(long value);
+    public void onDouble(double value);
+    public void onBoolean(boolean value);
+    public void onBigNumber(ByteBuffer digits);
+    /**
+     * A RESP3 verbatim string. The value includes the three character format and colon, eg "txt:hello"
+     */
+    public void onVerbatim(ByteBuffer value);
+    public void onNil();
+}
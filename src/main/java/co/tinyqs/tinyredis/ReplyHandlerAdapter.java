@@ -0,0 +1,104 @@
+package co.tinyqs.tinyredis;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ReplyHandler with empty implementations of every callback
+ */
+public abstract class ReplyHandlerAdapter implements ReplyHandler
+{
+    @Override
+    public void onArrayStart(int len)
+    {
+    }
+
+    @Override
+    public void onArrayEnd()
+    {
+    }
+
+    @Override
+    public void onMapStart(int pairs)
+    {
+    }
+
+    @Override
+    public void onMapEnd()
+    {
+    }
+
+    @Override
+    public void onSetStart(int len)
+    {
+    }
+
+    @Override
+    public void onSetEnd()
+    {
+    }
+
+    @Override
+    public void onPushStart(int len)
+    {
+    }
+
+    @Override
+    public void onPushEnd()
+    {
+    }
+
+    @Override
+    public void onAttributeStart(int pairs)
+    {
+    }
+
+    @Override
+    public void onAttributeEnd()
+    {
+    }
+
+    @Override
+    public void onBulk(ByteBuffer value)
+    {
+    }
+
+    @Override
+    public void onStatus(ByteBuffer value)
+    {
+    }
+
+    @Override
+    public void onError(ByteBuffer value)
+    {
+    }
+
+    @Override
+    public void onInteger(long value)
+    {
+    }
+
+    @Override
+    public void onDouble(double value)
+    {
+    }
+
+    @Override
+    public void onBoolean(boolean value)
+    {
+    }
+
+    @Override
+    public void onBigNumber(ByteBuffer digits)
+    {
+    }
+
+    @Override
+    public void onVerbatim(ByteBuffer value)
+    {
+    }
+
+    @Override
+    public void onNil()
+    {
+    }
+}
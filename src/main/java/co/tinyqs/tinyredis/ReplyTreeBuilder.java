@@ -0,0 +1,250 @@
+package co.tinyqs.tinyredis;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ReplyHandler that assembles the parsed elements into a RedisReply tree
+ * 
+ * RESP3 attributes are attached to the reply that follows them (see RedisReply.getAttributes()).
+ */
+public class ReplyTreeBuilder implements ReplyHandler
+{
+    // Attribute frames are marked with a null type since attributes are not replies in their own right
+    private static final RedisReply.Type ATTRIBUTE = null;
+    
+    private final ProtocolReader reader;
+    private RedisReply[][] aggregates = new RedisReply[8][];
+    private RedisReply.Type[] types = new RedisReply.Type[8];
+    private RedisReply[] attributes = new RedisReply[8];
+    private int[] idx = new int[8];
+    private int depth = 0;
+    private RedisReply pendingAttributes = null;
+    private RedisReply reply = null;
+    
+    public ReplyTreeBuilder()
+    {
+        this(null);
+    }
+    
+    /*
+     * Builder that creates zero-copy views when the given reader is in zero-copy mode
+     */
+    ReplyTreeBuilder(ProtocolReader reader)
+    {
+        this.reader = reader;
+    }
+    
+    /**
+     * Return the last completed reply, or null if no reply has been completed since the last call
+     */
+    public RedisReply getReply()
+    {
+        RedisReply result = reply;
+        reply = null;
+        return result;
+    }
+    
+    @Override
+    public void onArrayStart(int len)
+    {
+        start(RedisReply.Type.ARRAY, len);
+    }
+    
+    @Override
+    public void onArrayEnd()
+    {
+        end();
+    }
+    
+    @Override
+    public void onMapStart(int pairs)
+    {
+        start(RedisReply.Type.MAP, pairs * 2);
+    }
+
+    @Override
+    public void onMapEnd()
+    {
+        end();
+    }
+
+    @Override
+    public void onSetStart(int len)
+    {
+        start(RedisReply.Type.SET, len);
+    }
+
+    @Override
+    public void onSetEnd()
+    {
+        end();
+    }
+
+    @Override
+    public void onPushStart(int len)
+    {
+        start(RedisReply.Type.PUSH, len);
+    }
+
+    @Override
+    public void onPushEnd()
+    {
+        end();
+    }
+
+    @Override
+    public void onAttributeStart(int pairs)
+    {
+        start(ATTRIBUTE, pairs * 2);
+    }
+
+    @Override
+    public void onAttributeEnd()
+    {
+        end();
+    }
+    
+    @Override
+    public void onBulk(ByteBuffer value)
+    {
+        add(readString(RedisReply.Type.STRING, value));
+    }
+    
+    @Override
+    public void onStatus(ByteBuffer value)
+    {
+        add(readString(RedisReply.Type.STATUS, value));
+    }
+    
+    @Override
+    public void onError(ByteBuffer value)
+    {
+        add(readString(RedisReply.Type.ERROR, value));
+    }
+    
+    @Override
+    public void onInteger(long value)
+    {
+        add(RedisReply.createInteger(value));
+    }
+    
+    @Override
+    public void onDouble(double value)
+    {
+        add(RedisReply.createDouble(value));
+    }
+
+    @Override
+    public void onBoolean(boolean value)
+    {
+        add(RedisReply.createBoolean(value));
+    }
+
+    @Override
+    public void onBigNumber(ByteBuffer digits)
+    {
+        add(RedisReply.createBigNumber(copy(digits)));
+    }
+
+    @Override
+    public void onVerbatim(ByteBuffer value)
+    {
+        byte[] text = copy(value);
+        String format = new String(text, 0, 3, ProtocolReader.CHARSET);
+        byte[] body = new byte[text.length - 4];
+        System.arraycopy(text, 4, body, 0, body.length);
+        add(RedisReply.createVerbatim(format, body));
+    }
+    
+    @Override
+    public void onNil()
+    {
+        add(RedisReply.createNil());
+    }
+    
+    private void start(RedisReply.Type type, int len)
+    {
+        if (depth == aggregates.length)
+        {
+            RedisReply[][] grownAggregates = new RedisReply[depth * 2][];
+            System.arraycopy(aggregates, 0, grownAggregates, 0, depth);
+            aggregates = grownAggregates;
+            RedisReply.Type[] grownTypes = new RedisReply.Type[depth * 2];
+            System.arraycopy(types, 0, grownTypes, 0, depth);
+            types = grownTypes;
+            RedisReply[] grownAttributes = new RedisReply[depth * 2];
+            System.arraycopy(attributes, 0, grownAttributes, 0, depth);
+            attributes = grownAttributes;
+            int[] grownIdx = new int[depth * 2];
+            System.arraycopy(idx, 0, grownIdx, 0, depth);
+            idx = grownIdx;
+        }
+        aggregates[depth] = new RedisReply[len];
+        types[depth] = type;
+        // Attributes sent before an aggregate belong to the aggregate, not to its first element
+        attributes[depth] = type == ATTRIBUTE ? null : pendingAttributes;
+        if (type != ATTRIBUTE)
+        {
+            pendingAttributes = null;
+        }
+        idx[depth] = 0;
+        depth++;
+    }
+    
+    private void end()
+    {
+        depth--;
+        RedisReply[] elements = aggregates[depth];
+        RedisReply.Type type = types[depth];
+        RedisReply attrs = attributes[depth];
+        aggregates[depth] = null;
+        attributes[depth] = null;
+        if (type == ATTRIBUTE)
+        {
+            pendingAttributes = RedisReply.createAggregate(RedisReply.Type.MAP, elements);
+            return;
+        }
+        pendingAttributes = attrs;
+        add(RedisReply.createAggregate(type, elements));
+    }
+    
+    private void add(RedisReply element)
+    {
+        if (pendingAttributes != null)
+        {
+            element.setAttributes(pendingAttributes);
+            pendingAttributes = null;
+        }
+        if (depth == 0)
+        {
+            reply = element;
+        }
+        else
+        {
+            aggregates[depth - 1][idx[depth - 1]++] = element;
+        }
+    }
+    
+    private static byte[] copy(ByteBuffer value)
+    {
+        byte[] msg = new byte[value.remaining()];
+        value.get(msg);
+        return msg;
+    }
+    
+    /*
+     * Read a string-type reply either as a copy, or as a view when the reader is in zero-copy mode
+     */
+    private RedisReply readString(RedisReply.Type type, ByteBuffer value)
+    {
+        ReplyBuffer source = reader == null ? null : reader.currentBuffer();
+        if (source != null)
+        {
+            source.retain();
+            return RedisReply.createView(type, source, value.position(), value.remaining());
+        }
+        
+        byte[] msg = copy(value);
+        return type == RedisReply.Type.STRING ? RedisReply.createBulkString(msg) : RedisReply.createString(type, msg);
+    }
+}
@@ -0,0 +1,581 @@
+package co.tinyqs.tinyredis;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe client that shards keys across independent redis servers with Ketama consistent hashing
+ *
+ * Each command is sent to the shard that owns its key, which by default is the first key argument (see
+ * Commands.keyIndex) and can be set per command with keyPosition(). Commands without a key go to an arbitrary shard.
+ *
+ * MGET, MSET, DEL, UNLINK, EXISTS and TOUCH are split by shard and the parts sent to all shards in parallel. MGET
+ * replies are reassembled in the original key order, and counts are summed. Such commands are not atomic across
+ * shards, and the first error reply from any shard is returned in place of the combined reply.
+ *
+ * Shards are named "host:port" unless given an explicit name. Names, not addresses, decide where keys live, so a
+ * shard can be moved to another address under the same name without remapping its keys.
+ */
+public class ShardedRedisClient implements AutoCloseable
+{
+    private static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final Map<String, SocketAddress> addresses = new LinkedHashMap<>();
+    private final Map<String, Integer> keyPositions = new ConcurrentHashMap<>();
+    private final ProtocolWriter writer = new ProtocolWriter();
+    private final Map<String, Shard> shards = new LinkedHashMap<>();
+    private volatile HashRing<Shard> ring;
+    private ExecutorService executor;
+    private int poolSize = 8;
+    private int connectTimeout = 0;
+    private int virtualNodes = DEFAULT_VIRTUAL_NODES;
+    private volatile boolean exceptionOnError = false;
+
+    /**
+     * Create a client for the given shards. Configure it with the builder methods, then call start().
+     */
+    public ShardedRedisClient(SocketAddress... shards)
+    {
+        for (SocketAddress addr : shards)
+        {
+            shard(nameOf(addr), addr);
+        }
+    }
+
+    /**
+     * Add a shard with an explicit name before the client is started
+     */
+    public ShardedRedisClient shard(String name, SocketAddress addr)
+    {
+        checkNotStarted();
+        Preconditions.checkNotNull(name, "Shard name may not be null");
+        Preconditions.checkNotNull(addr, "Shard address may not be null");
+        Preconditions.checkState(addresses.put(name, addr) == null, "Duplicate shard: " + name);
+        return this;
+    }
+
+    /**
+     * Route the given command by the argument at <strong>index</strong> (0 being the command name)
+     */
+    public ShardedRedisClient keyPosition(String command, int index)
+    {
+        Preconditions.checkState(index > 0, "Key position must be positive");
+        keyPositions.put(command.toUpperCase(), index);
+        return this;
+    }
+
+    /**
+     * Number of points each shard has on the hash ring, 160 by default
+     */
+    public ShardedRedisClient virtualNodes(int virtualNodes)
+    {
+        checkNotStarted();
+        Preconditions.checkState(virtualNodes > 0, "virtualNodes must be positive");
+        this.virtualNodes = virtualNodes;
+        return this;
+    }
+
+    /**
+     * Maximum number of connections to each shard, 8 by default
+     */
+    public ShardedRedisClient poolSize(int poolSize)
+    {
+        checkNotStarted();
+        Preconditions.checkState(poolSize > 0, "poolSize must be positive");
+        this.poolSize = poolSize;
+        return this;
+    }
+
+    /**
+     * Connect timeout in ms for new connections, 0 (no timeout) by default
+     */
+    public ShardedRedisClient connectTimeout(int connectTimeout)
+    {
+        checkNotStarted();
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    public ShardedRedisClient registerSerializer(RedisSerializer serializer)
+    {
+        checkNotStarted();
+        writer.registerSerializer(serializer);
+        return this;
+    }
+
+    public ShardedRedisClient exceptionOnError(boolean exceptionOnError)
+    {
+        this.exceptionOnError = exceptionOnError;
+        return this;
+    }
+
+    /**
+     * Create a pool for every shard and build the hash ring. Connections are opened on first use.
+     */
+    public synchronized ShardedRedisClient start() throws IOException
+    {
+        checkNotStarted();
+        Preconditions.checkState(!addresses.isEmpty(), "At least one shard is required");
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        for (Map.Entry<String, SocketAddress> entry : addresses.entrySet())
+        {
+            shards.put(entry.getKey(), new Shard(entry.getKey(), createPool(entry.getValue()).start()));
+        }
+        ring = new HashRing<>(shards, virtualNodes);
+        return this;
+    }
+
+    /**
+     * Add a shard to a running client. About 1/N of the keys, where N is the new number of shards, move to it.
+     */
+    public synchronized void addShard(String name, SocketAddress addr) throws IOException
+    {
+        checkStarted();
+        Preconditions.checkState(!shards.containsKey(name), "Duplicate shard: " + name);
+        shards.put(name, new Shard(name, createPool(addr).start()));
+        ring = new HashRing<>(shards, virtualNodes);
+    }
+
+    public void addShard(SocketAddress addr) throws IOException
+    {
+        addShard(nameOf(addr), addr);
+    }
+
+    /**
+     * Remove a shard from a running client. Its keys are spread over the remaining shards. Commands already sent to the
+     * shard finish first: its pool is closed once the last of them returns.
+     */
+    public synchronized void removeShard(String name)
+    {
+        checkStarted();
+        Preconditions.checkState(shards.size() > 1, "Unable to remove the last shard");
+        Shard removed = shards.remove(name);
+        Preconditions.checkState(removed != null, "Unknown shard: " + name);
+        ring = new HashRing<>(shards, virtualNodes);
+        removed.retire();
+    }
+
+    /**
+     * Create the pool for a shard. Override to tune pools, eg their idle or borrow timeouts.
+     */
+    protected RedisConnectionPool createPool(SocketAddress addr)
+    {
+        return new RedisConnectionPool(addr).maxSize(poolSize).connectTimeout(connectTimeout);
+    }
+
+    /**
+     * Return the name of the shard that owns the given key
+     */
+    public String getShard(String key)
+    {
+        checkStarted();
+        return ring.get(ByteBuffer.wrap(key.getBytes(ProtocolReader.CHARSET))).name;
+    }
+
+    /**
+     * Compile a format string into a template that can be reused with sendCommand(CommandTemplate, ...)
+     */
+    public CommandTemplate compile(String format)
+    {
+        return writer.compile(format);
+    }
+
+    /**
+     * Send a command to the shard that owns its key, or split it across shards if it is a multi-key command
+     *
+     * @see RedisConnection#sendCommand(String, Object...)
+     */
+    public RedisReply sendCommand(String format, Object... args) throws IOException
+    {
+        return sendCommand(compile(format), args);
+    }
+
+    public RedisReply sendCommand(CommandTemplate template, Object... args) throws IOException
+    {
+        checkStarted();
+        ByteBuffer command = writer.formatCommand(template, args);
+        String name = Commands.name(command);
+        RedisReply reply;
+        switch (name == null ? "" : name)
+        {
+            case "MGET":
+                reply = fanOut(command, 1, Merge.ARRAY);
+                break;
+            case "MSET":
+                reply = fanOut(command, 2, Merge.OK);
+                break;
+            case "DEL":
+            case "UNLINK":
+            case "EXISTS":
+            case "TOUCH":
+                reply = fanOut(command, 1, Merge.SUM);
+                break;
+            default:
+                reply = sendToKey(command, name);
+                break;
+        }
+        if (exceptionOnError && reply.getType() == RedisReply.Type.ERROR)
+        {
+            String message = reply.getString();
+            reply.release();
+            throw new RedisErrorException(message);
+        }
+        return reply;
+    }
+
+    /*
+     * Send a single-key command to the shard that owns its key, looking the key up again if that shard was removed
+     * before the command could start
+     */
+    private RedisReply sendToKey(ByteBuffer command, String name) throws IOException
+    {
+        while (true)
+        {
+            Shard shard = shardFor(command, name);
+            if (shard.enter())
+            {
+                try
+                {
+                    return send(shard, command);
+                }
+                finally
+                {
+                    shard.exit();
+                }
+            }
+        }
+    }
+
+    /*
+     * Return the shard for a single-key command
+     */
+    Shard shardFor(ByteBuffer command, String name)
+    {
+        HashRing<Shard> current = ring;
+        Integer position = name == null ? null : keyPositions.get(name);
+        int index = position != null ? position : Commands.keyIndex(command);
+        ByteBuffer key = index < 0 ? null : Commands.arg(command, index);
+        // Keyless commands hash their name, which spreads different commands over the shards
+        return current.get(key != null ? key : Commands.arg(command, 0));
+    }
+
+    private enum Merge { ARRAY, SUM, OK }
+
+    /*
+     * Split a multi-key command by shard, send the parts in parallel and combine the replies. Each key takes up
+     * <strong>step</strong> arguments, eg 2 for MSET's key and value.
+     */
+    private RedisReply fanOut(ByteBuffer command, int step, Merge merge) throws IOException
+    {
+        ByteBuffer[] args = Commands.args(command);
+        if (args == null || args.length < 2 || (args.length - 1) % step != 0)
+        {
+            // Let the server reject it with its usual error
+            return sendToKey(command, Commands.name(command));
+        }
+        Map<Shard, List<Integer>> groups;
+        do
+        {
+            groups = group(args, step);
+        }
+        while (groups == null);
+        try
+        {
+            return fanOut(args, step, merge, command, groups);
+        }
+        finally
+        {
+            for (Shard shard : groups.keySet())
+            {
+                shard.exit();
+            }
+        }
+    }
+
+    /*
+     * Group key indexes by shard and enter every shard, or return null if one was removed in the meantime
+     */
+    private Map<Shard, List<Integer>> group(ByteBuffer[] args, int step)
+    {
+        HashRing<Shard> current = ring;
+        Map<Shard, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 1; i < args.length; i += step)
+        {
+            Shard shard = current.get(args[i]);
+            List<Integer> group = groups.get(shard);
+            if (group == null)
+            {
+                if (!shard.enter())
+                {
+                    for (Shard entered : groups.keySet())
+                    {
+                        entered.exit();
+                    }
+                    return null;
+                }
+                group = new ArrayList<>();
+                groups.put(shard, group);
+            }
+            group.add(i);
+        }
+        return groups;
+    }
+
+    private RedisReply fanOut(ByteBuffer[] args, int step, Merge merge, ByteBuffer command, Map<Shard, List<Integer>> groups)
+        throws IOException
+    {
+        if (groups.size() == 1)
+        {
+            return send(groups.keySet().iterator().next(), command);
+        }
+
+        List<Future<RedisReply>> futures = new ArrayList<>(groups.size());
+        for (Map.Entry<Shard, List<Integer>> group : groups.entrySet())
+        {
+            List<Integer> indexes = group.getValue();
+            ByteBuffer[] part = new ByteBuffer[indexes.size() * step + 1];
+            part[0] = args[0];
+            int idx = 1;
+            for (int index : indexes)
+            {
+                for (int j = 0; j < step; j++)
+                {
+                    part[idx++] = args[index + j];
+                }
+            }
+            final Shard shard = group.getKey();
+            final ByteBuffer partCommand = Commands.build(part);
+            futures.add(executor.submit(new Callable<RedisReply>()
+            {
+                @Override
+                public RedisReply call() throws IOException
+                {
+                    return send(shard, partCommand);
+                }
+            }));
+        }
+        List<RedisReply> replies = await(futures);
+
+        RedisReply error = null;
+        for (RedisReply reply : replies)
+        {
+            if (reply.getType() == RedisReply.Type.ERROR && error == null)
+            {
+                error = reply;
+            }
+        }
+        if (error != null)
+        {
+            for (RedisReply reply : replies)
+            {
+                if (reply != error)
+                {
+                    reply.release();
+                }
+            }
+            return error;
+        }
+
+        switch (merge)
+        {
+            case ARRAY:
+            {
+                RedisReply[] combined = new RedisReply[(args.length - 1) / step];
+                int g = 0;
+                for (List<Integer> indexes : groups.values())
+                {
+                    RedisReply[] elements = replies.get(g++).getElements();
+                    for (int i = 0; i < indexes.size(); i++)
+                    {
+                        combined[(indexes.get(i) - 1) / step] = elements[i];
+                    }
+                }
+                return RedisReply.createArray(combined);
+            }
+            case SUM:
+            {
+                long sum = 0;
+                for (RedisReply reply : replies)
+                {
+                    sum += reply.getInteger();
+                }
+                return RedisReply.createInteger(sum);
+            }
+            default:
+                for (int i = 1; i < replies.size(); i++)
+                {
+                    replies.get(i).release();
+                }
+                return replies.get(0);
+        }
+    }
+
+    /*
+     * Wait for every part of a fanned out command. If any part fails, the others are still waited for and released.
+     */
+    private static List<RedisReply> await(List<Future<RedisReply>> futures) throws IOException
+    {
+        List<RedisReply> replies = new ArrayList<>(futures.size());
+        Throwable failure = null;
+        for (Future<RedisReply> future : futures)
+        {
+            try
+            {
+                replies.add(future.get());
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                failure = new InterruptedIOException("Interrupted waiting for shard replies");
+                break;
+            }
+            catch (ExecutionException e)
+            {
+                if (failure == null)
+                {
+                    failure = e.getCause();
+                }
+            }
+        }
+        if (failure == null)
+        {
+            return replies;
+        }
+        for (RedisReply reply : replies)
+        {
+            reply.release();
+        }
+        if (failure instanceof IOException)
+        {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException)
+        {
+            throw (RuntimeException) failure;
+        }
+        throw new IOException(failure);
+    }
+
+    private static RedisReply send(Shard shard, ByteBuffer command) throws IOException
+    {
+        RedisConnection conn = shard.pool.borrow();
+        try
+        {
+            return conn.sendFormattedCommand(command.duplicate());
+        }
+        finally
+        {
+            shard.pool.release(conn);
+        }
+    }
+
+    private static String nameOf(SocketAddress addr)
+    {
+        if (addr instanceof InetSocketAddress)
+        {
+            InetSocketAddress inet = (InetSocketAddress) addr;
+            return inet.getHostString() + ":" + inet.getPort();
+        }
+        return addr.toString();
+    }
+
+    private void checkNotStarted()
+    {
+        Preconditions.checkState(executor == null, "Client has already been started");
+    }
+
+    private void checkStarted()
+    {
+        Preconditions.checkState(executor != null, "Client has not been started");
+    }
+
+    /**
+     * Close every shard's pool. Borrowed connections are closed when they are returned.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (executor == null)
+        {
+            return;
+        }
+        executor.shutdownNow();
+        for (Shard shard : shards.values())
+        {
+            shard.pool.close();
+        }
+    }
+
+    static final class Shard
+    {
+        final String name;
+        final RedisConnectionPool pool;
+        // Commands using the shard, or -1 once it has been removed and its pool closed
+        private final AtomicInteger users = new AtomicInteger();
+        private volatile boolean retired = false;
+
+        Shard(String name, RedisConnectionPool pool)
+        {
+            this.name = name;
+            this.pool = pool;
+        }
+
+        /**
+         * Start using the shard, unless its pool has been closed
+         */
+        boolean enter()
+        {
+            while (true)
+            {
+                int current = users.get();
+                if (current < 0)
+                {
+                    return false;
+                }
+                if (users.compareAndSet(current, current + 1))
+                {
+                    return true;
+                }
+            }
+        }
+
+        void exit()
+        {
+            if (users.decrementAndGet() == 0 && retired)
+            {
+                closeIfUnused();
+            }
+        }
+
+        /**
+         * Close the pool as soon as no command is using the shard. Called once it is no longer in the ring.
+         */
+        void retire()
+        {
+            retired = true;
+            closeIfUnused();
+        }
+
+        private void closeIfUnused()
+        {
+            if (users.compareAndSet(0, -1))
+            {
+                pool.close();
+            }
+        }
+    }
+}
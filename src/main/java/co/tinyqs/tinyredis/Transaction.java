@@ -0,0 +1,173 @@
+package co.tinyqs.tinyredis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A MULTI/EXEC transaction on one connection
+ *
+ * Commands are formatted as they are added and held until execute(), which writes MULTI, every command and EXEC with a
+ * single flush, so the whole transaction costs one round trip. The QUEUED replies are checked once all replies have
+ * arrived, and the EXEC reply is split into one reply per command. Error replies of individual commands are returned
+ * as they are, regardless of exceptionOnError.
+ *
+ * For optimistic locking, RedisConnection.transaction() WATCHes keys, lets a Body read them and add commands, and
+ * retries while EXEC is aborted because a watched key changed. A transaction is not thread-safe and may be executed
+ * more than once.
+ */
+public class Transaction
+{
+    /**
+     * Builds a transaction, after the watched keys have been WATCHed. May read keys through the connection, and is
+     * called again with an empty transaction on every retry.
+     */
+    public interface Body
+    {
+        public void build(RedisConnection conn, Transaction tx) throws IOException;
+    }
+
+    private final RedisConnection connection;
+    private final List<ByteBuffer> commands = new ArrayList<>();
+
+    Transaction(RedisConnection connection)
+    {
+        this.connection = connection;
+    }
+
+    /**
+     * Add a command to the transaction. Nothing is sent until execute().
+     *
+     * @see RedisConnection#sendCommand(String, Object...)
+     */
+    public Transaction add(String format, Object... args) throws IOException
+    {
+        commands.add(connection.format(format, args));
+        return this;
+    }
+
+    public Transaction add(CommandTemplate template, Object... args) throws IOException
+    {
+        commands.add(connection.format(template, args));
+        return this;
+    }
+
+    public int size()
+    {
+        return commands.size();
+    }
+
+    /**
+     * Send the transaction and wait for its result
+     *
+     * @return the replies in the order the commands were added, or null if the transaction was aborted because a
+     *         watched key changed
+     * @throws RedisErrorException - If MULTI or a command was rejected, in which case no command was executed, or if
+     *                               EXEC failed
+     */
+    public List<RedisReply> execute() throws IOException
+    {
+        connection.appendCommand("MULTI");
+        for (ByteBuffer command : commands)
+        {
+            connection.appendFormattedCommand(command.duplicate());
+        }
+        connection.appendCommand("EXEC");
+        connection.flushBlocking();
+
+        // Read every reply before reporting errors, so the connection is left in sync
+        String error = rejection("MULTI", connection.readReply());
+        for (int i = 0; i < commands.size(); i++)
+        {
+            String rejected = rejection("Command " + i, connection.readReply());
+            error = error != null ? error : rejected;
+        }
+        RedisReply exec = connection.readReply();
+        String failed = rejection("EXEC", exec);
+        if (error != null || failed != null)
+        {
+            throw new RedisErrorException(error != null ? error : failed);
+        }
+        if (exec.getType() == RedisReply.Type.NIL)
+        {
+            return null;
+        }
+        RedisReply[] results = exec.getElements();
+        if (results.length != commands.size())
+        {
+            exec.release();
+            throw new RedisErrorException("Expected " + commands.size() + " results from EXEC but got " + results.length);
+        }
+        return Arrays.asList(results);
+    }
+
+    /*
+     * Release a reply and return a message if it is an error
+     */
+    private static String rejection(String what, RedisReply reply)
+    {
+        try
+        {
+            return reply.getType() == RedisReply.Type.ERROR ? what + " failed: " + reply.getString() : null;
+        }
+        finally
+        {
+            if (reply.getType() == RedisReply.Type.ERROR || reply.getType() == RedisReply.Type.STATUS)
+            {
+                reply.release();
+            }
+        }
+    }
+
+    /*
+     * WATCH the keys, build a transaction and execute it, until it isn't aborted or the attempts run out
+     */
+    static List<RedisReply> run(RedisConnection conn, int maxAttempts, Body body, String... watchKeys) throws IOException
+    {
+        Preconditions.checkState(maxAttempts > 0, "maxAttempts must be positive");
+        Preconditions.checkNotNull(body);
+        for (int attempt = 0; attempt < maxAttempts; attempt++)
+        {
+            Transaction tx = new Transaction(conn);
+            if (watchKeys.length > 0)
+            {
+                BinaryCommand watch = conn.command(watchKeys.length + 1).arg("WATCH");
+                for (String key : watchKeys)
+                {
+                    watch.arg(key);
+                }
+                watch.sendForOk();
+            }
+            try
+            {
+                body.build(conn, tx);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                unwatch(conn, watchKeys);
+                throw e;
+            }
+            if (tx.size() == 0)
+            {
+                unwatch(conn, watchKeys);
+                return new ArrayList<>();
+            }
+            List<RedisReply> results = tx.execute();
+            if (results != null)
+            {
+                return results;
+            }
+        }
+        return null;
+    }
+
+    private static void unwatch(RedisConnection conn, String... watchKeys) throws IOException
+    {
+        if (watchKeys.length > 0 && !conn.isErrorState())
+        {
+            conn.command(1).arg("UNWATCH").sendForOk();
+        }
+    }
+}
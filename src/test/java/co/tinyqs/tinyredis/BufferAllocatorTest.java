@@ -0,0 +1,150 @@
+package co.tinyqs.tinyredis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BufferAllocatorTest
+{
+    private FakeRedisServer server;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new FakeRedisServer();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        server.close();
+    }
+
+    @Test
+    public void testSizeClasses()
+    {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(true, 1024, 1024*64, 1024*128);
+        ByteBuffer small = allocator.allocate(10);
+        assertTrue(small.isDirect());
+        assertEquals(1024, small.capacity());
+        ByteBuffer medium = allocator.allocate(5000);
+        assertEquals(8192, medium.capacity());
+        assertEquals(2, allocator.getCreatedCount());
+
+        medium.put((byte) 1);
+        allocator.release(medium);
+        assertEquals(8192, allocator.getPooledBytes());
+        ByteBuffer reused = allocator.allocate(4097);
+        assertSame(medium, reused);
+        assertEquals(0, reused.position());
+        assertEquals(8192, reused.limit());
+        assertEquals(0, allocator.getPooledBytes());
+
+        // Oversized requests are never pooled
+        ByteBuffer large = allocator.allocate(1024*64 + 1);
+        assertEquals(1024*128, large.capacity());
+        allocator.release(large);
+        assertEquals(0, allocator.getPooledBytes());
+    }
+
+    @Test
+    public void testReleaseIgnoresForeignBuffers()
+    {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(true, 1024, 1024*64, 1024*16);
+        allocator.release(ByteBuffer.allocate(1024));
+        allocator.release(ByteBuffer.allocateDirect(1000));
+        allocator.release(ByteBuffer.allocateDirect(1024).asReadOnlyBuffer());
+        allocator.release(BufferUtils.EMPTY);
+        assertEquals(0, allocator.getPooledBytes());
+
+        // Idle buffers are capped
+        for (int i = 0; i < 4; i++)
+        {
+            allocator.release(ByteBuffer.allocateDirect(1024*8));
+        }
+        assertEquals(1024*16, allocator.getPooledBytes());
+    }
+
+    @Test
+    public void testReaderReusesBuffers() throws IOException
+    {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(false, 1024, 1024*1024, 1024*1024*4);
+        ProtocolReader reader = new ProtocolReader();
+        reader.setAllocator(allocator);
+        byte[] value = new byte[1024*200];
+        Arrays.fill(value, (byte) 'v');
+        ByteBuffer reply = ByteBuffer.allocate(value.length + 16);
+        reply.put(BufferUtils.encodeHeader('$', value.length)).put(value).put("\r\n".getBytes(ProtocolReader.CHARSET)).flip();
+
+        long created = 0;
+        for (int i = 0; i < 20; i++)
+        {
+            // Feed in small chunks so the buffer has to grow, then shrinks again once the reply has been read
+            ByteBuffer input = reply.duplicate();
+            while (input.hasRemaining())
+            {
+                ByteBuffer chunk = input.duplicate();
+                chunk.limit(Math.min(input.limit(), input.position() + 1024*16));
+                input.position(chunk.limit());
+                reader.feed(chunk);
+            }
+            assertTrue(Arrays.equals(value, reader.getReply().getBytes()));
+            reader.feed(BufferUtils.encode("+OK\r\n"));
+            assertEquals("OK", reader.getReply().getString());
+            if (i == 0)
+            {
+                created = allocator.getCreatedCount();
+            }
+        }
+        assertEquals("Growing again should reuse pooled buffers", created, allocator.getCreatedCount());
+    }
+
+    @Test
+    public void testDirectConnection() throws Exception
+    {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(true, 1024*4, 1024*1024*4, 1024*1024*16);
+        byte[] value = new byte[1024*1024 + 7];
+        new Random(42).nextBytes(value);
+        try (RedisConnectionPool pool = new RedisConnectionPool(server.getAddress()).bufferAllocator(allocator).start())
+        {
+            try (RedisConnection conn = pool.borrow())
+            {
+                assertTrue(conn.command(3).arg("SET").arg("blob").arg(value).sendForOk());
+                for (int i = 0; i < 1000; i++)
+                {
+                    if (i % 2 == 0)
+                    {
+                        conn.appendCommand("ECHO %s", i);
+                    }
+                    else
+                    {
+                        conn.command(2).arg("ECHO").arg(i).append();
+                    }
+                }
+                for (int i = 0; i < 1000; i++)
+                {
+                    assertEquals(Integer.toString(i), conn.getReply().getString());
+                }
+                assertTrue(Arrays.equals(value, conn.sendCommand("GET blob").getBytes()));
+
+                conn.zeroCopyReplies(true);
+                try (RedisReply reply = conn.sendCommand("GET blob"))
+                {
+                    assertTrue(reply.isView());
+                    assertTrue(reply.getBuffer().isDirect());
+                    assertTrue(Arrays.equals(value, reply.getBytes()));
+                }
+            }
+        }
+        assertTrue("Closing the pool should return its buffers", allocator.getPooledBytes() > 0);
+    }
+}
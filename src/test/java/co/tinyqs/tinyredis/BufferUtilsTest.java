@@ -0,0 +1,89 @@
+package co.tinyqs.tinyredis;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BufferUtilsTest
+{
+    private static final byte[] ALPHABET = {'x', '0', '\r', '\n', '\r', 0, (byte) 0x8D, (byte) 0xFF};
+
+    @Test
+    public void testSeekNewLine()
+    {
+        assertEquals(5, BufferUtils.seekNewLine(BufferUtils.encode("+OK\r\n")));
+        assertEquals(-1, BufferUtils.seekNewLine(BufferUtils.encode("+OK\r")));
+        assertEquals(-1, BufferUtils.seekNewLine(BufferUtils.encode("+OK\n\r")));
+        assertEquals(-1, BufferUtils.seekNewLine(BufferUtils.encode("")));
+        assertEquals(2, BufferUtils.seekNewLine(BufferUtils.encode("\r\n\r\n")));
+    }
+
+    @Test
+    public void testSeekNewLineAfterCarriageReturns()
+    {
+        ByteBuffer buffer = BufferUtils.encode("a\r\r\n");
+        assertEquals(4, BufferUtils.seekNewLine(buffer));
+        assertEquals(0, buffer.position());
+
+        buffer = BufferUtils.encode("0123456789\r\r\r");
+        assertEquals(-1, BufferUtils.seekNewLine(buffer));
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void testSeekNewLineRespectsPositionAndLimit()
+    {
+        ByteBuffer buffer = BufferUtils.encode("$3\r\nfoo\r\n0123456789abcdef\r\n");
+        buffer.position(4);
+        assertEquals(9, BufferUtils.seekNewLine(buffer));
+        assertEquals(4, buffer.position());
+
+        buffer.position(9);
+        buffer.limit(buffer.capacity() - 1);
+        assertEquals(-1, BufferUtils.seekNewLine(buffer));
+        assertEquals(9, buffer.position());
+    }
+
+    @Test
+    public void testSeekNewLineMatchesScalar()
+    {
+        Random random = new Random(42);
+        for (int n = 0; n < 20000; n++)
+        {
+            int len = random.nextInt(80);
+            byte[] bytes = new byte[len];
+            // Mostly plain bytes, with a few CRs and LFs in random places
+            for (int i = 0; i < len; i++)
+            {
+                bytes[i] = random.nextInt(8) == 0 ? ALPHABET[random.nextInt(ALPHABET.length)] : (byte) 'x';
+            }
+            int offset = len == 0 ? 0 : random.nextInt(len);
+            int limit = offset + (len == offset ? 0 : random.nextInt(len - offset + 1));
+
+            ByteBuffer heap = ByteBuffer.wrap(bytes);
+            ByteBuffer direct = ByteBuffer.allocateDirect(len);
+            direct.put(bytes).clear();
+            for (ByteBuffer buffer : new ByteBuffer[] { heap, direct, heap.asReadOnlyBuffer() })
+            {
+                buffer.limit(limit).position(offset);
+                assertEquals(scalarSeekNewLine(bytes, offset, limit), BufferUtils.seekNewLine(buffer));
+                assertEquals(offset, buffer.position());
+            }
+        }
+    }
+
+    private static int scalarSeekNewLine(byte[] bytes, int from, int limit)
+    {
+        for (int i = from; i + 1 < limit; i++)
+        {
+            if (bytes[i] == '\r' && bytes[i + 1] == '\n')
+            {
+                return i + 2;
+            }
+        }
+        return -1;
+    }
+}
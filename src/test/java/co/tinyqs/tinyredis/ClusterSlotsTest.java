@@ -0,0 +1,53 @@
+package co.tinyqs.tinyredis;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class ClusterSlotsTest
+{
+    @Test
+    public void testCrc16()
+    {
+        byte[] check = "123456789".getBytes(ProtocolReader.CHARSET);
+        assertEquals(0x31C3, ClusterSlots.crc16(ByteBuffer.wrap(check), 0, check.length));
+    }
+
+    @Test
+    public void testSlots()
+    {
+        assertEquals(12182, ClusterSlots.slot("foo"));
+        assertEquals(5061, ClusterSlots.slot("bar"));
+        assertEquals(0, ClusterSlots.slot(""));
+        assertEquals(ClusterSlots.slot("foo"), ClusterSlots.slot("foo".getBytes(ProtocolReader.CHARSET)));
+    }
+
+    @Test
+    public void testHashtags()
+    {
+        assertEquals(ClusterSlots.slot("user1000"), ClusterSlots.slot("{user1000}.following"));
+        assertEquals(ClusterSlots.slot("user1000"), ClusterSlots.slot("{user1000}.followers"));
+        // Only the first {...} counts
+        assertEquals(ClusterSlots.slot("bar"), ClusterSlots.slot("foo{bar}{zap}"));
+        assertEquals(ClusterSlots.slot("{bar"), ClusterSlots.slot("foo{{bar}}zap"));
+        // Empty or unterminated hashtags hash the whole key
+        assertEquals(ClusterSlots.crc16(wrap("foo{}{bar}"), 0, 10) & 16383, ClusterSlots.slot("foo{}{bar}"));
+        assertEquals(ClusterSlots.crc16(wrap("foo{bar"), 0, 7) & 16383, ClusterSlots.slot("foo{bar"));
+    }
+
+    @Test
+    public void testBufferPosition()
+    {
+        ByteBuffer buf = wrap("xxfoo");
+        buf.position(2);
+        assertEquals(12182, ClusterSlots.slot(buf));
+        assertEquals(2, buf.position());
+    }
+
+    private static ByteBuffer wrap(String s)
+    {
+        return ByteBuffer.wrap(s.getBytes(ProtocolReader.CHARSET));
+    }
+}
@@ -0,0 +1,169 @@
+package co.tinyqs.tinyredis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class CommandEncoderTest
+{
+    private static final int BATCH = 100;
+    private static final int ROUNDS = 200;
+
+    @Test
+    public void testEncode()
+    {
+        CommandEncoder encoder = new CommandEncoder();
+        ByteBuffer value = ByteBuffer.wrap("xxbar".getBytes(StandardCharsets.UTF_8));
+        value.position(2);
+        encoder.begin(5).arg("SET").arg("foo".getBytes(StandardCharsets.UTF_8)).arg(value).arg(-1234567890123L).arg("é😀").end();
+        assertEquals(2, value.position());
+        assertEquals("*5\r\n$3\r\nSET\r\n$3\r\nfoo\r\n$3\r\nbar\r\n$14\r\n-1234567890123\r\n$6\r\né😀\r\n", BufferUtils.decode(encoder.beginFlush()));
+    }
+
+    @Test
+    public void testArgumentCountChecked()
+    {
+        CommandEncoder encoder = new CommandEncoder();
+        encoder.begin(1).arg("PING").end();
+        int size = encoder.size();
+        try
+        {
+            encoder.begin(2).arg("GET").end();
+            fail("Should have required 2 arguments");
+        }
+        catch (IllegalStateException e)
+        {
+
+        }
+        try
+        {
+            encoder.begin(1).arg("GET").arg("foo");
+            fail("Should have rejected a 2nd argument");
+        }
+        catch (IllegalStateException e)
+        {
+
+        }
+        // Partial commands are rolled back
+        assertEquals(size, encoder.size());
+    }
+
+    @Test
+    public void testEncoderDoesNotAllocate()
+    {
+        final CommandEncoder encoder = new CommandEncoder();
+        final byte[] key = "counter:1234".getBytes(StandardCharsets.UTF_8);
+        final StringBuilder field = new StringBuilder("field");
+        final ByteBuffer value = ByteBuffer.allocate(64);
+
+        long allocated = measureAllocations(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (int i = 0; i < BATCH; i++)
+                {
+                    encoder.begin(3).arg("INCRBY").arg(key).arg(i).end();
+                    encoder.begin(4).arg("HSET").arg(key).arg(field).arg(value).end();
+                }
+                ByteBuffer out = encoder.beginFlush();
+                out.position(out.limit());
+                encoder.endFlush();
+            }
+        });
+        assertTrue("Expected no garbage per command but got " + allocated + " bytes", allocated < 1024);
+    }
+
+    @Test
+    public void testConnectionAppendDoesNotAllocate() throws Exception
+    {
+        try (FakeRedisServer server = new FakeRedisServer();
+             final RedisConnection conn = RedisConnection.connect(server.getAddress()))
+        {
+            final byte[] key = "counter".getBytes(StandardCharsets.UTF_8);
+            final long[] total = new long[1];
+            long allocated = measureAllocations(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for (int i = 0; i < BATCH; i++)
+                        {
+                            conn.command(3).arg("INCRBY").arg(key).arg(1).append();
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for (int i = 0; i < BATCH; i++)
+                        {
+                            total[0] = conn.getReply().getInteger();
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            assertTrue("Expected no garbage per command but got " + allocated + " bytes", allocated < 1024);
+            assertTrue(total[0] > 0);
+            assertEquals("OK", conn.sendCommand("SET".getBytes(StandardCharsets.UTF_8), key, "1".getBytes(StandardCharsets.UTF_8)).getString());
+        }
+    }
+
+    /*
+     * Warm up the given task, then return the bytes allocated by the measured runs. The optional untimed task is run
+     * after each measured run and is excluded from the total.
+     */
+    private static long measureAllocations(Runnable task, Runnable... untimed)
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        long id = Thread.currentThread().threadId();
+
+        for (int i = 0; i < ROUNDS * 10; i++)
+        {
+            task.run();
+            for (Runnable r : untimed)
+            {
+                r.run();
+            }
+        }
+
+        long allocated = 0;
+        for (int i = 0; i < ROUNDS; i++)
+        {
+            threads.getThreadAllocatedBytes(id);
+            long before = threads.getThreadAllocatedBytes(id);
+            task.run();
+            allocated += threads.getThreadAllocatedBytes(id) - before;
+            for (Runnable r : untimed)
+            {
+                r.run();
+            }
+        }
+        return allocated;
+    }
+}
@@ -0,0 +1,213 @@
+package co.tinyqs.tinyredis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A Redis Cluster made up of FakeRedisServers, each with its own data
+ *
+ * Slots are split evenly between the nodes. Keys in slots a node doesn't own get a MOVED reply, and keys missing from
+ * a slot that is being migrated get an ASK reply pointing at the importing node, which serves them after ASKING.
+ * CLUSTER SHARDS can be disabled to test the CLUSTER SLOTS fallback.
+ */
+public class FakeRedisCluster implements AutoCloseable
+{
+    private final List<FakeRedisServer> nodes = new ArrayList<>();
+    private final FakeRedisServer[] owners = new FakeRedisServer[ClusterSlots.SLOTS];
+    private final ConcurrentMap<Integer, FakeRedisServer> migrating = new ConcurrentHashMap<>();
+    private volatile boolean shardsSupported = true;
+
+    public FakeRedisCluster(int size) throws IOException
+    {
+        for (int i = 0; i < size; i++)
+        {
+            FakeRedisServer node = new FakeRedisServer();
+            node.joinCluster(this);
+            nodes.add(node);
+        }
+        for (int slot = 0; slot < ClusterSlots.SLOTS; slot++)
+        {
+            owners[slot] = nodes.get(slot * size / ClusterSlots.SLOTS);
+        }
+    }
+
+    public FakeRedisServer node(int index)
+    {
+        return nodes.get(index);
+    }
+
+    public int size()
+    {
+        return nodes.size();
+    }
+
+    /**
+     * Return the node that owns the given slot
+     */
+    public synchronized FakeRedisServer owner(int slot)
+    {
+        return owners[slot];
+    }
+
+    /**
+     * Hand a slot over to another node immediately, without telling clients
+     */
+    public synchronized void moveSlot(int slot, FakeRedisServer node)
+    {
+        owners[slot] = node;
+        migrating.remove(slot);
+    }
+
+    /**
+     * Start migrating a slot to another node. Keys that are no longer on the owner are redirected with ASK.
+     */
+    public void migrate(int slot, FakeRedisServer target)
+    {
+        migrating.put(slot, target);
+    }
+
+    public void shardsSupported(boolean shardsSupported)
+    {
+        this.shardsSupported = shardsSupported;
+    }
+
+    /**
+     * Return the MOVED or ASK reply for a key sent to the given node, or null if the node should serve it
+     */
+    synchronized byte[] redirect(FakeRedisServer node, boolean asking, String key) throws IOException
+    {
+        int slot = ClusterSlots.slot(key);
+        FakeRedisServer importing = migrating.get(slot);
+        if (owners[slot] == node)
+        {
+            if (importing != null && !node.containsKey(key))
+            {
+                return FakeRedisServer.error("ASK " + slot + " " + endpoint(importing));
+            }
+            return null;
+        }
+        if (asking && importing == node)
+        {
+            return null;
+        }
+        return FakeRedisServer.error("MOVED " + slot + " " + endpoint(owners[slot]));
+    }
+
+    byte[] handle(String subcommand) throws IOException
+    {
+        if ("SLOTS".equals(subcommand))
+        {
+            return slots();
+        }
+        if ("SHARDS".equals(subcommand) && shardsSupported)
+        {
+            return shards();
+        }
+        return FakeRedisServer.error("ERR unknown subcommand '" + subcommand + "'");
+    }
+
+    private synchronized byte[] slots() throws IOException
+    {
+        List<int[]> ranges = ranges();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(BufferUtils.encodeHeader('*', ranges.size()));
+        for (int[] range : ranges)
+        {
+            InetSocketAddress addr = (InetSocketAddress) nodes.get(range[2]).getAddress();
+            out.write(BufferUtils.encodeHeader('*', 3));
+            out.write(FakeRedisServer.integer(range[0]));
+            out.write(FakeRedisServer.integer(range[1]));
+            out.write(BufferUtils.encodeHeader('*', 3));
+            out.write(bulk(addr.getAddress().getHostAddress()));
+            out.write(FakeRedisServer.integer(addr.getPort()));
+            out.write(bulk("node" + range[2]));
+        }
+        return out.toByteArray();
+    }
+
+    private synchronized byte[] shards() throws IOException
+    {
+        List<int[]> ranges = ranges();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(BufferUtils.encodeHeader('*', nodes.size()));
+        for (int i = 0; i < nodes.size(); i++)
+        {
+            List<int[]> owned = new ArrayList<>();
+            for (int[] range : ranges)
+            {
+                if (range[2] == i)
+                {
+                    owned.add(range);
+                }
+            }
+            InetSocketAddress addr = (InetSocketAddress) nodes.get(i).getAddress();
+            out.write(BufferUtils.encodeHeader('*', 4));
+            out.write(bulk("slots"));
+            out.write(BufferUtils.encodeHeader('*', owned.size() * 2));
+            for (int[] range : owned)
+            {
+                out.write(FakeRedisServer.integer(range[0]));
+                out.write(FakeRedisServer.integer(range[1]));
+            }
+            out.write(bulk("nodes"));
+            out.write(BufferUtils.encodeHeader('*', 1));
+            out.write(BufferUtils.encodeHeader('*', 12));
+            out.write(bulk("id"));
+            out.write(bulk("node" + i));
+            out.write(bulk("port"));
+            out.write(FakeRedisServer.integer(addr.getPort()));
+            out.write(bulk("ip"));
+            out.write(bulk(addr.getAddress().getHostAddress()));
+            out.write(bulk("endpoint"));
+            out.write(bulk(addr.getAddress().getHostAddress()));
+            out.write(bulk("role"));
+            out.write(bulk("master"));
+            out.write(bulk("health"));
+            out.write(bulk("online"));
+        }
+        return out.toByteArray();
+    }
+
+    /*
+     * Contiguous runs of slots owned by the same node, as {start, end, node index}
+     */
+    private List<int[]> ranges()
+    {
+        List<int[]> ranges = new ArrayList<>();
+        int start = 0;
+        for (int slot = 1; slot <= ClusterSlots.SLOTS; slot++)
+        {
+            if (slot == ClusterSlots.SLOTS || owners[slot] != owners[start])
+            {
+                ranges.add(new int[] { start, slot - 1, nodes.indexOf(owners[start]) });
+                start = slot;
+            }
+        }
+        return ranges;
+    }
+
+    private static String endpoint(FakeRedisServer node) throws IOException
+    {
+        InetSocketAddress addr = (InetSocketAddress) node.getAddress();
+        return addr.getAddress().getHostAddress() + ":" + addr.getPort();
+    }
+
+    private static byte[] bulk(String value)
+    {
+        return FakeRedisServer.bulk(value.getBytes(ProtocolReader.CHARSET));
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        for (FakeRedisServer node : nodes)
+        {
+            node.close();
+        }
+    }
+}
@@ -0,0 +1,649 @@
+package co.tinyqs.tinyredis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal in-process stand-in for a redis server, used by tests that need a real socket
+ *
+ * Each client is served by its own thread. Commands are parsed with ProtocolReader and a handful of commands
+ * are answered from an in-memory map. CLIENT TRACKING is supported for GET, either with RESP3 pushes or by
+ * redirecting invalidations to a client subscribed to __redis__:invalidate. MULTI/EXEC transactions are supported,
+ * with WATCH on keys modified by any client. Scripts and functions can be loaded, but rather than running them the
+ * server replies with an array of their keys and arguments. Servers that have joined a FakeRedisCluster redirect keys in slots they
+ * don't own.
+ */
+public class FakeRedisServer implements AutoCloseable
+{
+    private static final Set<String> KEYED = new HashSet<>(Arrays.asList("GET", "SET", "DEL", "INCR", "INCRBY"));
+    private static final Pattern LIBRARY_NAME = Pattern.compile("^#!lua name=(\\w+)");
+    private static final Pattern FUNCTION_NAME = Pattern.compile("register_function\\(\\s*'(\\w+)'");
+    private static final Set<String> QUEUEABLE = new HashSet<>(Arrays.asList("PING", "ECHO", "SET", "MSET", "MGET", "EXISTS",
+                                                                             "GET", "DEL", "INCR", "INCRBY"));
+
+    private final ServerSocketChannel server;
+    private final Thread acceptor;
+    private final ConcurrentMap<String, byte[]> data = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> versions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> scripts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> functions = new ConcurrentHashMap<>();
+    private final AtomicLong scriptLoads = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong ids = new AtomicLong();
+    private final AtomicInteger dropReplies = new AtomicInteger();
+    private final ConcurrentMap<Long, Client> clients = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+    private volatile FakeRedisCluster cluster = null;
+
+    public FakeRedisServer() throws IOException
+    {
+        this(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    /**
+     * Listen on the given address, which may be a UnixDomainSocketAddress
+     */
+    public FakeRedisServer(SocketAddress bind) throws IOException
+    {
+        server = bind instanceof UnixDomainSocketAddress ? ServerSocketChannel.open(StandardProtocolFamily.UNIX) : ServerSocketChannel.open();
+        server.bind(bind);
+        acceptor = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                accept();
+            }
+        }, "fake-redis-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public SocketAddress getAddress() throws IOException
+    {
+        return server.getLocalAddress();
+    }
+
+    /**
+     * Number of commands processed so far
+     */
+    public long getCommandCount()
+    {
+        return commands.get();
+    }
+
+    /**
+     * Number of socket reads performed by the server, which is a rough proxy for the number of client writes
+     */
+    public long getReadCount()
+    {
+        return reads.get();
+    }
+
+    /**
+     * Answer CLUSTER commands and redirect keys this node doesn't own, as a node of the given cluster
+     */
+    void joinCluster(FakeRedisCluster cluster)
+    {
+        this.cluster = cluster;
+    }
+
+    /**
+     * Store a value directly, without going through a client
+     */
+    public void put(String key, byte[] value)
+    {
+        versions.merge(key, 1L, Long::sum);
+        data.put(key, value);
+    }
+
+    /**
+     * Number of scripts loaded with SCRIPT LOAD so far
+     */
+    public long getScriptLoadCount()
+    {
+        return scriptLoads.get();
+    }
+
+    /**
+     * Forget all loaded scripts, as after a restart
+     */
+    public void flushScripts()
+    {
+        scripts.clear();
+    }
+
+    /**
+     * Run the next count commands, but close their connections instead of replying, as if the replies were lost
+     */
+    public void dropReplies(int count)
+    {
+        dropReplies.set(count);
+    }
+
+    public boolean containsKey(String key)
+    {
+        return data.containsKey(key);
+    }
+
+    private void accept()
+    {
+        while (!closed)
+        {
+            try
+            {
+                final SocketChannel client = server.accept();
+                Thread handler = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        serve(client);
+                    }
+                }, "fake-redis-client");
+                handler.setDaemon(true);
+                handler.start();
+            }
+            catch (IOException e)
+            {
+                return;
+            }
+        }
+    }
+
+    private void serve(SocketChannel channel)
+    {
+        Client client = new Client(ids.incrementAndGet(), channel);
+        clients.put(client.id, client);
+        ProtocolReader reader = new ProtocolReader();
+        ByteBuffer input = ByteBuffer.allocate(1024*64);
+        try (SocketChannel ch = channel)
+        {
+            while (!closed)
+            {
+                int nread = channel.read(input);
+                if (nread < 0)
+                {
+                    return;
+                }
+                reads.incrementAndGet();
+                input.flip();
+                reader.feed(input);
+                input.clear();
+
+                RedisReply request;
+                while ((request = reader.getReply()) != null)
+                {
+                    commands.incrementAndGet();
+                    byte[] reply = handle(client, request.getElements());
+                    if (dropReplies.getAndUpdate(n -> Math.max(n - 1, 0)) > 0)
+                    {
+                        return;
+                    }
+                    client.buffer(reply);
+                }
+                client.flush();
+            }
+        }
+        catch (IOException e)
+        {
+            // Client went away
+        }
+        finally
+        {
+            clients.remove(client.id);
+        }
+    }
+
+    private byte[] handle(Client client, RedisReply[] args) throws IOException
+    {
+        String name = args[0].getString().toUpperCase();
+        boolean asking = client.asking;
+        client.asking = false;
+        if (cluster != null && args.length > 1 && KEYED.contains(name))
+        {
+            byte[] redirect = cluster.redirect(this, asking, args[1].getString());
+            if (redirect != null)
+            {
+                return redirect;
+            }
+        }
+        if (client.queued != null && !"EXEC".equals(name) && !"DISCARD".equals(name) && !"MULTI".equals(name)
+            && !"WATCH".equals(name))
+        {
+            if (!QUEUEABLE.contains(name))
+            {
+                client.dirty = true;
+                return error("ERR unknown command '" + name + "'");
+            }
+            client.queued.add(args);
+            return status("QUEUED");
+        }
+        switch (name)
+        {
+            case "MULTI":
+                if (client.queued != null)
+                {
+                    return error("ERR MULTI calls can not be nested");
+                }
+                client.queued = new ArrayList<>();
+                return status("OK");
+            case "EXEC":
+                return exec(client);
+            case "DISCARD":
+                if (client.queued == null)
+                {
+                    return error("ERR DISCARD without MULTI");
+                }
+                client.queued = null;
+                client.dirty = false;
+                client.watched.clear();
+                return status("OK");
+            case "WATCH":
+                if (client.queued != null)
+                {
+                    return error("ERR WATCH inside MULTI is not allowed");
+                }
+                for (int i = 1; i < args.length; i++)
+                {
+                    client.watched.put(args[i].getString(), versions.getOrDefault(args[i].getString(), 0L));
+                }
+                return status("OK");
+            case "UNWATCH":
+                client.watched.clear();
+                return status("OK");
+            case "SCRIPT":
+                if ("LOAD".equalsIgnoreCase(args[1].getString()))
+                {
+                    scriptLoads.incrementAndGet();
+                    String sha = RedisScript.sha1(args[2].getBytes());
+                    scripts.put(sha, args[2].getString());
+                    return bulk(sha.getBytes(ProtocolReader.CHARSET));
+                }
+                return error("ERR unknown subcommand '" + args[1].getString() + "'");
+            case "EVALSHA":
+                if (!scripts.containsKey(args[1].getString().toLowerCase()))
+                {
+                    return error("NOSCRIPT No matching script. Please use EVAL.");
+                }
+                return echoCall(args);
+            case "FUNCTION":
+                return function(args);
+            case "FCALL":
+            case "FCALL_RO":
+                if (!functions.containsKey(args[1].getString()))
+                {
+                    return error("ERR Function not found");
+                }
+                return echoCall(args);
+            case "ASKING":
+                client.asking = true;
+                return status("OK");
+            case "CLUSTER":
+                if (cluster == null)
+                {
+                    return error("ERR This instance has cluster support disabled");
+                }
+                return cluster.handle(args[1].getString().toUpperCase());
+            case "PING":
+                return status("PONG");
+            case "HELLO":
+                if (args.length > 1 && "3".equals(args[1].getString()))
+                {
+                    client.resp3 = true;
+                    return "%2\r\n$6\r\nserver\r\n$4\r\nfake\r\n$5\r\nproto\r\n:3\r\n".getBytes(ProtocolReader.CHARSET);
+                }
+                client.resp3 = false;
+                return "*4\r\n$6\r\nserver\r\n$4\r\nfake\r\n$5\r\nproto\r\n:2\r\n".getBytes(ProtocolReader.CHARSET);
+            case "CLIENT":
+                return client(client, args);
+            case "SUBSCRIBE":
+                return concat(BufferUtils.encodeHeader('*', 3), bulk("subscribe".getBytes(ProtocolReader.CHARSET)), bulk(args[1].getBytes()), integer(1));
+            case "ECHO":
+                return bulk(args[1].getBytes());
+            case "SET":
+                modified(client, args[1].getString());
+                data.put(args[1].getString(), args[2].getBytes());
+                return status("OK");
+            case "MSET":
+                if (args.length < 3 || args.length % 2 == 0)
+                {
+                    return error("ERR wrong number of arguments for 'mset' command");
+                }
+                for (int i = 1; i + 1 < args.length; i += 2)
+                {
+                    modified(client, args[i].getString());
+                    data.put(args[i].getString(), args[i+1].getBytes());
+                }
+                return status("OK");
+            case "MGET":
+            {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                out.write(BufferUtils.encodeHeader('*', args.length - 1));
+                for (int i = 1; i < args.length; i++)
+                {
+                    out.write(bulk(data.get(args[i].getString())));
+                }
+                return out.toByteArray();
+            }
+            case "EXISTS":
+            {
+                int found = 0;
+                for (int i = 1; i < args.length; i++)
+                {
+                    found += data.containsKey(args[i].getString()) ? 1 : 0;
+                }
+                return integer(found);
+            }
+            case "GET":
+                if (client.tracking)
+                {
+                    client.tracked.add(args[1].getString());
+                }
+                if (client.resp3 && !data.containsKey(args[1].getString()))
+                {
+                    return "_\r\n".getBytes(ProtocolReader.CHARSET);
+                }
+                return bulk(data.get(args[1].getString()));
+            case "DEL":
+            {
+                int removed = 0;
+                for (int i = 1; i < args.length; i++)
+                {
+                    modified(client, args[i].getString());
+                    removed += data.remove(args[i].getString()) != null ? 1 : 0;
+                }
+                return integer(removed);
+            }
+            case "INCR":
+            case "INCRBY":
+            {
+                long by = args.length > 2 ? Long.parseLong(args[2].getString()) : 1;
+                String key = args[1].getString();
+                modified(client, key);
+                synchronized (data)
+                {
+                    byte[] current = data.get(key);
+                    long value;
+                    try
+                    {
+                        value = (current == null ? 0 : Long.parseLong(BufferUtils.decode(current))) + by;
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        return error("ERR value is not an integer or out of range");
+                    }
+                    data.put(key, Long.toString(value).getBytes(ProtocolReader.CHARSET));
+                    return integer(value);
+                }
+            }
+            default:
+                return error("ERR unknown command '" + name + "'");
+        }
+    }
+
+    private byte[] exec(Client client) throws IOException
+    {
+        List<RedisReply[]> queued = client.queued;
+        if (queued == null)
+        {
+            return error("ERR EXEC without MULTI");
+        }
+        boolean dirty = client.dirty;
+        client.queued = null;
+        client.dirty = false;
+        try
+        {
+            if (dirty)
+            {
+                return error("EXECABORT Transaction discarded because of previous errors.");
+            }
+            synchronized (data)
+            {
+                for (Map.Entry<String, Long> watch : client.watched.entrySet())
+                {
+                    if (!watch.getValue().equals(versions.getOrDefault(watch.getKey(), 0L)))
+                    {
+                        return (client.resp3 ? "_\r\n" : "*-1\r\n").getBytes(ProtocolReader.CHARSET);
+                    }
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                out.write(BufferUtils.encodeHeader('*', queued.size()));
+                for (RedisReply[] args : queued)
+                {
+                    out.write(handle(client, args));
+                }
+                return out.toByteArray();
+            }
+        }
+        finally
+        {
+            client.watched.clear();
+        }
+    }
+
+    /*
+     * Reply to EVALSHA or FCALL with the keys and arguments it was called with
+     */
+    private static byte[] echoCall(RedisReply[] args) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(BufferUtils.encodeHeader('*', args.length - 3));
+        for (int i = 3; i < args.length; i++)
+        {
+            out.write(bulk(args[i].getBytes()));
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] function(RedisReply[] args)
+    {
+        if (!"LOAD".equalsIgnoreCase(args[1].getString()))
+        {
+            return error("ERR unknown subcommand '" + args[1].getString() + "'");
+        }
+        boolean replace = args.length > 3 && "REPLACE".equalsIgnoreCase(args[2].getString());
+        String code = args[args.length - 1].getString();
+        Matcher name = LIBRARY_NAME.matcher(code);
+        if (!name.find())
+        {
+            return error("ERR Missing library metadata");
+        }
+        String library = name.group(1);
+        if (!replace && functions.containsValue(library))
+        {
+            return error("ERR Library '" + library + "' already exists");
+        }
+        functions.values().removeIf(library::equals);
+        Matcher function = FUNCTION_NAME.matcher(code);
+        while (function.find())
+        {
+            functions.put(function.group(1), library);
+        }
+        return bulk(library.getBytes(ProtocolReader.CHARSET));
+    }
+
+    private byte[] client(Client client, RedisReply[] args)
+    {
+        String sub = args[1].getString().toUpperCase();
+        if ("ID".equals(sub))
+        {
+            return integer(client.id);
+        }
+        if ("TRACKING".equals(sub))
+        {
+            client.tracking = "ON".equalsIgnoreCase(args[2].getString());
+            client.redirect = 0;
+            if (args.length > 4 && "REDIRECT".equalsIgnoreCase(args[3].getString()))
+            {
+                client.redirect = Long.parseLong(args[4].getString());
+            }
+            else if (client.tracking && !client.resp3)
+            {
+                return error("ERR Keys tracking can't be activated without RESP3 or REDIRECT");
+            }
+            return status("OK");
+        }
+        return error("ERR unknown subcommand '" + sub + "'");
+    }
+
+    /*
+     * Send invalidations to every client tracking the given key. The modifying client's own invalidation is
+     * buffered ahead of its reply, as redis does.
+     */
+    private void modified(Client writer, String key) throws IOException
+    {
+        versions.merge(key, 1L, Long::sum);
+        for (Client client : clients.values())
+        {
+            if (!client.tracked.remove(key))
+            {
+                continue;
+            }
+            byte[] keys = concat(BufferUtils.encodeHeader('*', 1), bulk(key.getBytes(ProtocolReader.CHARSET)));
+            Client target = client.redirect != 0 ? clients.get(client.redirect) : client;
+            if (target == null)
+            {
+                continue;
+            }
+            byte[] message;
+            if (client.redirect != 0)
+            {
+                message = concat(BufferUtils.encodeHeader('*', 3), bulk("message".getBytes(ProtocolReader.CHARSET)),
+                                 bulk(NearCache.INVALIDATE_CHANNEL.getBytes(ProtocolReader.CHARSET)), keys);
+            }
+            else
+            {
+                message = concat(BufferUtils.encodeHeader('>', 2), bulk("invalidate".getBytes(ProtocolReader.CHARSET)), keys);
+            }
+            if (target == writer)
+            {
+                writer.buffer(message);
+            }
+            else
+            {
+                target.send(message);
+            }
+        }
+    }
+
+    private static byte[] concat(byte[]... parts)
+    {
+        int len = 0;
+        for (byte[] part : parts)
+        {
+            len += part.length;
+        }
+        ByteBuffer result = ByteBuffer.allocate(len);
+        for (byte[] part : parts)
+        {
+            result.put(part);
+        }
+        return result.array();
+    }
+
+    static byte[] status(String msg)
+    {
+        return ("+" + msg + "\r\n").getBytes(ProtocolReader.CHARSET);
+    }
+
+    static byte[] error(String msg)
+    {
+        return ("-" + msg + "\r\n").getBytes(ProtocolReader.CHARSET);
+    }
+
+    static byte[] integer(long value)
+    {
+        return (":" + value + "\r\n").getBytes(ProtocolReader.CHARSET);
+    }
+
+    static byte[] bulk(byte[] value)
+    {
+        if (value == null)
+        {
+            return "$-1\r\n".getBytes(ProtocolReader.CHARSET);
+        }
+        byte[] header = BufferUtils.encodeHeader('$', value.length);
+        byte[] result = new byte[header.length + value.length + 2];
+        System.arraycopy(header, 0, result, 0, header.length);
+        System.arraycopy(value, 0, result, header.length, value.length);
+        result[result.length - 2] = '\r';
+        result[result.length - 1] = '\n';
+        return result;
+    }
+
+    private static class Client
+    {
+        final long id;
+        final SocketChannel channel;
+        final Set<String> tracked = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        volatile boolean resp3 = false;
+        volatile boolean tracking = false;
+        volatile long redirect = 0;
+        volatile boolean asking = false;
+        List<RedisReply[]> queued = null;
+        boolean dirty = false;
+        final Map<String, Long> watched = new HashMap<>();
+        private ByteBuffer output = ByteBuffer.allocate(1024*64);
+
+        Client(long id, SocketChannel channel)
+        {
+            this.id = id;
+            this.channel = channel;
+        }
+
+        synchronized void buffer(byte[] reply)
+        {
+            output = BufferUtils.makeRoom(output, reply.length);
+            output.put(reply);
+        }
+
+        synchronized void flush() throws IOException
+        {
+            output.flip();
+            while (output.hasRemaining())
+            {
+                channel.write(output);
+            }
+            output.clear();
+        }
+
+        /*
+         * Write a message from another client's thread
+         */
+        synchronized void send(byte[] message) throws IOException
+        {
+            buffer(message);
+            flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        server.close();
+    }
+}
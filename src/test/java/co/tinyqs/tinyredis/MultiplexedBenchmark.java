@@ -0,0 +1,116 @@
+package co.tinyqs.tinyredis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares many threads sharing one RedisMultiplexedConnection against one RedisConnection per thread, using the
+ * in-process FakeRedisServer
+ *
+ * Run with: java -cp target/classes:target/test-classes co.tinyqs.tinyredis.MultiplexedBenchmark [threads] [commands per thread]
+ */
+public class MultiplexedBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int commands = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+
+        try (FakeRedisServer server = new FakeRedisServer())
+        {
+            for (int pass = 0; pass < 3; pass++)
+            {
+                System.out.println("Pass " + (pass + 1));
+
+                List<Caller> perThread = new ArrayList<>();
+                List<RedisConnection> connections = new ArrayList<>();
+                for (int t = 0; t < threads; t++)
+                {
+                    final RedisConnection conn = RedisConnection.connect(server.getAddress());
+                    connections.add(conn);
+                    perThread.add(new Caller()
+                    {
+                        @Override
+                        public void call(int i) throws Exception
+                        {
+                            conn.sendCommand("SET key:%s %s", i, "value");
+                        }
+                    });
+                }
+                System.out.println(String.format("  %-22s %,12d cmds/s  (%d connections)", "connection per thread", run(perThread, commands), threads));
+                for (RedisConnection conn : connections)
+                {
+                    conn.close();
+                }
+
+                try (final RedisMultiplexedConnection shared = RedisMultiplexedConnection.connect(server.getAddress()))
+                {
+                    List<Caller> multiplexed = new ArrayList<>();
+                    for (int t = 0; t < threads; t++)
+                    {
+                        multiplexed.add(new Caller()
+                        {
+                            @Override
+                            public void call(int i) throws Exception
+                            {
+                                shared.sendCommand("SET key:%s %s", i, "value");
+                            }
+                        });
+                    }
+                    long rate = run(multiplexed, commands);
+                    System.out.println(String.format("  %-22s %,12d cmds/s  (1 connection, %.1f cmds per write)", "multiplexed", rate,
+                                                     (double) shared.getCommandCount() / shared.getWriteCount()));
+                }
+            }
+        }
+    }
+
+    private interface Caller
+    {
+        void call(int i) throws Exception;
+    }
+
+    /*
+     * Run every caller on its own thread, returning the combined commands per second
+     */
+    private static long run(List<Caller> callers, final int commands) throws Exception
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(callers.size());
+        for (final Caller caller : callers)
+        {
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int i = 0; i < commands; i++)
+                        {
+                            caller.call(i);
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        e.printStackTrace();
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        long total = (long) commands * callers.size();
+        return (long) (total * 1e9 / elapsed);
+    }
+}
@@ -0,0 +1,318 @@
+package co.tinyqs.tinyredis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NearCacheTest
+{
+    private FakeRedisServer server;
+    private ProtocolWriter writer = new ProtocolWriter();
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new FakeRedisServer();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        server.close();
+    }
+
+    @Test
+    public void testEviction() throws IOException
+    {
+        NearCache cache = new NearCache().maxEntries(2);
+        cache.connect();
+        put(cache, "GET a", "1");
+        put(cache, "GET b", "2");
+        assertNotNull(cache.get(command("GET a")));
+        put(cache, "GET c", "3");
+        // b was the least recently used
+        assertNull(cache.get(command("GET b")));
+        assertNotNull(cache.get(command("GET a")));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+
+        cache.maxBytes(1);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void testOnlyReadCommandsAreCached() throws IOException
+    {
+        NearCache cache = new NearCache();
+        cache.connect();
+        assertNull(cache.reserve(command("SET a 1")));
+        assertNull(cache.reserve(command("PING")));
+        assertNotNull(cache.reserve(command("HGET h field")));
+        assertNull(cache.reserve(command("EXISTS a b")));
+        assertNull(cache.reserve(command("CUSTOM a")));
+        assertNotNull(cache.cacheable("custom").reserve(command("CUSTOM a")));
+    }
+
+    @Test
+    public void testInvalidationWhileInFlight() throws IOException
+    {
+        NearCache cache = new NearCache();
+        cache.connect();
+        NearCache.Entry entry = cache.reserve(command("GET a"));
+        assertTrue(cache.onInvalidate(push("a")));
+        cache.put(entry, RedisReply.createBulkString("stale".getBytes()));
+        assertNull(cache.get(command("GET a")));
+
+        put(cache, "GET a", "1");
+        put(cache, "HGET a f", "2");
+        put(cache, "GET b", "3");
+        assertTrue(cache.onInvalidate(push("a")));
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.getInvalidations());
+        assertFalse(cache.onInvalidate(RedisReply.createAggregate(RedisReply.Type.PUSH, new RedisReply[] { bulk("message"), bulk("chan"), bulk("hi") })));
+
+        cache.onInvalidate(RedisReply.createAggregate(RedisReply.Type.PUSH, new RedisReply[] { bulk("invalidate"), RedisReply.createNil() }));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void testResp3Tracking() throws Exception
+    {
+        NearCache cache = new NearCache();
+        try (RedisConnection conn = RedisConnection.connect(server.getAddress());
+             RedisConnection other = RedisConnection.connect(server.getAddress()))
+        {
+            conn.hello(3);
+            conn.nearCache(cache);
+            conn.sendCommand("SET foo bar");
+            RedisReply first = conn.sendCommand("GET foo");
+            assertEquals("bar", first.getString());
+            assertEquals("bar", conn.sendCommand("GET %s", "foo").getString());
+            assertEquals(1, cache.getHits());
+            long commands = server.getCommandCount();
+            for (int i = 0; i < 100; i++)
+            {
+                assertEquals("bar", conn.sendCommand("GET foo").getString());
+            }
+            assertEquals(commands, server.getCommandCount());
+
+            other.sendCommand("SET foo baz");
+            waitForInvalidation(conn, cache);
+            assertEquals("baz", conn.sendCommand("GET foo").getString());
+
+            // Writes through the same connection are invalidated before their reply arrives
+            conn.sendCommand("SET foo qux");
+            assertEquals("qux", conn.sendCommand("GET foo").getString());
+        }
+        assertFalse(cache.isActive());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testBypassedInsideMulti() throws Exception
+    {
+        NearCache cache = new NearCache();
+        try (RedisConnection conn = RedisConnection.connect(server.getAddress()))
+        {
+            conn.hello(3);
+            conn.nearCache(cache);
+            conn.sendCommand("SET k 1");
+            conn.sendCommand("MULTI");
+            assertEquals("QUEUED", conn.sendCommand("GET k").getString());
+            assertEquals("1", conn.sendCommand("EXEC").getElements()[0].getString());
+            assertEquals(0, cache.size());
+            assertEquals("1", conn.sendCommand("GET k").getString());
+            assertEquals(1, cache.size());
+
+            // A cached key is still sent to the server to be queued
+            conn.sendCommand("MULTI");
+            assertEquals("QUEUED", conn.sendCommand("GET k").getString());
+            conn.sendCommand("DISCARD");
+            assertEquals("1", conn.sendCommand("GET k").getString());
+            assertEquals(1, cache.getHits());
+        }
+    }
+
+    @Test
+    public void testBypassedWithRepliesPending() throws Exception
+    {
+        NearCache cache = new NearCache();
+        try (RedisConnection conn = RedisConnection.connect(server.getAddress()))
+        {
+            conn.hello(3);
+            conn.nearCache(cache);
+            conn.sendCommand("SET k v");
+            conn.appendCommand("INCR x");
+            assertEquals(1, conn.sendCommand("GET k").getInteger());
+            assertEquals("v", conn.getReply().getString());
+            assertEquals(0, cache.size());
+            assertEquals("v", conn.sendCommand("GET k").getString());
+            assertEquals(1, cache.size());
+
+            // Nor is a cached reply returned ahead of a pending one
+            conn.appendCommand("INCR x");
+            assertEquals(2, conn.sendCommand("GET k").getInteger());
+            assertEquals("v", conn.getReply().getString());
+            assertEquals(0, cache.getHits());
+            assertEquals(3, conn.sendForLong("INCR x"));
+        }
+    }
+
+    @Test
+    public void testHitsAreCopies() throws Exception
+    {
+        // MGET with a single key stands in for any aggregate reply
+        NearCache cache = new NearCache().cacheable("MGET");
+        try (RedisConnection conn = RedisConnection.connect(server.getAddress()))
+        {
+            conn.hello(3);
+            conn.nearCache(cache);
+            conn.sendCommand("SET foo bar");
+            conn.sendCommand("GET foo");
+            conn.sendCommand("MGET foo");
+
+            byte[] value = conn.sendForBulk("GET foo");
+            value[0] = 'X';
+            conn.sendCommand("GET foo").getBytes()[1] = 'X';
+            conn.sendCommand("MGET foo").getElements()[0] = RedisReply.createBulkString("X".getBytes());
+            assertEquals("bar", conn.sendCommand("GET foo").getString());
+            assertEquals("bar", conn.sendCommand("MGET foo").getElements()[0].getString());
+            assertEquals(5, cache.getHits());
+        }
+    }
+
+    @Test
+    public void testZeroCopyReplies() throws Exception
+    {
+        NearCache cache = new NearCache();
+        try (RedisConnection conn = RedisConnection.connect(server.getAddress());
+             RedisConnection other = RedisConnection.connect(server.getAddress()))
+        {
+            conn.hello(3);
+            conn.nearCache(cache);
+            conn.zeroCopyReplies(true);
+            conn.sendCommand("SET foo bar");
+            try (RedisReply first = conn.sendCommand("GET foo"))
+            {
+                assertTrue(first.isView());
+                assertEquals("bar", first.getString());
+            }
+            // The cached copy owns its bytes, so it outlives the released view
+            RedisReply cached = conn.sendCommand("GET foo");
+            assertFalse(cached.isView());
+            assertEquals(RedisReply.Type.STRING, cached.getType());
+            assertEquals("bar", cached.getString());
+            assertEquals(1, cache.getHits());
+            assertFalse(conn.isErrorState());
+
+            other.sendCommand("SET foo baz");
+            waitForInvalidation(conn, cache);
+            try (RedisReply reply = conn.sendCommand("GET foo"))
+            {
+                assertEquals("baz", reply.getString());
+            }
+        }
+    }
+
+    @Test
+    public void testDetachAggregateView() throws IOException
+    {
+        ProtocolReader reader = new ProtocolReader();
+        reader.setZeroCopy(true);
+        reader.feed(BufferUtils.encode("*3\r\n$3\r\nfoo\r\n+OK\r\n*1\r\n$3\r\nbar\r\n"));
+        RedisReply view = reader.getReply();
+        assertTrue(view.isView());
+        RedisReply copy = view.detach();
+        view.release();
+        assertFalse(copy.isView());
+        assertEquals(RedisReply.Type.STRING, copy.getElements()[0].getType());
+        assertEquals("foo", copy.getElements()[0].getString());
+        assertEquals(RedisReply.Type.STATUS, copy.getElements()[1].getType());
+        assertEquals("bar", copy.getElements()[2].getElements()[0].getString());
+    }
+
+    @Test
+    public void testRedirectTracking() throws Exception
+    {
+        NearCache cache = new NearCache();
+        try (RedisConnection conn = RedisConnection.connect(server.getAddress());
+             RedisConnection invalidations = RedisConnection.connect(server.getAddress());
+             RedisConnection other = RedisConnection.connect(server.getAddress()))
+        {
+            conn.nearCache(cache, invalidations);
+            conn.sendCommand("SET foo bar");
+            assertEquals("bar", conn.sendCommand("GET foo").getString());
+            assertEquals("bar", conn.sendCommand("GET foo").getString());
+            assertEquals(1, cache.getHits());
+
+            other.sendCommand("SET foo baz");
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cache.size() > 0 && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(1);
+            }
+            assertEquals("baz", conn.sendCommand("GET foo").getString());
+
+            invalidations.close();
+            deadline = System.currentTimeMillis() + 5000;
+            while (cache.isActive() && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(1);
+            }
+            // Losing the invalidation connection flushes the cache, and reads go back to the server
+            assertFalse(cache.isActive());
+            assertEquals(0, cache.size());
+            long commands = server.getCommandCount();
+            assertEquals("baz", conn.sendCommand("GET foo").getString());
+            assertEquals(commands + 1, server.getCommandCount());
+        }
+    }
+
+    /*
+     * The invalidation is sent asynchronously, so wait until it has reached the client's socket and been applied
+     */
+    private static void waitForInvalidation(RedisConnection conn, NearCache cache) throws Exception
+    {
+        long invalidations = cache.getInvalidations();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getInvalidations() == invalidations && System.currentTimeMillis() < deadline)
+        {
+            conn.sendCommand("GET foo");
+            Thread.sleep(1);
+        }
+    }
+
+    private ByteBuffer command(String format) throws IOException
+    {
+        return writer.formatCommand(format);
+    }
+
+    private void put(NearCache cache, String format, String value) throws IOException
+    {
+        NearCache.Entry entry = cache.reserve(command(format));
+        assertNotNull(entry);
+        cache.put(entry, bulk(value));
+    }
+
+    private static RedisReply push(String key)
+    {
+        return RedisReply.createAggregate(RedisReply.Type.PUSH, new RedisReply[] {
+            bulk("invalidate"), RedisReply.createArray(new RedisReply[] { bulk(key) }) });
+    }
+
+    private static RedisReply bulk(String value)
+    {
+        return RedisReply.createBulkString(value.getBytes(ProtocolReader.CHARSET));
+    }
+}
@@ -0,0 +1,49 @@
+package co.tinyqs.tinyredis;
+
+/**
+ * Barebones pipelining benchmark against the in-process FakeRedisServer, comparing one write per queued command
+ * with gathering writes
+ *
+ * Run with: java -cp target/classes:target/test-classes co.tinyqs.tinyredis.PipelineBenchmark [pipeline] [rounds]
+ */
+public class PipelineBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int pipeline = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        try (FakeRedisServer server = new FakeRedisServer())
+        {
+            for (int pass = 0; pass < 3; pass++)
+            {
+                System.out.println("Pass " + (pass + 1));
+                run("one write per command", new RedisConnectionTest.CountingConnection(RedisConnection.openChannel(server.getAddress(), 0), true), pipeline, rounds);
+                run("gathering writes", new RedisConnectionTest.CountingConnection(RedisConnection.openChannel(server.getAddress(), 0)), pipeline, rounds);
+            }
+        }
+    }
+
+    private static void run(String name, RedisConnectionTest.CountingConnection conn, int pipeline, int rounds) throws Exception
+    {
+        try (RedisConnection c = conn)
+        {
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++)
+            {
+                for (int i = 0; i < pipeline; i++)
+                {
+                    conn.appendCommand("SET key:%s %s", i, "value");
+                }
+                for (int i = 0; i < pipeline; i++)
+                {
+                    conn.getReply();
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            long commands = (long) pipeline * rounds;
+            System.out.println(String.format("  %-22s %,10d writes (%.1f per pipeline) %,12d cmds/s", name, conn.writes,
+                                             (double) conn.writes / rounds, (long) (commands * 1e9 / elapsed)));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package co.tinyqs.tinyredis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PipelineTest
+{
+    private FakeRedisServer server;
+    private RedisConnection conn;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new FakeRedisServer();
+        conn = RedisConnection.connect(server.getAddress());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        conn.close();
+        server.close();
+    }
+
+    @Test
+    public void testCollectReplies() throws IOException
+    {
+        CommandTemplate echo = CommandTemplate.compile("ECHO %s");
+        Pipeline pipeline = conn.pipeline(16);
+        for (int i = 0; i < 1000; i++)
+        {
+            if (i % 3 == 0)
+            {
+                pipeline.add("ECHO %s", i);
+            }
+            else if (i % 3 == 1)
+            {
+                pipeline.add(echo, i);
+            }
+            else
+            {
+                pipeline.add("ECHO".getBytes(ProtocolReader.CHARSET), Integer.toString(i).getBytes(ProtocolReader.CHARSET));
+            }
+            assertTrue(pipeline.getInFlight() <= 16);
+        }
+        assertEquals(1000, pipeline.size());
+        List<RedisReply> replies = pipeline.execute();
+        assertEquals(1000, replies.size());
+        for (int i = 0; i < 1000; i++)
+        {
+            assertEquals(Integer.toString(i), replies.get(i).getString());
+        }
+
+        // Reusable once executed, and the connection is in sync again
+        assertEquals(0, pipeline.size());
+        assertEquals("OK", pipeline.add("SET k v").execute().get(0).getString());
+        assertEquals("v", conn.sendCommand("GET k").getString());
+    }
+
+    @Test
+    public void testErrorRepliesAreReturned() throws IOException
+    {
+        conn.exceptionOnError(true);
+        List<RedisReply> replies = conn.pipeline(4).add("PING").add("NOSUCHCOMMAND").add("PING").execute();
+        assertEquals(RedisReply.Type.STATUS, replies.get(0).getType());
+        assertEquals(RedisReply.Type.ERROR, replies.get(1).getType());
+        assertEquals("PONG", replies.get(2).getString());
+    }
+
+    @Test(timeout = 60000)
+    public void testLargeBatchWithListener() throws IOException
+    {
+        // Far more data in each direction than the socket buffers hold, which deadlocks if every command is written
+        // before any reply is read
+        final byte[] value = new byte[1024*8];
+        Arrays.fill(value, (byte) 'v');
+        final int[] next = {0};
+        final int window = 64;
+        final Pipeline[] pipeline = new Pipeline[1];
+        pipeline[0] = conn.pipeline(window, new Pipeline.ReplyListener()
+        {
+            @Override
+            public void onReply(int index, RedisReply reply) throws IOException
+            {
+                assertEquals(next[0]++, index);
+                assertTrue(Arrays.equals(value, reply.getBytes()));
+                assertTrue(pipeline[0].getInFlight() <= window);
+                reply.release();
+            }
+        });
+
+        byte[] echo = "ECHO".getBytes(ProtocolReader.CHARSET);
+        int count = 20000;
+        for (int i = 0; i < count; i++)
+        {
+            pipeline[0].add(echo, value);
+        }
+        assertTrue(pipeline[0].execute().isEmpty());
+        assertEquals(count, next[0]);
+        assertEquals("PONG", conn.sendCommand("PING").getString());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testWindowMustBePositive()
+    {
+        conn.pipeline(0);
+    }
+}
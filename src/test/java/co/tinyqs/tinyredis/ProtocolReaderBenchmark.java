@@ -0,0 +1,56 @@
+package co.tinyqs.tinyredis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Barebones benchmark that drains large pipelined batches of replies that arrived in a single read. Time per reply
+ * should stay flat as the batch size grows.
+ *
+ * Run with: java -cp target/classes:target/test-classes co.tinyqs.tinyredis.ProtocolReaderBenchmark
+ */
+public class ProtocolReaderBenchmark
+{
+    public static void main(String[] args) throws IOException
+    {
+        int[] sizes = {12500, 25000, 50000, 100000};
+        for (int round = 0; round < 3; round++)
+        {
+            System.out.println("Round " + (round + 1));
+            for (int size : sizes)
+            {
+                drain(size);
+            }
+        }
+    }
+
+    private static void drain(int replies) throws IOException
+    {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < replies; i++)
+        {
+            input.append(i % 2 == 0 ? "+OK\r\n" : "$5\r\nhello\r\n");
+        }
+        ByteBuffer encoded = BufferUtils.encode(input.toString());
+
+        int iterations = 2000000 / replies;
+        long start = System.nanoTime();
+        for (int it = 0; it < iterations; it++)
+        {
+            ProtocolReader reader = new ProtocolReader();
+            reader.feed(encoded.duplicate());
+            int count = 0;
+            while (reader.getReply() != null)
+            {
+                count++;
+            }
+            if (count != replies)
+            {
+                throw new IllegalStateException("Expected " + replies + " replies but got " + count);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("  %,8d replies/batch %8.1f ns/reply %10.2f ms/batch", replies,
+                                         (double) elapsed / iterations / replies, elapsed / 1e6 / iterations));
+    }
+}
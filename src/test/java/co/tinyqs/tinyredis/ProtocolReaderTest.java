@@ -4,12 +4,18 @@
 package co.tinyqs.tinyredis;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.Test;
 
@@ -249,4 +255,231 @@ public class ProtocolReaderTest
         assertNotNull(reply);
         assertEquals(BufferUtils.decode(reply.getBytes()), "OK");
     }
+    
+    @Test
+    public void testDirectWrites() throws IOException
+    {
+        ProtocolReader reader = new ProtocolReader();
+        ByteBuffer buffer = reader.writableBuffer(16);
+        assertTrue(buffer.remaining() >= 16);
+        buffer.put(BufferUtils.encode("+OK\r\n:1"));
+        reader.commitWrite();
+        assertEquals("OK", reader.getReply().getString());
+        assertNull(reader.getReply());
+        assertEquals(1, reader.available());
+        
+        // Unread bytes are kept when the buffer has to make room
+        buffer = reader.writableBuffer(1024*64);
+        assertTrue(buffer.remaining() >= 1024*64);
+        buffer.put(BufferUtils.encode("2\r\n"));
+        reader.commitWrite();
+        assertEquals(12, reader.getReply().getInteger());
+        assertEquals(0, reader.available());
+    }
+    
+    @Test
+    public void testLargePipeline() throws IOException
+    {
+        ProtocolReader reader = new ProtocolReader();
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+        {
+            input.append("$").append(Integer.toString(i).length()).append("\r\n").append(i).append("\r\n");
+        }
+        reader.feed(BufferUtils.encode(input.toString()));
+        for (int i = 0; i < 10000; i++)
+        {
+            assertEquals(Integer.toString(i), reader.getReply().getString());
+        }
+        assertNull(reader.getReply());
+    }
+    
+    @Test
+    public void testZeroCopy() throws IOException
+    {
+        LeakDetector.enable();
+        try
+        {
+            ProtocolReader reader = new ProtocolReader();
+            reader.setAllocator(new PooledBufferAllocator(false, 64, 64, 256));
+            reader.setZeroCopy(true);
+            List<RedisReply> held = new ArrayList<>();
+            for (int i = 0; i < 100; i++)
+            {
+                reader.feed(BufferUtils.encode("*2\r\n$7\r\nvalue" + (i % 10) + (i / 10) + "\r\n+OK\r\n"));
+                RedisReply reply = reader.getReply();
+                assertTrue(reply.isView());
+                held.add(reply);
+            }
+            assertEquals(200, LeakDetector.getLeakCount());
+            
+            // Views stay valid while the reader moves on to new buffers
+            for (int i = 0; i < 100; i++)
+            {
+                RedisReply[] elements = held.get(i).getElements();
+                assertEquals("value" + (i % 10) + (i / 10), elements[0].getString());
+                assertEquals("value" + (i % 10) + (i / 10), BufferUtils.decode(elements[0].getBytes()));
+                assertEquals(7, elements[0].getBuffer().remaining());
+                assertEquals("OK", elements[1].getString());
+                held.get(i).release();
+            }
+            LeakDetector.checkNoLeaks();
+            
+            try (RedisReply reply = feedAndRead(reader, "$3\r\nfoo\r\n"))
+            {
+                assertEquals("foo", reply.getString());
+            }
+            LeakDetector.checkNoLeaks();
+            
+            RedisReply leaked = feedAndRead(reader, "$3\r\nbar\r\n");
+            try
+            {
+                LeakDetector.checkNoLeaks();
+                fail("Should have detected a leaked reply");
+            }
+            catch (IllegalStateException e)
+            {
+                
+            }
+            leaked.release();
+            try
+            {
+                leaked.getBytes();
+                fail("Shouldn't be able to read a released reply");
+            }
+            catch (IllegalStateException e)
+            {
+                
+            }
+        }
+        finally
+        {
+            LeakDetector.disable();
+        }
+    }
+    
+    private static RedisReply feedAndRead(ProtocolReader reader, String input) throws IOException
+    {
+        reader.feed(BufferUtils.encode(input));
+        return reader.getReply();
+    }
+    
+    @Test
+    public void testReplyHandler() throws IOException
+    {
+        ProtocolReader reader = new ProtocolReader();
+        final StringBuilder events = new StringBuilder();
+        ReplyHandler handler = new ReplyHandlerAdapter()
+        {
+            @Override
+            public void onArrayStart(int len)
+            {
+                events.append("[").append(len).append(" ");
+            }
+
+            @Override
+            public void onArrayEnd()
+            {
+                events.append("] ");
+            }
+
+            @Override
+            public void onBulk(ByteBuffer value)
+            {
+                events.append("$").append(BufferUtils.decode(value)).append(" ");
+            }
+
+            @Override
+            public void onStatus(ByteBuffer value)
+            {
+                events.append("+").append(BufferUtils.decode(value)).append(" ");
+            }
+
+            @Override
+            public void onError(ByteBuffer value)
+            {
+                events.append("-").append(BufferUtils.decode(value)).append(" ");
+            }
+
+            @Override
+            public void onInteger(long value)
+            {
+                events.append(":").append(value).append(" ");
+            }
+
+            @Override
+            public void onNil()
+            {
+                events.append("nil ");
+            }
+        };
+        
+        String input = "*4\r\n*2\r\n:1\r\n$3\r\nfoo\r\n*0\r\n$-1\r\n*1\r\n*1\r\n-ERR\r\n";
+        // Feed one byte at a time to make sure elements are reported across partial reads
+        boolean complete = false;
+        for (int i = 0; i < input.length(); i++)
+        {
+            reader.feed(BufferUtils.encode(input.substring(i, i + 1)));
+            if (reader.read(handler))
+            {
+                assertFalse(complete);
+                complete = true;
+            }
+        }
+        assertTrue(complete);
+        assertEquals("[4 [2 :1 $foo ] [0 ] nil [1 [1 -ERR ] ] ] ", events.toString());
+        
+        reader.feed(BufferUtils.encode("+OK\r\n"));
+        RedisReply reply = reader.getReply();
+        assertEquals("OK", reply.getString());
+    }
+    
+    @Test
+    public void testResp3() throws IOException
+    {
+        ProtocolReader reader = new ProtocolReader();
+        reader.feed(BufferUtils.encode("%2\r\n+first\r\n:1\r\n$6\r\nsecond\r\n~2\r\n#t\r\n#f\r\n"));
+        RedisReply reply = reader.getReply();
+        assertEquals(RedisReply.Type.MAP, reply.getType());
+        Map<String, RedisReply> map = reply.getMap();
+        assertEquals(1, map.get("first").getInteger());
+        RedisReply set = map.get("second");
+        assertEquals(RedisReply.Type.SET, set.getType());
+        assertTrue(set.getElements()[0].getBoolean());
+        assertFalse(set.getElements()[1].getBoolean());
+        
+        reader.feed(BufferUtils.encode(",3.14\r\n,inf\r\n,-inf\r\n,nan\r\n,10\r\n"));
+        assertEquals(3.14, reader.getReply().getDouble(), 0);
+        assertEquals(Double.POSITIVE_INFINITY, reader.getReply().getDouble(), 0);
+        assertEquals(Double.NEGATIVE_INFINITY, reader.getReply().getDouble(), 0);
+        assertTrue(Double.isNaN(reader.getReply().getDouble()));
+        assertEquals(10, reader.getReply().getDouble(), 0);
+        
+        reader.feed(BufferUtils.encode("_\r\n(3492890328409238509324850943850943825024385\r\n!21\r\nSYNTAX invalid syntax\r\n=15\r\ntxt:Some string\r\n"));
+        assertEquals(RedisReply.Type.NIL, reader.getReply().getType());
+        assertEquals(new BigInteger("3492890328409238509324850943850943825024385"), reader.getReply().getBigNumber());
+        reply = reader.getReply();
+        assertEquals(RedisReply.Type.ERROR, reply.getType());
+        assertEquals("SYNTAX invalid syntax", reply.getString());
+        reply = reader.getReply();
+        assertEquals(RedisReply.Type.VERBATIM, reply.getType());
+        assertEquals("txt", reply.getFormat());
+        assertEquals("Some string", reply.getString());
+        
+        reader.feed(BufferUtils.encode(">3\r\n$7\r\nmessage\r\n$7\r\nchannel\r\n$5\r\nhello\r\n"));
+        reply = reader.getReply();
+        assertEquals(RedisReply.Type.PUSH, reply.getType());
+        assertEquals("hello", reply.getElements()[2].getString());
+        
+        // Attributes are attached to the reply that follows, and aren't counted as array elements
+        reader.feed(BufferUtils.encode("|1\r\n+key-popularity\r\n%1\r\n$1\r\na\r\n,0.19\r\n*2\r\n:2039123\r\n|1\r\n+ttl\r\n:3600\r\n:9543892\r\n"));
+        reply = reader.getReply();
+        assertEquals(RedisReply.Type.ARRAY, reply.getType());
+        assertEquals(0.19, reply.getAttributes().getMap().get("key-popularity").getMap().get("a").getDouble(), 0);
+        assertEquals(2, reply.getElements().length);
+        assertNull(reply.getElements()[0].getAttributes());
+        assertEquals(9543892, reply.getElements()[1].getInteger());
+        assertEquals(3600, reply.getElements()[1].getAttributes().getMap().get("ttl").getInteger());
+        assertNull(reader.getReply());
+    }
 }
@@ -0,0 +1,131 @@
+package co.tinyqs.tinyredis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Barebones benchmark comparing per-call format parsing against precompiled command templates
+ *
+ * Run with: java -cp target/classes:target/test-classes co.tinyqs.tinyredis.ProtocolWriterBenchmark [iterations]
+ */
+public class ProtocolWriterBenchmark
+{
+    private static final Charset CHARSET = ProtocolReader.CHARSET;
+
+    private interface Workload
+    {
+        int run(int i) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        final ProtocolWriter writer = new ProtocolWriter();
+        final CommandTemplate set = CommandTemplate.compile("SET %s %s");
+        final CommandTemplate get = CommandTemplate.compile("GET %s");
+        final String[] keys = new String[1024];
+        for (int i = 0; i < keys.length; i++)
+        {
+            keys[i] = "key:" + i;
+        }
+        final String value = "some moderately sized value for a cache entry";
+
+        Workload legacy = new Workload()
+        {
+            @Override
+            public int run(int i)
+            {
+                String key = keys[i & 1023];
+                return legacyFormat("SET %s %s", key, value).remaining() + legacyFormat("GET %s", key).remaining();
+            }
+        };
+        Workload cached = new Workload()
+        {
+            @Override
+            public int run(int i) throws IOException
+            {
+                String key = keys[i & 1023];
+                return writer.formatCommand("SET %s %s", key, value).remaining() + writer.formatCommand("GET %s", key).remaining();
+            }
+        };
+        Workload compiled = new Workload()
+        {
+            @Override
+            public int run(int i) throws IOException
+            {
+                String key = keys[i & 1023];
+                return writer.formatCommand(set, key, value).remaining() + writer.formatCommand(get, key).remaining();
+            }
+        };
+
+        for (int round = 0; round < 3; round++)
+        {
+            System.out.println("Round " + (round + 1));
+            measure("legacy formatCommand", legacy, iterations);
+            measure("cached formatCommand", cached, iterations);
+            measure("CommandTemplate", compiled, iterations);
+        }
+    }
+
+    private static void measure(String name, Workload workload, int iterations) throws IOException
+    {
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            checksum += workload.run(i);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("  %-22s %8.1f ns/op (SET+GET) %,12d ops/s  [%d]", name, (double) elapsed / iterations,
+                                         (long) (iterations * 1e9 / elapsed), checksum));
+    }
+
+    /*
+     * Copy of the original formatCommand implementation (%s only) for a baseline
+     */
+    private static ByteBuffer legacyFormat(String format, Object... args)
+    {
+        int padding = String.format("+%d\r\n", Integer.MAX_VALUE).getBytes(CHARSET).length;
+        int argidx = 0;
+        ByteBuffer result = BufferUtils.EMPTY;
+
+        String[] chunks = format.split("[ ]+");
+        byte[] preamble = String.format("*%d\r\n", chunks.length).getBytes(CHARSET);
+        result = BufferUtils.makeRoom(result, preamble.length).put(preamble);
+
+        ByteBuffer temp = ByteBuffer.allocate(padding);
+        temp.position(padding);
+        for (String chunk : chunks)
+        {
+            byte[] chunkBuff = chunk.getBytes(CHARSET);
+            temp = BufferUtils.makeRoom(temp, padding + 2 + chunkBuff.length);
+            for (int i = 0; i < chunkBuff.length; i++)
+            {
+                byte c = chunkBuff[i];
+                if (c == '%' && i+1 < chunkBuff.length && chunkBuff[i+1] == 's')
+                {
+                    byte[] arg = args[argidx].toString().getBytes(CHARSET);
+                    temp = BufferUtils.makeRoom(temp, arg.length);
+                    temp.put(arg);
+                    argidx++;
+                    i++;
+                }
+                else
+                {
+                    temp = BufferUtils.makeRoom(temp, 1);
+                    temp.put(c);
+                }
+            }
+            temp = BufferUtils.makeRoom(temp, 2);
+            byte[] tempPreamble = String.format("$%d\r\n", temp.position() - padding).getBytes(CHARSET);
+            temp.put("\r\n".getBytes(CHARSET)).flip().position(padding - tempPreamble.length).mark();
+            temp.put(tempPreamble).reset();
+            result = BufferUtils.makeRoom(result, temp.remaining()).put(temp);
+            temp.clear().position(padding);
+        }
+
+        result.flip();
+        return result;
+    }
+}
@@ -5,6 +5,8 @@ import static org.junit.Assert.*;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.AfterClass;
 import org.junit.Test;
@@ -73,5 +75,244 @@ public class ProtocolWriterTest
         assertNotNull(result);
         assertEquals(BufferUtils.decode(result), "*3\r\n$3\r\nSET\r\n$1\r\n%\r\n$1\r\n%\r\n");
     }
+    
+    /**
+     * Test method for {@link co.tinyqs.tinyredis.ProtocolWriter#formatCommand(co.tinyqs.tinyredis.CommandTemplate, java.lang.Object[])}.
+     */
+    @Test
+    public void testFormatTemplate() throws IOException
+    {
+        ProtocolWriter writer = new ProtocolWriter();
+        writer.registerSerializer(new RedisSerializer(){
+
+            @Override
+            public boolean canSerialize(Object obj)
+            {
+                return true;
+            }
+
+            @Override
+            public byte[] serialize(Object obj) throws IOException
+            {
+                return "OK".getBytes(StandardCharsets.UTF_8);
+            }            
+        });
+        
+        CommandTemplate template = CommandTemplate.compile("SET key%s:%s %b");
+        assertEquals(3, template.getArgCount());
+        ByteBuffer result = writer.formatCommand(template, 1, "ab", System.out);
+        assertEquals(BufferUtils.decode(result), "*3\r\n$3\r\nSET\r\n$7\r\nkey1:ab\r\n$2\r\nOK\r\n");
+        
+        // Templates are reusable and produce the same output as a string format
+        for (String value : new String[] {"", "x", "hello world", "\u00e9t\u00e9"})
+        {
+            assertEquals(BufferUtils.decode(writer.formatCommand("SET %s %s", "foo", value)),
+                         BufferUtils.decode(writer.formatCommand(writer.compile("SET %s %s"), "foo", value)));
+        }
+        assertEquals(BufferUtils.decode(writer.formatCommand(writer.compile("SET % %"))), "*3\r\n$3\r\nSET\r\n$1\r\n%\r\n$1\r\n%\r\n");
+        assertEquals(BufferUtils.decode(writer.formatCommand(writer.compile("INCRBY counter %s"), -42L)), "*3\r\n$6\r\nINCRBY\r\n$7\r\ncounter\r\n$3\r\n-42\r\n");
+        
+        try
+        {
+            writer.formatCommand(template, 1);
+            fail("Should have required 3 parameters");
+        }
+        catch (IllegalStateException e)
+        {
+            
+        }
+    }
 
+    @Test
+    public void testStreamingSerializer() throws IOException
+    {
+        ProtocolWriter writer = new ProtocolWriter();
+        final int[] serializeCalls = {0};
+        // Hints exactly for byte arrays, and an upper bound with more digits than the real size for strings
+        writer.registerSerializer(new RedisSerializer()
+        {
+            @Override
+            public boolean canSerialize(Object obj)
+            {
+                return obj instanceof byte[] || obj instanceof StringBuilder;
+            }
+
+            @Override
+            public byte[] serialize(Object obj) throws IOException
+            {
+                serializeCalls[0]++;
+                throw new IOException("Should have been written directly");
+            }
+
+            @Override
+            public int sizeHint(Object obj)
+            {
+                return obj instanceof byte[] ? ((byte[]) obj).length : 200;
+            }
+
+            @Override
+            public void writeTo(Object obj, ByteBuffer dest)
+            {
+                dest.put(obj instanceof byte[] ? (byte[]) obj : obj.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        });
+
+        byte[] value = new byte[5000];
+        Arrays.fill(value, (byte) 'v');
+        ByteBuffer result = writer.formatCommand("SET key:%b %b", new StringBuilder("abc"), value);
+        assertEquals("*3\r\n$3\r\nSET\r\n$7\r\nkey:abc\r\n$5000\r\n" + new String(value, StandardCharsets.UTF_8) + "\r\n",
+                     BufferUtils.decode(result));
+        assertEquals(0, serializeCalls[0]);
+
+        // Same output as a byte[] serializer
+        ProtocolWriter plain = new ProtocolWriter();
+        plain.registerSerializer(new RedisSerializer()
+        {
+            @Override
+            public boolean canSerialize(Object obj)
+            {
+                return true;
+            }
+
+            @Override
+            public byte[] serialize(Object obj)
+            {
+                return obj instanceof byte[] ? (byte[]) obj : obj.toString().getBytes(StandardCharsets.UTF_8);
+            }
+        });
+        for (int len : new int[] {0, 9, 10, 99, 100, 101})
+        {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < len; i++)
+            {
+                sb.append('x');
+            }
+            assertEquals(BufferUtils.decode(plain.formatCommand("SET %b %b%b", sb, sb, value)),
+                         BufferUtils.decode(writer.formatCommand("SET %b %b%b", sb, sb, value)));
+        }
+    }
+
+    @Test
+    public void testSerializerOverrunsHint() throws IOException
+    {
+        ProtocolWriter writer = new ProtocolWriter();
+        writer.registerSerializer(new RedisSerializer()
+        {
+            @Override
+            public boolean canSerialize(Object obj)
+            {
+                return true;
+            }
+
+            @Override
+            public byte[] serialize(Object obj)
+            {
+                return "too long".getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public int sizeHint(Object obj)
+            {
+                return 3;
+            }
+        });
+        try
+        {
+            writer.formatCommand("SET key %b", new Object());
+            fail("Expected the overrun to be detected");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage().contains("size hint"));
+        }
+    }
+
+    @Test
+    public void testSerializerDispatch() throws IOException
+    {
+        ProtocolWriter writer = new ProtocolWriter();
+        final int[] probes = {0};
+        // Declines odd numbers, so the cached choice for Integer has to be checked on every value
+        writer.registerSerializer(new RedisSerializer()
+        {
+            @Override
+            public boolean canSerialize(Object obj)
+            {
+                probes[0]++;
+                return obj instanceof Integer && (Integer) obj % 2 == 0;
+            }
+
+            @Override
+            public byte[] serialize(Object obj)
+            {
+                return "even".getBytes(StandardCharsets.UTF_8);
+            }
+        });
+        writer.registerSerializer(new RedisSerializer()
+        {
+            @Override
+            public boolean canSerialize(Object obj)
+            {
+                return true;
+            }
+
+            @Override
+            public byte[] serialize(Object obj)
+            {
+                return "other".getBytes(StandardCharsets.UTF_8);
+            }
+        });
+
+        assertTrue(BufferUtils.decode(writer.formatCommand("SET k %b", 2)).endsWith("$4\r\neven\r\n"));
+        assertTrue(BufferUtils.decode(writer.formatCommand("SET k %b", 3)).endsWith("$5\r\nother\r\n"));
+        assertTrue(BufferUtils.decode(writer.formatCommand("SET k %b", 4)).endsWith("$4\r\neven\r\n"));
+
+        // Strings go straight to the second serializer once it is known to handle them
+        writer.formatCommand("SET k %b", "a");
+        probes[0] = 0;
+        for (int i = 0; i < 10; i++)
+        {
+            assertTrue(BufferUtils.decode(writer.formatCommand("SET k %b", "a")).endsWith("$5\r\nother\r\n"));
+        }
+        assertEquals(0, probes[0]);
+    }
+
+    @Test
+    public void testConcurrentCompile() throws Exception
+    {
+        final ProtocolWriter writer = new ProtocolWriter();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++)
+        {
+            threads[t] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        // More formats than the cache holds, so it is emptied while other threads read it
+                        for (int i = 0; i < 5000; i++)
+                        {
+                            String key = "key" + (i % 1000);
+                            assertEquals("*3\r\n$3\r\nSET\r\n$" + key.length() + "\r\n" + key + "\r\n$1\r\nv\r\n",
+                                         BufferUtils.decode(writer.formatCommand("SET " + key + " %s", "v")));
+                        }
+                    }
+                    catch (Throwable e)
+                    {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertNull(error.get());
+        assertSame(writer.compile("GET %s"), writer.compile("GET %s"));
+    }
 }
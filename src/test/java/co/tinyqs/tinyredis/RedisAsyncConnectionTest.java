@@ -0,0 +1,172 @@
+package co.tinyqs.tinyredis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RedisAsyncConnectionTest
+{
+    private FakeRedisServer server;
+    private RedisEventLoopGroup group;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new FakeRedisServer();
+        group = new RedisEventLoopGroup(2);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        group.close();
+        server.close();
+    }
+
+    @Test
+    public void testRepliesMatchCommands() throws Exception
+    {
+        try (RedisAsyncConnection conn = RedisAsyncConnection.connect(server.getAddress(), group))
+        {
+            List<CompletableFuture<RedisReply>> futures = new ArrayList<>();
+            for (int i = 0; i < 10000; i++)
+            {
+                futures.add(conn.send("ECHO %s", i));
+            }
+            for (int i = 0; i < futures.size(); i++)
+            {
+                assertEquals(Integer.toString(i), futures.get(i).get(5, TimeUnit.SECONDS).getString());
+            }
+            
+            // Commands sent from a callback on the event loop thread
+            RedisReply chained = conn.send("SET %s %s", "chained", "value").thenCompose(r -> conn.send("GET chained")).get(5, TimeUnit.SECONDS);
+            assertEquals("value", chained.getString());
+        }
+    }
+
+    @Test
+    public void testLargeReplies() throws Exception
+    {
+        byte[] value = new byte[1024*200];
+        Arrays.fill(value, (byte) 'x');
+        server.put("big", value);
+        try (RedisAsyncConnection conn = RedisAsyncConnection.connect(server.getAddress(), group))
+        {
+            // Many times more than is read per wakeup, so the rest must be picked up by later ones
+            List<CompletableFuture<RedisReply>> futures = new ArrayList<>();
+            for (int i = 0; i < 50; i++)
+            {
+                futures.add(conn.send("GET big"));
+            }
+            for (CompletableFuture<RedisReply> future : futures)
+            {
+                assertTrue(Arrays.equals(value, future.get(5, TimeUnit.SECONDS).getBytes()));
+            }
+        }
+    }
+
+    @Test
+    public void testSharedEventLoops() throws Exception
+    {
+        List<RedisAsyncConnection> connections = new ArrayList<>();
+        List<CompletableFuture<RedisReply>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+        {
+            RedisAsyncConnection conn = RedisAsyncConnection.connect(server.getAddress(), group);
+            connections.add(conn);
+            futures.add(conn.send("INCR shared"));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+        assertEquals("100", connections.get(0).send("GET shared").get(5, TimeUnit.SECONDS).getString());
+        for (RedisAsyncConnection conn : connections)
+        {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testErrors() throws Exception
+    {
+        try (RedisAsyncConnection conn = RedisAsyncConnection.connect(server.getAddress(), group))
+        {
+            assertEquals(RedisReply.Type.ERROR, conn.send("NOPE").get(5, TimeUnit.SECONDS).getType());
+            conn.exceptionOnError(true);
+            try
+            {
+                conn.send("NOPE").get(5, TimeUnit.SECONDS);
+                fail("Should have failed");
+            }
+            catch (ExecutionException e)
+            {
+                assertTrue(e.getCause() instanceof RedisErrorException);
+            }
+            conn.close();
+            try
+            {
+                conn.send("PING").get(5, TimeUnit.SECONDS);
+                fail("Connection is closed");
+            }
+            catch (ExecutionException e)
+            {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    @Test
+    public void testBackpressure() throws Exception
+    {
+        try (RedisAsyncConnection conn = RedisAsyncConnection.connect(server.getAddress(), group).highWaterMark(1024*64))
+        {
+            String value = new String(new char[1024]).replace('\0', 'x');
+            List<CompletableFuture<RedisReply>> accepted = new ArrayList<>();
+            CompletableFuture<RedisReply> rejected = null;
+            for (int i = 0; i < 100000 && rejected == null; i++)
+            {
+                CompletableFuture<RedisReply> future = conn.send("SET %s %s", "big" + i, value);
+                // Only rejections complete immediately. Writability may already be restored by the time we check.
+                if (future.isCompletedExceptionally())
+                {
+                    rejected = future;
+                }
+                else
+                {
+                    accepted.add(future);
+                }
+            }
+            // The fake server and the event loop can't keep up with a tight loop, so the mark is eventually hit
+            assertTrue(rejected != null);
+            try
+            {
+                rejected.get();
+                fail("Should have been rejected");
+            }
+            catch (ExecutionException e)
+            {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+            conn.whenWritable().get(5, TimeUnit.SECONDS);
+            assertTrue(conn.isWritable());
+            for (CompletableFuture<RedisReply> future : accepted)
+            {
+                assertEquals("OK", future.get(5, TimeUnit.SECONDS).getString());
+            }
+            assertEquals(0, conn.getPendingBytes());
+            assertFalse(conn.isErrorState());
+        }
+    }
+}
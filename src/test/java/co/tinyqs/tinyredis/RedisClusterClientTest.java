@@ -0,0 +1,242 @@
+package co.tinyqs.tinyredis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RedisClusterClientTest
+{
+    private FakeRedisCluster cluster;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        cluster = new FakeRedisCluster(3);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        cluster.close();
+    }
+
+    @Test
+    public void testRouting() throws Exception
+    {
+        try (RedisClusterClient client = new RedisClusterClient(cluster.node(0).getAddress()).start())
+        {
+            assertEquals(3, client.getNodes().size());
+            assertEquals(1, client.getRefreshCount());
+            for (int i = 0; i < 100; i++)
+            {
+                assertEquals("OK", client.sendCommand("SET key%s %s", i, i).getString());
+            }
+            for (int i = 0; i < 100; i++)
+            {
+                String key = "key" + i;
+                assertTrue(cluster.owner(ClusterSlots.slot(key)).containsKey(key));
+                assertEquals(Integer.toString(i), client.sendCommand("GET %s", key).getString());
+            }
+            assertEquals("PONG", client.sendCommand("PING").getString());
+            assertEquals(0, client.getRedirectCount());
+        }
+    }
+
+    @Test
+    public void testSlotsFallback() throws Exception
+    {
+        cluster.shardsSupported(false);
+        try (RedisClusterClient client = new RedisClusterClient(cluster.node(1).getAddress()).start())
+        {
+            for (int slot : new int[] { 0, 5000, 5461, 10922, 16383 })
+            {
+                assertEquals(cluster.owner(slot).getAddress(), client.getNode(slot));
+            }
+        }
+    }
+
+    @Test
+    public void testMoved() throws Exception
+    {
+        try (RedisClusterClient client = new RedisClusterClient(cluster.node(0).getAddress()).start())
+        {
+            int slot = ClusterSlots.slot("moving");
+            FakeRedisServer target = cluster.owner(slot) == cluster.node(0) ? cluster.node(1) : cluster.node(0);
+            target.put("moving", "there".getBytes(ProtocolReader.CHARSET));
+            cluster.moveSlot(slot, target);
+
+            assertEquals("there", client.sendCommand("GET moving").getString());
+            assertEquals(1, client.getRedirectCount());
+            assertEquals(target.getAddress(), client.getNode(slot));
+            assertEquals("there", client.sendCommand("GET moving").getString());
+            assertEquals(1, client.getRedirectCount());
+        }
+    }
+
+    @Test
+    public void testAsk() throws Exception
+    {
+        try (RedisClusterClient client = new RedisClusterClient(cluster.node(0).getAddress()).start())
+        {
+            int slot = ClusterSlots.slot("migrating");
+            FakeRedisServer owner = cluster.owner(slot);
+            FakeRedisServer target = owner == cluster.node(0) ? cluster.node(1) : cluster.node(0);
+            target.put("migrating", "imported".getBytes(ProtocolReader.CHARSET));
+            cluster.migrate(slot, target);
+
+            assertEquals("imported", client.sendCommand("GET migrating").getString());
+            assertEquals(1, client.getRedirectCount());
+            // ASK doesn't change the owner
+            assertEquals(owner.getAddress(), client.getNode(slot));
+        }
+    }
+
+    @Test
+    public void testPipeline() throws Exception
+    {
+        try (RedisClusterClient client = new RedisClusterClient(cluster.node(0).getAddress()).start())
+        {
+            ClusterPipeline pipeline = client.pipeline();
+            for (int i = 0; i < 300; i++)
+            {
+                pipeline.add("INCRBY counter%s %s", i, i);
+            }
+            pipeline.add("GET counter7");
+            List<RedisReply> replies = pipeline.execute();
+            assertEquals(301, replies.size());
+            for (int i = 0; i < 300; i++)
+            {
+                assertEquals(i, replies.get(i).getInteger());
+            }
+            assertEquals("7", replies.get(300).getString());
+
+            // Redirected commands are retried and keep their place
+            int slot = ClusterSlots.slot("counter7");
+            FakeRedisServer target = cluster.owner(slot) == cluster.node(2) ? cluster.node(1) : cluster.node(2);
+            target.put("counter7", "70".getBytes(ProtocolReader.CHARSET));
+            cluster.moveSlot(slot, target);
+            replies = client.pipeline().add("GET counter6").add("GET counter7").add("GET counter8").execute();
+            assertEquals("6", replies.get(0).getString());
+            assertEquals("70", replies.get(1).getString());
+            assertEquals("8", replies.get(2).getString());
+            assertEquals(target.getAddress(), client.getNode(slot));
+        }
+    }
+
+    @Test
+    public void testOnlyReadsRetriedAfterWrite() throws Exception
+    {
+        try (RedisClusterClient client = new RedisClusterClient(cluster.node(0).getAddress()).start())
+        {
+            FakeRedisServer owner = cluster.owner(ClusterSlots.slot("counter"));
+            owner.dropReplies(1);
+            try
+            {
+                client.sendCommand("INCR counter");
+                fail("Expected the lost reply to fail the command");
+            }
+            catch (IOException e)
+            {
+                // INCR ran but its reply was lost, so sending it again would count twice
+            }
+            owner.dropReplies(1);
+            assertEquals("1", client.sendCommand("GET counter").getString());
+
+            owner.dropReplies(1);
+            try
+            {
+                client.pipeline().add("INCR counter").add("GET counter").execute();
+                fail("Expected the lost reply to fail the pipeline");
+            }
+            catch (IOException e)
+            {
+                // The connection was lost after INCR ran, and only GET could be retried
+            }
+            assertEquals("2", client.sendCommand("GET counter").getString());
+        }
+    }
+
+    @Test
+    public void testExceptionOnError() throws Exception
+    {
+        try (RedisClusterClient client = new RedisClusterClient(cluster.node(0).getAddress()).exceptionOnError(true).start())
+        {
+            try
+            {
+                client.sendCommand("BOGUS key");
+                fail("Expected an error");
+            }
+            catch (RedisErrorException e)
+            {
+                assertTrue(e.getMessage().startsWith("ERR unknown command"));
+            }
+        }
+    }
+
+    @Test
+    public void testKeyIndex() throws IOException
+    {
+        ProtocolWriter writer = new ProtocolWriter();
+        assertEquals(-1, Commands.keyIndex(writer.formatCommand("PING")));
+        assertEquals(-1, Commands.keyIndex(writer.formatCommand("CLUSTER SLOTS")));
+        assertEquals(1, Commands.keyIndex(writer.formatCommand("GET foo")));
+        assertEquals(3, Commands.keyIndex(writer.formatCommand("EVALSHA abc 1 foo bar")));
+        assertEquals(-1, Commands.keyIndex(writer.formatCommand("EVAL %s 0", "return 1")));
+        assertEquals(4, Commands.keyIndex(writer.formatCommand("XREAD COUNT 2 STREAMS s1 s2 0 0")));
+        ByteBuffer command = writer.formatCommand("SET {user}.name x");
+        assertEquals(ClusterSlots.slot("user"), RedisClusterClient.slotOf(command));
+    }
+
+    @Test
+    public void testRedirectParse() throws IOException
+    {
+        InetSocketAddress from = new InetSocketAddress("127.0.0.1", 7000);
+        RedisClusterClient.Redirect moved = RedisClusterClient.Redirect.parse(reply("-MOVED 3999 :6380\r\n"), from);
+        assertEquals(RedisClusterClient.Redirect.Kind.MOVED, moved.kind);
+        assertEquals(3999, moved.slot);
+        assertEquals(new InetSocketAddress("127.0.0.1", 6380), moved.target);
+
+        RedisClusterClient.Redirect ask = RedisClusterClient.Redirect.parse(reply("-ASK 1 10.0.0.2:6381\r\n"), from);
+        assertEquals(RedisClusterClient.Redirect.Kind.ASK, ask.kind);
+        assertEquals(6381, ((InetSocketAddress) ask.target).getPort());
+
+        assertEquals(RedisClusterClient.Redirect.Kind.TRYAGAIN, RedisClusterClient.Redirect.parse(reply("-CLUSTERDOWN The cluster is down\r\n"), from).kind);
+        assertNull(RedisClusterClient.Redirect.parse(reply("-ERR wrong type\r\n"), from));
+        assertNull(RedisClusterClient.Redirect.parse(reply("+OK\r\n"), from));
+    }
+
+    @Test
+    public void testParseShardsResp3() throws IOException
+    {
+        String shards = "*1\r\n%2\r\n$5\r\nslots\r\n*4\r\n:0\r\n:99\r\n:200\r\n:299\r\n$5\r\nnodes\r\n*2\r\n"
+                      + "%3\r\n$4\r\nport\r\n:7001\r\n$8\r\nendpoint\r\n$0\r\n\r\n$4\r\nrole\r\n$7\r\nreplica\r\n"
+                      + "%3\r\n$4\r\nport\r\n:7000\r\n$8\r\nendpoint\r\n$0\r\n\r\n$4\r\nrole\r\n$6\r\nmaster\r\n";
+        SocketAddress[] table = RedisClusterClient.parseShards(reply(shards), "127.0.0.1");
+        InetSocketAddress master = new InetSocketAddress("127.0.0.1", 7000);
+        assertEquals(master, table[0]);
+        assertEquals(master, table[99]);
+        assertNull(table[100]);
+        assertEquals(master, table[250]);
+        assertNull(table[300]);
+        assertFalse(master.equals(table[16383]));
+    }
+
+    private static RedisReply reply(String resp) throws IOException
+    {
+        ProtocolReader reader = new ProtocolReader();
+        reader.feed(ByteBuffer.wrap(resp.getBytes(ProtocolReader.CHARSET)));
+        return reader.getReply();
+    }
+}
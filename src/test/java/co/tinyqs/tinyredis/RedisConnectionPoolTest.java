@@ -0,0 +1,238 @@
+package co.tinyqs.tinyredis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RedisConnectionPoolTest
+{
+    private FakeRedisServer server;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new FakeRedisServer();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        server.close();
+    }
+
+    @Test
+    public void testWarmupAndReuse() throws Exception
+    {
+        try (RedisConnectionPool pool = new RedisConnectionPool(server.getAddress()).minSize(2).maxSize(4).start())
+        {
+            assertEquals(2, pool.getSize());
+            assertEquals(2, pool.getIdle());
+            RedisConnection first;
+            try (RedisConnection conn = pool.borrow())
+            {
+                first = conn;
+                assertEquals("PONG", conn.sendCommand("PING").getString());
+                assertEquals(1, pool.getActive());
+                assertEquals(0.25, pool.getUtilization(), 0);
+            }
+            assertEquals(0, pool.getActive());
+            try (RedisConnection conn = pool.borrow())
+            {
+                assertSame(first, conn);
+            }
+            assertEquals(1, pool.getAffinityHits());
+            assertEquals(2, pool.getSize());
+            assertEquals(2, pool.getCreatedCount());
+        }
+    }
+
+    @Test
+    public void testBorrowTimeout() throws Exception
+    {
+        try (RedisConnectionPool pool = new RedisConnectionPool(server.getAddress()).maxSize(1).borrowTimeout(50).start())
+        {
+            try (RedisConnection conn = pool.borrow())
+            {
+                try
+                {
+                    pool.borrow();
+                    fail("Pool should be exhausted");
+                }
+                catch (IOException e)
+                {
+                    
+                }
+                assertEquals(1, pool.getTimeoutCount());
+                assertTrue(pool.getMaxWaitNanos() >= 50 * 1000000L);
+            }
+            pool.borrow().close();
+        }
+    }
+
+    @Test
+    public void testBrokenConnectionsAreReplaced() throws Exception
+    {
+        RedisConnectionPool failing = new RedisConnectionPool(server.getAddress())
+        {
+            @Override
+            protected RedisConnection createConnection(SocketAddress addr, int timeout) throws IOException
+            {
+                return new FailingConnection(RedisConnection.openChannel(addr, timeout));
+            }
+        };
+        try (RedisConnectionPool pool = failing.maxSize(1).start())
+        {
+            RedisConnection broken;
+            try (RedisConnection conn = pool.borrow())
+            {
+                broken = conn;
+                ((FailingConnection) conn).fail = true;
+                try
+                {
+                    conn.sendCommand("PING");
+                    fail("Read should have failed");
+                }
+                catch (IOException e)
+                {
+                    
+                }
+                assertTrue(conn.isErrorState());
+            }
+            assertEquals(0, pool.getSize());
+            assertEquals(1, pool.getDestroyedCount());
+            try (RedisConnection conn = pool.borrow())
+            {
+                assertNotSame(broken, conn);
+                assertEquals("PONG", conn.sendCommand("PING").getString());
+            }
+        }
+    }
+
+    @Test
+    public void testIdleEviction() throws Exception
+    {
+        try (RedisConnectionPool pool = new RedisConnectionPool(server.getAddress()).minSize(1).maxSize(4).idleTimeout(1000000).start())
+        {
+            List<RedisConnection> borrowed = new ArrayList<>();
+            for (int i = 0; i < 4; i++)
+            {
+                borrowed.add(pool.borrow());
+            }
+            for (RedisConnection conn : borrowed)
+            {
+                conn.close();
+            }
+            assertEquals(4, pool.getIdle());
+            pool.evictIdle();
+            // Nothing has been idle long enough yet
+            assertEquals(4, pool.getSize());
+
+            pool.evictIdle(System.currentTimeMillis() + 1);
+            assertEquals(1, pool.getSize());
+            assertEquals(3, pool.getDestroyedCount());
+            try (RedisConnection conn = pool.borrow())
+            {
+                assertEquals("PONG", conn.sendCommand("PING").getString());
+            }
+        }
+    }
+
+    @Test
+    public void testValidation() throws Exception
+    {
+        try (RedisConnectionPool pool = new RedisConnectionPool(server.getAddress()).validationInterval(0).start())
+        {
+            pool.borrow().close();
+            long commands = server.getCommandCount();
+            pool.borrow().close();
+            // The PING sent to validate the idle connection
+            assertEquals(commands + 1, server.getCommandCount());
+        }
+    }
+
+    @Test
+    public void testConcurrentBorrowers() throws Exception
+    {
+        final int threads = 16;
+        final int iterations = 500;
+        try (final RedisConnectionPool pool = new RedisConnectionPool(server.getAddress()).maxSize(4).start())
+        {
+            final AtomicInteger errors = new AtomicInteger();
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++)
+            {
+                Thread worker = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            for (int i = 0; i < iterations; i++)
+                            {
+                                try (RedisConnection conn = pool.borrow())
+                                {
+                                    conn.sendCommand("INCR pooled");
+                                }
+                            }
+                        }
+                        catch (Exception e)
+                        {
+                            errors.incrementAndGet();
+                        }
+                    }
+                });
+                workers.add(worker);
+                worker.start();
+            }
+            for (Thread worker : workers)
+            {
+                worker.join();
+            }
+            assertEquals(0, errors.get());
+            assertTrue(pool.getSize() <= 4);
+            assertEquals(0, pool.getActive());
+            assertEquals(threads * iterations, pool.getBorrowCount());
+            try (RedisConnection conn = pool.borrow())
+            {
+                assertEquals(threads * iterations, Long.parseLong(conn.sendCommand("GET pooled").getString()));
+            }
+        }
+        assertFalse(server.getCommandCount() == 0);
+    }
+
+    static class FailingConnection extends RedisConnection
+    {
+        volatile boolean fail = false;
+
+        FailingConnection(SocketChannel channel)
+        {
+            super(channel, new ProtocolReader(), new ProtocolWriter());
+        }
+
+        @Override
+        protected int _read(ByteBuffer dest) throws IOException
+        {
+            if (fail)
+            {
+                throw new IOException("Connection reset");
+            }
+            return super._read(dest);
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package co.tinyqs.tinyredis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Connection level tests against an in-process FakeRedisServer
+ */
+public class RedisConnectionTest
+{
+    private FakeRedisServer server;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new FakeRedisServer();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        server.close();
+    }
+
+    @Test
+    public void testMixedPipelineKeepsOrder() throws Exception
+    {
+        try (RedisConnection conn = RedisConnection.connect(server.getAddress()))
+        {
+            for (int i = 0; i < 5000; i++)
+            {
+                if (i % 3 == 0)
+                {
+                    conn.command(2).arg("ECHO").arg(i).append();
+                }
+                else
+                {
+                    conn.appendCommand("ECHO %s", i);
+                }
+            }
+            for (int i = 0; i < 5000; i++)
+            {
+                assertEquals(Integer.toString(i), conn.getReply().getString());
+            }
+        }
+    }
+
+    @Test
+    public void testPipelineUsesGatheringWrites() throws Exception
+    {
+        try (CountingConnection conn = new CountingConnection(RedisConnection.openChannel(server.getAddress(), 0)))
+        {
+            for (int i = 0; i < 10000; i++)
+            {
+                conn.appendCommand("PING");
+            }
+            assertTrue(conn.flush());
+            for (int i = 0; i < 10000; i++)
+            {
+                assertEquals("PONG", conn.getReply().getString());
+            }
+            assertTrue("Expected at most " + 10000 / 1024 + 1 + " writes but got " + conn.writes, conn.writes <= 10000 / 1024 + 1);
+        }
+    }
+
+    @Test
+    public void testZeroCopyReplies() throws Exception
+    {
+        try (RedisConnection conn = RedisConnection.connect(server.getAddress()).zeroCopyReplies(true))
+        {
+            conn.sendCommand("SET %s %s", "foo", "bar").release();
+            for (int i = 0; i < 1000; i++)
+            {
+                conn.appendCommand("GET foo");
+            }
+            for (int i = 0; i < 1000; i++)
+            {
+                try (RedisReply reply = conn.getReply())
+                {
+                    assertTrue(reply.isView());
+                    assertEquals("bar", reply.getString());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTypedReplies() throws Exception
+    {
+        byte[] value = new byte[1024*256 + 5];
+        new Random(42).nextBytes(value);
+        try (RedisConnection conn = RedisConnection.connect(server.getAddress()))
+        {
+            assertEquals(1, conn.sendForLong("INCR counter"));
+            assertEquals(11, conn.sendForLong("INCRBY counter %s", 10));
+            assertEquals(-9, conn.sendForLong(conn.compile("INCRBY counter %s"), -20));
+            assertEquals(1, conn.sendForLong("EXISTS counter"));
+            assertEquals(-8, conn.command(2).arg("INCR").arg("counter").sendForLong());
+            
+            assertTrue(conn.command(3).arg("SET").arg("blob").arg(value).sendForOk());
+            assertFalse(conn.sendForOk("GET nokey"));
+            assertFalse(conn.sendForOk("PING"));
+            assertTrue(conn.command(3).arg("SET").arg("small").arg("v").sendForOk());
+            
+            assertTrue(Arrays.equals(value, conn.sendForBulk("GET blob")));
+            assertEquals("v", BufferUtils.decode(conn.sendForBulk("GET small")));
+            assertEquals("v", BufferUtils.decode(conn.command(2).arg("GET").arg("small").sendForBulk()));
+            assertNull(conn.sendForBulk("GET nokey"));
+            
+            // Errors and unexpected replies are consumed, leaving the connection usable
+            try
+            {
+                conn.sendForLong("NOSUCHCOMMAND");
+                fail("Should have thrown the error reply");
+            }
+            catch (RedisErrorException e)
+            {
+                assertTrue(e.getMessage().startsWith("ERR unknown command"));
+            }
+            try
+            {
+                conn.sendForLong("GET small");
+                fail("Should have rejected a bulk reply");
+            }
+            catch (RedisErrorException e)
+            {
+                
+            }
+            try
+            {
+                conn.sendForBulk("INCR counter");
+                fail("Should have rejected an integer reply");
+            }
+            catch (RedisErrorException e)
+            {
+                
+            }
+            assertFalse(conn.isErrorState());
+            assertEquals(-6, conn.sendForLong("INCR counter"));
+            
+            // Replies that arrive before the typed one are still returned by getReply() in order
+            conn.appendCommand("ECHO a");
+            assertEquals("a", conn.getReply().getString());
+        }
+    }
+    
+    @Test
+    public void testTypedReplyAllocation() throws Exception
+    {
+        try (RedisConnection conn = RedisConnection.connect(server.getAddress()))
+        {
+            byte[] key = "counter".getBytes(ProtocolReader.CHARSET);
+            for (int i = 0; i < 10000; i++)
+            {
+                conn.command(2).arg("INCR").arg(key).sendForLong();
+            }
+            
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long before = threads.getThreadAllocatedBytes(Thread.currentThread().threadId());
+            long last = 0;
+            for (int i = 0; i < 10000; i++)
+            {
+                last = conn.command(2).arg("INCR").arg(key).sendForLong();
+            }
+            long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().threadId()) - before;
+            assertEquals(20000, last);
+            assertTrue("INCR shouldn't allocate per call, allocated " + allocated, allocated < 10000);
+        }
+    }
+    
+    @Test
+    public void testStreamReply() throws Exception
+    {
+        byte[] value = new byte[1024*1024*8 + 3];
+        new Random(42).nextBytes(value);
+        try (RedisConnection conn = RedisConnection.connect(server.getAddress()))
+        {
+            conn.sendCommand("SET".getBytes(), "blob".getBytes(), value);
+            
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long before = threads.getThreadAllocatedBytes(Thread.currentThread().threadId());
+            CountingChannel counting = new CountingChannel();
+            assertEquals(value.length, conn.streamCommand(counting, "GET blob"));
+            long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().threadId()) - before;
+            assertEquals(value.length, counting.count);
+            assertTrue("Streaming shouldn't buffer the value, allocated " + allocated, allocated < value.length / 8);
+            
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(value.length, conn.streamCommand(out, "GET blob"));
+            assertTrue(Arrays.equals(value, out.toByteArray()));
+            
+            File file = File.createTempFile("tinyredis", ".blob");
+            try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.WRITE))
+            {
+                assertEquals(value.length, conn.streamCommand(fc, "GET blob"));
+            }
+            finally
+            {
+                assertTrue(Arrays.equals(value, Files.readAllBytes(file.toPath())));
+                file.delete();
+            }
+            
+            assertEquals(-1, conn.streamCommand(out, "GET nokey"));
+            try
+            {
+                conn.streamCommand(out, "PING");
+                fail("Should have rejected a status reply");
+            }
+            catch (RedisErrorException e)
+            {
+                
+            }
+            assertEquals("PONG", conn.sendCommand("PING").getString());
+        }
+    }
+
+    @Test
+    public void testLegacyWriteHook() throws Exception
+    {
+        try (LegacyWriteConnection conn = new LegacyWriteConnection(RedisConnection.openChannel(server.getAddress(), 0)))
+        {
+            for (int i = 0; i < 5; i++)
+            {
+                conn.appendCommand("ECHO %s", i);
+            }
+            conn.appendCommand("SET".getBytes(), "k".getBytes(), "v".getBytes());
+            for (int i = 0; i < 5; i++)
+            {
+                assertEquals(Integer.toString(i), conn.getReply().getString());
+            }
+            assertEquals("OK", conn.getReply().getString());
+            assertEquals(6, conn.writes);
+        }
+    }
+
+    @Test
+    public void testStreamResp3() throws Exception
+    {
+        byte[] value = "streamed".getBytes(ProtocolReader.CHARSET);
+        try (RedisConnection conn = RedisConnection.connect(server.getAddress()))
+        {
+            conn.hello(3);
+            conn.sendCommand("SET".getBytes(), "blob".getBytes(), value);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(-1, conn.streamCommand(out, "GET nokey"));
+            assertEquals(value.length, conn.streamCommand(out, "GET blob"));
+            assertTrue(Arrays.equals(value, out.toByteArray()));
+            assertEquals("PONG", conn.sendCommand("PING").getString());
+        }
+    }
+
+    @Test
+    public void testHello() throws Exception
+    {
+        try (RedisConnection conn = RedisConnection.connect(server.getAddress()))
+        {
+            assertEquals(2, conn.getProtocol());
+            RedisReply reply = conn.hello(3);
+            assertEquals(RedisReply.Type.MAP, reply.getType());
+            assertEquals(3, reply.getMap().get("proto").getInteger());
+            assertEquals(3, conn.getProtocol());
+        }
+    }
+
+    static class CountingChannel implements WritableByteChannel
+    {
+        long count = 0;
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        @Override
+        public int write(ByteBuffer src)
+        {
+            int n = src.remaining();
+            src.position(src.limit());
+            count += n;
+            return n;
+        }
+    }
+
+    /**
+     * Connection that counts write calls, and optionally writes a single buffer per call
+     */
+    static class CountingConnection extends RedisConnection
+    {
+        long writes = 0;
+        private final boolean singleBuffer;
+
+        CountingConnection(SocketChannel channel)
+        {
+            this(channel, false);
+        }
+
+        CountingConnection(SocketChannel channel, boolean singleBuffer)
+        {
+            super(channel, new ProtocolReader(), new ProtocolWriter());
+            this.singleBuffer = singleBuffer;
+        }
+
+        @Override
+        protected long _write(ByteBuffer[] srcs, int offset, int length) throws IOException
+        {
+            writes++;
+            return super._write(srcs, offset, singleBuffer ? 1 : length);
+        }
+    }
+
+    /*
+     * Overrides only the deprecated single buffer hook, as subclasses written before gathering writes do
+     */
+    static class LegacyWriteConnection extends RedisConnection
+    {
+        long writes = 0;
+
+        LegacyWriteConnection(SocketChannel channel)
+        {
+            super(channel, new ProtocolReader(), new ProtocolWriter());
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        protected int _write(ByteBuffer src) throws IOException
+        {
+            writes++;
+            return super._write(src);
+        }
+    }
+}
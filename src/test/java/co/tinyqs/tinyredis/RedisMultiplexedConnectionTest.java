@@ -0,0 +1,111 @@
+package co.tinyqs.tinyredis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RedisMultiplexedConnectionTest
+{
+    private FakeRedisServer server;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new FakeRedisServer();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        server.close();
+    }
+
+    @Test
+    public void testConcurrentCallers() throws Exception
+    {
+        final int threads = 32;
+        final int iterations = 1000;
+        try (final RedisMultiplexedConnection conn = RedisMultiplexedConnection.connect(server.getAddress()))
+        {
+            final AtomicInteger errors = new AtomicInteger();
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++)
+            {
+                final int id = t;
+                Thread worker = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            for (int i = 0; i < iterations; i++)
+                            {
+                                // Each caller must get the reply to its own command
+                                String value = id + ":" + i;
+                                if (!value.equals(conn.sendCommand("ECHO %s", value).getString()))
+                                {
+                                    errors.incrementAndGet();
+                                }
+                            }
+                        }
+                        catch (Exception e)
+                        {
+                            errors.incrementAndGet();
+                        }
+                    }
+                });
+                workers.add(worker);
+                worker.start();
+            }
+            for (Thread worker : workers)
+            {
+                worker.join();
+            }
+            assertEquals(0, errors.get());
+            assertEquals(threads * iterations, conn.getCommandCount());
+            assertTrue("Expected commands to be batched, got " + conn.getWriteCount() + " writes", conn.getWriteCount() < threads * iterations);
+        }
+    }
+
+    @Test
+    public void testErrors() throws Exception
+    {
+        try (RedisMultiplexedConnection conn = RedisMultiplexedConnection.connect(server.getAddress()))
+        {
+            assertEquals(RedisReply.Type.ERROR, conn.sendCommand("NOPE").getType());
+            conn.exceptionOnError(true);
+            try
+            {
+                conn.sendCommand("NOPE");
+                fail("Should have thrown");
+            }
+            catch (RedisErrorException e)
+            {
+                
+            }
+            assertEquals("PONG", conn.sendCommand("PING").getString());
+            
+            conn.close();
+            assertTrue(conn.isErrorState());
+            try
+            {
+                conn.sendCommand("PING");
+                fail("Connection is closed");
+            }
+            catch (IOException e)
+            {
+                
+            }
+        }
+    }
+}
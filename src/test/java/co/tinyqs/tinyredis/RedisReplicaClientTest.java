@@ -0,0 +1,201 @@
+package co.tinyqs.tinyredis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RedisReplicaClientTest
+{
+    private FakeRedisServer primary;
+    private FakeRedisServer replica1;
+    private FakeRedisServer replica2;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        primary = new FakeRedisServer();
+        replica1 = new FakeRedisServer();
+        replica2 = new FakeRedisServer();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        primary.close();
+        replica1.close();
+        replica2.close();
+    }
+
+    @Test
+    public void testRouting() throws Exception
+    {
+        replica1.put("foo", "replicated".getBytes(ProtocolReader.CHARSET));
+        replica2.put("foo", "replicated".getBytes(ProtocolReader.CHARSET));
+        try (RedisReplicaClient client = new RedisReplicaClient(primary.getAddress(), replica1.getAddress(), replica2.getAddress()).start())
+        {
+            assertEquals("OK", client.sendCommand("SET foo %s", "written").getString());
+            assertTrue(primary.containsKey("foo"));
+            for (int i = 0; i < 10; i++)
+            {
+                assertEquals("replicated", client.sendCommand("GET foo").getString());
+            }
+            assertEquals(1, client.getPrimaryCount());
+            assertEquals(10, client.getReplicaReadCount());
+            // Round robin by default
+            assertEquals(5, client.getReplicas().get(0).getRequestCount());
+            assertEquals(5, client.getReplicas().get(1).getRequestCount());
+            assertEquals(1, client.getPrimary().getRequestCount());
+        }
+    }
+
+    @Test
+    public void testExtendedTable() throws Exception
+    {
+        try (RedisReplicaClient client = new RedisReplicaClient(primary.getAddress(), replica1.getAddress()).readOnly("echo").start())
+        {
+            long before = primary.getCommandCount();
+            assertEquals("hi", client.sendCommand("ECHO hi").getString());
+            assertEquals(before, primary.getCommandCount());
+            assertEquals(1, client.getReplicaReadCount());
+        }
+    }
+
+    @Test
+    public void testFailover() throws Exception
+    {
+        primary.put("foo", "primary".getBytes(ProtocolReader.CHARSET));
+        replica2.put("foo", "replica".getBytes(ProtocolReader.CHARSET));
+        SocketAddress dead = replica1.getAddress();
+        replica1.close();
+        try (RedisReplicaClient client = new RedisReplicaClient(primary.getAddress(), dead, replica2.getAddress()).start())
+        {
+            for (int i = 0; i < 4; i++)
+            {
+                assertEquals("replica", client.sendCommand("GET foo").getString());
+            }
+            RedisNode down = client.getReplicas().get(0);
+            assertFalse(down.isAvailable());
+            assertEquals(1, down.getFailureCount());
+            assertEquals(0, down.getOutstanding());
+
+        }
+
+        SocketAddress dead2 = replica2.getAddress();
+        replica2.close();
+        try (RedisReplicaClient client = new RedisReplicaClient(primary.getAddress(), dead, dead2).start())
+        {
+            assertEquals("primary", client.sendCommand("GET foo").getString());
+            assertEquals(1, client.getFallbackCount());
+            assertEquals(0, client.getReplicaReadCount());
+        }
+    }
+
+    @Test
+    public void testBusyReplicaStaysUp() throws Exception
+    {
+        replica1.put("foo", "replica".getBytes(ProtocolReader.CHARSET));
+        primary.put("foo", "primary".getBytes(ProtocolReader.CHARSET));
+        try (RedisReplicaClient client = new RedisReplicaClient(primary.getAddress(), replica1.getAddress()).poolSize(1).start())
+        {
+            RedisNode busy = client.getReplicas().get(0);
+            busy.getPool().borrowTimeout(10);
+            try (RedisConnection held = busy.getPool().borrow())
+            {
+                // The only connection is in use, so the read falls back without marking the replica down
+                assertEquals("primary", client.sendCommand("GET foo").getString());
+            }
+            assertTrue(busy.isAvailable());
+            assertEquals(0, busy.getFailureCount());
+            assertEquals(0, busy.getOutstanding());
+            assertEquals("replica", client.sendCommand("GET foo").getString());
+        }
+    }
+
+    @Test
+    public void testNoFallback() throws Exception
+    {
+        SocketAddress dead = replica1.getAddress();
+        replica1.close();
+        try (RedisReplicaClient client = new RedisReplicaClient(primary.getAddress(), dead).readFromPrimary(false).start())
+        {
+            try
+            {
+                client.sendCommand("GET foo");
+                fail("Expected the read to fail");
+            }
+            catch (IOException e)
+            {
+                assertEquals("No replica is available", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testPolicies()
+    {
+        RedisNode a = node(1);
+        RedisNode b = node(2);
+        RedisNode c = node(3);
+        List<RedisNode> nodes = Arrays.asList(a, b, c);
+
+        ReadPolicy roundRobin = ReadPolicy.roundRobin();
+        assertSame(a, roundRobin.select(nodes));
+        assertSame(b, roundRobin.select(nodes));
+        assertSame(c, roundRobin.select(nodes));
+        assertSame(a, roundRobin.select(nodes));
+
+        a.started();
+        a.started();
+        c.started();
+        assertSame(b, ReadPolicy.leastOutstanding().select(nodes));
+        a.completed(5000000);
+        a.completed(5000000);
+        c.completed(1000000);
+
+        // b is unmeasured, so it is always tried, and a is the slowest so it is never chosen over another node
+        b.started();
+        b.completed(100000);
+        Map<RedisNode, Integer> counts = new HashMap<>();
+        ReadPolicy latency = ReadPolicy.lowestLatency();
+        for (int i = 0; i < 300; i++)
+        {
+            RedisNode chosen = latency.select(nodes);
+            counts.put(chosen, counts.containsKey(chosen) ? counts.get(chosen) + 1 : 1);
+        }
+        assertFalse(counts.containsKey(a));
+        assertTrue(counts.get(b) > counts.get(c));
+    }
+
+    @Test
+    public void testLatencyAverage()
+    {
+        RedisNode node = node(1);
+        node.started();
+        node.completed(1000);
+        assertEquals(1000, node.getLatencyNanos(), 0);
+        node.started();
+        node.completed(2000);
+        assertEquals(1200, node.getLatencyNanos(), 0);
+        assertEquals(2, node.getRequestCount());
+        assertEquals(0, node.getOutstanding());
+    }
+
+    private static RedisNode node(int port)
+    {
+        return new RedisNode(new InetSocketAddress("127.0.0.1", port), null, 0);
+    }
+}
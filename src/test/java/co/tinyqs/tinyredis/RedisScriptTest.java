@@ -0,0 +1,172 @@
+package co.tinyqs.tinyredis;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RedisScriptTest
+{
+    private static final RedisScript SCRIPT = new RedisScript(body());
+
+    private FakeRedisServer server;
+    private RedisConnection conn;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new FakeRedisServer();
+        conn = RedisConnection.connect(server.getAddress());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        conn.close();
+        server.close();
+    }
+
+    @Test
+    public void testSha1()
+    {
+        assertEquals("e0e1f9fabfc9d4800c877a703b823ac0578ff8db", new RedisScript("return 1").getSha1());
+        assertEquals(new RedisScript("return 1"), new RedisScript("return 1"));
+    }
+
+    @Test
+    public void testEvalLoadsOnce() throws IOException
+    {
+        for (int i = 0; i < 100; i++)
+        {
+            RedisReply reply = conn.eval(SCRIPT, new String[] { "key:" + i }, i, "x".getBytes(ProtocolReader.CHARSET));
+            assertEquals("key:" + i, reply.getElements()[0].getString());
+            assertEquals(Integer.toString(i), reply.getElements()[1].getString());
+            assertEquals("x", reply.getElements()[2].getString());
+        }
+        assertEquals(1, server.getScriptLoadCount());
+    }
+
+    @Test
+    public void testReloadAfterNoScript() throws IOException
+    {
+        conn.exceptionOnError(true);
+        conn.eval(SCRIPT, new String[0]);
+        server.flushScripts();
+        assertEquals("a", conn.eval(SCRIPT, new String[] { "a" }).getElements()[0].getString());
+        assertEquals(2, server.getScriptLoadCount());
+        assertEquals("PONG", conn.sendCommand("PING").getString());
+    }
+
+    @Test
+    public void testPipeline() throws IOException
+    {
+        conn.loadScripts(SCRIPT);
+        Pipeline pipeline = conn.pipeline(8);
+        for (int i = 0; i < 50; i++)
+        {
+            pipeline.eval(SCRIPT, new String[] { "key:" + i });
+            pipeline.add("ECHO %s", i);
+        }
+        List<RedisReply> replies = pipeline.execute();
+        for (int i = 0; i < 50; i++)
+        {
+            assertEquals("key:" + i, replies.get(i * 2).getElements()[0].getString());
+            assertEquals(Integer.toString(i), replies.get(i * 2 + 1).getString());
+        }
+        assertEquals(1, server.getScriptLoadCount());
+    }
+
+    @Test
+    public void testEvalShaMarksLoaded() throws Exception
+    {
+        try (RedisConnection other = RedisConnection.connect(server.getAddress()))
+        {
+            other.loadScripts(SCRIPT);
+        }
+        conn.eval(SCRIPT, new String[] { "a" });
+        conn.pipeline(4).eval(SCRIPT, new String[] { "b" }).execute();
+        assertEquals(1, server.getScriptLoadCount());
+    }
+
+    @Test
+    public void testPipelineLoadsUnknownScript() throws IOException
+    {
+        List<RedisReply> replies = conn.pipeline(4).eval(SCRIPT, new String[] { "a" }).eval(SCRIPT, new String[] { "b" }).execute();
+        assertEquals(2, replies.size());
+        assertEquals("b", replies.get(1).getElements()[0].getString());
+        assertEquals(1, server.getScriptLoadCount());
+    }
+
+    @Test
+    public void testPipelineRetriesNoScript() throws IOException
+    {
+        conn.eval(SCRIPT, new String[0]);
+        server.flushScripts();
+
+        final List<Integer> indexes = new ArrayList<>();
+        Pipeline pipeline = conn.pipeline(16, new Pipeline.ReplyListener()
+        {
+            @Override
+            public void onReply(int index, RedisReply reply)
+            {
+                assertEquals(RedisReply.Type.ARRAY, reply.getType());
+                assertEquals("key:" + index, reply.getElements()[0].getString());
+                indexes.add(index);
+            }
+        });
+        for (int i = 0; i < 100; i++)
+        {
+            pipeline.eval(SCRIPT, new String[] { "key:" + i });
+        }
+        pipeline.execute();
+        assertEquals(100, indexes.size());
+        assertEquals(100, new HashSet<>(indexes).size());
+        assertEquals("Calls in flight when the script was lost should share one reload", 2, server.getScriptLoadCount());
+        assertEquals("PONG", conn.sendCommand("PING").getString());
+    }
+
+    @Test
+    public void testPoolPreload() throws Exception
+    {
+        try (RedisConnectionPool pool = new RedisConnectionPool(server.getAddress()).minSize(2).preloadScripts(SCRIPT).start())
+        {
+            assertEquals(2, server.getScriptLoadCount());
+            try (RedisConnection pooled = pool.borrow())
+            {
+                pooled.eval(SCRIPT, new String[0]);
+            }
+        }
+        assertEquals(2, server.getScriptLoadCount());
+    }
+
+    @Test
+    public void testFunctions() throws IOException
+    {
+        String library = "#!lua name=mylib\nredis.register_function('echo_args', function(keys, args) return args end)";
+        assertEquals("mylib", conn.loadFunctions(library));
+        assertEquals("mylib", conn.loadFunctions(library));
+
+        RedisReply reply = conn.fcall("echo_args", new String[] { "k" }, "v", 42);
+        assertEquals(3, reply.getElements().length);
+        assertEquals("42", reply.getElements()[2].getString());
+        assertEquals("k", conn.fcallReadOnly("echo_args", new String[] { "k" }).getElements()[0].getString());
+        assertEquals(RedisReply.Type.ERROR, conn.fcall("missing", new String[0]).getType());
+    }
+
+    private static String body()
+    {
+        // A few KB, like the scripts that are worth calling by digest
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+        {
+            body.append("-- padding line ").append(i).append('\n');
+        }
+        return body.append("return {unpack(KEYS), unpack(ARGV)}").toString();
+    }
+}
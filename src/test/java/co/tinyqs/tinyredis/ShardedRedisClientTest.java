@@ -0,0 +1,210 @@
+package co.tinyqs.tinyredis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShardedRedisClientTest
+{
+    private FakeRedisServer[] servers;
+    private ShardedRedisClient client;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        servers = new FakeRedisServer[3];
+        for (int i = 0; i < servers.length; i++)
+        {
+            servers[i] = new FakeRedisServer();
+        }
+        client = new ShardedRedisClient()
+            .shard("s0", servers[0].getAddress())
+            .shard("s1", servers[1].getAddress())
+            .shard("s2", servers[2].getAddress())
+            .start();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        client.close();
+        for (FakeRedisServer server : servers)
+        {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testRouting() throws Exception
+    {
+        int[] counts = new int[servers.length];
+        for (int i = 0; i < 300; i++)
+        {
+            String key = "key" + i;
+            assertEquals("OK", client.sendCommand("SET %s %s", key, i).getString());
+            int shard = Integer.parseInt(client.getShard(key).substring(1));
+            assertTrue(servers[shard].containsKey(key));
+            counts[shard]++;
+        }
+        for (int count : counts)
+        {
+            assertTrue("Uneven distribution: " + count, count > 50);
+        }
+        assertEquals("7", client.sendCommand("GET key7").getString());
+    }
+
+    @Test
+    public void testFanOut() throws Exception
+    {
+        Object[] pairs = new Object[200];
+        for (int i = 0; i < 100; i++)
+        {
+            pairs[i*2] = "k" + i;
+            pairs[i*2+1] = "v" + i;
+        }
+        StringBuilder format = new StringBuilder("MSET");
+        for (int i = 0; i < 100; i++)
+        {
+            format.append(" %s %s");
+        }
+        assertEquals("OK", client.sendCommand(format.toString(), pairs).getString());
+        for (int i = 0; i < 100; i++)
+        {
+            assertTrue(servers[Integer.parseInt(client.getShard("k" + i).substring(1))].containsKey("k" + i));
+        }
+
+        RedisReply reply = client.sendCommand("MGET k5 missing k99 k0 k42");
+        RedisReply[] values = reply.getElements();
+        assertEquals(5, values.length);
+        assertEquals("v5", values[0].getString());
+        assertEquals(RedisReply.Type.NIL, values[1].getType());
+        assertEquals("v99", values[2].getString());
+        assertEquals("v0", values[3].getString());
+        assertEquals("v42", values[4].getString());
+
+        assertEquals(3, client.sendCommand("EXISTS k1 k2 nope k3").getInteger());
+        assertEquals(4, client.sendCommand("DEL k1 k2 k3 k4 nope").getInteger());
+        assertEquals(0, client.sendCommand("EXISTS k1 k2 k3 k4").getInteger());
+    }
+
+    @Test
+    public void testKeyPosition() throws Exception
+    {
+        ProtocolWriter writer = new ProtocolWriter();
+        ByteBuffer command = writer.formatCommand("ECHO hello");
+        client.keyPosition("echo", 1);
+        assertEquals(client.getShard("hello"), client.shardFor(command, "ECHO").name);
+        command = writer.formatCommand("OBJECT ENCODING mykey");
+        client.keyPosition("OBJECT", 2);
+        assertEquals(client.getShard("mykey"), client.shardFor(command, "OBJECT").name);
+    }
+
+    @Test
+    public void testRebalance()
+    {
+        Map<String, InetSocketAddress> shards = new LinkedHashMap<>();
+        for (int i = 0; i < 4; i++)
+        {
+            shards.put("10.0.0." + i + ":6379", InetSocketAddress.createUnresolved("10.0.0." + i, 6379));
+        }
+        HashRing<InetSocketAddress> before = new HashRing<>(shards, 160);
+        shards.put("10.0.0.4:6379", InetSocketAddress.createUnresolved("10.0.0.4", 6379));
+        HashRing<InetSocketAddress> after = new HashRing<>(shards, 160);
+
+        int moved = 0;
+        int keys = 20000;
+        for (int i = 0; i < keys; i++)
+        {
+            ByteBuffer key = ByteBuffer.wrap(("user:" + i).getBytes(ProtocolReader.CHARSET));
+            InetSocketAddress from = before.get(key);
+            InetSocketAddress to = after.get(key);
+            if (!from.equals(to))
+            {
+                // Keys only ever move to the new shard
+                assertEquals("10.0.0.4", to.getHostString());
+                moved++;
+            }
+        }
+        double fraction = (double) moved / keys;
+        assertTrue("Moved " + fraction, fraction > 0.15 && fraction < 0.25);
+    }
+
+    @Test
+    public void testAddShard() throws Exception
+    {
+        try (FakeRedisServer extra = new FakeRedisServer())
+        {
+            client.addShard("s3", extra.getAddress());
+            int onNew = 0;
+            for (int i = 0; i < 400; i++)
+            {
+                client.sendCommand("SET key%s x", i);
+                onNew += extra.containsKey("key" + i) ? 1 : 0;
+            }
+            assertTrue(onNew > 50 && onNew < 150);
+            client.removeShard("s3");
+            assertNotNull(client.sendCommand("GET key1"));
+        }
+    }
+
+    @Test
+    public void testRemoveShardDrains() throws Exception
+    {
+        String key = "key0";
+        for (int i = 0; !"s1".equals(client.getShard(key)); i++)
+        {
+            key = "key" + i;
+        }
+        ByteBuffer get = Commands.build(ByteBuffer.wrap("GET".getBytes()), ByteBuffer.wrap(key.getBytes()));
+        ShardedRedisClient.Shard shard = client.shardFor(get, "GET");
+        assertTrue(shard.enter());
+        client.removeShard("s1");
+
+        // A command that picked the shard before it was removed still gets a connection
+        try (RedisConnection conn = shard.pool.borrow())
+        {
+            assertEquals("PONG", conn.sendCommand("PING").getString());
+        }
+        shard.exit();
+        assertFalse(shard.enter());
+        try
+        {
+            shard.pool.borrow();
+            fail("Expected the pool to be closed once the shard was drained");
+        }
+        catch (IllegalStateException e)
+        {
+            // Closed
+        }
+        assertEquals("OK", client.sendCommand("SET %s moved", key).getString());
+        assertTrue(servers[0].containsKey(key) || servers[2].containsKey(key));
+    }
+
+    @Test
+    public void testMalformedMultiKeyCommand() throws Exception
+    {
+        RedisReply reply = client.sendCommand("MSET a");
+        assertEquals(RedisReply.Type.ERROR, reply.getType());
+        assertTrue(reply.getString().startsWith("ERR wrong number of arguments"));
+        assertEquals(RedisReply.Type.ERROR, client.sendCommand("MSET a 1 b").getType());
+    }
+
+    @Test
+    public void testKetamaPoints()
+    {
+        // libketama hashes keys with the first 4 bytes of their MD5, little endian
+        assertEquals(0xd98c1dd4L, HashRing.hash(ByteBuffer.wrap(new byte[0])));
+    }
+}
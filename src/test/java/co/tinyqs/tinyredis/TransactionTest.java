@@ -0,0 +1,129 @@
+package co.tinyqs.tinyredis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransactionTest
+{
+    private FakeRedisServer server;
+    private RedisConnectionTest.CountingConnection conn;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new FakeRedisServer();
+        conn = new RedisConnectionTest.CountingConnection(RedisConnection.openChannel(server.getAddress(), 0));
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        conn.close();
+        server.close();
+    }
+
+    @Test
+    public void testSingleRoundTrip() throws IOException
+    {
+        conn.sendCommand("SET text hello");
+        long writes = conn.writes;
+        long commands = server.getCommandCount();
+        List<RedisReply> results = conn.multi()
+                                       .add("SET %s %s", "counter", 41)
+                                       .add("INCR %s", "counter")
+                                       .add("INCR text")
+                                       .add(CommandTemplate.compile("GET %s"), "counter")
+                                       .execute();
+        assertEquals("MULTI, the commands and EXEC should go out in one write", writes + 1, conn.writes);
+        assertEquals(commands + 6, server.getCommandCount());
+
+        assertEquals(4, results.size());
+        assertEquals("OK", results.get(0).getString());
+        assertEquals(42, results.get(1).getInteger());
+        assertEquals(RedisReply.Type.ERROR, results.get(2).getType());
+        assertEquals("42", results.get(3).getString());
+        assertEquals("PONG", conn.sendCommand("PING").getString());
+    }
+
+    @Test
+    public void testRejectedCommandAbortsTransaction() throws IOException
+    {
+        try
+        {
+            conn.multi().add("SET %s %s", "key", "value").add("NOSUCHCOMMAND").add("PING").execute();
+            fail("Expected the transaction to be discarded");
+        }
+        catch (RedisErrorException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Command 1 failed: ERR unknown command"));
+        }
+        assertFalse(server.containsKey("key"));
+        assertEquals("PONG", conn.sendCommand("PING").getString());
+    }
+
+    @Test
+    public void testWatchRetries() throws Exception
+    {
+        conn.sendCommand("SET balance 100");
+        final int[] attempts = {0};
+        try (RedisConnection other = RedisConnection.connect(server.getAddress()))
+        {
+            List<RedisReply> results = conn.transaction(3, new Transaction.Body()
+            {
+                @Override
+                public void build(RedisConnection c, Transaction tx) throws IOException
+                {
+                    long balance = Long.parseLong(c.sendCommand("GET balance").getString());
+                    if (attempts[0]++ == 0)
+                    {
+                        // Another client gets in between the read and EXEC
+                        other.sendCommand("SET balance 50");
+                    }
+                    tx.add("SET %s %s", "balance", balance - 10);
+                }
+            }, "balance");
+            assertEquals(2, attempts[0]);
+            assertEquals("OK", results.get(0).getString());
+            assertEquals("40", conn.sendCommand("GET balance").getString());
+        }
+    }
+
+    @Test
+    public void testWatchGivesUp() throws Exception
+    {
+        try (RedisConnection other = RedisConnection.connect(server.getAddress()))
+        {
+            List<RedisReply> results = conn.transaction(2, new Transaction.Body()
+            {
+                @Override
+                public void build(RedisConnection c, Transaction tx) throws IOException
+                {
+                    other.sendCommand("INCR contended");
+                    tx.add("SET contended 0");
+                }
+            }, "contended");
+            assertNull(results);
+            assertEquals("2", conn.sendCommand("GET contended").getString());
+        }
+
+        // An empty transaction unwatches and sends nothing else
+        assertTrue(conn.transaction(1, new Transaction.Body()
+        {
+            @Override
+            public void build(RedisConnection c, Transaction tx)
+            {
+            }
+        }, "contended").isEmpty());
+        assertEquals("PONG", conn.sendCommand("PING").getString());
+    }
+}
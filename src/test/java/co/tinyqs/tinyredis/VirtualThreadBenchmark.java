@@ -0,0 +1,67 @@
+package co.tinyqs.tinyredis;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test with a large number of concurrent virtual threads sharing a bounded pool of connections to the in-process
+ * FakeRedisServer
+ *
+ * Run with: java -cp target/classes:target/test-classes co.tinyqs.tinyredis.VirtualThreadBenchmark [threads] [connections] [commands per thread]
+ */
+public class VirtualThreadBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int commands = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        try (FakeRedisServer server = new FakeRedisServer();
+             RedisConnectionPool pool = new RedisConnectionPool(server.getAddress()).maxSize(connections).minSize(connections)
+                                                                                    .borrowTimeout(120000).virtualThreads(true).start())
+        {
+            for (int pass = 0; pass < 3; pass++)
+            {
+                final AtomicLong failures = new AtomicLong();
+                final CountDownLatch start = new CountDownLatch(1);
+                long waitBefore = pool.getTotalWaitNanos();
+                long begin;
+                try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor())
+                {
+                    for (int t = 0; t < threads; t++)
+                    {
+                        final int id = t;
+                        executor.submit(() ->
+                        {
+                            try
+                            {
+                                start.await();
+                                for (int i = 0; i < commands; i++)
+                                {
+                                    try (RedisConnection conn = pool.borrow())
+                                    {
+                                        conn.sendCommand("SET key:%s %s", id, i);
+                                    }
+                                }
+                            }
+                            catch (Exception e)
+                            {
+                                failures.incrementAndGet();
+                            }
+                        });
+                    }
+                    begin = System.nanoTime();
+                    start.countDown();
+                }
+                long elapsed = System.nanoTime() - begin;
+                long total = (long) threads * commands;
+                System.out.println(String.format("Pass %d: %,d virtual threads over %d connections, %,d cmds/s, avg borrow wait %.2fms, %d failures",
+                                                 pass + 1, threads, pool.getSize(), (long) (total * 1e9 / elapsed),
+                                                 (pool.getTotalWaitNanos() - waitBefore) / 1e6 / total, failures.get()));
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package co.tinyqs.tinyredis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.net.UnixDomainSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class VirtualThreadTest
+{
+    private FakeRedisServer server;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new FakeRedisServer();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        server.close();
+    }
+
+    @Test
+    public void testNoPinningThroughPool() throws Exception
+    {
+        final List<RecordedEvent> pinned = new CopyOnWriteArrayList<>();
+        try (RecordingStream recording = new RecordingStream();
+             RedisConnectionPool pool = new RedisConnectionPool(server.getAddress()).maxSize(8).virtualThreads(true).start())
+        {
+            recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+            recording.onEvent("jdk.VirtualThreadPinned", pinned::add);
+            recording.startAsync();
+
+            int threads = 10000;
+            List<Future<?>> results = new ArrayList<>();
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor())
+            {
+                for (int i = 0; i < threads; i++)
+                {
+                    final int id = i;
+                    results.add(executor.submit(() ->
+                    {
+                        try (RedisConnection conn = pool.borrow())
+                        {
+                            assertEquals(Integer.toString(id), conn.sendCommand("ECHO %s", id).getString());
+                            conn.sendCommand("INCR vthreads");
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> result : results)
+                {
+                    result.get(30, TimeUnit.SECONDS);
+                }
+            }
+            // Flush buffered events before checking
+            recording.stop();
+
+            assertTrue(pool.getSize() <= 8);
+            assertEquals(0, pool.getAffinityHits());
+            try (RedisConnection conn = pool.borrow())
+            {
+                assertEquals(Integer.toString(threads), conn.sendCommand("GET vthreads").getString());
+            }
+        }
+        assertTrue("Virtual threads were pinned: " + pinned, pinned.isEmpty());
+    }
+
+    @Test
+    public void testUnixSocket() throws Exception
+    {
+        Path dir = Files.createTempDirectory("tinyredis");
+        UnixDomainSocketAddress addr = UnixDomainSocketAddress.of(dir.resolve("redis.sock"));
+        try (FakeRedisServer local = new FakeRedisServer(addr);
+             RedisConnection conn = RedisConnection.connect(addr))
+        {
+            assertEquals("PONG", conn.sendCommand("PING").getString());
+        }
+        finally
+        {
+            Files.deleteIfExists(addr.getPath());
+            Files.delete(dir);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package co.tinyqs.tinyredis;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * BufferUtils.seekNewLine() with the CRLF <strong>distance</strong> bytes into the buffer, against a byte at a time
+ * scan as a baseline, and BufferUtils.makeRoom() growing a full buffer of <strong>distance</strong> bytes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferUtilsBenchmark
+{
+    @Param({"1", "4", "8", "16", "64", "1024", "16384"})
+    public int distance;
+
+    private ByteBuffer line;
+    private ByteBuffer full;
+    private ByteBuffer roomy;
+
+    @Setup
+    public void setUp()
+    {
+        byte[] bytes = new byte[distance + 2];
+        Arrays.fill(bytes, (byte) 'x');
+        bytes[distance] = '\r';
+        bytes[distance + 1] = '\n';
+        line = ByteBuffer.wrap(bytes);
+
+        full = ByteBuffer.allocate(distance);
+        full.position(distance);
+        roomy = ByteBuffer.allocate(distance * 2);
+        roomy.position(distance);
+    }
+
+    @Benchmark
+    public int seekNewLine()
+    {
+        return BufferUtils.seekNewLine(line);
+    }
+
+    @Benchmark
+    public int seekNewLineScalar()
+    {
+        int end = line.limit() - 1;
+        for (int i = line.position(); i < end; i++)
+        {
+            if (line.get(i) == '\r' && line.get(i + 1) == '\n')
+            {
+                return i + 2;
+            }
+        }
+        return -1;
+    }
+
+    @Benchmark
+    public ByteBuffer makeRoomGrow()
+    {
+        full.position(distance);
+        return BufferUtils.makeRoom(full, distance);
+    }
+
+    @Benchmark
+    public ByteBuffer makeRoomFits()
+    {
+        return BufferUtils.makeRoom(roomy, distance);
+    }
+}
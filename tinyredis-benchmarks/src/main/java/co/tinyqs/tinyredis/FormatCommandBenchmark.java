@@ -0,0 +1,160 @@
+package co.tinyqs.tinyredis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ProtocolWriter.formatCommand() for commands with a key and <strong>args</strong> values of <strong>size</strong>
+ * bytes each, from a format string, a precompiled template and binary values through a serializer. Arrays of longs
+ * are encoded either into a byte[] that is then copied, or straight into the command buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatCommandBenchmark
+{
+    @Param({"1", "4", "16"})
+    public int args;
+
+    @Param({"8", "512", "16384"})
+    public int size;
+
+    private ProtocolWriter writer;
+    private ProtocolWriter streamingWriter;
+    private String format;
+    private String binaryFormat;
+    private CommandTemplate template;
+    private Object[] strings;
+    private Object[] binaries;
+    private Object[] longs;
+
+    @Setup
+    public void setUp()
+    {
+        writer = new ProtocolWriter();
+        writer.registerSerializer(new RedisSerializer()
+        {
+            @Override
+            public boolean canSerialize(Object obj)
+            {
+                return obj instanceof byte[];
+            }
+
+            @Override
+            public byte[] serialize(Object obj)
+            {
+                return (byte[]) obj;
+            }
+        });
+
+        writer.registerSerializer(new LongArraySerializer());
+        streamingWriter = new ProtocolWriter();
+        streamingWriter.registerSerializer(new LongArraySerializer()
+        {
+            @Override
+            public int sizeHint(Object obj)
+            {
+                return ((long[]) obj).length * 8;
+            }
+
+            @Override
+            public void writeTo(Object obj, ByteBuffer dest)
+            {
+                for (long value : (long[]) obj)
+                {
+                    dest.putLong(value);
+                }
+            }
+        });
+
+        StringBuilder fmt = new StringBuilder("RPUSH %s");
+        StringBuilder binaryFmt = new StringBuilder("RPUSH %s");
+        strings = new Object[args + 1];
+        binaries = new Object[args + 1];
+        longs = new Object[args + 1];
+        strings[0] = "benchmark:key";
+        binaries[0] = "benchmark:key";
+        longs[0] = "benchmark:key";
+        char[] chars = new char[size];
+        Arrays.fill(chars, 'x');
+        for (int i = 1; i <= args; i++)
+        {
+            fmt.append(" %s");
+            binaryFmt.append(" %b");
+            strings[i] = new String(chars);
+            binaries[i] = new byte[size];
+            longs[i] = new long[Math.max(size / 8, 1)];
+        }
+        format = fmt.toString();
+        binaryFormat = binaryFmt.toString();
+        template = writer.compile(format);
+    }
+
+    @Benchmark
+    public ByteBuffer formatString() throws IOException
+    {
+        return writer.formatCommand(format, strings);
+    }
+
+    @Benchmark
+    public ByteBuffer formatTemplate() throws IOException
+    {
+        return writer.formatCommand(template, strings);
+    }
+
+    @Benchmark
+    public ByteBuffer formatBinary() throws IOException
+    {
+        return writer.formatCommand(binaryFormat, binaries);
+    }
+
+    @Benchmark
+    public ByteBuffer formatSerialized() throws IOException
+    {
+        return writer.formatCommand(binaryFormat, longs);
+    }
+
+    @Benchmark
+    public ByteBuffer formatStreamed() throws IOException
+    {
+        return streamingWriter.formatCommand(binaryFormat, longs);
+    }
+
+    private static class LongArraySerializer implements RedisSerializer
+    {
+        @Override
+        public boolean canSerialize(Object obj)
+        {
+            return obj instanceof long[];
+        }
+
+        @Override
+        public byte[] serialize(Object obj)
+        {
+            long[] values = (long[]) obj;
+            ByteBuffer bytes = ByteBuffer.allocate(values.length * 8);
+            for (long value : values)
+            {
+                bytes.putLong(value);
+            }
+            return bytes.array();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package co.tinyqs.tinyredis;
+
+/**
+ * Log-linear histogram of latencies in microseconds, accurate to about 3%
+ *
+ * Values below 64us get a bucket each, and every power of two above that is split into 32 buckets. Recording is a
+ * couple of shifts and an increment, so each client thread can keep its own histogram and merge it at the end.
+ * Not thread-safe.
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int LINEAR = SUB_BUCKETS * 2;
+
+    private final long[] counts = new long[LINEAR + SUB_BUCKETS * 64];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    public void recordNanos(long nanos)
+    {
+        record(Math.max(nanos / 1000, 0));
+    }
+
+    public void record(long micros)
+    {
+        counts[index(micros)]++;
+        count++;
+        sum += micros;
+        max = Math.max(max, micros);
+    }
+
+    public void merge(LatencyHistogram other)
+    {
+        for (int i = 0; i < counts.length; i++)
+        {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount()
+    {
+        return count;
+    }
+
+    public double getMean()
+    {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public long getMax()
+    {
+        return max;
+    }
+
+    /**
+     * Return the latency in us below which the given percentage of samples fall
+     */
+    public long getPercentile(double percentile)
+    {
+        if (count == 0)
+        {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++)
+        {
+            seen += counts[i];
+            if (seen >= Math.max(rank, 1))
+            {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int index(long micros)
+    {
+        if (micros < LINEAR)
+        {
+            return (int) micros;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+        return shift * SUB_BUCKETS + (int) (micros >>> shift);
+    }
+
+    private static long upperBound(int index)
+    {
+        if (index < LINEAR)
+        {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long top = index - shift * SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+}
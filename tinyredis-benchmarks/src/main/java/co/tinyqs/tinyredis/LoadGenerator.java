@@ -0,0 +1,319 @@
+package co.tinyqs.tinyredis;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closed-loop load generator in the spirit of redis-benchmark
+ *
+ * Each client is a thread with its own RedisConnection that sends batches of pipelined commands, drawn from a weighted
+ * mix of GET, SET and PING over a random keyspace, and waits for all replies before sending the next batch. The latency
+ * of every command is measured from the start of its batch, as redis-benchmark does. Without -h, an in-process
+ * RespStandInServer is started so the client can be measured on a machine without redis.
+ *
+ * Usage:
+ *   java -cp tinyredis-benchmarks/target/benchmarks.jar co.tinyqs.tinyredis.LoadGenerator [options]
+ *
+ *   -h host          server host, an in-process stand-in is started if omitted
+ *   -p port          server port, 6379 by default
+ *   -c clients       number of concurrent clients, 50 by default
+ *   -n requests      total number of commands, 100000 by default
+ *   -P depth         commands pipelined per batch, 1 by default
+ *   -t mix           weighted command mix, get:80,set:20 by default
+ *   -r keyspace      number of distinct keys, 10000 by default
+ *   -d size          SET value size in bytes, 64 by default
+ *   --threads n      selector threads of the stand-in server, 1 by default
+ *   --delay us       reply delay of the stand-in server
+ *   --bandwidth b/s  write bandwidth of the stand-in server
+ *   --virtual        run clients on virtual threads
+ *   --direct         use pooled direct buffers for client connections
+ */
+public class LoadGenerator
+{
+    private static final byte[] GET = "GET".getBytes(ProtocolReader.CHARSET);
+    private static final byte[] SET = "SET".getBytes(ProtocolReader.CHARSET);
+    private static final byte[] PING = "PING".getBytes(ProtocolReader.CHARSET);
+
+    private String host = null;
+    private int port = 6379;
+    private int clients = 50;
+    private long requests = 100000;
+    private int pipeline = 1;
+    private String mix = "get:80,set:20";
+    private int keyspace = 10000;
+    private int valueSize = 64;
+    private int serverThreads = 1;
+    private long delayMicros = 0;
+    private long bandwidth = 0;
+    private boolean virtual = false;
+    private boolean direct = false;
+
+    private byte[][] commands;
+    private int[] weights;
+    private int totalWeight;
+    private byte[][] keys;
+    private byte[] value;
+
+    public static void main(String[] args) throws Exception
+    {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parse(args);
+        generator.run();
+    }
+
+    private void parse(String[] args)
+    {
+        for (int i = 0; i < args.length; i++)
+        {
+            String opt = args[i];
+            if ("--virtual".equals(opt))
+            {
+                virtual = true;
+                continue;
+            }
+            if ("--direct".equals(opt))
+            {
+                direct = true;
+                continue;
+            }
+            Preconditions.checkState(i + 1 < args.length, "Missing value for " + opt);
+            String val = args[++i];
+            switch (opt)
+            {
+                case "-h": host = val; break;
+                case "-p": port = Integer.parseInt(val); break;
+                case "-c": clients = Integer.parseInt(val); break;
+                case "-n": requests = Long.parseLong(val); break;
+                case "-P": pipeline = Integer.parseInt(val); break;
+                case "-t": mix = val; break;
+                case "-r": keyspace = Integer.parseInt(val); break;
+                case "-d": valueSize = Integer.parseInt(val); break;
+                case "--threads": serverThreads = Integer.parseInt(val); break;
+                case "--delay": delayMicros = Long.parseLong(val); break;
+                case "--bandwidth": bandwidth = Long.parseLong(val); break;
+                default: throw new IllegalArgumentException("Unknown option " + opt);
+            }
+        }
+        Preconditions.checkState(clients > 0 && pipeline > 0 && keyspace > 0, "-c, -P and -r must be positive");
+    }
+
+    private void run() throws Exception
+    {
+        prepare();
+        RespStandInServer server = null;
+        SocketAddress addr;
+        if (host == null)
+        {
+            server = new RespStandInServer(new InetSocketAddress("127.0.0.1", 0), serverThreads, delayMicros, bandwidth);
+            addr = server.getAddress();
+        }
+        else
+        {
+            addr = new InetSocketAddress(host, port);
+        }
+
+        try
+        {
+            // Populate the keyspace so GETs return values
+            try (RedisConnection conn = RedisConnection.connect(addr))
+            {
+                for (int i = 0; i < keyspace; i++)
+                {
+                    conn.appendCommand(SET, keys[i], value);
+                }
+                for (int i = 0; i < keyspace; i++)
+                {
+                    conn.getReply().release();
+                }
+            }
+
+            AtomicLong remaining = new AtomicLong(requests);
+            List<Client> workers = new ArrayList<>();
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < clients; i++)
+            {
+                RedisConnection conn = RedisConnection.connect(addr);
+                if (direct)
+                {
+                    conn.bufferAllocator(BufferAllocator.pooledDirect());
+                }
+                Client client = new Client(conn, remaining);
+                workers.add(client);
+                threads.add(virtual ? Thread.ofVirtual().unstarted(client) : new Thread(client, "load-client-" + i));
+            }
+
+            long start = System.nanoTime();
+            for (Thread thread : threads)
+            {
+                thread.start();
+            }
+            for (Thread thread : threads)
+            {
+                thread.join();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            LatencyHistogram total = new LatencyHistogram();
+            long errors = 0;
+            for (Client client : workers)
+            {
+                if (client.failure != null)
+                {
+                    throw new IOException("Client failed", client.failure);
+                }
+                total.merge(client.histogram);
+                errors += client.errors;
+            }
+            report(addr, total, errors, elapsed);
+        }
+        finally
+        {
+            if (server != null)
+            {
+                server.close();
+            }
+        }
+    }
+
+    private void prepare()
+    {
+        String[] parts = mix.split(",");
+        commands = new byte[parts.length][];
+        weights = new int[parts.length];
+        for (int i = 0; i < parts.length; i++)
+        {
+            String[] kv = parts[i].split(":");
+            String name = kv[0].trim().toUpperCase(Locale.ROOT);
+            Preconditions.checkState(Arrays.asList("GET", "SET", "PING").contains(name), "Unsupported command " + name);
+            commands[i] = "GET".equals(name) ? GET : "SET".equals(name) ? SET : PING;
+            weights[i] = kv.length > 1 ? Integer.parseInt(kv[1].trim()) : 1;
+            totalWeight += weights[i];
+        }
+        keys = new byte[keyspace][];
+        for (int i = 0; i < keyspace; i++)
+        {
+            keys[i] = ("key:" + i).getBytes(ProtocolReader.CHARSET);
+        }
+        value = new byte[valueSize];
+        Arrays.fill(value, (byte) 'x');
+    }
+
+    private byte[] pick(ThreadLocalRandom random)
+    {
+        int w = random.nextInt(totalWeight);
+        for (int i = 0; i < weights.length; i++)
+        {
+            w -= weights[i];
+            if (w < 0)
+            {
+                return commands[i];
+            }
+        }
+        return commands[commands.length - 1];
+    }
+
+    private void report(SocketAddress addr, LatencyHistogram histogram, long errors, long elapsedNanos)
+    {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf(Locale.ROOT, "====== %s ======%n", mix);
+        System.out.printf(Locale.ROOT, "  %d requests completed in %.2f seconds against %s%s%n", histogram.getCount(),
+                          seconds, addr, host == null ? " (stand-in)" : "");
+        System.out.printf(Locale.ROOT, "  %d parallel clients, pipeline %d, %d byte values, %s threads, %s buffers%n",
+                          clients, pipeline, valueSize, virtual ? "virtual" : "platform", direct ? "direct" : "heap");
+        if (errors > 0)
+        {
+            System.out.printf(Locale.ROOT, "  %d error replies%n", errors);
+        }
+        System.out.printf(Locale.ROOT, "  throughput: %.2f requests per second%n", histogram.getCount() / seconds);
+        System.out.printf(Locale.ROOT, "  latency (ms): avg %.3f p50 %.3f p90 %.3f p99 %.3f p99.9 %.3f max %.3f%n",
+                          histogram.getMean() / 1000, histogram.getPercentile(50) / 1000.0,
+                          histogram.getPercentile(90) / 1000.0, histogram.getPercentile(99) / 1000.0,
+                          histogram.getPercentile(99.9) / 1000.0, histogram.getMax() / 1000.0);
+    }
+
+    private final class Client implements Runnable
+    {
+        final RedisConnection conn;
+        final AtomicLong remaining;
+        final LatencyHistogram histogram = new LatencyHistogram();
+        long errors = 0;
+        Exception failure = null;
+
+        Client(RedisConnection conn, AtomicLong remaining)
+        {
+            this.conn = conn;
+            this.remaining = remaining;
+        }
+
+        @Override
+        public void run()
+        {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            try (RedisConnection c = conn)
+            {
+                long batch;
+                while ((batch = claim()) > 0)
+                {
+                    long start = System.nanoTime();
+                    for (long i = 0; i < batch; i++)
+                    {
+                        byte[] command = pick(random);
+                        if (command == GET)
+                        {
+                            conn.appendCommand(GET, keys[random.nextInt(keyspace)]);
+                        }
+                        else if (command == SET)
+                        {
+                            conn.appendCommand(SET, keys[random.nextInt(keyspace)], value);
+                        }
+                        else
+                        {
+                            conn.appendCommand(PING);
+                        }
+                    }
+                    for (long i = 0; i < batch; i++)
+                    {
+                        RedisReply reply = conn.getReply();
+                        histogram.recordNanos(System.nanoTime() - start);
+                        if (reply.getType() == RedisReply.Type.ERROR)
+                        {
+                            errors++;
+                        }
+                        reply.release();
+                    }
+                }
+            }
+            catch (Exception e)
+            {
+                failure = e;
+            }
+        }
+
+        /*
+         * Take up to a pipeline's worth of the remaining requests
+         */
+        private long claim()
+        {
+            while (true)
+            {
+                long left = remaining.get();
+                if (left <= 0)
+                {
+                    return 0;
+                }
+                long batch = Math.min(left, pipeline);
+                if (remaining.compareAndSet(left, left - batch))
+                {
+                    return batch;
+                }
+            }
+        }
+    }
+}
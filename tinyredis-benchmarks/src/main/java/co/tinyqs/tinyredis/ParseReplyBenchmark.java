@@ -0,0 +1,114 @@
+package co.tinyqs.tinyredis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * ProtocolReader.feed() and getReply() over canned reply streams that arrived in a single read:
+ *   status   - 1000 "+OK" replies
+ *   bulk     - 1000 bulk strings of 256 bytes
+ *   deep     - one array nested 8 levels deep with 4 elements per level (65536 integer leaves)
+ *   pipeline - 10000 mixed status, integer, bulk and nil replies, as returned for a large pipeline
+ *
+ * Each invocation feeds and drains the whole stream, so the score is the time per stream.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseReplyBenchmark
+{
+    @Param({"status", "bulk", "deep", "pipeline"})
+    public String stream;
+
+    @Param({"false", "true"})
+    public boolean zeroCopy;
+
+    private ByteBuffer input;
+    private ProtocolReader reader;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        StringBuilder sb = new StringBuilder();
+        switch (stream)
+        {
+            case "status":
+                for (int i = 0; i < 1000; i++)
+                {
+                    sb.append("+OK\r\n");
+                }
+                break;
+            case "bulk":
+                String value = "v".repeat(256);
+                for (int i = 0; i < 1000; i++)
+                {
+                    sb.append("$256\r\n").append(value).append("\r\n");
+                }
+                break;
+            case "deep":
+                nested(sb, 8);
+                break;
+            case "pipeline":
+                for (int i = 0; i < 10000; i++)
+                {
+                    switch (i % 4)
+                    {
+                        case 0: sb.append("+OK\r\n"); break;
+                        case 1: sb.append(':').append(i).append("\r\n"); break;
+                        case 2: sb.append("$12\r\nvalue:").append(String.format("%06d", i)).append("\r\n"); break;
+                        default: sb.append("$-1\r\n"); break;
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown stream: " + stream);
+        }
+        input = BufferUtils.encode(sb.toString());
+        reader = new ProtocolReader();
+        reader.setZeroCopy(zeroCopy);
+    }
+
+    private static void nested(StringBuilder sb, int depth)
+    {
+        if (depth == 0)
+        {
+            sb.append(":42\r\n");
+            return;
+        }
+        sb.append("*4\r\n");
+        for (int i = 0; i < 4; i++)
+        {
+            nested(sb, depth - 1);
+        }
+    }
+
+    @Benchmark
+    public void parse(Blackhole bh) throws IOException
+    {
+        reader.feed(input.duplicate());
+        RedisReply reply;
+        while ((reply = reader.getReply()) != null)
+        {
+            bh.consume(reply);
+            reply.release();
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package co.tinyqs.tinyredis;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lightweight NIO stand-in for a redis server, for benchmarking clients on machines without redis
+ *
+ * PING, GET and SET are answered from an in-memory map (any other command gets an error), by a few selector threads
+ * that each serve a share of the connections. Requests are parsed with ProtocolReader.
+ *
+ * To simulate a network, each reply can be held back for a fixed delay, and the bytes written per second can be
+ * capped. The bandwidth limit is split evenly between the selector threads.
+ *
+ * Run standalone with:
+ *   java -cp tinyredis-benchmarks/target/benchmarks.jar co.tinyqs.tinyredis.RespStandInServer [port] [threads] [delay us] [bytes/s]
+ */
+public class RespStandInServer implements AutoCloseable
+{
+    private static final byte[] OK = "+OK\r\n".getBytes(ProtocolReader.CHARSET);
+    private static final byte[] PONG = "+PONG\r\n".getBytes(ProtocolReader.CHARSET);
+    private static final byte[] NIL = "$-1\r\n".getBytes(ProtocolReader.CHARSET);
+    private static final byte[] CRLF = "\r\n".getBytes(ProtocolReader.CHARSET);
+    private static final int MIN_READ = 1024*16;
+
+    private final ServerSocketChannel server;
+    private final ConcurrentMap<ByteBuffer, byte[]> data = new ConcurrentHashMap<>();
+    private final List<Loop> loops = new ArrayList<>();
+    private final long delayNanos;
+    private volatile boolean closed = false;
+
+    /**
+     * Listen on the given address with a single thread and no simulated network
+     */
+    public RespStandInServer(SocketAddress bind) throws IOException
+    {
+        this(bind, 1, 0, 0);
+    }
+
+    /**
+     * Listen on the given address
+     *
+     * @param threads - number of selector threads
+     * @param delayMicros - time each reply is held back for, 0 for none
+     * @param bytesPerSecond - maximum bytes written per second across all connections, 0 for no limit
+     */
+    public RespStandInServer(SocketAddress bind, int threads, long delayMicros, long bytesPerSecond) throws IOException
+    {
+        Preconditions.checkState(threads > 0, "At least one thread is required");
+        this.delayNanos = TimeUnit.MICROSECONDS.toNanos(delayMicros);
+        server = ServerSocketChannel.open();
+        server.bind(bind, 1024);
+        for (int i = 0; i < threads; i++)
+        {
+            loops.add(new Loop(i, bytesPerSecond / threads));
+        }
+        Thread acceptor = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                accept();
+            }
+        }, "resp-standin-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (Loop loop : loops)
+        {
+            loop.thread.start();
+        }
+    }
+
+    public SocketAddress getAddress() throws IOException
+    {
+        return server.getLocalAddress();
+    }
+
+    private void accept()
+    {
+        int next = 0;
+        while (!closed)
+        {
+            try
+            {
+                SocketChannel channel = server.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.configureBlocking(false);
+                loops.get(next++ % loops.size()).add(channel);
+            }
+            catch (IOException e)
+            {
+                return;
+            }
+        }
+    }
+
+    /*
+     * Return the reply to a request
+     */
+    private byte[] handle(RedisReply request)
+    {
+        if (request.getType() != RedisReply.Type.ARRAY || request.getElements().length == 0)
+        {
+            return error("ERR Protocol error: expected an array of bulk strings");
+        }
+        RedisReply[] args = request.getElements();
+        String name = args[0].getString();
+        if ("GET".equalsIgnoreCase(name) && args.length == 2)
+        {
+            byte[] value = data.get(ByteBuffer.wrap(args[1].getBytes()));
+            if (value == null)
+            {
+                return NIL;
+            }
+            byte[] header = BufferUtils.encodeHeader('$', value.length);
+            byte[] reply = new byte[header.length + value.length + 2];
+            System.arraycopy(header, 0, reply, 0, header.length);
+            System.arraycopy(value, 0, reply, header.length, value.length);
+            System.arraycopy(CRLF, 0, reply, header.length + value.length, 2);
+            return reply;
+        }
+        if ("SET".equalsIgnoreCase(name) && args.length == 3)
+        {
+            data.put(ByteBuffer.wrap(args[1].getBytes()), args[2].getBytes());
+            return OK;
+        }
+        if ("PING".equalsIgnoreCase(name))
+        {
+            return PONG;
+        }
+        return error("ERR unknown command '" + name + "'");
+    }
+
+    private static byte[] error(String message)
+    {
+        return ("-" + message + "\r\n").getBytes(ProtocolReader.CHARSET);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        server.close();
+        for (Loop loop : loops)
+        {
+            loop.selector.wakeup();
+        }
+    }
+
+    /*
+     * A selector thread and the connections it serves
+     */
+    private final class Loop implements Runnable
+    {
+        final Thread thread;
+        final Selector selector;
+        final Queue<SocketChannel> added = new ConcurrentLinkedQueue<>();
+        // Connections with replies waiting to be written
+        final Set<Connection> pending = new LinkedHashSet<>();
+        final long bytesPerSecond;
+        final long burst;
+        long tokens;
+        long lastRefill = System.nanoTime();
+
+        Loop(int index, long bytesPerSecond) throws IOException
+        {
+            this.selector = Selector.open();
+            this.bytesPerSecond = bytesPerSecond;
+            // Allow up to 10ms of traffic in one burst
+            this.burst = Math.max(bytesPerSecond / 100, 1024*16);
+            this.tokens = burst;
+            thread = new Thread(this, "resp-standin-" + index);
+            thread.setDaemon(true);
+        }
+
+        void add(SocketChannel channel)
+        {
+            added.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (!closed)
+                {
+                    long timeout = flushPending();
+                    if (timeout < 0)
+                    {
+                        selector.select();
+                    }
+                    else if (timeout == 0)
+                    {
+                        selector.selectNow();
+                    }
+                    else
+                    {
+                        selector.select(Math.max(TimeUnit.NANOSECONDS.toMillis(timeout), 1));
+                    }
+
+                    SocketChannel channel;
+                    while ((channel = added.poll()) != null)
+                    {
+                        channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+                    }
+                    for (SelectionKey key : selector.selectedKeys())
+                    {
+                        Connection conn = (Connection) key.attachment();
+                        try
+                        {
+                            if (key.isReadable())
+                            {
+                                conn.read();
+                            }
+                            if (key.isValid() && key.isWritable())
+                            {
+                                pending.add(conn);
+                            }
+                        }
+                        catch (IOException e)
+                        {
+                            conn.close();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            }
+            catch (IOException e)
+            {
+                // Selector failed, the server is unusable
+            }
+            finally
+            {
+                try
+                {
+                    for (SelectionKey key : selector.keys())
+                    {
+                        key.channel().close();
+                    }
+                    selector.close();
+                }
+                catch (IOException ignored)
+                {
+                    // Shutting down
+                }
+            }
+        }
+
+        /*
+         * Write whatever pending replies are due and allowed by the bandwidth limit. Returns how long to wait in ns
+         * before there is more to write, 0 to poll again immediately or -1 if nothing is pending.
+         */
+        long flushPending()
+        {
+            long now = System.nanoTime();
+            if (bytesPerSecond > 0)
+            {
+                // Cap the refill at a second's worth, so the product can't overflow after a long idle
+                long elapsed = Math.min(now - lastRefill, TimeUnit.SECONDS.toNanos(1));
+                tokens = Math.min(burst, tokens + elapsed * bytesPerSecond / 1000000000L);
+                lastRefill = now;
+            }
+            long wait = -1;
+            List<Connection> done = new ArrayList<>();
+            for (Connection conn : pending)
+            {
+                try
+                {
+                    long connWait = conn.flush(now);
+                    if (connWait < 0)
+                    {
+                        done.add(conn);
+                    }
+                    else
+                    {
+                        wait = wait < 0 ? connWait : Math.min(wait, connWait);
+                    }
+                }
+                catch (IOException e)
+                {
+                    conn.close();
+                    done.add(conn);
+                }
+            }
+            pending.removeAll(done);
+            if (wait > 0 && bytesPerSecond > 0 && tokens <= 0)
+            {
+                // Wake up once enough tokens for a small write have been refilled
+                wait = Math.min(wait, 1024L * 1000000000L / bytesPerSecond);
+            }
+            return wait;
+        }
+
+        private final class Connection
+        {
+            final SocketChannel channel;
+            final ProtocolReader reader = new ProtocolReader();
+            // Replies held back by the simulated delay, in the order they are due
+            final Deque<Delayed> delayed = new ArrayDeque<>();
+            ByteBuffer output = ByteBuffer.allocate(1024*16);
+
+            Connection(SocketChannel channel)
+            {
+                this.channel = channel;
+            }
+
+            void read() throws IOException
+            {
+                int nread;
+                do
+                {
+                    nread = channel.read(reader.writableBuffer(MIN_READ));
+                    reader.commitWrite();
+                }
+                while (nread > 0);
+
+                long due = System.nanoTime() + delayNanos;
+                RedisReply request;
+                while ((request = reader.getReply()) != null)
+                {
+                    byte[] reply = handle(request);
+                    if (delayNanos > 0)
+                    {
+                        delayed.add(new Delayed(reply, due));
+                    }
+                    else
+                    {
+                        output = BufferUtils.makeRoom(output, reply.length);
+                        output.put(reply);
+                    }
+                }
+                pending.add(this);
+                if (nread < 0)
+                {
+                    throw new IOException("Client closed the connection");
+                }
+            }
+
+            /*
+             * Write due replies, returning how long to wait in ns before calling again, or -1 once all is written
+             */
+            long flush(long now) throws IOException
+            {
+                Delayed next;
+                while ((next = delayed.peek()) != null && next.due - now <= 0)
+                {
+                    delayed.poll();
+                    output = BufferUtils.makeRoom(output, next.reply.length);
+                    output.put(next.reply);
+                }
+
+                output.flip();
+                int limit = output.limit();
+                if (bytesPerSecond > 0 && tokens < output.remaining())
+                {
+                    output.limit(output.position() + (int) Math.max(tokens, 0));
+                }
+                int written = output.hasRemaining() ? channel.write(output) : 0;
+                if (bytesPerSecond > 0)
+                {
+                    tokens -= written;
+                }
+                output.limit(limit);
+                boolean blocked = output.hasRemaining();
+                output.compact();
+
+                SelectionKey key = channel.keyFor(selector);
+                boolean socketFull = blocked && (bytesPerSecond == 0 || tokens > 0);
+                int ops = socketFull ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+                if (key != null && key.isValid() && key.interestOps() != ops)
+                {
+                    key.interestOps(ops);
+                }
+
+                if (blocked)
+                {
+                    // Waiting for the socket is handled by OP_WRITE, waiting for tokens by polling
+                    return socketFull ? -1 : 1;
+                }
+                next = delayed.peek();
+                return next == null ? -1 : Math.max(next.due - now, 1);
+            }
+
+            void close()
+            {
+                try
+                {
+                    channel.close();
+                }
+                catch (IOException ignored)
+                {
+                    // Already closing
+                }
+            }
+        }
+    }
+
+    private static final class Delayed
+    {
+        final byte[] reply;
+        final long due;
+
+        Delayed(byte[] reply, long due)
+        {
+            this.reply = reply;
+            this.due = due;
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 6379;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        long delay = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        long bandwidth = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        try (RespStandInServer server = new RespStandInServer(new InetSocketAddress(port), threads, delay, bandwidth))
+        {
+            System.out.println("Listening on " + server.getAddress());
+            Thread.currentThread().join();
+        }
+    }
+}